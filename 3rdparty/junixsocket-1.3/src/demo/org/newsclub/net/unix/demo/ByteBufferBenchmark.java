@@ -0,0 +1,170 @@
+/**
+ * junixsocket
+ *
+ * Copyright (c) 2009 NewsClub, Christian Kohlschütter
+ *
+ * The author licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.newsclub.net.unix.demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.newsclub.net.unix.AFUNIXServerSocket;
+import org.newsclub.net.unix.AFUNIXSocket;
+import org.newsclub.net.unix.AFUNIXSocketAddress;
+
+/**
+ * Compares request/response round trips over the streams with the same round
+ * trips over direct {@link ByteBuffer}s, the way a line-based protocol such
+ * as PowerDNS's remotebackend uses a connection: a small request, then an
+ * answer written as a header, a body and a trailer.
+ * 
+ * <pre>
+ * java -Dorg.newsclub.net.unix.library.path=lib-native \
+ *     org.newsclub.net.unix.demo.ByteBufferBenchmark [round trips] [body bytes]
+ * </pre>
+ */
+public class ByteBufferBenchmark {
+    private static final byte[] REQUEST = new byte[100];
+    private static final byte[] HEADER = "{\"result\":[".getBytes();
+    private static final byte[] TRAILER = "]}\n".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        final int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final int bodyLength = args.length > 1 ? Integer.parseInt(args[1])
+                : 400;
+        final AFUNIXSocketAddress address = new AFUNIXSocketAddress(new File(
+                new File(System.getProperty("java.io.tmpdir")),
+                "junixsocket-benchmark.sock"));
+
+        for (int pass = 0; pass < 3; pass++) {
+            System.out.println("streams:      "
+                    + run(address, rounds, bodyLength, false) + " ns/round trip");
+            System.out.println("byte buffers: "
+                    + run(address, rounds, bodyLength, true) + " ns/round trip");
+        }
+    }
+
+    private static long run(final AFUNIXSocketAddress address,
+            final int rounds, final int bodyLength, final boolean buffers)
+            throws Exception {
+        final AFUNIXServerSocket server = AFUNIXServerSocket.newInstance();
+        server.bind(address);
+
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    Socket sock = server.accept();
+                    if (buffers) {
+                        serveBuffers((AFUNIXSocket) sock, bodyLength);
+                    } else {
+                        serveStreams(sock, bodyLength);
+                    }
+                    sock.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.start();
+
+        AFUNIXSocket sock = AFUNIXSocket.connectTo(address);
+        int answerLength = HEADER.length + bodyLength + TRAILER.length;
+        long start = System.nanoTime();
+
+        if (buffers) {
+            ByteBuffer request = ByteBuffer.allocateDirect(REQUEST.length);
+            ByteBuffer answer = ByteBuffer.allocateDirect(answerLength);
+            for (int i = 0; i < rounds; i++) {
+                request.clear();
+                sock.write(request);
+                answer.clear();
+                while (answer.hasRemaining()) {
+                    sock.read(answer);
+                }
+            }
+        } else {
+            InputStream in = sock.getInputStream();
+            OutputStream out = sock.getOutputStream();
+            byte[] answer = new byte[answerLength];
+            for (int i = 0; i < rounds; i++) {
+                out.write(REQUEST);
+                int off = 0;
+                while (off < answerLength) {
+                    off += in.read(answer, off, answerLength - off);
+                }
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        sock.close();
+        t.join();
+        server.close();
+        return elapsed / rounds;
+    }
+
+    private static void serveStreams(final Socket sock, final int bodyLength)
+            throws IOException {
+        InputStream in = sock.getInputStream();
+        OutputStream out = sock.getOutputStream();
+        byte[] request = new byte[REQUEST.length];
+        byte[] body = new byte[bodyLength];
+        byte[] answer = new byte[HEADER.length + bodyLength + TRAILER.length];
+
+        while (true) {
+            int off = 0;
+            while (off < request.length) {
+                int n = in.read(request, off, request.length - off);
+                if (n < 0) {
+                    return;
+                }
+                off += n;
+            }
+            // what a BufferedWriter does with the three parts
+            System.arraycopy(HEADER, 0, answer, 0, HEADER.length);
+            System.arraycopy(body, 0, answer, HEADER.length, bodyLength);
+            System.arraycopy(TRAILER, 0, answer, HEADER.length + bodyLength,
+                    TRAILER.length);
+            out.write(answer);
+        }
+    }
+
+    private static void serveBuffers(final AFUNIXSocket sock,
+            final int bodyLength) throws IOException {
+        ByteBuffer request = ByteBuffer.allocateDirect(REQUEST.length);
+        ByteBuffer header = ByteBuffer.allocateDirect(HEADER.length);
+        header.put(HEADER).flip();
+        ByteBuffer body = ByteBuffer.allocateDirect(bodyLength);
+        ByteBuffer trailer = ByteBuffer.allocateDirect(TRAILER.length);
+        trailer.put(TRAILER).flip();
+        ByteBuffer[] answer = new ByteBuffer[] { header, body, trailer };
+
+        while (true) {
+            request.clear();
+            while (request.hasRemaining()) {
+                if (sock.read(request) < 0) {
+                    return;
+                }
+            }
+            for (ByteBuffer b : answer) {
+                b.rewind();
+            }
+            sock.write(answer);
+        }
+    }
+}
@@ -20,6 +20,7 @@ package org.newsclub.net.unix;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
 /**
  * Implementation of an AF_UNIX domain socket. 
@@ -99,6 +100,58 @@ public class AFUNIXSocket extends Socket {
         NativeUnixSocket.setConnected(this);
     }
 
+    /**
+     * Checks that the native library has what {@link #read(ByteBuffer)},
+     * {@link #write(ByteBuffer)} and {@link #write(ByteBuffer[])} need. A
+     * library from before they were added loads without complaint, and they
+     * then fail with an UnsatisfiedLinkError; use the streams instead when
+     * this returns false. The check is made once.
+     * 
+     * @return true if the ByteBuffer methods can be used.
+     */
+    public static boolean supportsDirectBuffers() {
+        return NativeUnixSocket.hasDirectBuffers();
+    }
+
+    /**
+     * Reads into the remaining space of the given buffer, like
+     * {@link java.nio.channels.ReadableByteChannel#read(ByteBuffer)}. A direct
+     * buffer is read into without the copy {@link #getInputStream()} makes.
+     * Blocks until at least one byte is read, or the SO_TIMEOUT passes.
+     * 
+     * @param dst
+     * @return The number of bytes read, or -1 at the end of the stream.
+     * @throws IOException
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        return impl.read(dst);
+    }
+
+    /**
+     * Writes all of the remaining bytes of the given buffer. A direct buffer
+     * is written without the copy {@link #getOutputStream()} makes.
+     * 
+     * @param src
+     * @throws IOException
+     */
+    public void write(ByteBuffer src) throws IOException {
+        impl.write(src);
+    }
+
+    /**
+     * Writes all of the remaining bytes of the given buffers, in order, like
+     * {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[])}.
+     * Direct buffers are written together with writev(2), so a message made
+     * of several buffers goes out with one system call and without being
+     * copied into one.
+     * 
+     * @param srcs
+     * @throws IOException
+     */
+    public void write(ByteBuffer[] srcs) throws IOException {
+        impl.write(srcs);
+    }
+
     @Override
     public String toString() {
         if (isConnected())
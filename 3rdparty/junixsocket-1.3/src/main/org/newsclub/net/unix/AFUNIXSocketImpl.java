@@ -26,6 +26,7 @@ import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketImpl;
 import java.net.SocketOptions;
+import java.nio.ByteBuffer;
 
 /**
  * The Java-part of the {@link AFUNIXSocket} implementation.
@@ -157,6 +158,112 @@ class AFUNIXSocketImpl extends SocketImpl {
         NativeUnixSocket.write(fd, new byte[] { (byte) (data & 0xFF) }, 0, 1);
     }
 
+    /**
+     * Reads into the remaining space of a buffer. A direct buffer is read into
+     * without the copy through a Java array that the InputStream makes.
+     * 
+     * @return The number of bytes read, or -1 at the end of the stream.
+     */
+    int read(ByteBuffer dst) throws IOException {
+        int pos = dst.position();
+        int len = dst.remaining();
+        if (len == 0) {
+            return 0;
+        }
+        int count;
+        try {
+            if (dst.isDirect()) {
+                count = NativeUnixSocket.readDirect(fd, dst, pos, len);
+            } else {
+                count = NativeUnixSocket.read(fd, dst.array(),
+                        dst.arrayOffset() + pos, len);
+            }
+        } catch (IOException e) {
+            throw (IOException) new IOException(e.getMessage() + " at "
+                    + toString()).initCause(e);
+        }
+        if (count > 0) {
+            dst.position(pos + count);
+        }
+        return count;
+    }
+
+    /**
+     * Writes all of the remaining bytes of a buffer. A direct buffer is
+     * written without the copy through a Java array that the OutputStream
+     * makes.
+     */
+    void write(ByteBuffer src) throws IOException {
+        try {
+            while (src.hasRemaining() && !Thread.interrupted()) {
+                int pos = src.position();
+                int written;
+                if (src.isDirect()) {
+                    written = NativeUnixSocket.writeDirect(fd, src, pos,
+                            src.remaining());
+                } else {
+                    written = NativeUnixSocket.write(fd, src.array(),
+                            src.arrayOffset() + pos, src.remaining());
+                }
+                if (written == -1) {
+                    throw new IOException("Unspecific error while writing");
+                }
+                src.position(pos + written);
+            }
+        } catch (IOException e) {
+            throw (IOException) new IOException(e.getMessage() + " at "
+                    + toString()).initCause(e);
+        }
+    }
+
+    /**
+     * Writes all of the remaining bytes of several buffers, in order. Direct
+     * buffers are written together with writev(2), up to
+     * {@link NativeUnixSocket#WRITEV_MAX} at a time; a heap buffer is written
+     * on its own.
+     */
+    void write(ByteBuffer[] srcs) throws IOException {
+        ByteBuffer[] bufs = new ByteBuffer[NativeUnixSocket.WRITEV_MAX];
+        int[] offsets = new int[NativeUnixSocket.WRITEV_MAX];
+        int[] lengths = new int[NativeUnixSocket.WRITEV_MAX];
+        int first = 0;
+        try {
+            while (first < srcs.length && !Thread.interrupted()) {
+                if (!srcs[first].hasRemaining()) {
+                    first++;
+                    continue;
+                }
+                if (!srcs[first].isDirect()) {
+                    write(srcs[first]);
+                    first++;
+                    continue;
+                }
+                int count = 0;
+                for (int i = first; i < srcs.length
+                        && count < NativeUnixSocket.WRITEV_MAX
+                        && srcs[i].isDirect(); i++) {
+                    bufs[count] = srcs[i];
+                    offsets[count] = srcs[i].position();
+                    lengths[count] = srcs[i].remaining();
+                    count++;
+                }
+                long written = NativeUnixSocket.writev(fd, bufs, offsets,
+                        lengths, count);
+                if (written == -1) {
+                    throw new IOException("Unspecific error while writing");
+                }
+                for (int i = 0; i < count && written > 0; i++) {
+                    int n = (int) Math.min(written, lengths[i]);
+                    bufs[i].position(offsets[i] + n);
+                    written -= n;
+                }
+            }
+        } catch (IOException e) {
+            throw (IOException) new IOException(e.getMessage() + " at "
+                    + toString()).initCause(e);
+        }
+    }
+
     private final class AFUNIXInputStream extends InputStream {
         private boolean streamClosed = false;
 
@@ -20,6 +20,7 @@ package org.newsclub.net.unix;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -31,6 +32,12 @@ import java.util.logging.Logger;
  * @author Christian Kohlschütter
  */
 final class NativeUnixSocket {
+    /**
+     * The most buffers {@link #writev} writes in one call; WRITEV_MAX in the C
+     * code must match.
+     */
+    static final int WRITEV_MAX = 16;
+
     private static final String PROP_LIBRARY_LOADED = "org.newsclub.net.unix.library.loaded";
     private static final String PROP_LIBRARY_DIR = "org.newsclub.net.unix.library.path";
 
@@ -112,6 +119,46 @@ final class NativeUnixSocket {
     static void checkSupported() {
         load();
     }
+
+    private static Boolean directBuffers = null;
+
+    /**
+     * Checks, once, that the loaded library has {@link #readDirect},
+     * {@link #writeDirect} and {@link #writev}. A library built before they
+     * were added has the same name and loads all the same, and only fails with
+     * an UnsatisfiedLinkError when one of them is first called.
+     * 
+     * @return true if they can be called.
+     */
+    static synchronized boolean hasDirectBuffers() {
+        if (directBuffers == null) {
+            directBuffers = Boolean.valueOf(probeDirectBuffers());
+        }
+        return directBuffers.booleanValue();
+    }
+
+    private static boolean probeDirectBuffers() {
+        // a heap buffer is refused before the descriptor is looked at
+        ByteBuffer heap = ByteBuffer.allocate(1);
+        try {
+            try {
+                readDirect(null, heap, 0, 1);
+            } catch (IOException e) {
+            }
+            try {
+                writeDirect(null, heap, 0, 1);
+            } catch (IOException e) {
+            }
+            try {
+                writev(null, new ByteBuffer[] { heap }, new int[] { 0 },
+                        new int[] { 1 }, 1);
+            } catch (IOException e) {
+            }
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
     
     native static void bind(final String socketFile, final FileDescriptor fd,
             final int backlog) throws IOException;
@@ -132,6 +179,15 @@ final class NativeUnixSocket {
     native static int write(final FileDescriptor fd, byte[] b, int off, int len)
             throws IOException;
 
+    native static int readDirect(final FileDescriptor fd, ByteBuffer b,
+            int off, int len) throws IOException;
+
+    native static int writeDirect(final FileDescriptor fd, ByteBuffer b,
+            int off, int len) throws IOException;
+
+    native static long writev(final FileDescriptor fd, ByteBuffer[] b,
+            int[] off, int[] len, int count) throws IOException;
+
     native static void close(final FileDescriptor fd) throws IOException;
 
     native static void shutdown(final FileDescriptor fd, int mode)
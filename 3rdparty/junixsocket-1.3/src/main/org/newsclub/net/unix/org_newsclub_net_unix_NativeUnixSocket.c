@@ -32,6 +32,10 @@
 #include <fcntl.h>
 
 #include <sys/ioctl.h>
+
+// the most buffers written by one writev call; NativeUnixSocket.WRITEV_MAX must match
+#define WRITEV_MAX 16
+
 #ifndef FIONREAD
   #include <sys/filio.h>
 #endif 
@@ -374,6 +378,119 @@ typedef unsigned long socklen_t; /* 64-bits */
 	}
 
 	
+	/*
+	 * Class:     org_newsclub_net_unix_NativeUnixSocket
+	 * Method:    readDirect
+	 * Signature: (Ljava/io/FileDescriptor;Ljava/nio/ByteBuffer;II)I
+	 *
+	 * Reads straight into a direct ByteBuffer's memory, without the copy read() makes.
+	 */
+	JNIEXPORT jint JNICALL Java_org_newsclub_net_unix_NativeUnixSocket_readDirect
+	(JNIEnv * env, jclass clazz, jobject fd, jobject jbuf, jint offset, jint length) {
+		jbyte *buf = (jbyte *)(*env)->GetDirectBufferAddress(env, jbuf);
+		if(buf == NULL) {
+			org_newsclub_net_unix_NativeUnixSocket_throwException(env, "Not a direct buffer", NULL);
+			return -1;
+		}
+
+		int handle = org_newsclub_net_unix_NativeUnixSocket_getFD(env, fd);
+
+		ssize_t count = read(handle, &(buf[offset]), length);
+
+		if(count == 0) {
+			// read(2) returns 0 on EOF. Java returns -1.
+			return -1;
+		} else if(count == -1) {
+			org_newsclub_net_unix_NativeUnixSocket_throwException(env, strerror(errno), NULL);
+			return -1;
+		}
+
+		return count;
+	}
+
+
+	/*
+	 * Class:     org_newsclub_net_unix_NativeUnixSocket
+	 * Method:    writeDirect
+	 * Signature: (Ljava/io/FileDescriptor;Ljava/nio/ByteBuffer;II)I
+	 *
+	 * Writes straight from a direct ByteBuffer's memory, without the copy write() makes.
+	 */
+	JNIEXPORT jint JNICALL Java_org_newsclub_net_unix_NativeUnixSocket_writeDirect
+	(JNIEnv * env, jclass clazz, jobject fd, jobject jbuf, jint offset, jint length) {
+		jbyte *buf = (jbyte *)(*env)->GetDirectBufferAddress(env, jbuf);
+		if(buf == NULL) {
+			org_newsclub_net_unix_NativeUnixSocket_throwException(env, "Not a direct buffer", NULL);
+			return -1;
+		}
+
+		int handle = org_newsclub_net_unix_NativeUnixSocket_getFD(env, fd);
+
+		ssize_t count = write(handle, &buf[offset], length);
+
+		if(count == -1) {
+			if(errno == EAGAIN || errno == EWOULDBLOCK) {
+				return 0;
+			}
+			org_newsclub_net_unix_NativeUnixSocket_throwException(env, strerror(errno), NULL);
+			return -1;
+		}
+
+		return count;
+	}
+
+
+	/*
+	 * Class:     org_newsclub_net_unix_NativeUnixSocket
+	 * Method:    writev
+	 * Signature: (Ljava/io/FileDescriptor;[Ljava/nio/ByteBuffer;[I[II)J
+	 *
+	 * Writes the given ranges of several direct ByteBuffers with one writev(2).
+	 */
+	JNIEXPORT jlong JNICALL Java_org_newsclub_net_unix_NativeUnixSocket_writev
+	(JNIEnv * env, jclass clazz, jobject fd, jobjectArray jbufs, jintArray joffsets, jintArray jlengths, jint count) {
+		struct iovec iov[WRITEV_MAX];
+		jint offsets[WRITEV_MAX];
+		jint lengths[WRITEV_MAX];
+		int i;
+
+		if(count > WRITEV_MAX) {
+			count = WRITEV_MAX;
+		}
+
+		(*env)->GetIntArrayRegion(env, joffsets, 0, count, offsets);
+		(*env)->GetIntArrayRegion(env, jlengths, 0, count, lengths);
+
+		for(i = 0; i < count; i++) {
+			jobject jbuf = (*env)->GetObjectArrayElement(env, jbufs, i);
+			jbyte *buf = (jbyte *)(*env)->GetDirectBufferAddress(env, jbuf);
+			(*env)->DeleteLocalRef(env, jbuf);
+
+			if(buf == NULL) {
+				org_newsclub_net_unix_NativeUnixSocket_throwException(env, "Not a direct buffer", NULL);
+				return -1;
+			}
+
+			iov[i].iov_base = &buf[offsets[i]];
+			iov[i].iov_len = lengths[i];
+		}
+
+		int handle = org_newsclub_net_unix_NativeUnixSocket_getFD(env, fd);
+
+		ssize_t written = writev(handle, iov, count);
+
+		if(written == -1) {
+			if(errno == EAGAIN || errno == EWOULDBLOCK) {
+				return 0;
+			}
+			org_newsclub_net_unix_NativeUnixSocket_throwException(env, strerror(errno), NULL);
+			return -1;
+		}
+
+		return written;
+	}
+
+
 	/*
 	 * Class:     org_newsclub_net_unix_NativeUnixSocket
 	 * Method:    close
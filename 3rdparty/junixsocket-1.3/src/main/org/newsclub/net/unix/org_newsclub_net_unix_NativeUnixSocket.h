@@ -55,6 +55,30 @@ JNIEXPORT jint JNICALL Java_org_newsclub_net_unix_NativeUnixSocket_read
 JNIEXPORT jint JNICALL Java_org_newsclub_net_unix_NativeUnixSocket_write
   (JNIEnv *, jclass, jobject, jbyteArray, jint, jint);
 
+/*
+ * Class:     org_newsclub_net_unix_NativeUnixSocket
+ * Method:    readDirect
+ * Signature: (Ljava/io/FileDescriptor;Ljava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_org_newsclub_net_unix_NativeUnixSocket_readDirect
+  (JNIEnv *, jclass, jobject, jobject, jint, jint);
+
+/*
+ * Class:     org_newsclub_net_unix_NativeUnixSocket
+ * Method:    writeDirect
+ * Signature: (Ljava/io/FileDescriptor;Ljava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_org_newsclub_net_unix_NativeUnixSocket_writeDirect
+  (JNIEnv *, jclass, jobject, jobject, jint, jint);
+
+/*
+ * Class:     org_newsclub_net_unix_NativeUnixSocket
+ * Method:    writev
+ * Signature: (Ljava/io/FileDescriptor;[Ljava/nio/ByteBuffer;[I[II)J
+ */
+JNIEXPORT jlong JNICALL Java_org_newsclub_net_unix_NativeUnixSocket_writev
+  (JNIEnv *, jclass, jobject, jobjectArray, jintArray, jintArray, jint);
+
 /*
  * Class:     org_newsclub_net_unix_NativeUnixSocket
  * Method:    close
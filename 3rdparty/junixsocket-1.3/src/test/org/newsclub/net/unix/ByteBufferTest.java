@@ -0,0 +1,115 @@
+package org.newsclub.net.unix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests reading and writing {@link ByteBuffer}s, direct and not, and gathered
+ * writes, against the streams.
+ */
+public class ByteBufferTest extends SocketTestBase {
+    public ByteBufferTest() throws IOException {
+        super();
+    }
+
+    private static ByteBuffer buffer(final String s, final boolean direct) {
+        byte[] b = s.getBytes();
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(b.length + 4)
+                : ByteBuffer.allocate(b.length + 4);
+        buf.position(2);
+        buf.put(b);
+        buf.flip();
+        buf.position(2);
+        return buf;
+    }
+
+    private static String readFully(final InputStream in, final int length)
+            throws IOException {
+        byte[] b = new byte[length];
+        int off = 0;
+        while (off < length) {
+            int n = in.read(b, off, length - off);
+            assertTrue(n > 0);
+            off += n;
+        }
+        return new String(b);
+    }
+
+    @Test
+    public void testSupported() throws Exception {
+        assertTrue(AFUNIXSocket.supportsDirectBuffers());
+    }
+
+    @Test(timeout = 2000)
+    public void testWrite() throws Exception {
+        ServerThread serverThread = new ServerThread() {
+            @Override
+            protected void handleConnection(final Socket sock)
+                    throws IOException {
+                AFUNIXSocket s = (AFUNIXSocket) sock;
+                s.write(buffer("direct ", true));
+                s.write(buffer("heap ", false));
+
+                ByteBuffer empty = ByteBuffer.allocateDirect(0);
+                ByteBuffer[] bufs = new ByteBuffer[40];
+                for (int i = 0; i < bufs.length; i++) {
+                    bufs[i] = i == 7 ? empty : buffer(
+                            Character.toString((char) ('a' + i % 26)),
+                            i != 20);
+                }
+                s.write(bufs);
+                for (ByteBuffer b : bufs) {
+                    assertFalse(b.hasRemaining());
+                }
+            }
+        };
+
+        AFUNIXSocket sock = connectToServer();
+        assertEquals("direct heap abcdefgijklmnopqrstuvwxyzabcdefghijklmn",
+                readFully(sock.getInputStream(), 51));
+        assertEquals(-1, sock.getInputStream().read());
+        sock.close();
+        serverThread.checkException();
+    }
+
+    @Test(timeout = 2000)
+    public void testRead() throws Exception {
+        ServerThread serverThread = new ServerThread() {
+            @Override
+            protected void handleConnection(final Socket sock)
+                    throws IOException {
+                OutputStream out = sock.getOutputStream();
+                out.write("0123456789".getBytes());
+                out.flush();
+            }
+        };
+
+        AFUNIXSocket sock = connectToServer();
+        sleepFor(100);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        direct.position(3);
+        direct.limit(9);
+        assertEquals(6, sock.read(direct));
+        assertEquals(9, direct.position());
+        direct.flip();
+        direct.position(3);
+        byte[] b = new byte[6];
+        direct.get(b);
+        assertEquals("012345", new String(b));
+
+        ByteBuffer heap = ByteBuffer.allocate(16);
+        assertEquals(4, sock.read(heap));
+        assertEquals("6789", new String(heap.array(), 0, 4));
+
+        assertEquals(-1, sock.read(heap));
+        sock.close();
+        serverThread.checkException();
+    }
+}
@@ -0,0 +1,113 @@
+#!/usr/bin/python
+
+# Load generator for Jedi's remotebackend front ends, so that they can be
+# compared with the same client: the line-delimited JSON protocol on
+# jedi_listen_port, and the http mode on http_listen_port.
+#
+# Each thread keeps one connection open and sends one lookup at a time,
+# as each PowerDNS backend thread does.
+#
+#   remotebackend_load.py socket localhost 5300 names.txt
+#   remotebackend_load.py http localhost 5380 names.txt
+#
+# names.txt has one name to look up per line; they are asked for in turn.
+
+import json
+import socket
+import sys
+import threading
+import time
+
+threads = 20
+duration = 30
+qtype = 'ANY'
+
+
+class SocketClient:
+    def __init__(self, host, port):
+        self.sock = socket.create_connection((host, port))
+        self.sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        self.reader = self.sock.makefile('rb')
+
+    def lookup(self, name):
+        request = {'method': 'lookup', 'parameters': {'qname': name, 'qtype': qtype, 'remote': '127.0.0.1'}}
+        self.sock.sendall((json.dumps(request) + '\n').encode('ascii'))
+        line = self.reader.readline()
+        if not line:
+            raise IOError('connection closed')
+        return line
+
+
+class HttpClient:
+    def __init__(self, host, port):
+        self.sock = socket.create_connection((host, port))
+        self.sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        self.reader = self.sock.makefile('rb')
+
+    def lookup(self, name):
+        request = 'GET /dnsapi/lookup/%s/%s HTTP/1.1\r\nHost: jedi\r\nX-RemoteBackend-remote: 127.0.0.1\r\n\r\n'
+        self.sock.sendall((request % (name, qtype)).encode('ascii'))
+        length = 0
+        while True:
+            line = self.reader.readline()
+            if not line:
+                raise IOError('connection closed')
+            if line in (b'\r\n', b'\n'):
+                break
+            if line.lower().startswith(b'content-length:'):
+                length = int(line.split(b':')[1])
+        return self.reader.read(length)
+
+
+def worker(index, mode, host, port, names, deadline, results):
+    client = (HttpClient if mode == 'http' else SocketClient)(host, port)
+    latencies = []
+    errors = 0
+    i = index
+    while time.time() < deadline:
+        start = time.time()
+        try:
+            client.lookup(names[i % len(names)])
+            latencies.append(time.time() - start)
+        except (IOError, socket.error):
+            errors += 1
+            client = (HttpClient if mode == 'http' else SocketClient)(host, port)
+        i += threads
+    results.append((latencies, errors))
+
+
+def main():
+    if len(sys.argv) != 5 or sys.argv[1] not in ('socket', 'http'):
+        sys.stderr.write('usage: %s socket|http host port names-file\n' % sys.argv[0])
+        sys.exit(1)
+
+    mode, host, port = sys.argv[1], sys.argv[2], int(sys.argv[3])
+    names = [n.strip() for n in open(sys.argv[4]) if n.strip()]
+    deadline = time.time() + duration
+    results = []
+
+    workers = [threading.Thread(target=worker, args=(i, mode, host, port, names, deadline, results))
+               for i in range(threads)]
+    for t in workers:
+        t.start()
+    for t in workers:
+        t.join()
+
+    latencies = sorted(l for r in results for l in r[0])
+    errors = sum(r[1] for r in results)
+
+    if not latencies:
+        print('no lookups answered, %d errors' % errors)
+        return
+
+    def percentile(p):
+        return latencies[min(len(latencies) - 1, int(len(latencies) * p))] * 1000
+
+    print('%s: %d lookups in %ds (%.0f/s), %d errors' %
+          (mode, len(latencies), duration, len(latencies) / float(duration), errors))
+    print('latency ms: p50 %.3f p90 %.3f p99 %.3f max %.3f' %
+          (percentile(0.5), percentile(0.9), percentile(0.99), latencies[-1] * 1000))
+
+
+if __name__ == '__main__':
+    main()
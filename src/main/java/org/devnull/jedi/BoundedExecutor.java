@@ -0,0 +1,153 @@
+package org.devnull.jedi;
+
+import org.devnull.statsd_client.StatsObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BoundedExecutor is a fixed size thread pool whose queue is bounded, in place of Executors.newFixedThreadPool(),
+ * whose queue is not.  A task that finds the queue full is refused with a RejectedExecutionException rather than
+ * waiting behind an unknown amount of work, so the caller can answer for it right away.
+ * <p/>
+ * A task that has waited in the queue for longer than maxQueueWait is cancelled instead of run, as whoever
+ * submitted it has given up on it by then.  Cancelled tasks are taken out of the queue so they don't hold places
+ * in it.
+ * <p/>
+ * Exports, under the given name: queue_depth, the number of tasks queued when one is submitted; queue_wait,
+ * how long in microseconds a task waited to run; rejected and expired counts.
+ */
+public class BoundedExecutor extends ThreadPoolExecutor
+{
+	private static final StatsObject so = StatsObject.getInstance();
+
+	private final String name;
+	private final long maxQueueWaitNanos;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name         The prefix of the metrics exported, e.g. Jedi.api_pool
+	 * @param threads      The number of threads
+	 * @param queueSize    The number of tasks that may wait for a thread; 0 hands tasks to idle threads only
+	 * @param maxQueueWait Milliseconds a task may wait for a thread before it is dropped, or 0 for no limit
+	 */
+	public BoundedExecutor(final String name, final int threads, final int queueSize, final long maxQueueWait)
+	{
+		super(threads, threads, 0L, TimeUnit.MILLISECONDS, newQueue(queueSize), new Rejector(name));
+
+		this.name = name;
+		this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWait);
+	}
+
+	private static BlockingQueue<Runnable> newQueue(final int queueSize)
+	{
+		if (queueSize < 0)
+		{
+			throw new IllegalArgumentException("queue size must not be negative");
+		}
+
+		if (queueSize == 0)
+		{
+			return new SynchronousQueue<Runnable>();
+		}
+
+		return new ArrayBlockingQueue<Runnable>(queueSize);
+	}
+
+	@Override
+	public void execute(final Runnable command)
+	{
+		so.timing(name + ".queue_depth", getQueue().size());
+
+		if (command instanceof TimedTask)
+		{
+			super.execute(command);
+		}
+		else
+		{
+			super.execute(new TimedTask<Object>(command, null));
+		}
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable)
+	{
+		return new TimedTask<T>(callable);
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value)
+	{
+		return new TimedTask<T>(runnable, value);
+	}
+
+	/**
+	 * A task that knows when it was queued.
+	 */
+	private final class TimedTask<T> extends FutureTask<T>
+	{
+		private final long queued = System.nanoTime();
+
+		private TimedTask(final Callable<T> callable)
+		{
+			super(callable);
+		}
+
+		private TimedTask(final Runnable runnable, final T value)
+		{
+			super(runnable, value);
+		}
+
+		@Override
+		public void run()
+		{
+			long waited = System.nanoTime() - queued;
+			so.timing(name + ".queue_wait", waited / 1000);
+
+			if (maxQueueWaitNanos > 0 && waited > maxQueueWaitNanos && cancel(false))
+			{
+				so.increment(name + ".expired");
+				return;
+			}
+
+			super.run();
+		}
+
+		@Override
+		protected void done()
+		{
+			if (isCancelled())
+			{
+				getQueue().remove(this);
+			}
+		}
+	}
+
+	/**
+	 * Counts and refuses tasks that don't fit in the queue.
+	 */
+	private static final class Rejector implements RejectedExecutionHandler
+	{
+		private final String name;
+
+		private Rejector(final String name)
+		{
+			this.name = name;
+		}
+
+		public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor)
+		{
+			so.increment(name + ".rejected");
+			throw new RejectedExecutionException(name + " is " + (executor.isShutdown() ? "shut down" : "full"));
+		}
+	}
+}
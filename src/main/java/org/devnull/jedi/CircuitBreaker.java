@@ -0,0 +1,287 @@
+package org.devnull.jedi;
+
+import org.apache.log4j.Logger;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+
+/**
+ * CircuitBreaker stops Jedi from sending fetches to the REST server while it is unhealthy.
+ * <p/>
+ * CLOSED:    fetches go through.  Outcomes are counted over a window of circuit_breaker_window milliseconds, and
+ * once at least circuit_breaker_min_requests have been seen with a failure rate at or above
+ * circuit_breaker_failure_rate the breaker opens.  Errors, timeouts and fetches slower than
+ * circuit_breaker_slow_call_threshold all count as failures.
+ * OPEN:      no fetches go through for circuit_breaker_open_time milliseconds; misses are answered from stale
+ * cache entries or negatively right away.
+ * HALF_OPEN: one probe fetch at a time is let through.  After circuit_breaker_half_open_probes successful
+ * probes in a row the breaker closes again, and any failed probe opens it again.
+ * <p/>
+ * Every allowRequest() that doesn't return REJECTED must be followed by exactly one of onSuccess(), onFailure()
+ * or onIgnore(), given the Permit it returned.  Only the outcome of the PROBE decides whether a half open breaker
+ * closes or opens again; fetches let through while the breaker was closed that finish later are not counted.
+ */
+public class CircuitBreaker
+{
+	private static final Logger log = Logger.getLogger(CircuitBreaker.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	public enum State
+	{
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * What allowRequest() lets the caller do.
+	 */
+	public enum Permit
+	{
+		/**
+		 * the fetch must not be sent
+		 */
+		REJECTED,
+
+		/**
+		 * the fetch may be sent
+		 */
+		ALLOWED,
+
+		/**
+		 * the fetch may be sent, and is the half open breaker's probe
+		 */
+		PROBE
+	}
+
+	private final long windowMillis;
+	private final int minRequests;
+	private final double failureRate;
+	private final long slowCallNanos;
+	private final long openMillis;
+	private final int halfOpenProbes;
+	private final Clock clock;
+
+	private State state = State.CLOSED;
+	private long windowStart = 0L;
+	private int windowRequests = 0;
+	private int windowFailures = 0;
+	private long openedAt = 0L;
+	private boolean probeInFlight = false;
+	private int probeSuccesses = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config The JediConfig holding the circuit_breaker_* settings.
+	 */
+	public CircuitBreaker(final JediConfig config)
+	{
+		this(config, Clock.SYSTEM);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param config The JediConfig holding the circuit_breaker_* settings.
+	 * @param clock  Where to read the time from, by its monotonic time so that a step of the wall clock neither
+	 *               holds the breaker open nor ends a window early.
+	 */
+	public CircuitBreaker(final JediConfig config, final Clock clock)
+	{
+		if (config == null || clock == null)
+		{
+			throw new IllegalArgumentException("config or clock argument is null");
+		}
+
+		if (config.circuit_breaker_failure_rate <= 0 || config.circuit_breaker_failure_rate > 1)
+		{
+			throw new IllegalArgumentException("circuit_breaker_failure_rate must be greater than 0 and at most 1");
+		}
+
+		this.windowMillis = config.circuit_breaker_window;
+		this.minRequests = Math.max(1, config.circuit_breaker_min_requests);
+		this.failureRate = config.circuit_breaker_failure_rate;
+		this.openMillis = config.circuit_breaker_open_time;
+		this.halfOpenProbes = Math.max(1, config.circuit_breaker_half_open_probes);
+
+		long slowMillis = config.rest_fetch_timeout;
+
+		if (config.circuit_breaker_slow_call_threshold != null)
+		{
+			slowMillis = config.circuit_breaker_slow_call_threshold;
+		}
+
+		this.slowCallNanos = slowMillis * 1000000L;
+		this.clock = clock;
+		this.windowStart = clock.monotonicMillis();
+	}
+
+	/**
+	 * @return Whether a fetch may be sent to the REST server right now, and whether it is the probe.
+	 */
+	public Permit allowRequest()
+	{
+		return allowRequest(clock.monotonicMillis());
+	}
+
+	private synchronized Permit allowRequest(final long now)
+	{
+		if (state == State.CLOSED)
+		{
+			return Permit.ALLOWED;
+		}
+
+		if (state == State.OPEN)
+		{
+			if (now - openedAt < openMillis)
+			{
+				so.increment("CircuitBreaker.rejected");
+				return Permit.REJECTED;
+			}
+
+			//
+			// this request becomes the first probe
+			//
+			transition(State.HALF_OPEN, now);
+		}
+
+		if (probeInFlight)
+		{
+			so.increment("CircuitBreaker.rejected");
+			return Permit.REJECTED;
+		}
+
+		probeInFlight = true;
+		so.increment("CircuitBreaker.probes");
+		return Permit.PROBE;
+	}
+
+	/**
+	 * Records a fetch that got an answer from the REST server.  Answers slower than the slow call threshold
+	 * are counted as failures.
+	 *
+	 * @param permit   What allowRequest() returned for the fetch
+	 * @param rttNanos How long the fetch took, in nanoseconds.
+	 */
+	public void onSuccess(final Permit permit, final long rttNanos)
+	{
+		if (rttNanos > slowCallNanos)
+		{
+			so.increment("CircuitBreaker.slow_calls");
+			recordFailure(permit, clock.monotonicMillis());
+		}
+		else
+		{
+			recordSuccess(permit, clock.monotonicMillis());
+		}
+	}
+
+	private synchronized void recordSuccess(final Permit permit, final long now)
+	{
+		if (permit == Permit.PROBE)
+		{
+			probeInFlight = false;
+
+			if (++probeSuccesses >= halfOpenProbes)
+			{
+				transition(State.CLOSED, now);
+			}
+
+			return;
+		}
+
+		count(now, false);
+	}
+
+	/**
+	 * Records a fetch that timed out or errored.
+	 *
+	 * @param permit What allowRequest() returned for the fetch
+	 */
+	public void onFailure(final Permit permit)
+	{
+		recordFailure(permit, clock.monotonicMillis());
+	}
+
+	private synchronized void recordFailure(final Permit permit, final long now)
+	{
+		if (permit == Permit.PROBE)
+		{
+			probeInFlight = false;
+			transition(State.OPEN, now);
+			return;
+		}
+
+		count(now, true);
+	}
+
+	/**
+	 * Records a fetch whose outcome says nothing about the REST server, e.g. it was interrupted.
+	 *
+	 * @param permit What allowRequest() returned for the fetch
+	 */
+	public synchronized void onIgnore(final Permit permit)
+	{
+		if (permit == Permit.PROBE)
+		{
+			probeInFlight = false;
+		}
+	}
+
+	/**
+	 * @return The current state of the breaker.
+	 */
+	public synchronized State getState()
+	{
+		return state;
+	}
+
+	private void count(final long now, final boolean failed)
+	{
+		if (state != State.CLOSED)
+		{
+			//
+			// a fetch that was let through before the breaker opened, nothing to learn from it now
+			//
+			return;
+		}
+
+		if (now - windowStart >= windowMillis)
+		{
+			windowStart = now;
+			windowRequests = 0;
+			windowFailures = 0;
+		}
+
+		windowRequests++;
+
+		if (failed)
+		{
+			windowFailures++;
+		}
+
+		if (windowRequests >= minRequests && windowFailures >= windowRequests * failureRate)
+		{
+			transition(State.OPEN, now);
+		}
+	}
+
+	private void transition(final State newState, final long now)
+	{
+		log.info("circuit breaker for the REST server changing state from " + state + " to " + newState);
+		so.increment("CircuitBreaker.state_changes." + newState.name().toLowerCase());
+
+		state = newState;
+		probeInFlight = false;
+		probeSuccesses = 0;
+
+		if (newState == State.OPEN)
+		{
+			openedAt = now;
+		}
+		else if (newState == State.CLOSED)
+		{
+			windowStart = now;
+			windowRequests = 0;
+			windowFailures = 0;
+		}
+	}
+}
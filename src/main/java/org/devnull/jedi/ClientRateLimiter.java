@@ -0,0 +1,388 @@
+package org.devnull.jedi;
+
+import org.apache.log4j.Logger;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.jedi.records.AddressParser;
+import org.devnull.statsd_client.StatsObject;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ClientRateLimiter limits how many lookups each client of PowerDNS may make, so that one abusive resolver can't
+ * use up the api pool or push everyone else's records out of the cache.  Clients are grouped by subnet
+ * (rate_limit_ipv4_prefix, rate_limit_ipv6_prefix) of the address PowerDNS passes on as real-remote or remote.
+ * <p/>
+ * Each subnet has two token buckets: one for lookups answered from memory, and a much smaller one for lookups
+ * that have to go to the REST server.  The buckets live in fixed size tables indexed by a hash of the subnet, so
+ * they take no locks and no memory per client; subnets that hash to the same slot share a budget.
+ * <p/>
+ * The subnets with the most lookups refused are logged every rate_limit_report_interval.
+ */
+public class ClientRateLimiter
+{
+	private static final Logger log = Logger.getLogger(ClientRateLimiter.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	/**
+	 * returned by clientKey() when the request doesn't say who the client is, which is never limited
+	 */
+	public static final long NO_CLIENT = -1L;
+
+	/**
+	 * IPv4 subnets are kept as 0xffffffff followed by the address, which is unassigned IPv6 space
+	 */
+	private static final long IPV4_MARKER = 0xffffffff00000000L;
+
+	private static final int STRIPES = 16384;
+	private static final int TOP_OFFENDERS = 10;
+
+	private final int ipv4Prefix;
+	private final int ipv6Prefix;
+	private final Buckets hits;
+	private final Buckets misses;
+	private final long startNanos = System.nanoTime();
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config The JediConfig holding the rate_limit_* settings
+	 */
+	public ClientRateLimiter(final JediConfig config)
+	{
+		if (config == null)
+		{
+			throw new IllegalArgumentException("config argument is null");
+		}
+
+		this.ipv4Prefix = Math.max(0, Math.min(32, config.rate_limit_ipv4_prefix));
+		this.ipv6Prefix = Math.max(0, Math.min(64, config.rate_limit_ipv6_prefix));
+		this.hits = new Buckets(config.rate_limit_hits_per_second, config.rate_limit_hit_burst);
+		this.misses = new Buckets(config.rate_limit_misses_per_second, config.rate_limit_miss_burst);
+
+		if (config.rate_limit_report_interval > 0)
+		{
+			scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				public Thread newThread(final Runnable r)
+				{
+					Thread t = new Thread(r, "ClientRateLimiterReport");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+			scheduler.scheduleWithFixedDelay(new Runnable()
+			{
+				public void run()
+				{
+					report();
+				}
+			}, config.rate_limit_report_interval, config.rate_limit_report_interval, TimeUnit.MILLISECONDS);
+		}
+		else
+		{
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Works out which subnet a client is in.
+	 *
+	 * @param remote The client address, optionally with a prefix length, e.g. "10.1.2.3" or "2001:db8::/48"
+	 * @return The subnet as a key for tryAcquireHit() and tryAcquireMiss(), or NO_CLIENT if remote is not an
+	 *         address.
+	 */
+	public long clientKey(final String remote)
+	{
+		if (remote == null)
+		{
+			return NO_CLIENT;
+		}
+
+		int end = remote.indexOf('/');
+		int prefix = Integer.MAX_VALUE;
+
+		if (end < 0)
+		{
+			end = remote.length();
+		}
+		else
+		{
+			try
+			{
+				prefix = AddressParser.parseInt(remote, end + 1, remote.length());
+			}
+			catch (NumberFormatException e)
+			{
+				return NO_CLIENT;
+			}
+		}
+
+		if (remote.indexOf(':') < 0)
+		{
+			long address = AddressParser.parseInet4(remote, 0, end);
+
+			if (address < 0)
+			{
+				return NO_CLIENT;
+			}
+
+			return IPV4_MARKER | address & mask(Math.min(prefix, ipv4Prefix), 32);
+		}
+
+		long[] address = new long[2];
+
+		if (!AddressParser.parseInet6(remote.substring(0, end), address, 0))
+		{
+			return NO_CLIENT;
+		}
+
+		return address[0] & mask(Math.min(prefix, ipv6Prefix), 64);
+	}
+
+	/**
+	 * Works out which subnet a client is in, for clients that talk to us directly.
+	 *
+	 * @param remote The client address
+	 * @return The subnet as a key for tryAcquireHit() and tryAcquireMiss(), or NO_CLIENT if remote is null.
+	 */
+	public long clientKey(final InetAddress remote)
+	{
+		if (remote == null)
+		{
+			return NO_CLIENT;
+		}
+
+		byte[] b = remote.getAddress();
+		long address = 0;
+
+		for (int i = 0; i < Math.min(8, b.length); i++)
+		{
+			address = address << 8 | (b[i] & 0xff);
+		}
+
+		if (b.length == 4)
+		{
+			return IPV4_MARKER | address & mask(ipv4Prefix, 32);
+		}
+
+		return address & mask(ipv6Prefix, 64);
+	}
+
+	/**
+	 * Takes a token for a lookup answered from memory.
+	 *
+	 * @param client The client's subnet from clientKey()
+	 * @return False if the client has made too many such lookups lately and should be answered negatively.
+	 */
+	public boolean tryAcquireHit(final long client)
+	{
+		return client == NO_CLIENT || hits.tryAcquire(client, nowMillis());
+	}
+
+	/**
+	 * Takes a token for a lookup that has to be fetched from the REST server.
+	 *
+	 * @param client The client's subnet from clientKey()
+	 * @return False if the client has made too many such lookups lately and should be answered negatively.
+	 */
+	public boolean tryAcquireMiss(final long client)
+	{
+		return client == NO_CLIENT || misses.tryAcquire(client, nowMillis());
+	}
+
+	/**
+	 * Returns the subnets with the most lookups refused since the last call, and starts counting again.
+	 *
+	 * @param count The most subnets to return
+	 * @return Strings like "10.1.2.0/24 misses=1234 hits=0", most refused first.
+	 */
+	public List<String> drainTopOffenders(final int count)
+	{
+		long[] missCounts = misses.drainRejections();
+		long[] hitCounts = hits.drainRejections();
+		List<String> top = new ArrayList<String>(count);
+		boolean[] taken = new boolean[STRIPES];
+
+		for (int n = 0; n < count; n++)
+		{
+			int best = -1;
+
+			for (int i = 0; i < STRIPES; i++)
+			{
+				if (!taken[i] && missCounts[i] + hitCounts[i] > 0 &&
+				    (best < 0 || missCounts[i] + hitCounts[i] > missCounts[best] + hitCounts[best]))
+				{
+					best = i;
+				}
+			}
+
+			if (best < 0)
+			{
+				break;
+			}
+
+			taken[best] = true;
+
+			long client = missCounts[best] > 0 ? misses.owner(best) : hits.owner(best);
+			top.add(describe(client) + " misses=" + missCounts[best] + " hits=" + hitCounts[best]);
+		}
+
+		return top;
+	}
+
+	/**
+	 * Stops the reporting thread.
+	 */
+	public void shutdown()
+	{
+		if (scheduler != null)
+		{
+			scheduler.shutdownNow();
+		}
+	}
+
+	private void report()
+	{
+		List<String> top = drainTopOffenders(TOP_OFFENDERS);
+
+		if (!top.isEmpty())
+		{
+			so.increment("ClientRateLimiter.reports");
+			log.warn("clients refused the most lookups lately: " + top);
+		}
+	}
+
+	/**
+	 * @return The subnet a client key stands for, e.g. "10.1.2.0/24" or "2001:db8::/56".
+	 */
+	private String describe(final long client)
+	{
+		StringBuilder sb = new StringBuilder(48);
+
+		if ((client & IPV4_MARKER) == IPV4_MARKER)
+		{
+			CompactRecordSet.appendInet4(sb, (int) client);
+			sb.append('/').append(ipv4Prefix);
+		}
+		else
+		{
+			CompactRecordSet.appendInet6(sb, client, 0L);
+			sb.append('/').append(ipv6Prefix);
+		}
+
+		return sb.toString();
+	}
+
+	private long nowMillis()
+	{
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+
+	/**
+	 * @return A mask for the top prefix bits of a value bits long.
+	 */
+	private static long mask(final int prefix, final int bits)
+	{
+		if (prefix <= 0)
+		{
+			return 0;
+		}
+
+		return (-1L << (bits - prefix)) & (bits == 64 ? -1L : (1L << bits) - 1);
+	}
+
+	/**
+	 * A table of token buckets.  Each bucket is one long: the time it was last refilled in milliseconds in the high
+	 * 40 bits, and the tokens it holds in thousandths in the low 24 bits.  With the rate in tokens per second, a
+	 * bucket gains exactly rate thousandths of a token per millisecond.
+	 */
+	private static final class Buckets
+	{
+		private static final long TOKEN = 1000;
+		private static final long TOKENS_MASK = (1L << 24) - 1;
+
+		private final long rate;
+		private final long capacity;
+		private final AtomicLongArray states = new AtomicLongArray(STRIPES);
+		private final AtomicLongArray rejections = new AtomicLongArray(STRIPES);
+		private final AtomicLongArray owners = new AtomicLongArray(STRIPES);
+
+		private Buckets(final long perSecond, final long burst)
+		{
+			this.rate = Math.max(0, perSecond);
+			this.capacity = Math.max(1, Math.min(burst, TOKENS_MASK / TOKEN)) * TOKEN;
+		}
+
+		private boolean tryAcquire(final long client, final long now)
+		{
+			int i = stripe(client);
+
+			while (true)
+			{
+				long state = states.get(i);
+				long tokens;
+
+				if (state == 0)
+				{
+					tokens = capacity;
+				}
+				else
+				{
+					long elapsed = Math.max(0, now - (state >>> 24));
+					tokens = Math.min(capacity, (state & TOKENS_MASK) + elapsed * rate);
+				}
+
+				if (tokens < TOKEN)
+				{
+					rejections.incrementAndGet(i);
+					owners.set(i, client);
+					return false;
+				}
+
+				//
+				// time 0 with no tokens left would look like a bucket never used, so time starts at 1
+				//
+				long next = Math.max(1, now) << 24 | (tokens - TOKEN);
+
+				if (states.compareAndSet(i, state, next))
+				{
+					return true;
+				}
+			}
+		}
+
+		private long[] drainRejections()
+		{
+			long[] counts = new long[STRIPES];
+
+			for (int i = 0; i < STRIPES; i++)
+			{
+				if (rejections.get(i) != 0)
+				{
+					counts[i] = rejections.getAndSet(i, 0);
+				}
+			}
+
+			return counts;
+		}
+
+		private long owner(final int i)
+		{
+			return owners.get(i);
+		}
+
+		private static int stripe(final long client)
+		{
+			long h = client * 0x9e3779b97f4a7c15L;
+			return (int) (h >>> 50) & (STRIPES - 1);
+		}
+	}
+}
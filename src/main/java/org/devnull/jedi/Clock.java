@@ -0,0 +1,40 @@
+package org.devnull.jedi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock is where the TimeService reads the time from: the wall clock for the time it keeps, and the monotonic one to
+ * run timeouts by, which steps of the wall clock don't move.  The circuit breaker and the REST servers' ejection
+ * time the same way.  It is the system clock; tests use a subclass whose time only moves when they say so.
+ */
+public class Clock
+{
+	/**
+	 * the system clock
+	 */
+	public static final Clock SYSTEM = new Clock();
+
+	/**
+	 * @return The time in milliseconds, as System.currentTimeMillis().
+	 */
+	public long currentTimeMillis()
+	{
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * @return The monotonic time in nanoseconds, as System.nanoTime().
+	 */
+	public long nanoTime()
+	{
+		return System.nanoTime();
+	}
+
+	/**
+	 * @return The monotonic time in milliseconds, for measuring how long something has lasted.
+	 */
+	public final long monotonicMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(nanoTime());
+	}
+}
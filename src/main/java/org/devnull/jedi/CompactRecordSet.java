@@ -0,0 +1,825 @@
+package org.devnull.jedi;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import org.devnull.jedi.records.AAAARecord;
+import org.devnull.jedi.records.ARecord;
+import org.devnull.jedi.records.AddressParser;
+import org.devnull.jedi.records.CNAMERecord;
+import org.devnull.jedi.records.MXRecord;
+import org.devnull.jedi.records.NSRecord;
+import org.devnull.jedi.records.Record;
+import org.devnull.jedi.records.SOARecord;
+import org.devnull.jedi.records.TXTRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CompactRecordSet is the immutable form of a DNSRecordSet that is kept in the cache.  Instead of one Record object
+ * per record, each holding its content as a String, the records are packed into primitive arrays:
+ * <p/>
+ * A		the address as an int
+ * AAAA		the address as a pair of longs
+ * MX		the priority as a short, the host as an interned String
+ * SOA, NS, TXT, CNAME	the content as an interned String
+ * <p/>
+ * An address that would not be written back out exactly as the REST server sent it (e.g. "::ffff:1.2.3.4") is
+ * kept as an interned String instead, so replies do not change.  Record sets are converted once, when the REST
+ * response arrives, and replies are written from the packed form without creating Record objects.
+ * <p/>
+ * The packed records and the TTL are an immutable Content value, which is interned: every name with the same
+ * answer (e.g. all the hosts behind one load balancer) shares one Content, and with it one copy of the answer
+ * already encoded for PowerDNS.  Only the timestamp is kept per name.
+ */
+public class CompactRecordSet extends JsonBase
+{
+	private static final byte KIND_A = 0;
+	private static final byte KIND_AAAA = 1;
+	private static final byte KIND_MX = 2;
+	private static final byte KIND_A_TEXT = 3;
+	private static final byte KIND_AAAA_TEXT = 4;
+	private static final byte KIND_SOA = 5;
+	private static final byte KIND_NS = 6;
+	private static final byte KIND_TXT = 7;
+	private static final byte KIND_CNAME = 8;
+	private static final byte KIND_RECORD = 9;
+
+	/**
+	 * the record type of each kind, except KIND_RECORD which asks the Record
+	 */
+	private static final String[] TYPES = {"A", "AAAA", "MX", "A", "AAAA", "SOA", "NS", "TXT", "CNAME", null};
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final Interner<String> strings = Interners.newWeakInterner();
+
+	private static final Interner<Content> contents = Interners.newWeakInterner();
+
+	/**
+	 * the records, shared with every other record set that has the same ones
+	 */
+	private final Content content;
+
+	/**
+	 * when the records were fetched
+	 */
+	private final long timestamp;
+
+	private CompactRecordSet(final Content content, final long timestamp)
+	{
+		this.content = content;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Converts a record set to its compact form.
+	 *
+	 * @param recordSet The record set as read from the REST server
+	 * @return A CompactRecordSet with the same records, TTL and timestamp.
+	 */
+	public static CompactRecordSet of(final DNSRecordSet recordSet)
+	{
+		Builder builder = new Builder();
+
+		for (Record r : recordSet.getRecords())
+		{
+			String content = r.getAddress();
+
+			if (content == null)
+			{
+				builder.addRecord(r);
+			}
+			else if (r instanceof ARecord)
+			{
+				//
+				// the address was parsed when the record was read
+				//
+				builder.addInet4(((ARecord) r).getInet4(), content);
+			}
+			else if (r instanceof AAAARecord)
+			{
+				builder.addInet6(content);
+			}
+			else if (r instanceof MXRecord)
+			{
+				builder.addMX(((MXRecord) r).getPriority(), content);
+			}
+			else if (r instanceof SOARecord || r instanceof NSRecord || r instanceof TXTRecord ||
+				 r instanceof CNAMERecord)
+			{
+				builder.addText(r.getType(), content);
+			}
+			else
+			{
+				builder.addRecord(r);
+			}
+		}
+
+		return builder.build(recordSet.getTTL(), recordSet.getTimestamp());
+	}
+
+	/**
+	 * @return The number of records.
+	 */
+	public int size()
+	{
+		return content.entries.length;
+	}
+
+	/**
+	 * @param i The index of a record
+	 * @return The record type, e.g. "A" or "MX".
+	 */
+	public String getType(final int i)
+	{
+		int kind = kind(i);
+
+		if (kind == KIND_RECORD)
+		{
+			return content.others[slot(i)].getType();
+		}
+
+		return TYPES[kind];
+	}
+
+	/**
+	 * @param i The index of a record
+	 * @return The MX priority of the record, or 0 if it is not an MX record.
+	 */
+	public int getPriority(final int i)
+	{
+		switch (kind(i))
+		{
+			case KIND_MX:
+				return content.mxPriorities[slot(i)] & 0xffff;
+			case KIND_RECORD:
+				Record r = content.others[slot(i)];
+				return r instanceof MXRecord ? ((MXRecord) r).getPriority() : 0;
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Appends the content of a record (the address, or the MX host, or the text) to sb.
+	 *
+	 * @param i  The index of a record
+	 * @param sb Where to write the content
+	 */
+	public void appendContent(final int i, final StringBuilder sb)
+	{
+		int slot = slot(i);
+
+		switch (kind(i))
+		{
+			case KIND_A:
+				appendInet4(sb, content.inet4[slot]);
+				break;
+			case KIND_AAAA:
+				appendInet6(sb, content.inet6[slot * 2], content.inet6[slot * 2 + 1]);
+				break;
+			case KIND_MX:
+				sb.append(content.mxHosts[slot]);
+				break;
+			case KIND_RECORD:
+				sb.append(content.others[slot].getAddress());
+				break;
+			default:
+				sb.append(content.texts[slot]);
+				break;
+		}
+	}
+
+	/**
+	 * @param i The index of a record
+	 * @return The content of a record as a String.
+	 */
+	public String getContent(final int i)
+	{
+		switch (kind(i))
+		{
+			case KIND_MX:
+				return content.mxHosts[slot(i)];
+			case KIND_RECORD:
+				return content.others[slot(i)].getAddress();
+			case KIND_A:
+			case KIND_AAAA:
+				StringBuilder sb = new StringBuilder(40);
+				appendContent(i, sb);
+				return sb.toString();
+			default:
+				return content.texts[slot(i)];
+		}
+	}
+
+	/**
+	 * Appends the records, except SOA records, as PowerDNS remote backend answers for qname, separated by commas:
+	 * <p/>
+	 * {"qname":"foo.bar.com","qtype":"A","content":"1.1.1.1","ttl":100,"priority":0,"auth":1},{...}
+	 * <p/>
+	 * Everything after the qname is encoded the first time it is asked for, and shared with every record set that
+	 * has the same records.
+	 *
+	 * @param sb    Where to write the answers
+	 * @param qname The name that was looked up
+	 * @return The number of answers written.
+	 */
+	public int appendAnswers(final StringBuilder sb, final CharSequence qname)
+	{
+		String[] answers = content.answers;
+
+		if (answers == null)
+		{
+			//
+			// two threads may both encode them, they come out the same
+			//
+			answers = encodeAnswers();
+			content.answers = answers;
+		}
+
+		for (int i = 0; i < answers.length; i++)
+		{
+			if (i > 0)
+			{
+				sb.append(',');
+			}
+
+			sb.append("{\"qname\":\"").append(qname).append(answers[i]);
+		}
+
+		return answers.length;
+	}
+
+	private String[] encodeAnswers()
+	{
+		List<String> answers = new ArrayList<String>(size());
+		StringBuilder answer = new StringBuilder(128);
+
+		for (int i = 0; i < size(); i++)
+		{
+			String type = getType(i);
+
+			//
+			// skip SOA records.  only return these when they are asked for
+			//
+			if ("SOA".equals(type))
+			{
+				continue;
+			}
+
+			answer.setLength(0);
+			answer.append("\",");
+			answer.append("\"qtype\":\"").append(type).append("\",");
+			answer.append("\"content\":\"");
+			appendContent(i, answer);
+			answer.append("\",");
+			answer.append("\"ttl\":").append(content.ttl).append(",");
+			answer.append("\"priority\":").append(getPriority(i)).append(",");
+			answer.append("\"auth\":1");
+			answer.append("}");
+			answers.add(answer.toString());
+		}
+
+		return answers.toArray(new String[answers.size()]);
+	}
+
+	/**
+	 * @return The wildcard, e.g. "*.svc.bar.com", that the REST server answered from, or null if the answer was
+	 *         for the name itself.
+	 */
+	public String getWildcard()
+	{
+		return content.wildcard;
+	}
+
+	/**
+	 * @return True if other shares this record set's records, rather than having its own copy.
+	 */
+	boolean sharesContent(final CompactRecordSet other)
+	{
+		return content == other.content;
+	}
+
+	/**
+	 * @return When the records were fetched, as Now.getNow().
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	/**
+	 * @return The TTL of the records, in seconds.
+	 */
+	public long getTTL()
+	{
+		return content.ttl;
+	}
+
+	/**
+	 * @return The SOA record the REST server sent, or null if there is none.  SOA queries are answered from the
+	 *         configured zones (see ZoneRegistry), not from this.
+	 */
+	public SOARecord getSOA()
+	{
+		for (Record r : getRecords())
+		{
+			if (r instanceof SOARecord)
+			{
+				return (SOARecord) r;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Creates Record objects for the records.  This is not used to answer queries, only for debugging and tests.
+	 *
+	 * @return A new List of new Records every time.
+	 */
+	public List<Record> getRecords()
+	{
+		List<Record> records = new ArrayList<Record>(content.entries.length);
+
+		for (int i = 0; i < content.entries.length; i++)
+		{
+			Record r;
+
+			try
+			{
+				switch (kind(i))
+				{
+					case KIND_A:
+					case KIND_A_TEXT:
+						r = new ARecord();
+						break;
+					case KIND_AAAA:
+					case KIND_AAAA_TEXT:
+						r = new AAAARecord();
+						break;
+					case KIND_MX:
+						MXRecord mx = new MXRecord();
+						mx.setPriority(getPriority(i));
+						r = mx;
+						break;
+					case KIND_SOA:
+						r = new SOARecord();
+						break;
+					case KIND_NS:
+						r = new NSRecord();
+						break;
+					case KIND_TXT:
+						r = new TXTRecord();
+						break;
+					case KIND_CNAME:
+						r = new CNAMERecord();
+						break;
+					default:
+						records.add(content.others[slot(i)]);
+						continue;
+				}
+
+				r.setAddress(getContent(i));
+			}
+			catch (Exception e)
+			{
+				throw new IllegalStateException("compacted record is no longer valid: " + getContent(i), e);
+			}
+
+			records.add(r);
+		}
+
+		return records;
+	}
+
+	private static int entry(final byte kind, final int slot)
+	{
+		return kind << 16 | slot;
+	}
+
+	private int kind(final int i)
+	{
+		return content.entries[i] >>> 16;
+	}
+
+	private int slot(final int i)
+	{
+		return content.entries[i] & 0xffff;
+	}
+
+	/**
+	 * Appends an IPv4 address in dotted quad form.
+	 */
+	static void appendInet4(final StringBuilder sb, final int address)
+	{
+		sb.append(address >>> 24).append('.')
+		  .append((address >>> 16) & 0xff).append('.')
+		  .append((address >>> 8) & 0xff).append('.')
+		  .append(address & 0xff);
+	}
+
+	/**
+	 * Appends an IPv6 address in the canonical form of RFC 5952: lower case, no leading zeros, and the longest run
+	 * of two or more zero groups (the first one, if there is a tie) written as "::".
+	 */
+	static void appendInet6(final StringBuilder sb, final long hi, final long lo)
+	{
+		int bestStart = -1, bestLength = 1;
+		int runStart = -1;
+
+		for (int g = 0; g <= 8; g++)
+		{
+			if (g < 8 && group(hi, lo, g) == 0)
+			{
+				if (runStart < 0)
+				{
+					runStart = g;
+				}
+			}
+			else if (runStart >= 0)
+			{
+				if (g - runStart > bestLength)
+				{
+					bestStart = runStart;
+					bestLength = g - runStart;
+				}
+
+				runStart = -1;
+			}
+		}
+
+		for (int g = 0; g < 8; g++)
+		{
+			if (g == bestStart)
+			{
+				sb.append("::");
+				g += bestLength - 1;
+				continue;
+			}
+
+			if (g > 0 && g != bestStart + bestLength)
+			{
+				sb.append(':');
+			}
+
+			int value = group(hi, lo, g);
+			boolean started = false;
+
+			for (int shift = 12; shift >= 0; shift -= 4)
+			{
+				int digit = (value >>> shift) & 0xf;
+
+				if (digit != 0 || started || shift == 0)
+				{
+					sb.append(HEX[digit]);
+					started = true;
+				}
+			}
+		}
+	}
+
+	private static int group(final long hi, final long lo, final int g)
+	{
+		return (int) ((g < 4 ? hi >>> (48 - g * 16) : lo >>> (48 - (g - 4) * 16)) & 0xffff);
+	}
+
+	/**
+	 * The records and TTL of a CompactRecordSet.  Two Contents are equal when they have the same records, in the
+	 * same order, and the same TTL.  Records kept as Record objects are only equal to themselves, so sets holding
+	 * them are not shared.
+	 */
+	private static final class Content
+	{
+		private final long ttl;
+		private final String wildcard;
+
+		/**
+		 * one entry per record, in the order the REST server sent them: the kind of the record in the high 16
+		 * bits, and its index in the array for that kind in the low 16 bits
+		 */
+		private final int[] entries;
+
+		private final int[] inet4;
+		private final long[] inet6;
+		private final short[] mxPriorities;
+		private final String[] mxHosts;
+		private final String[] texts;
+
+		/**
+		 * records that don't fit any of the packed forms, e.g. an MX with a priority out of range
+		 */
+		private final Record[] others;
+
+		private final int hash;
+
+		/**
+		 * the PowerDNS answers, after the qname, once a reply has been written
+		 */
+		private volatile String[] answers = null;
+
+		private Content(final long ttl, final String wildcard, final int[] entries, final int[] inet4,
+				final long[] inet6, final short[] mxPriorities, final String[] mxHosts, final String[] texts,
+				final Record[] others)
+		{
+			this.ttl = ttl;
+			this.wildcard = wildcard;
+			this.entries = entries;
+			this.inet4 = inet4;
+			this.inet6 = inet6;
+			this.mxPriorities = mxPriorities;
+			this.mxHosts = mxHosts;
+			this.texts = texts;
+			this.others = others;
+
+			int h = (int) (ttl ^ (ttl >>> 32));
+			h = 31 * h + (wildcard == null ? 0 : wildcard.hashCode());
+			h = 31 * h + Arrays.hashCode(entries);
+			h = 31 * h + Arrays.hashCode(inet4);
+			h = 31 * h + Arrays.hashCode(inet6);
+			h = 31 * h + Arrays.hashCode(mxPriorities);
+			h = 31 * h + Arrays.hashCode(mxHosts);
+			h = 31 * h + Arrays.hashCode(texts);
+			h = 31 * h + Arrays.hashCode(others);
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object o)
+		{
+			if (this == o)
+			{
+				return true;
+			}
+
+			if (!(o instanceof Content))
+			{
+				return false;
+			}
+
+			Content other = (Content) o;
+
+			return hash == other.hash &&
+			       ttl == other.ttl &&
+			       (wildcard == null ? other.wildcard == null : wildcard.equals(other.wildcard)) &&
+			       Arrays.equals(entries, other.entries) &&
+			       Arrays.equals(inet4, other.inet4) &&
+			       Arrays.equals(inet6, other.inet6) &&
+			       Arrays.equals(mxPriorities, other.mxPriorities) &&
+			       Arrays.equals(mxHosts, other.mxHosts) &&
+			       Arrays.equals(texts, other.texts) &&
+			       Arrays.equals(others, other.others);
+		}
+	}
+
+	/**
+	 * Builds a CompactRecordSet one record at a time.  The content passed in must already have been validated for
+	 * its record type.
+	 */
+	public static class Builder
+	{
+		private int count = 0;
+		private int[] entries = new int[4];
+
+		private int inet4Count = 0;
+		private int[] inet4 = null;
+		private int inet6Count = 0;
+		private long[] inet6 = null;
+		private int mxCount = 0;
+		private short[] mxPriorities = null;
+		private String[] mxHosts = null;
+		private int textCount = 0;
+		private String[] texts = null;
+		private int otherCount = 0;
+		private Record[] others = null;
+		private String wildcard = null;
+
+		private final StringBuilder check = new StringBuilder(40);
+
+		/**
+		 * Adds an A record.
+		 *
+		 * @param address The address as parsed from text
+		 * @param text    The address as the REST server sent it
+		 */
+		public Builder addInet4(final int address, final String text)
+		{
+			check.setLength(0);
+			appendInet4(check, address);
+
+			if (!text.contentEquals(check))
+			{
+				return addKind(KIND_A_TEXT, text);
+			}
+
+			if (inet4 == null)
+			{
+				inet4 = new int[4];
+			}
+			else if (inet4Count == inet4.length)
+			{
+				inet4 = Arrays.copyOf(inet4, inet4Count * 2);
+			}
+
+			addEntry(KIND_A, inet4Count);
+			inet4[inet4Count++] = address;
+			return this;
+		}
+
+		/**
+		 * Adds an AAAA record.
+		 *
+		 * @param text The address as the REST server sent it
+		 */
+		public Builder addInet6(final String text)
+		{
+			if (inet6 == null)
+			{
+				inet6 = new long[4];
+			}
+			else if (inet6Count * 2 == inet6.length)
+			{
+				inet6 = Arrays.copyOf(inet6, inet6Count * 4);
+			}
+
+			if (AddressParser.parseInet6(text, inet6, inet6Count * 2))
+			{
+				check.setLength(0);
+				appendInet6(check, inet6[inet6Count * 2], inet6[inet6Count * 2 + 1]);
+
+				if (text.contentEquals(check))
+				{
+					addEntry(KIND_AAAA, inet6Count++);
+					return this;
+				}
+			}
+
+			return addKind(KIND_AAAA_TEXT, text);
+		}
+
+		/**
+		 * Adds an MX record.
+		 *
+		 * @param priority The MX priority
+		 * @param host     The mail host
+		 */
+		public Builder addMX(final int priority, final String host)
+		{
+			if (priority < 0 || priority > 0xffff)
+			{
+				MXRecord r = new MXRecord();
+				r.setPriority(priority);
+
+				try
+				{
+					r.setAddress(host);
+				}
+				catch (Exception e)
+				{
+					throw new IllegalArgumentException("MX host is not valid: " + host, e);
+				}
+
+				return addRecord(r);
+			}
+
+			if (mxPriorities == null)
+			{
+				mxPriorities = new short[4];
+				mxHosts = new String[4];
+			}
+			else if (mxCount == mxPriorities.length)
+			{
+				mxPriorities = Arrays.copyOf(mxPriorities, mxCount * 2);
+				mxHosts = Arrays.copyOf(mxHosts, mxCount * 2);
+			}
+
+			addEntry(KIND_MX, mxCount);
+			mxPriorities[mxCount] = (short) priority;
+			mxHosts[mxCount++] = strings.intern(host);
+			return this;
+		}
+
+		/**
+		 * Adds a record kept as text.
+		 *
+		 * @param type    "SOA", "NS", "TXT" or "CNAME"
+		 * @param content The content as the REST server sent it
+		 */
+		public Builder addText(final String type, final String content)
+		{
+			if ("SOA".equals(type))
+			{
+				return addKind(KIND_SOA, content);
+			}
+			else if ("NS".equals(type))
+			{
+				return addKind(KIND_NS, content);
+			}
+			else if ("TXT".equals(type))
+			{
+				return addKind(KIND_TXT, content);
+			}
+			else if ("CNAME".equals(type))
+			{
+				return addKind(KIND_CNAME, content);
+			}
+
+			throw new IllegalArgumentException("not a text record type: " + type);
+		}
+
+		/**
+		 * Adds a record that does not fit any of the packed forms as it is.
+		 */
+		public Builder addRecord(final Record r)
+		{
+			if (others == null)
+			{
+				others = new Record[2];
+			}
+			else if (otherCount == others.length)
+			{
+				others = Arrays.copyOf(others, otherCount * 2);
+			}
+
+			addEntry(KIND_RECORD, otherCount);
+			others[otherCount++] = r;
+			return this;
+		}
+
+		/**
+		 * Marks the records as the answer for a wildcard rather than for the name that was looked up.
+		 *
+		 * @param wildcard The wildcard, e.g. "*.svc.bar.com"
+		 */
+		public Builder setWildcard(final String wildcard)
+		{
+			this.wildcard = wildcard == null ? null : strings.intern(wildcard);
+			return this;
+		}
+
+		/**
+		 * @return The number of records added so far.
+		 */
+		public int size()
+		{
+			return count;
+		}
+
+		/**
+		 * @param ttl       The TTL of the records
+		 * @param timestamp When the records were fetched
+		 * @return A CompactRecordSet with the records added, sharing them with any other that has the same ones.
+		 */
+		public CompactRecordSet build(final long ttl, final long timestamp)
+		{
+			Content content = new Content(ttl, wildcard, Arrays.copyOf(entries, count),
+						      inet4Count == 0 ? null : Arrays.copyOf(inet4, inet4Count),
+						      inet6Count == 0 ? null : Arrays.copyOf(inet6, inet6Count * 2),
+						      mxCount == 0 ? null : Arrays.copyOf(mxPriorities, mxCount),
+						      mxCount == 0 ? null : Arrays.copyOf(mxHosts, mxCount),
+						      textCount == 0 ? null : Arrays.copyOf(texts, textCount),
+						      otherCount == 0 ? null : Arrays.copyOf(others, otherCount));
+
+			return new CompactRecordSet(contents.intern(content), timestamp);
+		}
+
+		private Builder addKind(final byte kind, final String text)
+		{
+			if (texts == null)
+			{
+				texts = new String[2];
+			}
+			else if (textCount == texts.length)
+			{
+				texts = Arrays.copyOf(texts, textCount * 2);
+			}
+
+			addEntry(kind, textCount);
+			texts[textCount++] = strings.intern(text);
+			return this;
+		}
+
+		private void addEntry(final byte kind, final int slot)
+		{
+			if (slot > 0xffff)
+			{
+				throw new IllegalArgumentException("too many records to compact");
+			}
+
+			if (count == entries.length)
+			{
+				entries = Arrays.copyOf(entries, count * 2);
+			}
+
+			entries[count++] = entry(kind, slot);
+		}
+	}
+}
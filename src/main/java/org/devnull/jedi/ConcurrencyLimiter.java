@@ -0,0 +1,176 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ConcurrencyLimiter is an AIMD (additive increase, multiplicative decrease) limit on the number of fetches
+ * that may be outstanding against the REST server at the same time.
+ * <p/>
+ * Every fetch must tryAcquire() a slot before it is submitted to the api pool, and must hand the slot back
+ * with exactly one of onSuccess(), onDropped() or onIgnore() once it is done.  Fast answers from the REST
+ * server grow the limit by one, while timeouts, errors and answers slower than the latency threshold shrink
+ * it by the backoff ratio.  The limit never goes below the configured minimum or above
+ * max_rest_client_threads, which remains the hard ceiling of the api pool.
+ * <p/>
+ * Requests over the current limit are rejected immediately instead of queueing behind the api pool.
+ */
+public class ConcurrencyLimiter
+{
+	private static final StatsObject so = StatsObject.getInstance();
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final long latencyThresholdNanos;
+	private final double backoffRatio;
+
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	private volatile int limit;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config The JediConfig holding the adaptive_concurrency_* settings and max_rest_client_threads.
+	 */
+	public ConcurrencyLimiter(final JediConfig config)
+	{
+		if (config == null)
+		{
+			throw new IllegalArgumentException("config argument is null");
+		}
+
+		this.maxLimit = Math.max(1, config.max_rest_client_threads);
+		this.minLimit = Math.max(1, Math.min(config.adaptive_concurrency_min_limit, maxLimit));
+
+		long thresholdMillis = config.rest_fetch_timeout / 2;
+
+		if (config.adaptive_concurrency_latency_threshold != null)
+		{
+			thresholdMillis = config.adaptive_concurrency_latency_threshold;
+		}
+
+		this.latencyThresholdNanos = thresholdMillis * 1000000L;
+
+		if (config.adaptive_concurrency_backoff_ratio <= 0 || config.adaptive_concurrency_backoff_ratio >= 1)
+		{
+			throw new IllegalArgumentException("adaptive_concurrency_backoff_ratio must be between 0 and 1");
+		}
+
+		this.backoffRatio = config.adaptive_concurrency_backoff_ratio;
+
+		int initial = maxLimit;
+
+		if (config.adaptive_concurrency_initial_limit != null)
+		{
+			initial = config.adaptive_concurrency_initial_limit;
+		}
+
+		this.limit = Math.max(minLimit, Math.min(initial, maxLimit));
+
+		so.timing("ConcurrencyLimiter.limit", limit);
+	}
+
+	/**
+	 * Attempts to reserve a slot for one fetch.
+	 *
+	 * @return True if the fetch may proceed, false if the current limit has been reached.
+	 */
+	public boolean tryAcquire()
+	{
+		while (true)
+		{
+			int current = inFlight.get();
+
+			if (current >= limit)
+			{
+				so.increment("ConcurrencyLimiter.rejected");
+				return false;
+			}
+
+			if (inFlight.compareAndSet(current, current + 1))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Releases a slot for a fetch that got an answer (positive or negative) from the REST server.
+	 *
+	 * @param rttNanos How long the fetch took, in nanoseconds.
+	 */
+	public void onSuccess(final long rttNanos)
+	{
+		int current = inFlight.getAndDecrement();
+
+		if (rttNanos > latencyThresholdNanos)
+		{
+			so.increment("ConcurrencyLimiter.slow_samples");
+			decrease();
+		}
+		else if (current * 2 >= limit)
+		{
+			//
+			// only grow the limit when we are actually using a good part of it, otherwise a quiet period
+			// would ratchet it up to the maximum without ever having been tested.
+			//
+			increase();
+		}
+	}
+
+	/**
+	 * Releases a slot for a fetch that timed out or errored.  This is treated as a sign of overload.
+	 */
+	public void onDropped()
+	{
+		inFlight.decrementAndGet();
+		so.increment("ConcurrencyLimiter.dropped_samples");
+		decrease();
+	}
+
+	/**
+	 * Releases a slot without using the sample to adjust the limit, e.g. when the fetch was interrupted.
+	 */
+	public void onIgnore()
+	{
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * @return The number of fetches that may currently run at once.
+	 */
+	public int getLimit()
+	{
+		return limit;
+	}
+
+	/**
+	 * @return The number of fetches currently holding a slot.
+	 */
+	public int getInFlight()
+	{
+		return inFlight.get();
+	}
+
+	private synchronized void increase()
+	{
+		if (limit < maxLimit)
+		{
+			limit++;
+			so.timing("ConcurrencyLimiter.limit", limit);
+		}
+	}
+
+	private synchronized void decrease()
+	{
+		int newLimit = Math.max(minLimit, (int) (limit * backoffRatio));
+
+		if (newLimit != limit)
+		{
+			limit = newLimit;
+			so.timing("ConcurrencyLimiter.limit", limit);
+		}
+	}
+}
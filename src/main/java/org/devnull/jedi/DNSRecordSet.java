@@ -18,18 +18,12 @@ public class DNSRecordSet extends JsonBase
 	 * Default TTL is 300 seconds, 5 minutes, and can be overridden by the API server.
 	 */
 
-	private static final long DEFAULT_TTL = 300;
-	private static final SOARecord defaultSoaRecord = new SOARecord();
+	static final long DEFAULT_TTL = 300;
 
 	private List<Record> records = new ArrayList<Record>();
 	private long timestamp = 0L;
 	private long ttl = 300;
 
-	static
-	{
-		defaultSoaRecord.setAddress("dns1.icann.org. hostmaster.icann.org. 2012080849 7200 3600 1209600 3600");
-	}
-
 	public DNSRecordSet()
 	{
 	}
@@ -45,6 +39,10 @@ public class DNSRecordSet extends JsonBase
 		return this;
 	}
 
+	/**
+	 * @return The SOA record the REST server sent, or null if there is none.  SOA queries are answered from the
+	 *         configured zones (see ZoneRegistry), not from this.
+	 */
 	public SOARecord getSOA()
 	{
 		for (Record r : records)
@@ -55,7 +53,7 @@ public class DNSRecordSet extends JsonBase
 			}
 		}
 
-		return this.defaultSoaRecord;
+		return null;
 	}
 
 	public long getTimestamp()
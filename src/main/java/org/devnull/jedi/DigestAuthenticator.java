@@ -0,0 +1,294 @@
+package org.devnull.jedi;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.auth.AUTH;
+import org.apache.http.auth.AuthProtocolState;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.auth.AuthState;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.auth.DigestScheme;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+import org.devnull.statsd_client.StatsObject;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DigestAuthenticator lets requests to one REST server authenticate preemptively, instead of paying for a 401
+ * challenge round trip before every fetch.
+ * <p/>
+ * The digest challenge (realm, nonce, opaque, qop, algorithm) from the last request the http client had to
+ * authenticate itself is cached here, together with a nonce count shared by all requests using that nonce.
+ * Requests are sent with an Authorization header computed from it.  When the server no longer accepts the
+ * nonce it answers 401 (usually with stale=true), the http client drops our header and answers the new
+ * challenge itself, and the new challenge is picked up from the request context afterwards.
+ * <p/>
+ * The header has to be added as a request interceptor rather than to the request itself: the http client only
+ * drops an Authorization header before answering a challenge if the original request did not have one.
+ */
+public class DigestAuthenticator implements HttpRequestInterceptor
+{
+	private static final Logger log = Logger.getLogger(DigestAuthenticator.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * context attribute set when a request was authorized preemptively
+	 */
+	private static final String PREEMPTIVE_ATTRIBUTE = "org.devnull.jedi.preemptive_digest";
+
+	private final String username;
+	private final String password;
+
+	/**
+	 * the last challenge the server sent, or null if there hasn't been one yet
+	 */
+	private volatile Challenge challenge = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param username The REST server username
+	 * @param password The REST server password
+	 */
+	public DigestAuthenticator(final String username, final String password)
+	{
+		if (username == null || password == null)
+		{
+			throw new IllegalArgumentException("username or password is null");
+		}
+
+		this.username = username;
+		this.password = password;
+	}
+
+	/**
+	 * Adds an Authorization header to the request if a usable challenge is cached.
+	 *
+	 * @param request The request about to be sent.
+	 * @param context The context the request is executed with.
+	 */
+	@Override
+	public void process(final HttpRequest request, final HttpContext context)
+	{
+		Challenge c = challenge;
+
+		if (c == null || request.containsHeader(AUTH.WWW_AUTH_RESP))
+		{
+			return;
+		}
+
+		request.addHeader(AUTH.WWW_AUTH_RESP, c.createHeader(request.getRequestLine().getMethod(),
+								    request.getRequestLine().getUri()));
+		context.setAttribute(PREEMPTIVE_ATTRIBUTE, Boolean.TRUE);
+		so.increment("DigestAuthenticator.preemptive");
+	}
+
+	/**
+	 * Picks up the challenge, if any, that the http client had to answer while executing a request.
+	 *
+	 * @param context      The context the request was executed with.
+	 * @param unauthorized True if the request was finally answered with a 401.
+	 */
+	public void update(final HttpClientContext context, final boolean unauthorized)
+	{
+		AuthState authState = context.getTargetAuthState();
+		AuthScheme scheme = authState == null ? null : authState.getAuthScheme();
+
+		if (unauthorized)
+		{
+			//
+			// the credentials themselves are being refused, don't keep signing requests with them
+			//
+			challenge = null;
+			so.increment("DigestAuthenticator.rejected");
+			return;
+		}
+
+		if (!(scheme instanceof DigestScheme) || authState.getState() != AuthProtocolState.SUCCESS)
+		{
+			return;
+		}
+
+		//
+		// the http client only has a scheme of its own if the server challenged this request
+		//
+		so.increment("DigestAuthenticator.challenges");
+
+		if (context.getAttribute(PREEMPTIVE_ATTRIBUTE) != null)
+		{
+			so.increment("DigestAuthenticator.stale_nonces");
+		}
+
+		Challenge c = Challenge.create((DigestScheme) scheme, username, password);
+
+		if (c == null)
+		{
+			if (log.isDebugEnabled())
+			{
+				log.debug("digest challenge can not be answered preemptively: " + scheme);
+			}
+
+			return;
+		}
+
+		challenge = c;
+	}
+
+	boolean hasChallenge()
+	{
+		return challenge != null;
+	}
+
+	static String md5Hex(final String s)
+	{
+		MessageDigest md5;
+
+		try
+		{
+			md5 = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+
+		byte[] digest = md5.digest(s.getBytes(CHARSET));
+		char[] hex = new char[digest.length * 2];
+
+		for (int i = 0; i < digest.length; i++)
+		{
+			hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+
+		return new String(hex);
+	}
+
+	/**
+	 * One digest challenge, with the parts of the response that do not change from request to request computed
+	 * up front.
+	 */
+	static class Challenge
+	{
+		private final String username;
+		private final String realm;
+		private final String nonce;
+		private final String opaque;
+		private final String algorithm;
+		private final boolean qopAuth;
+		private final boolean session;
+		private final String secret;
+		private final AtomicInteger nonceCount;
+
+		private Challenge(final String username, final String password, final String realm, final String nonce,
+				  final String opaque, final String algorithm, final boolean qopAuth, final int nonceCount)
+		{
+			this.username = username;
+			this.realm = realm;
+			this.nonce = nonce;
+			this.opaque = opaque;
+			this.algorithm = algorithm;
+			this.qopAuth = qopAuth;
+			this.session = "MD5-sess".equalsIgnoreCase(algorithm);
+			this.secret = md5Hex(username + ":" + realm + ":" + password);
+			this.nonceCount = new AtomicInteger(nonceCount);
+		}
+
+		/**
+		 * @return A Challenge for the scheme the http client authenticated with, or null if it can not be
+		 * answered preemptively (auth-int only, or an unknown algorithm).
+		 */
+		static Challenge create(final DigestScheme scheme, final String username, final String password)
+		{
+			String realm = scheme.getParameter("realm");
+			String nonce = scheme.getParameter("nonce");
+			String algorithm = scheme.getParameter("algorithm");
+			String qop = scheme.getParameter("qop");
+
+			if (realm == null || nonce == null)
+			{
+				return null;
+			}
+
+			if (algorithm != null && !"MD5".equalsIgnoreCase(algorithm) && !"MD5-sess".equalsIgnoreCase(algorithm))
+			{
+				return null;
+			}
+
+			boolean qopAuth = false;
+
+			if (qop != null)
+			{
+				for (String option : qop.split(","))
+				{
+					if ("auth".equals(option.trim().toLowerCase(Locale.US)))
+					{
+						qopAuth = true;
+					}
+				}
+
+				if (!qopAuth)
+				{
+					return null;
+				}
+			}
+			else if ("MD5-sess".equalsIgnoreCase(algorithm))
+			{
+				return null;
+			}
+
+			//
+			// the http client already used this nonce once to answer the challenge
+			//
+			return new Challenge(username, password, realm, nonce, scheme.getParameter("opaque"), algorithm, qopAuth,
+					     1);
+		}
+
+		String createHeader(final String method, final String uri)
+		{
+			String ha2 = md5Hex(method + ":" + uri);
+			StringBuilder sb = new StringBuilder(256);
+
+			sb.append("Digest username=\"").append(username)
+			  .append("\", realm=\"").append(realm)
+			  .append("\", nonce=\"").append(nonce)
+			  .append("\", uri=\"").append(uri)
+			  .append("\", response=\"");
+
+			if (qopAuth)
+			{
+				String nc = String.format("%08x", nonceCount.incrementAndGet());
+				String cnonce = DigestScheme.createCnonce();
+				String ha1 = session ? md5Hex(secret + ":" + nonce + ":" + cnonce) : secret;
+
+				sb.append(md5Hex(ha1 + ":" + nonce + ":" + nc + ":" + cnonce + ":auth:" + ha2))
+				  .append("\", qop=auth, nc=").append(nc)
+				  .append(", cnonce=\"").append(cnonce).append('"');
+			}
+			else
+			{
+				sb.append(md5Hex(secret + ":" + nonce + ":" + ha2)).append('"');
+			}
+
+			if (algorithm != null)
+			{
+				sb.append(", algorithm=").append(algorithm);
+			}
+
+			if (opaque != null)
+			{
+				sb.append(", opaque=\"").append(opaque).append('"');
+			}
+
+			return sb.toString();
+		}
+	}
+}
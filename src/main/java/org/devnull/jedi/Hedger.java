@@ -0,0 +1,197 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedger decides when a RestClient should send a second, hedged request for a fetch that the REST server is
+ * slow to answer, and runs those hedged requests.
+ * <p/>
+ * The hedge delay is the hedge_percentile of the latency of recent successful requests (never less than
+ * hedge_min_delay).  Until enough requests have been seen to know that percentile, no hedges are sent.
+ * <p/>
+ * Hedges are limited by a budget so that they can never add more than hedge_budget_percent extra load on the
+ * REST servers: every fetch earns a fraction of a hedge, and each hedge sent spends a whole one.
+ */
+public class Hedger
+{
+	private static final StatsObject so = StatsObject.getInstance();
+
+	/**
+	 * The number of recent latency samples the percentile is computed over.
+	 */
+	private static final int SAMPLE_COUNT = 1024;
+
+	/**
+	 * How often (in samples) the percentile is recomputed.  Hedging starts after the first recompute.
+	 */
+	private static final int RECOMPUTE_INTERVAL = 64;
+
+	/**
+	 * Budget accounting is done in thousandths of a hedge.
+	 */
+	private static final long HEDGE_COST = 1000;
+
+	/**
+	 * The most hedges that can be saved up during quiet periods and spent in a burst.
+	 */
+	private static final long MAX_SAVED_HEDGES = 10;
+
+	private final double percentile;
+	private final long minDelayNanos;
+	private final long budgetPerFetch;
+
+	private final long[] samples = new long[SAMPLE_COUNT];
+	private final AtomicLong sampleIndex = new AtomicLong(0);
+	private volatile long delayNanos = -1;
+
+	private final AtomicLong budget = new AtomicLong(0);
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config The JediConfig holding the hedge_* settings.
+	 */
+	public Hedger(final JediConfig config)
+	{
+		if (config == null)
+		{
+			throw new IllegalArgumentException("config argument is null");
+		}
+
+		if (config.hedge_percentile <= 0 || config.hedge_percentile >= 1)
+		{
+			throw new IllegalArgumentException("hedge_percentile must be between 0 and 1");
+		}
+
+		this.percentile = config.hedge_percentile;
+		this.minDelayNanos = config.hedge_min_delay * 1000000L;
+		this.budgetPerFetch = (long) (config.hedge_budget_percent * HEDGE_COST / 100);
+
+		int threads = Math.max(2, config.max_rest_client_threads / 4);
+
+		if (config.hedge_threads != null)
+		{
+			threads = config.hedge_threads;
+		}
+
+		scheduler = new ScheduledThreadPoolExecutor(threads, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			public Thread newThread(final Runnable r)
+			{
+				Thread t = new Thread(r, "Hedger" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Called once per fetch.  Schedules the given hedge to run after the hedge delay, if hedging has learned
+	 * enough about recent latency to pick a delay.
+	 *
+	 * @param hedge The hedged request to run if the fetch has not been answered by then.
+	 * @return The Future of the scheduled hedge, which should be cancelled once the fetch is answered, or null
+	 * if no hedge was scheduled.
+	 */
+	public Future<?> schedule(final Runnable hedge)
+	{
+		long saved = budget.addAndGet(budgetPerFetch);
+
+		if (saved > MAX_SAVED_HEDGES * HEDGE_COST)
+		{
+			budget.compareAndSet(saved, MAX_SAVED_HEDGES * HEDGE_COST);
+		}
+
+		long delay = delayNanos;
+
+		if (delay < 0)
+		{
+			return null;
+		}
+
+		return scheduler.schedule(hedge, delay, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Takes one hedge out of the budget.
+	 *
+	 * @return True if a hedge may be sent.
+	 */
+	public boolean tryAcquire()
+	{
+		while (true)
+		{
+			long current = budget.get();
+
+			if (current < HEDGE_COST)
+			{
+				so.increment("RestClient.hedges_over_budget");
+				return false;
+			}
+
+			if (budget.compareAndSet(current, current - HEDGE_COST))
+			{
+				so.increment("RestClient.hedges_sent");
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Records the latency of a successful request to a REST server.
+	 *
+	 * @param nanos How long the request took, in nanoseconds.
+	 */
+	public void recordLatency(final long nanos)
+	{
+		long seen = sampleIndex.incrementAndGet();
+		samples[(int) ((seen - 1) % SAMPLE_COUNT)] = nanos;
+
+		if (seen % RECOMPUTE_INTERVAL == 0)
+		{
+			recompute((int) Math.min(seen, SAMPLE_COUNT));
+		}
+	}
+
+	/**
+	 * @return The current hedge delay in nanoseconds, or -1 if not enough requests have been seen yet.
+	 */
+	public long getDelayNanos()
+	{
+		return delayNanos;
+	}
+
+	/**
+	 * Stops the hedge threads.
+	 */
+	public void shutdown()
+	{
+		scheduler.shutdownNow();
+	}
+
+	private void recompute(final int count)
+	{
+		//
+		// the copy may pick up a few samples mid-update from other threads, which doesn't matter for an estimate
+		//
+		long[] copy = Arrays.copyOf(samples, count);
+		Arrays.sort(copy);
+
+		long delay = Math.max(minDelayNanos, copy[(int) Math.min(count - 1, (long) (count * percentile))]);
+		delayNanos = delay;
+		so.timing("RestClient.hedge_delay", delay / 1000);
+	}
+}
@@ -0,0 +1,219 @@
+package org.devnull.jedi;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * HostnameKey is the record cache key: a hostname as bytes, with ASCII letters lower cased and a trailing dot
+ * removed, so that "Foo.Bar.com." and "foo.bar.com" are the same entry.  The hash is worked out while the name is
+ * normalized.
+ * <p/>
+ * A handler keeps one mutable key and set()s it for each request, so looking a hostname up in the cache creates
+ * no Strings or arrays.  The bytes are only copied, with copy(), when an entry is put into the cache.  A key that
+ * is in the cache must never be set() again.
+ */
+public final class HostnameKey
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte[] bytes;
+	private int length = 0;
+	private int hash = 0;
+	private final boolean mutable;
+
+	/**
+	 * Creates an empty, mutable key, for use with set().
+	 */
+	public HostnameKey()
+	{
+		this.bytes = new byte[256];
+		this.mutable = true;
+	}
+
+	private HostnameKey(final byte[] bytes, final int hash)
+	{
+		this.bytes = bytes;
+		this.length = bytes.length;
+		this.hash = hash;
+		this.mutable = false;
+	}
+
+	/**
+	 * @param hostname The hostname
+	 * @return An immutable key for hostname.
+	 */
+	public static HostnameKey of(final CharSequence hostname)
+	{
+		return new HostnameKey().set(hostname).copy();
+	}
+
+	/**
+	 * Makes this key hold hostname, normalized.
+	 *
+	 * @param hostname The hostname, as sent by PowerDNS
+	 * @return this
+	 */
+	public HostnameKey set(final CharSequence hostname)
+	{
+		checkMutable();
+
+		int n = hostname.length();
+		ensureCapacity(n);
+
+		for (int i = 0; i < n; i++)
+		{
+			char c = hostname.charAt(i);
+
+			if (c >= 0x80)
+			{
+				//
+				// hostnames are ASCII, anything else (IDNs are sent as punycode) is kept as UTF-8 bytes
+				//
+				byte[] encoded = hostname.toString().getBytes(UTF8);
+				return set(encoded, 0, encoded.length);
+			}
+
+			bytes[i] = (byte) c;
+		}
+
+		return normalize(n);
+	}
+
+	/**
+	 * Makes this key hold the hostname in src between offset and offset + count, normalized.
+	 *
+	 * @param src    The bytes holding the hostname
+	 * @param offset Where the hostname starts in src
+	 * @param count  The length of the hostname in bytes
+	 * @return this
+	 */
+	public HostnameKey set(final byte[] src, final int offset, final int count)
+	{
+		checkMutable();
+		ensureCapacity(count);
+		System.arraycopy(src, offset, bytes, 0, count);
+		return normalize(count);
+	}
+
+	/**
+	 * Lower cases and hashes the first n bytes in place, dropping one trailing dot.
+	 */
+	private HostnameKey normalize(int n)
+	{
+		if (n > 1 && bytes[n - 1] == '.')
+		{
+			n--;
+		}
+
+		int h = 0;
+
+		for (int i = 0; i < n; i++)
+		{
+			byte b = bytes[i];
+
+			if (b >= 'A' && b <= 'Z')
+			{
+				b += 'a' - 'A';
+				bytes[i] = b;
+			}
+
+			h = 31 * h + b;
+		}
+
+		length = n;
+		hash = h;
+		return this;
+	}
+
+	/**
+	 * @return An immutable key holding its own copy of the bytes, for putting into the cache.
+	 */
+	public HostnameKey copy()
+	{
+		if (!mutable)
+		{
+			return this;
+		}
+
+		return new HostnameKey(Arrays.copyOf(bytes, length), hash);
+	}
+
+	/**
+	 * @return The length of the normalized hostname in bytes
+	 */
+	public int length()
+	{
+		return length;
+	}
+
+	/**
+	 * @param i An index less than length()
+	 * @return The normalized byte at i
+	 */
+	byte byteAt(final int i)
+	{
+		return bytes[i];
+	}
+
+	private void ensureCapacity(final int n)
+	{
+		if (bytes.length < n)
+		{
+			bytes = new byte[Math.max(n, bytes.length * 2)];
+		}
+	}
+
+	private void checkMutable()
+	{
+		if (!mutable)
+		{
+			throw new UnsupportedOperationException("this key is immutable");
+		}
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	@Override
+	public boolean equals(final Object o)
+	{
+		if (this == o)
+		{
+			return true;
+		}
+
+		if (!(o instanceof HostnameKey))
+		{
+			return false;
+		}
+
+		HostnameKey other = (HostnameKey) o;
+
+		if (hash != other.hash || length != other.length)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < length; i++)
+		{
+			if (bytes[i] != other.bytes[i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return The normalized hostname
+	 */
+	@Override
+	public String toString()
+	{
+		return new String(bytes, 0, length, UTF8);
+	}
+}
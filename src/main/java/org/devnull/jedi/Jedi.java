@@ -4,14 +4,20 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
 import org.apache.log4j.PropertyConfigurator;
 import org.devnull.jedi.configs.JediConfig;
+import org.devnull.jedi.dns.DnsServer;
+import org.devnull.jedi.http.HttpConnector;
+import org.devnull.jedi.zmq.ZmqConnector;
 import org.devnull.statsd_client.Shipper;
 import org.devnull.statsd_client.ShipperFactory;
 import org.devnull.statsd_client.StatsObject;
 import org.newsclub.net.unix.AFUNIXServerSocket;
+import org.newsclub.net.unix.AFUNIXSocket;
 import org.newsclub.net.unix.AFUNIXSocketAddress;
 
 import java.io.File;
@@ -20,7 +26,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -31,7 +37,14 @@ public final class Jedi extends JsonBase implements Runnable
 	private static Logger log = null;
 	private JediConfig config = null;
 	private StatsObject so = StatsObject.getInstance();
-	private Cache<String, DNSRecordSet> cache = null;
+	private Cache<HostnameKey, CompactRecordSet> cache = null;
+	private LabelTrie<CompactRecordSet> wildcards = null;
+	private ZoneRegistry zones = null;
+
+	/**
+	 * whether to answer PowerDNS's pipebackend on stdin and stdout
+	 */
+	private boolean pipe = false;
 
 	/**
 	 * Reads command line arguments and starts the service.
@@ -41,6 +54,7 @@ public final class Jedi extends JsonBase implements Runnable
 	 * <p/>
 	 * -l <log4j.conf>		Path to a log4j properties file, optional
 	 * -c <jedi.conf>		Path to the json-based configuration file, required
+	 * --pipe			Answer PowerDNS's pipebackend on stdin and stdout instead of listening, optional
 	 *
 	 * @param args The String[] array of the command-line arguments
 	 * @throws Exception If there is an error reading the config files
@@ -54,6 +68,21 @@ public final class Jedi extends JsonBase implements Runnable
 		BasicConfigurator.configure();
 		log = Logger.getLogger(Jedi.class);
 
+		for (String arg : args)
+		{
+			if (arg.trim().equals("--pipe"))
+			{
+				//
+				// stdout is for answering PowerDNS, so log to stderr until the log4j config says otherwise
+				//
+				pipe = true;
+				LogManager.resetConfiguration();
+				Logger.getRootLogger().addAppender(
+					new ConsoleAppender(new PatternLayout(PatternLayout.TTCC_CONVERSION_PATTERN),
+							    ConsoleAppender.SYSTEM_ERR));
+			}
+		}
+
 		for (int i = 0; i < args.length; i++)
 		{
 			if (args[i].trim().equals("-c"))
@@ -79,6 +108,10 @@ public final class Jedi extends JsonBase implements Runnable
 				i++;
 				setupLogging(args[i]);
 			}
+			else if (args[i].trim().equals("--pipe"))
+			{
+				// handled above, before anything could be logged to stdout
+			}
 			else
 			{
 				log.info("Unknown command line argument: " + args[i]);
@@ -105,7 +138,15 @@ public final class Jedi extends JsonBase implements Runnable
 		{
 			BasicConfigurator.configure();
 			Jedi p = new Jedi(args);
-			p.run();
+
+			if (p.pipe)
+			{
+				p.runPipe();
+			}
+			else
+			{
+				p.run();
+			}
 		}
 		catch (Exception e)
 		{
@@ -133,26 +174,14 @@ public final class Jedi extends JsonBase implements Runnable
 			Thread statsdShipperThread = new Thread(shipper, "StatsdShipper");
 			statsdShipperThread.start();
 
-			//
-			// initialize LRU cache for storing records in memory
-			//
-			if (config.max_items_in_cache != null && config.max_items_in_cache > 0)
-			{
-				if (log.isDebugEnabled())
-				{
-					log.debug(
-						"building LRU cache with " + config.max_items_in_cache + " max items");
-				}
-
-				cache = CacheBuilder.newBuilder()
-						    .maximumSize(config.max_items_in_cache)
-						    .build();
-			}
+			startTimeService();
+			buildCaches();
 
 			//
 			// Initialize ThreadPool for REST Clients
 			//
-			ExecutorService apiPool = Executors.newFixedThreadPool(config.max_rest_client_threads);
+			ExecutorService apiPool = newApiPool();
+			Upstream upstream = new Upstream(config, apiPool);
 
 			//
 			// determine number of threads to allow for answering questions from PowerDNS.
@@ -176,19 +205,41 @@ public final class Jedi extends JsonBase implements Runnable
 			//
 			// Set up ServerSocket and answering ExecutorService
 			//
-			ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+			ExecutorService executor = new BoundedExecutor("Jedi.connection_pool", poolSize,
+								       config.powerdns_connection_queue_size, 0);
 			ServerSocket server = null;
 			Thread unixSocketThread = null;
+			DnsServer dnsServer = null;
+			HttpConnector httpConnector = null;
+			ZmqConnector zmqConnector = null;
 
 			try
 			{
 				if (config.unix_socket_path != null)
 				{
-					unixSocketThread = new Thread(new UnixSocketServer(config, executor, apiPool),
+					unixSocketThread = new Thread(new UnixSocketServer(config, executor, upstream),
 								      "UnixSocketServer");
 					unixSocketThread.start();
 				}
 
+				if (config.dns_server_enabled)
+				{
+					dnsServer = new DnsServer(config, upstream, cache, wildcards, zones);
+					dnsServer.start();
+				}
+
+				if (config.http_listen_port != null)
+				{
+					httpConnector = new HttpConnector(config, upstream, cache, wildcards, zones);
+					httpConnector.start();
+				}
+
+				if (config.zmq_endpoint != null)
+				{
+					zmqConnector = new ZmqConnector(config, upstream, cache, wildcards, zones);
+					zmqConnector.start();
+				}
+
 				server = new ServerSocket(config.jedi_listen_port);
 				server.setSoTimeout(1000);
 
@@ -210,7 +261,12 @@ public final class Jedi extends JsonBase implements Runnable
 						so.increment("Jedi.connections_accepted");
 
 						executor.execute(
-							new PowerDNSConnectionHandler(client, config, apiPool, cache));
+							new PowerDNSConnectionHandler(client, config, upstream, cache, wildcards, zones));
+					}
+					catch (RejectedExecutionException e)
+					{
+						log.warn("too many PowerDNS connections, closing " + client);
+						closeQuietly(client);
 					}
 					catch (InterruptedException e)
 					{
@@ -257,6 +313,24 @@ public final class Jedi extends JsonBase implements Runnable
 				unixSocketThread.join(2000);
 			}
 
+			if (zmqConnector != null)
+			{
+				log.info("shutting down zeromq connector");
+				zmqConnector.shutdown();
+			}
+
+			if (httpConnector != null)
+			{
+				log.info("shutting down http connector");
+				httpConnector.shutdown();
+			}
+
+			if (dnsServer != null)
+			{
+				log.info("shutting down DNS server");
+				dnsServer.shutdown();
+			}
+
 			try
 			{
 				executor.shutdown();
@@ -287,6 +361,12 @@ public final class Jedi extends JsonBase implements Runnable
 			//
 			// shut down the database API clients
 			//
+			if (apiPool != null)
+			{
+				apiPool.shutdownNow();
+			}
+
+			upstream.close();
 
 			shipper.shutdown();
 			statsdShipperThread.join();
@@ -309,6 +389,124 @@ public final class Jedi extends JsonBase implements Runnable
 		}
 	}
 
+	/**
+	 * runPipe() answers PowerDNS's pipebackend on stdin and stdout until stdin is closed.  PowerDNS starts one of
+	 * these per backend thread, so nothing is set up that isn't needed to answer: no listening sockets, and no
+	 * threads for the REST clients until the first fetch.
+	 */
+	public void runPipe()
+	{
+		Shipper shipper = null;
+		Upstream upstream = null;
+		ExecutorService apiPool = null;
+
+		try
+		{
+			shipper = ShipperFactory.getInstance(config.statsd_client_type);
+			shipper.configure(mapper.writeValueAsString(config.statsd_config));
+			Thread statsdShipperThread = new Thread(shipper, "StatsdShipper");
+			statsdShipperThread.setDaemon(true);
+			statsdShipperThread.start();
+
+			startTimeService();
+			buildCaches();
+
+			apiPool = newApiPool();
+			upstream = new Upstream(config, apiPool);
+
+			new PipeBackend(config, upstream, cache, wildcards, zones, System.in, System.out).run();
+		}
+		catch (Exception e)
+		{
+			log.error("Exception in runPipe(): " + e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+		finally
+		{
+			if (apiPool != null)
+			{
+				apiPool.shutdownNow();
+			}
+
+			if (upstream != null)
+			{
+				upstream.close();
+			}
+
+			if (shipper != null)
+			{
+				shipper.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * @return The pool that REST clients are run on, or null if handlers fetch on their own threads.
+	 */
+	private ExecutorService newApiPool()
+	{
+		if (config.inline_fetch_enabled)
+		{
+			return null;
+		}
+
+		return new BoundedExecutor("Jedi.api_pool", config.max_rest_client_threads, config.rest_client_queue_size,
+					   config.rest_fetch_timeout);
+	}
+
+	/**
+	 * Keeps the time, and runs timeouts, at the configured clock_tick.
+	 */
+	private void startTimeService()
+	{
+		TimeService timeService = new TimeService(Clock.SYSTEM, config.clock_tick);
+		timeService.start();
+		Now.setTimeService(timeService);
+	}
+
+	/**
+	 * Builds the LRU cache, the wildcard answers and the zones from the config.
+	 */
+	private void buildCaches()
+	{
+		//
+		// initialize LRU cache for storing records in memory
+		//
+		if (config.max_items_in_cache != null && config.max_items_in_cache > 0)
+		{
+			if (log.isDebugEnabled())
+			{
+				log.debug("building LRU cache with " + config.max_items_in_cache + " max items");
+			}
+
+			cache = CacheBuilder.newBuilder()
+					    .maximumSize(config.max_items_in_cache)
+					    .build();
+		}
+
+		if (config.max_wildcards_in_cache != null && config.max_wildcards_in_cache > 0)
+		{
+			wildcards = new LabelTrie<CompactRecordSet>();
+		}
+
+		zones = new ZoneRegistry(config);
+	}
+
+	/**
+	 * Closes a PowerDNS connection that there is no handler thread for.
+	 */
+	private static void closeQuietly(final Socket client)
+	{
+		try
+		{
+			client.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
 	/**
 	 * Configures log4j using the passed-in log4j.conf properties file or the default
 	 * log4j.conf included in the monolithic jarball.
@@ -341,21 +539,27 @@ public final class Jedi extends JsonBase implements Runnable
 	private class UnixSocketServer implements Runnable
 	{
 		private ExecutorService socketExecutorService;
-		private ExecutorService apiExecutorService;
+		private Upstream upstream;
 		private JediConfig config;
 		private AFUNIXServerSocket server = null;
 		private PoolingHttpClientConnectionManager poolingHttpClientConnectionManager;
 
 		public UnixSocketServer(final JediConfig config, final ExecutorService executorService,
-					final ExecutorService apiPool)
+					final Upstream upstream)
 			throws Exception
 		{
 			this.config = config;
 			this.socketExecutorService = executorService;
-			this.apiExecutorService = apiPool;
+			this.upstream = upstream;
 
 			server = AFUNIXServerSocket.newInstance();
 			server.bind(new AFUNIXSocketAddress(new File(config.unix_socket_path)));
+
+			if (!AFUNIXSocket.supportsDirectBuffers())
+			{
+				log.warn("the junixsocket native library predates direct buffer support, " +
+					 "reading and writing the unix socket through streams");
+			}
 		}
 
 		public void run()
@@ -378,9 +582,17 @@ public final class Jedi extends JsonBase implements Runnable
 
 						so.increment("Jedi.connections_accepted");
 
-						socketExecutorService.execute(
-							new PowerDNSConnectionHandler(client, config,
-										      apiExecutorService, cache));
+						try
+						{
+							socketExecutorService.execute(
+								new PowerDNSConnectionHandler(client, config,
+											      upstream, cache, wildcards, zones));
+						}
+						catch (RejectedExecutionException e)
+						{
+							log.warn("too many PowerDNS connections, closing " + client);
+							closeQuietly(client);
+						}
 					}
 					catch (InterruptedException e)
 					{
@@ -0,0 +1,435 @@
+package org.devnull.jedi;
+
+/**
+ * LabelTrie maps DNS names to values through a tree of labels, walked from the rightmost label down, so that one
+ * walk finds the most specific entry for a name.  An entry is either an exact name, "foo.bar.com", or a wildcard,
+ * "*.bar.com", which matches every name below bar.com, at any depth.  An exact entry beats any wildcard, and a
+ * deeper wildcard beats a shallower one: given "*.com" and "*.bar.com", "a.b.bar.com" gets "*.bar.com".
+ * <p/>
+ * Lookups take no locks and create no objects.  Changes are serialized, and publish new child arrays rather than
+ * changing the ones lookups may be reading.  Removing an entry also removes the nodes that were only there for it,
+ * so the trie is only as big as the entries in it; bound their number with putIfRoom().
+ */
+public class LabelTrie<V>
+{
+	private static final Node<?>[] NO_CHILDREN = newNodes(0);
+
+	private final Node<V> root = new Node<V>(new byte[0]);
+	private volatile int size = 0;
+
+	/**
+	 * Adds or replaces an entry.
+	 *
+	 * @param name  The name, "*.foo.bar.com" for a wildcard
+	 * @param value The value
+	 * @return The value it replaced, or null.
+	 */
+	public synchronized V put(final HostnameKey name, final V value)
+	{
+		if (value == null)
+		{
+			throw new NullPointerException("value");
+		}
+
+		boolean wildcard = isWildcard(name);
+		Node<V> node = root;
+
+		//
+		// a wildcard is kept on the node for the part after "*."
+		//
+		for (int end = name.length(), stop = wildcard ? 2 : 0; end >= stop; )
+		{
+			int start = labelStart(name, end);
+			Node<V> child = node.child(name, start, end);
+
+			if (child == null)
+			{
+				byte[] label = new byte[end - start];
+
+				for (int i = 0; i < label.length; i++)
+				{
+					label[i] = name.byteAt(start + i);
+				}
+
+				child = node.add(new Node<V>(label));
+			}
+
+			node = child;
+			end = start - 1;
+		}
+
+		V old;
+
+		if (wildcard)
+		{
+			old = node.wildcard;
+			node.wildcard = value;
+		}
+		else
+		{
+			old = node.value;
+			node.value = value;
+		}
+
+		if (old == null)
+		{
+			size++;
+		}
+
+		return old;
+	}
+
+	/**
+	 * Adds or replaces an entry, unless it is a new one and there are already maxSize entries.
+	 *
+	 * @param name    The name, "*.foo.bar.com" for a wildcard
+	 * @param value   The value
+	 * @param maxSize How many entries there may be at most
+	 * @return True if the entry was added or replaced, false if there was no room for it.
+	 */
+	public synchronized boolean putIfRoom(final HostnameKey name, final V value, final int maxSize)
+	{
+		if (size >= maxSize && !contains(name))
+		{
+			return false;
+		}
+
+		put(name, value);
+		return true;
+	}
+
+	/**
+	 * @return True if there is an entry for name itself, as put() would have added it.
+	 */
+	private boolean contains(final HostnameKey name)
+	{
+		boolean wildcard = isWildcard(name);
+		Node<V> node = root;
+
+		for (int end = name.length(), stop = wildcard ? 2 : 0; end >= stop && node != null; )
+		{
+			int start = labelStart(name, end);
+			node = node.child(name, start, end);
+			end = start - 1;
+		}
+
+		if (node == null)
+		{
+			return false;
+		}
+
+		return (wildcard ? node.wildcard : node.value) != null;
+	}
+
+	/**
+	 * Finds the most specific entry for a name.
+	 *
+	 * @param name The name that was looked up
+	 * @return The value of the exact entry for name if there is one, or else of the deepest wildcard above it, or
+	 *         null if nothing matches.
+	 */
+	public V get(final HostnameKey name)
+	{
+		Node<V> node = root;
+		V best = null;
+		int end = name.length();
+
+		while (end >= 0)
+		{
+			//
+			// the wildcard at this node matches everything below it, which name still is
+			//
+			V wildcard = node.wildcard;
+
+			if (wildcard != null)
+			{
+				best = wildcard;
+			}
+
+			int start = labelStart(name, end);
+			Node<V> child = node.child(name, start, end);
+
+			if (child == null)
+			{
+				return best;
+			}
+
+			node = child;
+			end = start - 1;
+		}
+
+		V value = node.value;
+		return value != null ? value : best;
+	}
+
+	/**
+	 * Removes the entry that get(name) finds, if its value is still value.  This is how an expired entry found by
+	 * a lookup is removed, without knowing whether it was a wildcard.
+	 *
+	 * @param name  The name that was looked up
+	 * @param value The value that the lookup found
+	 * @return True if the entry was removed.
+	 */
+	public synchronized boolean remove(final HostnameKey name, final V value)
+	{
+		//
+		// the nodes walked through, root first, to prune the ones the entry leaves empty
+		//
+		Node<V>[] path = newNodes(name.length() + 2);
+		int depth = 0;
+		int best = -1;
+		Node<V> node = root;
+		int end = name.length();
+
+		while (true)
+		{
+			path[depth] = node;
+
+			if (end < 0)
+			{
+				break;
+			}
+
+			//
+			// the wildcard at this node matches name, which is still below it
+			//
+			if (node.wildcard != null)
+			{
+				best = depth;
+			}
+
+			int start = labelStart(name, end);
+			Node<V> child = node.child(name, start, end);
+
+			if (child == null)
+			{
+				break;
+			}
+
+			node = child;
+			depth++;
+			end = start - 1;
+		}
+
+		if (end < 0 && node.value != null)
+		{
+			if (!node.value.equals(value))
+			{
+				return false;
+			}
+
+			node.value = null;
+		}
+		else if (best >= 0 && path[best].wildcard.equals(value))
+		{
+			path[best].wildcard = null;
+			depth = best;
+		}
+		else
+		{
+			return false;
+		}
+
+		size--;
+
+		while (depth > 0 && path[depth].isEmpty())
+		{
+			path[depth - 1].remove(path[depth]);
+			depth--;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return The number of entries, exact and wildcard.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return The number of nodes below the root, for tests.
+	 */
+	int nodes()
+	{
+		return root.count() - 1;
+	}
+
+	/**
+	 * @return True if name is a wildcard, "*" or "*.something".
+	 */
+	public static boolean isWildcard(final HostnameKey name)
+	{
+		return name.length() > 0 && name.byteAt(0) == '*' && (name.length() == 1 || name.byteAt(1) == '.');
+	}
+
+	/**
+	 * @param wildcard A wildcard, e.g. "*.bar.com"
+	 * @param name     A name
+	 * @return True if the wildcard matches the name, i.e. the name is below the part after "*.".
+	 */
+	public static boolean matches(final HostnameKey wildcard, final HostnameKey name)
+	{
+		if (!isWildcard(wildcard))
+		{
+			return false;
+		}
+
+		//
+		// name must end with ".bar.com" and have at least one more label before it
+		//
+		int suffix = wildcard.length() - 1;
+		int offset = name.length() - suffix;
+
+		if (suffix == 0)
+		{
+			return name.length() > 0;
+		}
+
+		if (offset < 1)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < suffix; i++)
+		{
+			if (name.byteAt(offset + i) != wildcard.byteAt(1 + i))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return Where the label that ends at end starts.
+	 */
+	private static int labelStart(final HostnameKey name, final int end)
+	{
+		int start = end;
+
+		while (start > 0 && name.byteAt(start - 1) != '.')
+		{
+			start--;
+		}
+
+		return start;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <V> Node<V>[] newNodes(final int length)
+	{
+		return new Node[length];
+	}
+
+	private static final class Node<V>
+	{
+		private final byte[] label;
+
+		@SuppressWarnings("unchecked")
+		private volatile Node<V>[] children = (Node<V>[]) NO_CHILDREN;
+
+		private volatile V value = null;
+
+		/**
+		 * the value of "*" directly under this node
+		 */
+		private volatile V wildcard = null;
+
+		private Node(final byte[] label)
+		{
+			this.label = label;
+		}
+
+		/**
+		 * @return The child whose label is name between start and end, or null.
+		 */
+		private Node<V> child(final HostnameKey name, final int start, final int end)
+		{
+			Node<V>[] nodes = children;
+			int length = end - start;
+
+			for (Node<V> n : nodes)
+			{
+				byte[] l = n.label;
+
+				if (l.length != length)
+				{
+					continue;
+				}
+
+				int i = 0;
+
+				while (i < length && l[i] == name.byteAt(start + i))
+				{
+					i++;
+				}
+
+				if (i == length)
+				{
+					return n;
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Adds a child.  Only called with the trie locked.
+		 */
+		private Node<V> add(final Node<V> child)
+		{
+			Node<V>[] nodes = children;
+			Node<V>[] grown = newNodes(nodes.length + 1);
+			System.arraycopy(nodes, 0, grown, 0, nodes.length);
+			grown[nodes.length] = child;
+			children = grown;
+			return child;
+		}
+
+		/**
+		 * Removes a child.  Only called with the trie locked.
+		 */
+		private void remove(final Node<V> child)
+		{
+			Node<V>[] nodes = children;
+			Node<V>[] shrunk = newNodes(nodes.length - 1);
+
+			for (int i = 0, j = 0; i < nodes.length; i++)
+			{
+				if (nodes[i] != child)
+				{
+					shrunk[j++] = nodes[i];
+				}
+			}
+
+			children = shrunk;
+		}
+
+		/**
+		 * @return True if there is nothing at or below this node.
+		 */
+		private boolean isEmpty()
+		{
+			return value == null && wildcard == null && children.length == 0;
+		}
+
+		/**
+		 * @return The number of nodes at and below this one.
+		 */
+		private int count()
+		{
+			int count = 1;
+
+			for (Node<V> n : children)
+			{
+				count += n.count();
+			}
+
+			return count;
+		}
+	}
+}
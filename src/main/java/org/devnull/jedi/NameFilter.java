@@ -0,0 +1,186 @@
+package org.devnull.jedi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * NameFilter is a Bloom filter of the names the REST server has records for.  It can say for certain that a name
+ * does not exist, so that lookups for made up names (e.g. a flood of random subdomains) are answered without
+ * asking the REST server, and can only be wrong the other way, by letting through some names that don't exist.
+ * <p/>
+ * A name is in the filter if it was added itself, or if a wildcard above it was: "*.svc.foo.com" covers
+ * "a.svc.foo.com" and "a.b.svc.foo.com".
+ * <p/>
+ * Lookups take no locks and create no objects.  Names may be added while lookups run; a lookup racing with the add
+ * of the same name may miss it.
+ */
+public class NameFilter
+{
+	private static final long SEED = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+
+	private final AtomicLongArray bits;
+	private final long bitCount;
+	private final int hashCount;
+	private final int capacity;
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity          The number of names expected.  More can be added, at a higher false positive rate.
+	 * @param falsePositiveRate The rate of names that don't exist that are let through, with capacity names
+	 */
+	public NameFilter(final int capacity, final double falsePositiveRate)
+	{
+		if (capacity <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1)
+		{
+			throw new IllegalArgumentException("capacity must be positive and falsePositiveRate between 0 and 1");
+		}
+
+		//
+		// the usual optimal sizes: m = -n ln(p) / ln(2)^2 bits, and k = m / n ln(2) hashes
+		//
+		long m = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int words = (int) Math.min(Integer.MAX_VALUE, (m + 63) / 64);
+
+		this.bits = new AtomicLongArray(words);
+		this.bitCount = words * 64L;
+		this.hashCount = Math.max(1, Math.min(16, (int) Math.round((double) bitCount / capacity * Math.log(2))));
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Adds a name, or a wildcard like "*.svc.foo.com".
+	 */
+	public void add(final HostnameKey name)
+	{
+		long h1 = hash(name, 0, false);
+		long h2 = mix(h1);
+
+		for (int i = 0; i < hashCount; i++)
+		{
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long old;
+
+			do
+			{
+				old = bits.get(word);
+			}
+			while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask));
+		}
+
+		size.incrementAndGet();
+	}
+
+	/**
+	 * @param name A normalized name
+	 * @return False if neither the name nor any wildcard above it was added, true if one probably was.
+	 */
+	public boolean mightContain(final HostnameKey name)
+	{
+		if (contains(name, 0, false))
+		{
+			return true;
+		}
+
+		//
+		// then "*." followed by everything after each dot, and finally "*" on its own
+		//
+		int length = name.length();
+
+		for (int i = 0; i < length; i++)
+		{
+			if (name.byteAt(i) == '.' && contains(name, i + 1, true))
+			{
+				return true;
+			}
+		}
+
+		return contains(name, length, true);
+	}
+
+	/**
+	 * @return The number of adds so far.
+	 */
+	public int size()
+	{
+		return size.get();
+	}
+
+	/**
+	 * @return The number of names the filter was sized for.
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return The false positive rate expected with the names added so far.
+	 */
+	public double getExpectedFalsePositiveRate()
+	{
+		return Math.pow(1 - Math.exp(-hashCount * (double) size.get() / bitCount), hashCount);
+	}
+
+	private boolean contains(final HostnameKey name, final int from, final boolean wildcard)
+	{
+		long h1 = hash(name, from, wildcard);
+		long h2 = mix(h1);
+
+		for (int i = 0; i < hashCount; i++)
+		{
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * FNV-1a of name from from on, as though it were preceded by "*" (and a "." unless it is empty) if wildcard
+	 * is set, so that a wildcard above a name can be hashed without building it.
+	 */
+	private static long hash(final HostnameKey name, final int from, final boolean wildcard)
+	{
+		long h = SEED;
+		int length = name.length();
+
+		if (wildcard)
+		{
+			h = (h ^ '*') * PRIME;
+
+			if (from < length)
+			{
+				h = (h ^ '.') * PRIME;
+			}
+		}
+
+		for (int i = from; i < length; i++)
+		{
+			h = (h ^ (name.byteAt(i) & 0xff)) * PRIME;
+		}
+
+		return mix(h);
+	}
+
+	/**
+	 * The murmur3 finalizer, to spread the bits of h.
+	 */
+	private static long mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h | 1;
+	}
+}
@@ -0,0 +1,292 @@
+package org.devnull.jedi;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.AuthSchemes;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NameFilterLoader keeps a NameFilter of every name the REST server has records for.  It builds the filter from a
+ * bulk export of the names, then adds the names created since then every existence_filter_refresh_interval, and
+ * builds a new filter from a fresh export every existence_filter_rebuild_interval so that deleted names drop out.
+ * <p/>
+ * The export is GET /fqdns/1, and the names created since an earlier export are GET /fqdns/1?since=$timestamp,
+ * with the timestamp taken from that earlier reply:
+ * <p/>
+ * {"timestamp":1400000000000,"fqdns":["foo.bar.com","*.svc.bar.com",...]}
+ * <p/>
+ * A filter that could not be refreshed for existence_filter_max_age is not used, since names created in the
+ * meantime would wrongly be answered as not existing.
+ */
+public class NameFilterLoader extends JsonBase implements Runnable
+{
+	private static final Logger log = Logger.getLogger(NameFilterLoader.class);
+	private static final StatsObject so = StatsObject.getInstance();
+	private static final JsonFactory factory = mapper.getFactory();
+
+	private static final String PATH = "/fqdns/1";
+
+	private final UpstreamEndpoints endpoints;
+	private final int expectedNames;
+	private final double falsePositiveRate;
+	private final long refreshInterval;
+	private final long rebuildInterval;
+	private final long maxAge;
+	private final RequestConfig requestConfig;
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	private volatile NameFilter filter = null;
+	private volatile long loadedAt = 0L;
+
+	/*
+	 * only used by the loader thread
+	 */
+	private long builtAt = 0L;
+	private long since = -1L;
+	private final HostnameKey key = new HostnameKey();
+
+	/**
+	 * Constructor
+	 *
+	 * @param config    The JediConfig holding the existence_filter_* settings
+	 * @param endpoints The REST servers to load names from
+	 */
+	public NameFilterLoader(final JediConfig config, final UpstreamEndpoints endpoints)
+	{
+		if (config == null || endpoints == null)
+		{
+			throw new IllegalArgumentException("config or endpoints argument is null");
+		}
+
+		this.endpoints = endpoints;
+		this.expectedNames = config.existence_filter_expected_names;
+		this.falsePositiveRate = config.existence_filter_false_positive_rate;
+		this.refreshInterval = config.existence_filter_refresh_interval;
+		this.rebuildInterval = config.existence_filter_rebuild_interval;
+		this.maxAge = config.existence_filter_max_age;
+
+		//
+		// an export is much bigger and slower to produce than a single record set
+		//
+		int timeout = (int) config.existence_filter_load_timeout;
+
+		this.requestConfig = RequestConfig.custom()
+						  .setTargetPreferredAuthSchemes(Arrays.asList(AuthSchemes.DIGEST))
+						  .setSocketTimeout(timeout)
+						  .setConnectTimeout(timeout)
+						  .setConnectionRequestTimeout(timeout)
+						  .build();
+
+		scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+		{
+			public Thread newThread(final Runnable r)
+			{
+				Thread t = new Thread(r, "NameFilterLoader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts loading names in the background.
+	 */
+	public void start()
+	{
+		scheduler.scheduleWithFixedDelay(this, 0, refreshInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops loading names.
+	 */
+	public void shutdown()
+	{
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * @return The current filter, or null if there is none that is recent enough to trust.
+	 */
+	public NameFilter getFilter()
+	{
+		NameFilter f = filter;
+
+		if (f == null)
+		{
+			return null;
+		}
+
+		if (Now.getNow() - loadedAt > maxAge)
+		{
+			so.increment("NameFilter.too_old_to_use");
+			return null;
+		}
+
+		return f;
+	}
+
+	/**
+	 * Does one full or incremental load.  Called by the scheduler.
+	 */
+	public void run()
+	{
+		long start = System.nanoTime();
+		NameFilter current = filter;
+
+		try
+		{
+			if (current == null || since < 0 || Now.getNow() - builtAt >= rebuildInterval ||
+			    current.size() > current.getCapacity())
+			{
+				//
+				// make room for the names there are now to double before the next rebuild
+				//
+				int capacity = current == null ? expectedNames : Math.max(expectedNames, current.size() * 2);
+				NameFilter built = new NameFilter(capacity, falsePositiveRate);
+
+				since = load(PATH, built);
+				filter = built;
+				builtAt = Now.getNow();
+
+				so.increment("NameFilter.full_loads");
+
+				if (log.isDebugEnabled())
+				{
+					log.debug("loaded " + built.size() + " names into a new filter");
+				}
+			}
+			else
+			{
+				since = load(PATH + "?since=" + since, current);
+				so.increment("NameFilter.incremental_loads");
+			}
+
+			loadedAt = Now.getNow();
+		}
+		catch (Exception e)
+		{
+			so.increment("NameFilter.load_failures");
+			log.warn("could not load names from the REST server: " + e);
+		}
+		finally
+		{
+			so.timing("NameFilter.load_time", (System.nanoTime() - start) / 1000);
+		}
+	}
+
+	/**
+	 * Loads names from the REST server into filter.
+	 *
+	 * @return The timestamp to ask for the names created since with, or -1 if the reply did not have one.
+	 * @throws IOException If the REST server can not be reached or does not give a valid reply.
+	 */
+	private long load(final String path, final NameFilter into) throws IOException
+	{
+		UpstreamEndpoint endpoint = endpoints.select();
+		HttpGet get = new HttpGet(path);
+		get.setConfig(requestConfig);
+
+		HttpClientContext context = HttpClientContext.create();
+		CloseableHttpResponse response = endpoint.getHttpClient().execute(endpoint.getHttpHost(), get, context);
+
+		try
+		{
+			int status = response.getStatusLine().getStatusCode();
+			endpoint.getAuthenticator().update(context, status == 401);
+
+			if (status != 200)
+			{
+				throw new IOException("GET " + path + " from " + endpoint + " returned " + status);
+			}
+
+			HttpEntity entity = response.getEntity();
+
+			if (entity == null)
+			{
+				throw new IOException("GET " + path + " from " + endpoint + " returned no body");
+			}
+
+			InputStream in = entity.getContent();
+
+			try
+			{
+				return read(in, into);
+			}
+			finally
+			{
+				EntityUtils.consumeQuietly(entity);
+			}
+		}
+		finally
+		{
+			response.close();
+		}
+	}
+
+	/**
+	 * Reads {"timestamp":...,"fqdns":[...]} into filter, one name at a time.
+	 */
+	private long read(final InputStream in, final NameFilter into) throws IOException
+	{
+		JsonParser parser = factory.createParser(in);
+		long timestamp = -1L;
+
+		try
+		{
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+			{
+				throw new JsonMappingException("expected a JSON object", parser.getCurrentLocation());
+			}
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME)
+			{
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+
+				if ("timestamp".equals(field) && token == JsonToken.VALUE_NUMBER_INT)
+				{
+					timestamp = parser.getLongValue();
+				}
+				else if ("fqdns".equals(field) && token == JsonToken.START_ARRAY)
+				{
+					while ((token = parser.nextToken()) != JsonToken.END_ARRAY)
+					{
+						if (token != JsonToken.VALUE_STRING)
+						{
+							throw new JsonMappingException("expected a name", parser.getCurrentLocation());
+						}
+
+						into.add(key.set(parser.getText()));
+					}
+				}
+				else
+				{
+					parser.skipChildren();
+				}
+			}
+		}
+		finally
+		{
+			parser.close();
+		}
+
+		return timestamp;
+	}
+}
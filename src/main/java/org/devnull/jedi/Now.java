@@ -1,47 +1,76 @@
 package org.devnull.jedi;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 /**
- * This class simply updates a long that holds the current system time in milliseconds, for
- * use in determining if records are stale, etc.  This value is used a lot, so caching it
- * seems like a good idea to avoid excessive calls to System.currentTimeMillis()
+ * This class holds the current system time in milliseconds, for use in determining if records are stale, etc.  This
+ * value is used a lot, so caching it seems like a good idea to avoid excessive calls to System.currentTimeMillis()
+ * <p/>
+ * The time is kept by a TimeService, which also runs timeouts.  Until Jedi installs one ticking at its clock_tick,
+ * a default one ticks every DEFAULT_TICK milliseconds.  Tests install one with a Clock of their own.
  */
 public class Now extends JsonBase
 {
-	private static AtomicLong now = new AtomicLong(System.currentTimeMillis());
-	private static Thread nowUpdater = new Thread()
+	/**
+	 * milliseconds between updates of the time, unless a TimeService has been installed
+	 */
+	public static final long DEFAULT_TICK = 10;
+
+	private static volatile TimeService timeService = null;
+
+	/**
+	 * Retrieve the most current timestamp cached.
+	 *
+	 * @return long representing the System.currentTimeMillis() that was recently cached.  This value is updated
+	 * once a tick.
+	 */
+	public static long getNow()
+	{
+		return getTimeService().now();
+	}
+
+	/**
+	 * @return The TimeService keeping the time, to schedule timeouts on.
+	 */
+	public static TimeService getTimeService()
 	{
-		public void run()
+		TimeService ts = timeService;
+
+		if (ts != null)
+		{
+			return ts;
+		}
+
+		synchronized (Now.class)
 		{
-			while (true)
+			if (timeService == null)
 			{
-				try
-				{
-					Thread.sleep(1000);
-				}
-				catch (InterruptedException ie)
-				{
-				}
-
-				now.set(System.currentTimeMillis());
+				ts = new TimeService(Clock.SYSTEM, DEFAULT_TICK);
+				ts.start();
+				timeService = ts;
 			}
-		}
-	};
 
-	static
-	{
-		nowUpdater.start();
+			return timeService;
+		}
 	}
 
 	/**
-	 * Retrieve the most current timestamp cached.
+	 * Replaces the TimeService keeping the time, stopping the one there was.  Timeouts scheduled on that one are
+	 * never run.
 	 *
-	 * @return long representing the System.currentTimeMillis() that was recently cached.  This value is updated
-	 * once per second.
+	 * @param ts The new TimeService, which the caller starts if it should tick by itself
 	 */
-	public static long getNow()
+	public static synchronized void setTimeService(final TimeService ts)
 	{
-		return now.get();
+		if (ts == null)
+		{
+			throw new IllegalArgumentException("time service is null");
+		}
+
+		TimeService old = timeService;
+		timeService = ts;
+
+		if (old != null && old != ts)
+		{
+			old.shutdown();
+		}
 	}
 }
@@ -110,4 +110,22 @@ public class PDNSRequest extends JsonBase
 
 		return parameters.get("qtype");
 	}
+
+	/**
+	 * Returns the address of the client that asked PowerDNS: the "real-remote" parameter if it is set, which may
+	 * be a subnet from EDNS client subnet (e.g. "10.1.2.0/24"), otherwise the "remote" parameter.
+	 *
+	 * @return String address, optionally with a prefix length, or null if neither parameter is set.
+	 */
+	@JsonIgnore
+	public String getRemote()
+	{
+		if (parameters == null)
+		{
+			return null;
+		}
+
+		String remote = parameters.get("real-remote");
+		return remote != null ? remote : parameters.get("remote");
+	}
 }
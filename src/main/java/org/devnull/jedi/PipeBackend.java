@@ -0,0 +1,320 @@
+package org.devnull.jedi;
+
+import com.google.common.cache.Cache;
+import org.apache.log4j.Logger;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+/**
+ * PipeBackend speaks PowerDNS's pipebackend protocol, ABI versions 1 to 3, on a pair of streams, which are stdin
+ * and stdout when Jedi is started with --pipe as PowerDNS's pipe-command.  PowerDNS starts one of these processes
+ * per backend thread and asks it one question at a time:
+ * <p/>
+ * HELO	3
+ * Q	www.foo.com	IN	ANY	-1	10.1.2.3	10.0.0.1	10.1.2.0/24
+ * <p/>
+ * and it answers with a line per record, and END:
+ * <p/>
+ * OK	Jedi
+ * DATA	0	1	www.foo.com	IN	A	300	-1	10.9.8.7
+ * END
+ * <p/>
+ * Lookups go through a Resolver, so they use the cache and the REST server protections the same way the other
+ * front ends do.  Output is buffered, and flushed once a whole answer is written and there are no more questions
+ * already waiting to be read.
+ */
+public class PipeBackend implements Runnable
+{
+	private static final Logger log = Logger.getLogger(PipeBackend.class);
+	private static final StatsObject so = StatsObject.getInstance();
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final Resolver resolver;
+	private final ZoneRegistry zones;
+	private final BufferedReader in;
+	private final BufferedWriter out;
+	private final HostnameKey key = new HostnameKey();
+	private final StringBuilder sb = new StringBuilder(1024);
+
+	private int abi = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config    The JediConfig
+	 * @param upstream  The Upstream to fetch records with
+	 * @param cache     The results Cache, or null
+	 * @param wildcards The wildcard answers, or null
+	 * @param zones     The zones to answer for
+	 * @param input     Where PowerDNS's questions come from
+	 * @param output    Where the answers go
+	 * @throws Exception On issues setting up an RestClient using the config object
+	 */
+	public PipeBackend(final JediConfig config,
+			   final Upstream upstream,
+			   final Cache<HostnameKey, CompactRecordSet> cache,
+			   final LabelTrie<CompactRecordSet> wildcards,
+			   final ZoneRegistry zones,
+			   final InputStream input,
+			   final OutputStream output)
+		throws Exception
+	{
+		if (zones == null || input == null || output == null)
+		{
+			throw new IllegalArgumentException("zones, input or output argument is null");
+		}
+
+		this.resolver = new Resolver(config, upstream, cache, wildcards);
+		this.zones = zones;
+		this.in = new BufferedReader(new InputStreamReader(input, ASCII), 8192);
+		this.out = new BufferedWriter(new OutputStreamWriter(output, ASCII), 65536);
+	}
+
+	/**
+	 * Answers questions until the input ends, or PowerDNS says something we can't make sense of.
+	 */
+	public void run()
+	{
+		try
+		{
+			String line;
+
+			while ((line = in.readLine()) != null)
+			{
+				long start = System.nanoTime();
+				resolver.startRequest();
+
+				if (!answer(line.split("\t")))
+				{
+					out.flush();
+					break;
+				}
+
+				so.timing("PIPE.request_processing", (System.nanoTime() - start) / 1000);
+
+				//
+				// there is rarely more than one question waiting, but if there is, answer it before writing
+				//
+				if (!in.ready())
+				{
+					out.flush();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			log.warn("pipe backend stopped: " + e);
+		}
+		finally
+		{
+			try
+			{
+				out.flush();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Writes the answer to one line from PowerDNS.
+	 *
+	 * @return False if the conversation is over.
+	 */
+	private boolean answer(final String[] fields) throws IOException
+	{
+		String command = fields[0];
+
+		if (abi == 0)
+		{
+			if (!"HELO".equals(command) || fields.length < 2)
+			{
+				so.increment("PIPE.requests_received.invalid");
+				out.write("FAIL\n");
+				return false;
+			}
+
+			try
+			{
+				abi = Integer.parseInt(fields[1].trim());
+			}
+			catch (NumberFormatException e)
+			{
+				abi = -1;
+			}
+
+			if (abi < 1 || abi > 3)
+			{
+				log.warn("PowerDNS asked for pipebackend ABI version " + fields[1] + ", only 1 to 3 are spoken");
+				out.write("FAIL\n");
+				return false;
+			}
+
+			out.write("OK\tJedi\n");
+			return true;
+		}
+
+		so.increment("PIPE.requests_received.total");
+
+		if ("Q".equals(command))
+		{
+			//
+			// Q qname qclass qtype id remote-ip [local-ip [edns-subnet]]
+			//
+			if (fields.length < 6 + (abi - 1))
+			{
+				so.increment("PIPE.requests_received.invalid");
+				out.write("FAIL\n");
+				return true;
+			}
+
+			String remote = abi >= 3 && !"0.0.0.0/0".equals(fields[7]) ? fields[7] : fields[5];
+			lookup(fields[1], fields[2], fields[3], fields[4], remote);
+			out.write("END\n");
+			return true;
+		}
+
+		if ("PING".equals(command))
+		{
+			out.write("END\n");
+			return true;
+		}
+
+		//
+		// AXFR and anything newer than ABI 3
+		//
+		so.increment("PIPE.requests_received.unsupported_method");
+		out.write("FAIL\n");
+		return true;
+	}
+
+	private void lookup(final String qname, final String qclass, final String qtype, final String id,
+			    final String remote) throws IOException
+	{
+		so.increment("PIPE.records_requested." + qtype);
+
+		key.set(qname);
+
+		//
+		// names outside of our zones are none of our business
+		//
+		ZoneRegistry.Zone zone = zones.find(key);
+
+		if (zone == null)
+		{
+			so.increment("PIPE.out_of_zone");
+			return;
+		}
+
+		boolean any = "ANY".equals(qtype);
+		boolean apex = zone.isApex(key);
+
+		//
+		// the SOA and NS records are only at the zone's own name.  Without zones configured every name is its own
+		// zone, with an SOA when it is asked for, but not in every ANY answer.
+		//
+		if ("SOA".equals(qtype) ? apex : any && apex && zone.getName() != null)
+		{
+			String[] soa = zone.getSOAFields();
+
+			if (soa != null)
+			{
+				startData(qname, qclass, "SOA", zone.getTtl(), id);
+				sb.append(soa[0]);
+
+				for (int i = 1; i < soa.length; i++)
+				{
+					sb.append(' ').append(soa[i]);
+				}
+
+				writeData();
+			}
+		}
+
+		if ((any || "NS".equals(qtype)) && apex)
+		{
+			for (String ns : zone.getNS())
+			{
+				startData(qname, qclass, "NS", zone.getTtl(), id);
+				sb.append(ns);
+				writeData();
+			}
+		}
+
+		if ("SOA".equals(qtype) || "NS".equals(qtype))
+		{
+			return;
+		}
+
+		ClientRateLimiter rateLimiter = resolver.getRateLimiter();
+		long client = rateLimiter == null ? ClientRateLimiter.NO_CLIENT : rateLimiter.clientKey(remote);
+
+		CompactRecordSet records = resolver.resolve(key, client);
+
+		if (records == null)
+		{
+			return;
+		}
+
+		//
+		// like the remotebackend, every record is given and PowerDNS picks the ones it asked for.  SOA records from
+		// the REST server are left out, the zone's own is used instead.
+		//
+		for (int i = 0; i < records.size(); i++)
+		{
+			String type = records.getType(i);
+
+			if ("SOA".equals(type))
+			{
+				continue;
+			}
+
+			startData(qname, qclass, type, records.getTTL(), id);
+
+			if ("MX".equals(type))
+			{
+				sb.append(records.getPriority(i)).append(' ');
+			}
+
+			records.appendContent(i, sb);
+			writeData();
+		}
+	}
+
+	/**
+	 * Starts a DATA line in sb, up to where the content goes:
+	 * <p/>
+	 * ABI 1 and 2: DATA qname qclass qtype ttl id content
+	 * ABI 3:       DATA scopebits auth qname qclass qtype ttl id content
+	 */
+	private void startData(final String qname, final String qclass, final String type, final long ttl,
+			       final String id)
+	{
+		sb.setLength(0);
+		sb.append("DATA\t");
+
+		if (abi >= 3)
+		{
+			sb.append("0\t1\t");
+		}
+
+		sb.append(qname).append('\t').append(qclass).append('\t').append(type).append('\t').append(ttl)
+		  .append('\t').append(id).append('\t');
+	}
+
+	private void writeData() throws IOException
+	{
+		sb.append('\n');
+		out.append(sb);
+	}
+}
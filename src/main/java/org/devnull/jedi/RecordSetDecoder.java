@@ -0,0 +1,410 @@
+package org.devnull.jedi;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import org.devnull.jedi.records.AAAARecord;
+import org.devnull.jedi.records.ARecord;
+import org.devnull.jedi.records.AddressParser;
+import org.devnull.jedi.records.CNAMERecord;
+import org.devnull.jedi.records.MXRecord;
+import org.devnull.jedi.records.NSRecord;
+import org.devnull.jedi.records.Record;
+import org.devnull.jedi.records.SOARecord;
+import org.devnull.jedi.records.TXTRecord;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * RecordSetDecoder reads a /fqdn/1/$hostname response from the REST server straight into a CompactRecordSet,
+ * walking the JSON tokens instead of binding them to DNSRecordSet and Record objects with the ObjectMapper:
+ * <p/>
+ * {"fqdn":"foo.bar.com","ttl":100,"records":[{"type":"A","address":"1.1.1.1"},
+ * {"type":"MX","priority":10,"address":"mail.bar.com"}]}
+ * <p/>
+ * The result is the same as binding with the ObjectMapper and compacting: unknown fields are ignored, "type" may
+ * come anywhere in a record, a record with an unknown type or invalid content fails the whole response, and for
+ * MX records whichever of "priority" and a "priority host" address comes last sets the priority.
+ * <p/>
+ * An "fqdn" that is a wildcard, e.g. "*.svc.bar.com", means the REST server answered from a wildcard record, and is
+ * kept with the records so that the answer can be reused for other names under it.
+ * <p/>
+ * The decoder keeps no state between responses, so one can be shared by all threads.
+ */
+public class RecordSetDecoder extends JsonBase
+{
+	private static final JsonFactory factory = mapper.getFactory();
+
+	private final long maxLength;
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxLength The most bytes a response may have.
+	 */
+	public RecordSetDecoder(final long maxLength)
+	{
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Thrown when a response is longer than allowed.
+	 */
+	public static class TooLongException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		public TooLongException(final String message)
+		{
+			super(message);
+		}
+	}
+
+	/**
+	 * Reads one response.
+	 *
+	 * @param in        The response body.  It is read no further than maxLength bytes.
+	 * @param timestamp The timestamp to give the records.
+	 * @return The records in the response.
+	 * @throws TooLongException    If the response is longer than maxLength bytes.
+	 * @throws JsonMappingException If the response is valid JSON, but not a valid record set.
+	 * @throws IOException         If the response is not valid JSON, or can not be read.
+	 */
+	public CompactRecordSet decode(final InputStream in, final long timestamp) throws IOException
+	{
+		JsonParser parser = factory.createParser(new LimitedInputStream(in, maxLength));
+
+		//
+		// the caller decides what happens to the rest of the body, e.g. not reading it in when it is too long
+		//
+		parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+		try
+		{
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+			{
+				throw new JsonMappingException("expected a JSON object", parser.getCurrentLocation());
+			}
+
+			CompactRecordSet.Builder builder = new CompactRecordSet.Builder();
+			MXRecord mx = new MXRecord();
+			long ttl = DNSRecordSet.DEFAULT_TTL;
+			String wildcard = null;
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME)
+			{
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+
+				if ("ttl".equals(field))
+				{
+					ttl = readLong(parser, token);
+				}
+				else if ("fqdn".equals(field))
+				{
+					String fqdn = readString(parser, token);
+					wildcard = fqdn != null && fqdn.startsWith("*.") ? fqdn : null;
+				}
+				else if ("records".equals(field) && token == JsonToken.START_ARRAY)
+				{
+					//
+					// like the ObjectMapper, the last records field wins
+					//
+					builder = new CompactRecordSet.Builder();
+
+					while (parser.nextToken() != JsonToken.END_ARRAY)
+					{
+						readRecord(parser, builder, mx);
+					}
+				}
+				else if ("records".equals(field) && token == JsonToken.VALUE_NULL)
+				{
+					builder = new CompactRecordSet.Builder();
+				}
+				else if ("records".equals(field))
+				{
+					throw new JsonMappingException("records is not an array", parser.getCurrentLocation());
+				}
+				else
+				{
+					parser.skipChildren();
+				}
+			}
+
+			return builder.setWildcard(wildcard).build(ttl, timestamp);
+		}
+		finally
+		{
+			parser.close();
+		}
+	}
+
+	/**
+	 * Reads one record object into builder.  mx is scratch space for splitting MX content.
+	 */
+	private static void readRecord(final JsonParser parser, final CompactRecordSet.Builder builder,
+				       final MXRecord mx) throws IOException
+	{
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT)
+		{
+			throw new JsonMappingException("expected a record object", parser.getCurrentLocation());
+		}
+
+		String type = null;
+		String address = null;
+		boolean hasAddress = false;
+		boolean hasPriority = false;
+		boolean priorityLast = false;
+		int priority = 0;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME)
+		{
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+
+			if ("type".equals(field))
+			{
+				type = readString(parser, token);
+			}
+			else if ("address".equals(field))
+			{
+				address = readString(parser, token);
+				hasAddress = true;
+				priorityLast = false;
+			}
+			else if ("priority".equals(field))
+			{
+				priority = (int) readLong(parser, token);
+				hasPriority = true;
+				priorityLast = true;
+			}
+			else
+			{
+				parser.skipChildren();
+			}
+		}
+
+		if (type == null)
+		{
+			throw new JsonMappingException("record has no type", parser.getCurrentLocation());
+		}
+
+		if (!hasAddress)
+		{
+			//
+			// nothing to pack, keep it the way the ObjectMapper would have made it
+			//
+			builder.addRecord(emptyRecord(type, parser, hasPriority ? priority : 0));
+			return;
+		}
+
+		if (address == null)
+		{
+			throw new JsonMappingException(type + " record address is null", parser.getCurrentLocation());
+		}
+
+		if ("A".equals(type))
+		{
+			long inet4 = AddressParser.parseInet4(address);
+
+			if (inet4 < 0)
+			{
+				throw new JsonMappingException("address is not valid: " + address, parser.getCurrentLocation());
+			}
+
+			builder.addInet4((int) inet4, address);
+		}
+		else if ("AAAA".equals(type))
+		{
+			if (!address.contains(":"))
+			{
+				throw new JsonMappingException("IPv6 address is malformed", parser.getCurrentLocation());
+			}
+
+			builder.addInet6(address);
+		}
+		else if ("MX".equals(type))
+		{
+			mx.setPriority(hasPriority ? priority : 0);
+
+			try
+			{
+				mx.setAddress(address);
+			}
+			catch (Exception e)
+			{
+				throw new JsonMappingException(e.getMessage(), parser.getCurrentLocation(), e);
+			}
+
+			builder.addMX(priorityLast ? priority : mx.getPriority(), mx.getAddress());
+		}
+		else if ("SOA".equals(type) || "NS".equals(type) || "TXT".equals(type) || "CNAME".equals(type))
+		{
+			builder.addText(type, address);
+		}
+		else
+		{
+			throw new JsonMappingException("unknown record type: " + type, parser.getCurrentLocation());
+		}
+	}
+
+	private static Record emptyRecord(final String type, final JsonParser parser, final int priority) throws IOException
+	{
+		if ("A".equals(type))
+		{
+			return new ARecord();
+		}
+		else if ("AAAA".equals(type))
+		{
+			return new AAAARecord();
+		}
+		else if ("MX".equals(type))
+		{
+			MXRecord r = new MXRecord();
+			r.setPriority(priority);
+			return r;
+		}
+		else if ("SOA".equals(type))
+		{
+			return new SOARecord();
+		}
+		else if ("NS".equals(type))
+		{
+			return new NSRecord();
+		}
+		else if ("TXT".equals(type))
+		{
+			return new TXTRecord();
+		}
+		else if ("CNAME".equals(type))
+		{
+			return new CNAMERecord();
+		}
+
+		throw new JsonMappingException("unknown record type: " + type, parser.getCurrentLocation());
+	}
+
+	/**
+	 * Reads a String value, allowing numbers and booleans the way the ObjectMapper does.
+	 */
+	private static String readString(final JsonParser parser, final JsonToken token) throws IOException
+	{
+		if (token == JsonToken.VALUE_NULL)
+		{
+			return null;
+		}
+
+		if (token == null || !token.isScalarValue())
+		{
+			throw new JsonMappingException("expected a string", parser.getCurrentLocation());
+		}
+
+		return parser.getText();
+	}
+
+	/**
+	 * Reads a long value, allowing floats and numeric strings the way the ObjectMapper does.
+	 */
+	private static long readLong(final JsonParser parser, final JsonToken token) throws IOException
+	{
+		if (token == JsonToken.VALUE_NUMBER_INT)
+		{
+			return parser.getLongValue();
+		}
+		else if (token == JsonToken.VALUE_NUMBER_FLOAT)
+		{
+			return (long) parser.getDoubleValue();
+		}
+		else if (token == JsonToken.VALUE_NULL)
+		{
+			return 0;
+		}
+		else if (token == JsonToken.VALUE_STRING)
+		{
+			String text = parser.getText().trim();
+
+			if (text.length() == 0)
+			{
+				return 0;
+			}
+
+			try
+			{
+				return Long.parseLong(text);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new JsonMappingException("not a number: " + text, parser.getCurrentLocation(), e);
+			}
+		}
+
+		throw new JsonMappingException("expected a number", parser.getCurrentLocation());
+	}
+
+	/**
+	 * Counts the bytes read through it, and fails once there are more than allowed.
+	 */
+	private static class LimitedInputStream extends FilterInputStream
+	{
+		private final long limit;
+		private long count = 0;
+
+		LimitedInputStream(final InputStream in, final long limit)
+		{
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+
+			if (b >= 0)
+			{
+				count(1);
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			//
+			// never ask for more than one byte past the limit, so that a huge body is not read in just to be
+			// thrown away
+			//
+			long allowed = limit - count + 1;
+			int n = super.read(b, off, (int) Math.min(len, Math.max(1, allowed)));
+
+			if (n > 0)
+			{
+				count(n);
+			}
+
+			return n;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException
+		{
+			long skipped = super.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		private void count(final long n) throws TooLongException
+		{
+			count += n;
+
+			if (count > limit)
+			{
+				throw new TooLongException("response is longer than " + limit + " bytes");
+			}
+		}
+	}
+}
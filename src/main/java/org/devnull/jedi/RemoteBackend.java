@@ -0,0 +1,263 @@
+package org.devnull.jedi;
+
+import org.apache.log4j.Logger;
+import org.devnull.statsd_client.StatsObject;
+
+/**
+ * RemoteBackend answers the requests of PowerDNS's remotebackend: initialize, and lookups, with SOA and NS answered
+ * from the configured zones and every other type looked up by a Resolver.  It is the one request engine behind the
+ * remotebackend's connectors (the unix and tcp sockets, http and zeromq), which only read the requests and write
+ * the answers in their own framing, and start the Resolver's clock on each request as it is read.
+ * <p/>
+ * Answers are JSON, e.g. {"result":[{"qtype":"A","qname":"www.foo.com","content":"1.2.3.4","ttl":300,...}]},
+ * or {"result":false} when there is no answer.  The stats are kept under the prefix the connector had them under
+ * before they shared this, so that existing graphs carry on.
+ * <p/>
+ * A RemoteBackend keeps state for the request in progress and must only be used by one thread at a time.
+ */
+public class RemoteBackend extends JsonBase
+{
+	private static final Logger log = Logger.getLogger(RemoteBackend.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	/**
+	 * the answer when there is none: the name does not exist, the lookup failed or the method is not supported
+	 */
+	public static final String NEGATIVE = "{\"result\":false}";
+
+	/**
+	 * the answer to initialize
+	 */
+	public static final String OK = "{\"result\":true}";
+
+	private final Resolver resolver;
+	private final ZoneRegistry zones;
+	private final String prefix;
+
+	/**
+	 * the cache key for the current request, reused so that cache lookups don't allocate
+	 */
+	private final HostnameKey key = new HostnameKey();
+	private final StringBuilder sb = new StringBuilder(1024);
+
+	/**
+	 * Constructor
+	 *
+	 * @param resolver The Resolver to find records with, used only by this RemoteBackend
+	 * @param zones    The zones to answer SOA and NS queries from and to limit lookups to
+	 * @param prefix   What the stats are kept under, e.g. "PDNSCH"
+	 */
+	public RemoteBackend(final Resolver resolver, final ZoneRegistry zones, final String prefix)
+	{
+		if (resolver == null || zones == null || prefix == null)
+		{
+			throw new IllegalArgumentException("resolver, zones or prefix argument is null");
+		}
+
+		this.resolver = resolver;
+		this.zones = zones;
+		this.prefix = prefix + ".";
+	}
+
+	/**
+	 * Answers a request as PowerDNS sends it, e.g.
+	 * {"method":"lookup","parameters":{"qtype":"ANY","qname":"www.foo.com","remote":"127.0.0.1",...}}
+	 *
+	 * @param requestLine The JSON request
+	 * @return The JSON to answer with, or null if the request can't be parsed or is not one PowerDNS sends.
+	 */
+	public String answer(final String requestLine)
+	{
+		if (log.isDebugEnabled())
+		{
+			log.debug("received request: " + requestLine);
+		}
+
+		//
+		// if the request is for calculateSOASerial, its parameters section will not be
+		// a map of string:string but string:object, and thus it will fail when we try
+		// to map it ot a PDNSRequest object.  Catch that case early and return an empty
+		// (false) answer, and move on.
+		// The same behavior should apply to getDomainMetadata requests as well.
+		//
+		if (requestLine.contains("\"method\":\"calculateSOASerial\"") ||
+		    requestLine.contains("\"method\":\"getDomainMetadata\""))
+		{
+			so.increment(prefix + "requests_received.unsupported_method");
+			return negative();
+		}
+
+		PDNSRequest request;
+
+		try
+		{
+			request = mapper.readValue(requestLine, PDNSRequest.class);
+		}
+		catch (Exception e)
+		{
+			so.increment(prefix + "requests_received.invalid");
+
+			if (log.isDebugEnabled())
+			{
+				log.debug("unable to parse request " + requestLine + ": " + e);
+			}
+
+			return null;
+		}
+
+		return answer(request);
+	}
+
+	/**
+	 * Answers a request.
+	 *
+	 * @param request The request, initialize or lookup
+	 * @return The JSON to answer with, or null if the request is not one PowerDNS sends: another method, or a
+	 * lookup without a qname.
+	 */
+	public String answer(final PDNSRequest request)
+	{
+		if (!validateRequest(request))
+		{
+			so.increment(prefix + "requests_received.invalid");
+			return null;
+		}
+
+		so.increment(prefix + "requests_received.valid");
+		so.increment(prefix + "requests_received." + request.getMethod());
+
+		if ("initialize".equals(request.getMethod()))
+		{
+			if (log.isDebugEnabled())
+			{
+				log.debug("got an initialize request from powerdns, replying OK");
+			}
+
+			so.increment(prefix + "empty_replies_sent");
+			return OK;
+		}
+
+		String answer = lookup(request.getDomain(), request.getQType(), request.getRemote());
+
+		if (answer == null)
+		{
+			return negative();
+		}
+
+		if (log.isDebugEnabled())
+		{
+			log.debug("answering: " + answer);
+		}
+
+		so.increment(prefix + "positive_replies_sent");
+		return answer;
+	}
+
+	/**
+	 * @return The answer for a lookup, or null if there is none.
+	 */
+	private String lookup(final String qname, final String qtype, final String remote)
+	{
+		so.increment(prefix + "records_requested." + qtype);
+
+		key.set(qname);
+
+		//
+		// names outside of our zones are none of our business
+		//
+		ZoneRegistry.Zone zone = zones.find(key);
+
+		if (zone == null)
+		{
+			so.increment(prefix + "out_of_zone");
+			return null;
+		}
+
+		//
+		// powerdns asks for the SOA of each label of a name until it finds the zone, so only the zone's own name
+		// gets one, and the same goes for NS
+		//
+		if ("SOA".equals(qtype))
+		{
+			return zone.isApex(key) ? zone.getSOAAnswer(qname) : null;
+		}
+
+		if ("NS".equals(qtype))
+		{
+			return zone.isApex(key) ? zone.getNSAnswer() : null;
+		}
+
+		//
+		// the subnet of the client that asked PowerDNS, for rate limiting
+		//
+		ClientRateLimiter rateLimiter = resolver.getRateLimiter();
+		long client = rateLimiter == null ? ClientRateLimiter.NO_CLIENT : rateLimiter.clientKey(remote);
+
+		CompactRecordSet recordSet = resolver.resolve(key, client);
+
+		if (recordSet == null)
+		{
+			//
+			// this could be from a timeout, lack of entry for the fqdn, or any other error in processing
+			//
+			return null;
+		}
+
+		//
+		// foreach IP, reply.  SOA records are left out, they are only returned when they are asked for
+		//
+		sb.setLength(0);
+		sb.append("{\"result\":[");
+		recordSet.appendAnswers(sb, qname);
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	private String negative()
+	{
+		if (log.isDebugEnabled())
+		{
+			log.debug("giving powerdns a negative response");
+		}
+
+		so.increment(prefix + "negative_replies_sent");
+		return NEGATIVE;
+	}
+
+	/**
+	 * Checks to make sure the method is set and is either initialize|lookup, and that there is a hostname
+	 * in the lookup request.
+	 *
+	 * @param r The PDNSRequest object received from the client.
+	 * @return True if the request is valid, false if it is not.
+	 */
+	private boolean validateRequest(final PDNSRequest r)
+	{
+		if (log.isDebugEnabled())
+		{
+			log.debug("validating request: " + r);
+		}
+
+		if ("initialize".equals(r.getMethod()))
+		{
+			return true;
+		}
+
+		//
+		// checks for nullity and mismatch at the same time
+		//
+		if (!"lookup".equals(r.getMethod()))
+		{
+			so.increment(prefix + "invalid_requests.bad_method");
+			return false;
+		}
+
+		if (r.getDomain() == null || r.getDomain().isEmpty())
+		{
+			so.increment(prefix + "invalid_requests.missing_fqdn");
+			return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,790 @@
+package org.devnull.jedi;
+
+import com.google.common.cache.Cache;
+import org.apache.log4j.Logger;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resolver finds the records for a name: from the local LRU cache, then from the cache shared with the other Jedi
+ * processes on the host, then from a cached wildcard answer, then from the REST server, through the existence
+ * filter, rate limits, circuit breaker and concurrency limit that guard it.  It is what every front end (the
+ * PowerDNS connection handlers and the DNS server) answers from, so that they all share one cache and protect the
+ * REST server the same way.
+ * <p/>
+ * A Resolver keeps state for the lookup in progress and must only be used by one thread at a time; each
+ * connection handler or server thread has its own.  The stats keep the PDNSCH prefix they had when this was part
+ * of the PowerDNSConnectionHandler, so that existing graphs carry on.
+ */
+public class Resolver
+{
+	private static final Logger log = Logger.getLogger(Resolver.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	/**
+	 * Why the last lookup ended the way it did.
+	 */
+	public enum Outcome
+	{
+		/**
+		 * records were found, possibly stale ones while the REST server is unhealthy
+		 */
+		FOUND,
+
+		/**
+		 * the REST server, or the existence filter, says there are no records for the name
+		 */
+		NOT_FOUND,
+
+		/**
+		 * the client has made too many lookups lately
+		 */
+		RATE_LIMITED,
+
+		/**
+		 * the REST server could not be asked or did not answer in time
+		 */
+		FAILED
+	}
+
+	private final JediConfig config;
+	private final ExecutorService apiPool;
+	private final Semaphore fetchPermits;
+	private final ConcurrencyLimiter limiter;
+	private final CircuitBreaker breaker;
+	private final NameFilterLoader nameFilterLoader;
+	private final ClientRateLimiter rateLimiter;
+	private final Cache<HostnameKey, CompactRecordSet> cache;
+	private final LabelTrie<CompactRecordSet> wildcards;
+	private final SharedRecordCache sharedCache;
+	private final RestClient restClient;
+	private final long cacheTimeout;
+	private final long fetchTimeoutNanos;
+
+	private Outcome outcome = Outcome.NOT_FOUND;
+
+	/**
+	 * what the circuit breaker allowed the fetch in progress, to give back with its outcome
+	 */
+	private CircuitBreaker.Permit breakerPermit = null;
+
+	/**
+	 * the System.nanoTime() by which the request in progress must be answered, if startRequest() was called for it
+	 */
+	private long deadline = 0;
+	private boolean hasDeadline = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config    The JediConfig
+	 * @param upstream  The Upstream shared by all resolvers
+	 * @param cache     The results Cache, or null
+	 * @param wildcards The answers the REST server gave for wildcards, shared by all resolvers, or null
+	 * @throws Exception On issues setting up an RestClient using the config object
+	 */
+	public Resolver(final JediConfig config,
+			final Upstream upstream,
+			final Cache<HostnameKey, CompactRecordSet> cache,
+			final LabelTrie<CompactRecordSet> wildcards)
+		throws Exception
+	{
+		this.config = config;
+		this.apiPool = upstream.getApiPool();
+		this.fetchPermits = upstream.getFetchPermits();
+		this.limiter = upstream.getLimiter();
+		this.breaker = upstream.getBreaker();
+		this.nameFilterLoader = upstream.getNameFilterLoader();
+		this.rateLimiter = upstream.getRateLimiter();
+		this.cache = cache;
+		this.wildcards = wildcards;
+		this.sharedCache = upstream.getSharedCache();
+		this.cacheTimeout = config.cache_timeout * 1000;
+		this.fetchTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.rest_fetch_timeout);
+		this.restClient = new RestClient(config, upstream.getEndpoints(), upstream.getHedger());
+	}
+
+	/**
+	 * @return The ClientRateLimiter to work out client keys with, or null if rate limiting is not enabled.
+	 */
+	public ClientRateLimiter getRateLimiter()
+	{
+		return rateLimiter;
+	}
+
+	/**
+	 * @return Why the last call to resolve() returned what it did.
+	 */
+	public Outcome getOutcome()
+	{
+		return outcome;
+	}
+
+	/**
+	 * Starts the clock on a request that has just been read: the next resolve() must be done within
+	 * rest_fetch_timeout of now.  Waiting for the api pool or a fetch permit, for a connection to the REST server,
+	 * retries, hedging and reading the answer all come out of that one budget, and the fetch is abandoned as soon
+	 * as it runs out.  A resolve() without a startRequest() before it gets rest_fetch_timeout from when it starts.
+	 */
+	public void startRequest()
+	{
+		startRequest(System.nanoTime());
+	}
+
+	/**
+	 * Starts the clock on a request that was read earlier and has waited to be answered, e.g. in a queue for a
+	 * worker: the next resolve() must be done within rest_fetch_timeout of when it was read.
+	 *
+	 * @param received The System.nanoTime() the request was read at
+	 */
+	public void startRequest(final long received)
+	{
+		deadline = received + fetchTimeoutNanos;
+		hasDeadline = true;
+	}
+
+	/**
+	 * @return True if the request started with startRequest() has run out of time already, so that whoever sent it
+	 * has stopped waiting for the answer.
+	 */
+	public boolean isExpired()
+	{
+		return hasDeadline && deadline - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Finds the records for a name.
+	 *
+	 * @param key    The normalized name
+	 * @param client The client's subnet from ClientRateLimiter.clientKey(), or ClientRateLimiter.NO_CLIENT
+	 * @return The records, or null if there are none or they could not be found; getOutcome() says which.
+	 */
+	public CompactRecordSet resolve(final HostnameKey key, final long client)
+	{
+		CompactRecordSet dnsRecordSet;
+		long deadline = hasDeadline ? this.deadline : System.nanoTime() + fetchTimeoutNanos;
+		hasDeadline = false;
+
+		//
+		// an expired cache entry, kept around to answer with while the circuit breaker is open
+		//
+		CompactRecordSet stale = null;
+
+		//
+		// see if it is in local LRU cache
+		//
+		if (cache != null)
+		{
+			if (log.isDebugEnabled())
+			{
+				log.debug("looking up hostname " + key + " in LRU");
+			}
+
+			dnsRecordSet = cache.getIfPresent(key);
+
+			so.increment("PDNSCH.cache_lookups");
+
+			if (dnsRecordSet == null)
+			{
+				so.increment("PDNSCH.cache_misses");
+			}
+			else
+			{
+				so.increment("PDNSCH.cache_hits");
+
+				if (log.isDebugEnabled())
+				{
+					log.debug("found cached record for hostname");
+				}
+
+				//
+				// test to see if record is too old
+				//
+				if (dnsRecordSet.getTimestamp() < (Now.getNow() - cacheTimeout))
+				{
+					if (log.isDebugEnabled())
+					{
+						log.debug("cache record for hostname " + key + " is too old, removing it");
+					}
+					so.increment("PDNSCH.cache_expirations");
+
+					if (breaker == null)
+					{
+						cache.invalidate(key);
+					}
+					else
+					{
+						//
+						// leave it in the cache until the refetch replaces it, so that it
+						// can still be served if the REST server is unhealthy.
+						//
+						stale = dnsRecordSet;
+					}
+				}
+				else
+				{
+					if (log.isDebugEnabled())
+					{
+						log.debug("cache record for hostname " + key + " is valid, sending it");
+					}
+
+					if (rateLimiter != null && !rateLimiter.tryAcquireHit(client))
+					{
+						so.increment("PDNSCH.rate_limited.hits");
+						return finish(Outcome.RATE_LIMITED, null);
+					}
+
+					so.increment("PDNSCH.answers_served_from_cache");
+					return finish(Outcome.FOUND, dnsRecordSet);
+				}
+			}
+		}
+
+		//
+		// see if another process on this host has fetched it lately
+		//
+		if (sharedCache != null)
+		{
+			dnsRecordSet = sharedCache.get(key);
+
+			if (dnsRecordSet != null && dnsRecordSet.getTimestamp() >= (Now.getNow() - cacheTimeout))
+			{
+				if (log.isDebugEnabled())
+				{
+					log.debug("hostname " + key + " found in the shared cache, sending it");
+				}
+
+				if (cache != null)
+				{
+					cache.put(key.copy(), dnsRecordSet);
+					so.increment("PDNSCH.cache_inserts");
+				}
+
+				if (rateLimiter != null && !rateLimiter.tryAcquireHit(client))
+				{
+					so.increment("PDNSCH.rate_limited.hits");
+					return finish(Outcome.RATE_LIMITED, null);
+				}
+
+				so.increment("PDNSCH.answers_served_from_shared_cache");
+				return finish(Outcome.FOUND, dnsRecordSet);
+			}
+		}
+
+		//
+		// see if a wildcard answers it
+		//
+		boolean staleWildcard = false;
+
+		if (wildcards != null && stale == null)
+		{
+			dnsRecordSet = wildcards.get(key);
+
+			if (dnsRecordSet != null)
+			{
+				if (dnsRecordSet.getTimestamp() < (Now.getNow() - cacheTimeout))
+				{
+					so.increment("PDNSCH.wildcard_expirations");
+
+					if (breaker == null)
+					{
+						wildcards.remove(key, dnsRecordSet);
+					}
+					else
+					{
+						stale = dnsRecordSet;
+						staleWildcard = true;
+					}
+				}
+				else
+				{
+					if (log.isDebugEnabled())
+					{
+						log.debug("hostname " + key + " is answered by a cached wildcard, sending it");
+					}
+
+					if (rateLimiter != null && !rateLimiter.tryAcquireHit(client))
+					{
+						so.increment("PDNSCH.rate_limited.hits");
+						return finish(Outcome.RATE_LIMITED, null);
+					}
+
+					so.increment("PDNSCH.answers_served_from_wildcard");
+					return finish(Outcome.FOUND, dnsRecordSet);
+				}
+			}
+		}
+
+		//
+		// a name the REST server certainly has no records for is answered negatively right away.
+		// one that we have a stale answer for did exist, and is not checked.
+		//
+		boolean filterPassed = false;
+
+		if (nameFilterLoader != null && stale == null)
+		{
+			NameFilter filter = nameFilterLoader.getFilter();
+
+			if (filter != null)
+			{
+				if (!filter.mightContain(key))
+				{
+					so.increment("PDNSCH.existence_filter.short_circuits");
+					return finish(Outcome.NOT_FOUND, null);
+				}
+
+				so.increment("PDNSCH.existence_filter.passed");
+				filterPassed = true;
+			}
+		}
+
+		//
+		// a client that has lately asked for too many names we don't have in memory is not let near the
+		// REST server.  a stale answer costs nothing to give, so it still gets that.
+		//
+		if (rateLimiter != null && !rateLimiter.tryAcquireMiss(client))
+		{
+			so.increment("PDNSCH.rate_limited.misses");
+
+			if (stale != null)
+			{
+				so.increment("PDNSCH.answers_served_stale");
+				return finish(Outcome.FOUND, stale);
+			}
+
+			return finish(Outcome.RATE_LIMITED, null);
+		}
+
+		//
+		// not in Cache, see if we can fetch it from the Master Controller
+		// I've tried to put as much code that might wait into the RestClient, that way
+		// we can have a super-timeout that covers all of it via the Future.get(...)
+		// method.
+		//
+		if (log.isDebugEnabled())
+		{
+			log.debug("submitting RestClient to the execution pool");
+		}
+
+		//
+		// a request that has already used up its time, e.g. queued behind others in PowerDNS or in our socket,
+		// would get its answer too late to use
+		//
+		if (deadline - System.nanoTime() <= 0)
+		{
+			so.increment("PDNSCH.deadline_exceeded.before_fetch");
+
+			if (stale != null)
+			{
+				so.increment("PDNSCH.answers_served_stale");
+				return finish(Outcome.FOUND, stale);
+			}
+
+			return finish(Outcome.FAILED, null);
+		}
+
+		//
+		// while the circuit breaker is open, don't wait on the REST server at all: answer with the
+		// expired record if we have one, negatively otherwise.
+		//
+		if (breaker != null && (breakerPermit = breaker.allowRequest()) == CircuitBreaker.Permit.REJECTED)
+		{
+			so.increment("PDNSCH.API_requests_rejected.circuit_open");
+
+			if (stale != null)
+			{
+				so.increment("PDNSCH.answers_served_stale");
+				return finish(Outcome.FOUND, stale);
+			}
+
+			return finish(Outcome.FAILED, null);
+		}
+
+		//
+		// when the adaptive concurrency limit is reached, answer negatively right away rather
+		// than queueing behind fetches that are already struggling.
+		//
+		if (limiter != null && !limiter.tryAcquire())
+		{
+			so.increment("PDNSCH.API_requests_rejected.concurrency_limit");
+
+			if (breaker != null)
+			{
+				breaker.onIgnore(breakerPermit);
+			}
+
+			return finish(Outcome.FAILED, null);
+		}
+
+		//
+		// a fetch that was given up on may still be running, so each gets its own call
+		//
+		RestClient.Fetch fetch = restClient.newFetch(key.toString(), deadline);
+
+		if (fetchPermits != null)
+		{
+			return fetchInline(fetch, key, stale, staleWildcard, filterPassed, deadline);
+		}
+
+		Future<CompactRecordSet> future;
+
+		try
+		{
+			future = apiPool.submit(fetch);
+		}
+		catch (RejectedExecutionException e)
+		{
+			//
+			// the api pool's queue is full; by the time this fetch was run it would be too late to be of use
+			//
+			so.increment("PDNSCH.API_requests_rejected.queue_full");
+			return refuse(stale);
+		}
+
+		so.increment("PDNSCH.API_requests_submitted");
+
+		long futureStart = System.nanoTime();
+		boolean dropped = false;
+		boolean ignored = false;
+
+		try
+		{
+			if (log.isDebugEnabled())
+			{
+				log.debug("waiting for return from RestClient");
+			}
+
+			dnsRecordSet = future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+			so.timing("PDNSCH.future_wait", (System.nanoTime() - futureStart) / 1000);
+			dropped = fetch.hadUpstreamError();
+			ignored = !fetch.wasSent();
+
+			return fetched(key, dnsRecordSet, dropped, stale, staleWildcard, filterPassed);
+		}
+		catch (TimeoutException te)
+		{
+			if (log.isDebugEnabled())
+			{
+				log.debug("Future timed out, cancelling it and returning empty response");
+			}
+			so.increment("PDNSCH.futures_exceptions.TimeoutException");
+			dropped = true;
+			future.cancel(true);
+
+			//
+			// an http request in progress doesn't notice the interrupt, closing its connection stops it.  one
+			// that was never sent waited for an api thread all along, which is our load, not the REST server's.
+			//
+			fetch.abort();
+			ignored = !fetch.wasSent();
+		}
+		catch (CancellationException ce)
+		{
+			if (log.isDebugEnabled())
+			{
+				log.debug("Future threw a CancellationException");
+			}
+			so.increment("PDNSCH.futures_exceptions.CancellationException");
+			ignored = true;
+		}
+		catch (ExecutionException ee)
+		{
+			if (log.isDebugEnabled())
+			{
+				log.debug("Future threw an ExecutionException: " + ee);
+			}
+			so.increment("PDNSCH.futures_exceptions.ExecutionException");
+			dropped = true;
+		}
+		catch (InterruptedException ie)
+		{
+			if (log.isDebugEnabled())
+			{
+				log.debug("Future threw an InterruptedException");
+			}
+			so.increment("PDNSCH.futures_exceptions.InterruptedException");
+			ignored = true;
+			future.cancel(true);
+			fetch.cancel();
+		}
+		finally
+		{
+			account(ignored, dropped, futureStart);
+		}
+
+		return finish(Outcome.FAILED, null);
+	}
+
+	/**
+	 * Fetches on this thread instead of handing the fetch to the api pool and waiting for it, once one of the
+	 * max_rest_client_threads permits is free.  The fetch aborts itself at the deadline, so this returns by
+	 * then whatever the REST server does.
+	 */
+	private CompactRecordSet fetchInline(final RestClient.Fetch fetch,
+					     final HostnameKey key,
+					     final CompactRecordSet stale,
+					     final boolean staleWildcard,
+					     final boolean filterPassed,
+					     final long deadline)
+	{
+		long permitStart = System.nanoTime();
+		boolean acquired;
+
+		try
+		{
+			acquired = fetchPermits.tryAcquire(deadline - permitStart, TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			acquired = false;
+		}
+
+		long fetchStart = System.nanoTime();
+		so.timing("PDNSCH.fetch_permit_wait", (fetchStart - permitStart) / 1000);
+
+		if (!acquired)
+		{
+			//
+			// as many fetches as the REST server is allowed are running, and none finished in time
+			//
+			so.increment("PDNSCH.API_requests_rejected.no_permit");
+			return refuse(stale);
+		}
+
+		so.increment("PDNSCH.API_requests_inline");
+
+		boolean dropped = false;
+		boolean ignored = false;
+
+		try
+		{
+			CompactRecordSet dnsRecordSet = fetch.call();
+
+			so.timing("PDNSCH.inline_fetch", (System.nanoTime() - fetchStart) / 1000);
+			dropped = fetch.hadUpstreamError();
+			ignored = !fetch.wasSent();
+
+			return fetched(key, dnsRecordSet, dropped, stale, staleWildcard, filterPassed);
+		}
+		catch (Exception e)
+		{
+			if (log.isDebugEnabled())
+			{
+				log.debug("RestClient threw an Exception: " + e);
+			}
+			so.increment("PDNSCH.inline_fetch_exceptions");
+			dropped = true;
+		}
+		finally
+		{
+			fetchPermits.release();
+			account(ignored, dropped, fetchStart);
+		}
+
+		return finish(Outcome.FAILED, null);
+	}
+
+	/**
+	 * Answers for a fetch that was not sent: with the expired record if there is one, negatively otherwise.
+	 */
+	private CompactRecordSet refuse(final CompactRecordSet stale)
+	{
+		if (limiter != null)
+		{
+			limiter.onIgnore();
+		}
+
+		if (breaker != null)
+		{
+			breaker.onIgnore(breakerPermit);
+		}
+
+		if (stale != null)
+		{
+			so.increment("PDNSCH.answers_served_stale");
+			return finish(Outcome.FOUND, stale);
+		}
+
+		return finish(Outcome.FAILED, null);
+	}
+
+	/**
+	 * Caches what the REST server answered and answers with it.
+	 *
+	 * @param dnsRecordSet The REST server's answer, or null if there are no records or there was an error
+	 * @param dropped      True if there was an error
+	 */
+	private CompactRecordSet fetched(final HostnameKey key,
+					 final CompactRecordSet dnsRecordSet,
+					 final boolean dropped,
+					 final CompactRecordSet stale,
+					 final boolean staleWildcard,
+					 final boolean filterPassed)
+	{
+		if (log.isDebugEnabled())
+		{
+			log.debug("got dnsRecord from RestClient: " + dnsRecordSet);
+		}
+
+		if (dnsRecordSet == null)
+		{
+			so.increment("PDNSCH.null_futures");
+
+			if (filterPassed && !dropped)
+			{
+				so.increment("PDNSCH.existence_filter.false_positives");
+			}
+
+			if (stale != null && !dropped)
+			{
+				//
+				// the REST server says the record is gone, don't keep serving it
+				//
+				if (staleWildcard)
+				{
+					wildcards.remove(key, stale);
+				}
+				else
+				{
+					cache.invalidate(key);
+				}
+			}
+
+			//
+			// this could be from a timeout, lack of entry for the fqdn, or any
+			// other error in processing.
+			//
+			return finish(dropped ? Outcome.FAILED : Outcome.NOT_FOUND, null);
+		}
+
+		so.increment("PDNSCH.successful_futures");
+
+		//
+		// a wildcard answer is kept once for all the names under it, instead of for this one
+		//
+		if (!putWildcard(key, dnsRecordSet))
+		{
+			if (cache != null)
+			{
+				if (log.isDebugEnabled())
+				{
+					log.debug("adding cache entry for hostname " + key + " to the LRU");
+				}
+
+				cache.put(key.copy(), dnsRecordSet);
+				so.increment("PDNSCH.cache_inserts");
+			}
+
+			if (sharedCache != null)
+			{
+				sharedCache.put(key, dnsRecordSet);
+			}
+		}
+
+		return finish(Outcome.FOUND, dnsRecordSet);
+	}
+
+	/**
+	 * Tells the concurrency limiter and circuit breaker how a fetch went.
+	 *
+	 * @param ignored True if it says nothing about the REST server, e.g. it was interrupted or never sent
+	 * @param dropped True if it failed
+	 * @param start   The System.nanoTime() the fetch started at
+	 */
+	private void account(final boolean ignored, final boolean dropped, final long start)
+	{
+		if (limiter != null)
+		{
+			if (ignored)
+			{
+				limiter.onIgnore();
+			}
+			else if (dropped)
+			{
+				limiter.onDropped();
+			}
+			else
+			{
+				limiter.onSuccess(System.nanoTime() - start);
+			}
+		}
+
+		if (breaker != null)
+		{
+			if (ignored)
+			{
+				breaker.onIgnore(breakerPermit);
+			}
+			else if (dropped)
+			{
+				breaker.onFailure(breakerPermit);
+			}
+			else
+			{
+				breaker.onSuccess(breakerPermit, System.nanoTime() - start);
+			}
+		}
+	}
+
+	private CompactRecordSet finish(final Outcome outcome, final CompactRecordSet recordSet)
+	{
+		this.outcome = outcome;
+		return recordSet;
+	}
+
+	/**
+	 * Keeps an answer the REST server gave for a wildcard, so that the other names under it are answered from
+	 * memory.
+	 *
+	 * @param key       The name that was looked up
+	 * @param recordSet The answer the REST server gave for it
+	 * @return True if it was kept, false if it is not a wildcard answer or there is no room for it.
+	 */
+	private boolean putWildcard(final HostnameKey key, final CompactRecordSet recordSet)
+	{
+		if (wildcards == null)
+		{
+			return false;
+		}
+
+		String wildcard = recordSet.getWildcard();
+
+		if (wildcard == null)
+		{
+			return false;
+		}
+
+		HostnameKey wildcardKey = HostnameKey.of(wildcard);
+
+		if (!LabelTrie.matches(wildcardKey, key))
+		{
+			so.increment("PDNSCH.wildcard_mismatches");
+			return false;
+		}
+
+		if (!wildcards.putIfRoom(wildcardKey, recordSet, config.max_wildcards_in_cache))
+		{
+			so.increment("PDNSCH.wildcard_cache_full");
+			return false;
+		}
+
+		if (log.isDebugEnabled())
+		{
+			log.debug("adding wildcard " + wildcard + " for hostname " + key);
+		}
+
+		so.increment("PDNSCH.wildcard_inserts");
+		return true;
+	}
+}
@@ -2,29 +2,20 @@ package org.devnull.jedi;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.NoHttpResponseException;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.auth.params.AuthPNames;
-import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpRequestRetryHandler;
-import org.apache.http.client.config.AuthSchemes;
-import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.fluent.Executor;
 import org.apache.http.client.fluent.Request;
 import org.apache.http.client.fluent.Response;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.params.AuthPolicy;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.config.SocketConfig;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.BasicClientConnectionManager;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
@@ -33,8 +24,9 @@ import org.devnull.statsd_client.StatsObject;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -43,7 +35,7 @@ import java.util.concurrent.atomic.AtomicLong;
  * There is a safety measure built into this class that prevents it from attempting to read any response that is
  * larger than 8k bytes.
  */
-public class RestClient extends JsonBase implements Callable<DNSRecordSet>
+public class RestClient extends JsonBase implements Callable<CompactRecordSet>
 {
 	private static final Logger log = Logger.getLogger(RestClient.class);
 
@@ -52,6 +44,12 @@ public class RestClient extends JsonBase implements Callable<DNSRecordSet>
 	 */
 	private static final long MAX_REST_RESPONSE_LENGTH_ALLOWED = 8192;
 
+	/**
+	 * Reads responses straight into the form they are cached in, counting bytes against the limit above as it
+	 * goes, since the REST server need not send a Content-Length.
+	 */
+	private static final RecordSetDecoder decoder = new RecordSetDecoder(MAX_REST_RESPONSE_LENGTH_ALLOWED);
+
 	/**
 	 * The version of the API we are using.
 	 */
@@ -69,13 +67,17 @@ public class RestClient extends JsonBase implements Callable<DNSRecordSet>
 	private String instanceName = null;
 
 	/**
-	 * variables related to the fetching of data from the REST servers
+	 * The REST servers to fetch from, each with its own pooled http client.
+	 */
+	private UpstreamEndpoints endpoints = null;
+
+	/**
+	 * Decides when to send a hedged second request, or null if hedging is disabled.
 	 */
-	private HttpHost httpHost = null;
-	private CloseableHttpClient httpClient = null;
+	private Hedger hedger = null;
 
 	/**
-	 * The config object for Jedi, used for instantiating HttpClients
+	 * The config object for Jedi
 	 */
 	private JediConfig config = null;
 
@@ -85,13 +87,27 @@ public class RestClient extends JsonBase implements Callable<DNSRecordSet>
 	private String hostname = null;
 
 	/**
-	 * Constructor
+	 * Constructor for a RestClient with its own set of REST servers and connection pools.
 	 *
 	 * @param config The main JediConfig object that includes REST server related config items.
 	 * @throws Exception When there are issues setting up the HTTP client objects using the config.
 	 */
 	public RestClient(final JediConfig config)
 		throws Exception
+	{
+		this(config, null, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param config    The main JediConfig object that includes REST server related config items.
+	 * @param endpoints The REST servers shared by all RestClients, or null to create a set from the config.
+	 * @param hedger    The Hedger shared by all RestClients, or null to disable hedged requests.
+	 * @throws Exception When there are issues setting up the HTTP client objects using the config.
+	 */
+	public RestClient(final JediConfig config, final UpstreamEndpoints endpoints, final Hedger hedger)
+		throws Exception
 	{
 		try
 		{
@@ -100,16 +116,14 @@ public class RestClient extends JsonBase implements Callable<DNSRecordSet>
 				throw new IllegalArgumentException("config argument is null");
 			}
 
-			if (config.rest_server_hostname == null || config.rest_username == null || config.rest_password == null)
+			if (config.rest_username == null || config.rest_password == null)
 			{
-				throw new IllegalArgumentException(
-					"rest_server_hostname, rest_username, or rest_password is null");
+				throw new IllegalArgumentException("rest_username or rest_password is null");
 			}
 
 			this.config = config;
-
-			httpClient = generateHttpClient();
-			httpHost = new HttpHost(config.rest_server_hostname, config.rest_server_port);
+			this.endpoints = endpoints == null ? new UpstreamEndpoints(config) : endpoints;
+			this.hedger = hedger;
 
 			instanceName = "RestClient" + instanceCounter.incrementAndGet();
 
@@ -127,42 +141,6 @@ public class RestClient extends JsonBase implements Callable<DNSRecordSet>
 		so.increment("RestClient.created");
 	}
 
-	private CloseableHttpClient generateHttpClient()
-	{
-		if (log.isDebugEnabled())
-		{
-			log.debug(instanceName + ": Generating HTTP Client");
-		}
-
-		CredentialsProvider credsProvider = new BasicCredentialsProvider();
-
-		credsProvider.setCredentials(
-			new AuthScope(config.rest_server_hostname, config.rest_server_port),
-			new UsernamePasswordCredentials(config.rest_username, config.rest_password)
-		);
-
-		RequestConfig requestConfig = RequestConfig.custom()
-							   .setTargetPreferredAuthSchemes(
-								   Arrays.asList(AuthSchemes.DIGEST))
-							   .setSocketTimeout(new Long(config.rest_fetch_timeout)
-										     .intValue())
-							   .setConnectTimeout(
-								   new Long(config.rest_fetch_timeout)
-									   .intValue())
-							   .setConnectionRequestTimeout(
-								   new Long(config.rest_fetch_timeout)
-									   .intValue())
-							   .build();
-
-		return HttpClients.custom()
-				  .setConnectionManager(new BasicHttpClientConnectionManager())
-				  .setDefaultCredentialsProvider(credsProvider)
-				  .disableAutomaticRetries()
-				  .setMaxConnTotal(1)
-				  .setDefaultRequestConfig(requestConfig)
-				  .build();
-	}
-
 	/**
 	 * getter for the hostname
 	 *
@@ -184,194 +162,707 @@ public class RestClient extends JsonBase implements Callable<DNSRecordSet>
 	}
 
 	/**
-	 * Called by the ExecutorService when this object is submitted for execution.  Attempts to fetch records
-	 * for the {@hostname}, for both IPv4 and IPv6, and returns those records in an DNSRecord object.
-	 * Requests the FQDN data object via URI with a version number /fqdn/1/$hostname
+	 * Creates the call that fetches the records for one name.  A Resolver submits a new one for each fetch,
+	 * since a call that was given up on may still be running when the next one starts.
+	 *
+	 * @param hostname The hostname to ask the REST server about
+	 * @param deadline The System.nanoTime() by which the call must be answered, or 0 for rest_fetch_timeout
+	 *                 from when it starts
+	 * @return A Fetch to submit to the api pool, or to call() on this thread.
+	 */
+	public Fetch newFetch(final String hostname, final long deadline)
+	{
+		return new Fetch(hostname, deadline);
+	}
+
+	/**
+	 * Fetches the records for the hostname set with setHostname(), within rest_fetch_timeout.
 	 *
 	 * @return DNSRecord populated with data, or null if no record was found.
 	 * @throws Exception If there are errors processing the http get, interruptions in execution, etc.
 	 */
 	@Override
-	public DNSRecordSet call() throws Exception
+	public CompactRecordSet call() throws Exception
+	{
+		return newFetch(hostname, 0).call();
+	}
+
+	/**
+	 * One fetch of the records for a name, with the state that belongs to it alone: its deadline, what aborts its
+	 * requests, and how it went.
+	 */
+	public class Fetch implements Callable<CompactRecordSet>
 	{
-		so.increment("RestClient.calls");
+		/**
+		 * the hostname we are looking up, not the REST server hostname that we connect to in order to do the
+		 * lookup.
+		 */
+		private final String hostname;
+
+		/**
+		 * The System.nanoTime() by which call() must be answered, or 0 for rest_fetch_timeout from when it
+		 * starts.  Connecting, waiting for a pooled connection, retries, hedging and reading the answer all come
+		 * out of the same budget.
+		 */
+		private final long deadline;
+
+		/**
+		 * Set by call() when the REST server did not give us a usable answer: no response, a 5xx status code,
+		 * or an exception talking to it.  Used to feed the adaptive concurrency limit.
+		 */
+		private volatile boolean upstreamError = false;
+
+		/**
+		 * set once a request has been sent to a REST server
+		 */
+		private volatile boolean sent = false;
+
+		/**
+		 * aborts the requests of call() while it is in progress, for abort() and cancel()
+		 */
+		private volatile Aborter inFlight = null;
+
+		private Fetch(final String hostname, final long deadline)
+		{
+			this.hostname = hostname;
+			this.deadline = deadline;
+		}
 
-		if (hostname == null)
+		/**
+		 * Aborts the requests of call() because its deadline has passed, closing their connections, so that its
+		 * thread is freed rather than left waiting on an answer nobody wants any more.  The REST servers they
+		 * were sent to are charged with a failure, as they were too slow.
+		 */
+		public void abort()
 		{
-			so.increment("RestClient.hostname_not_set_exception");
-			throw new NullPointerException("hostname has not been set, is null");
+			Aborter a = inFlight;
+
+			if (a != null)
+			{
+				a.abort(true);
+			}
 		}
 
-		long start = System.nanoTime();
+		/**
+		 * Aborts the requests of call() for a reason that has nothing to do with the REST servers, e.g. the
+		 * thread waiting for it was interrupted.
+		 */
+		public void cancel()
+		{
+			Aborter a = inFlight;
 
-		HttpEntity entity = null;
+			if (a != null)
+			{
+				a.abort(false);
+			}
+		}
 
-		/*
-		Using the Fluent HC wrapper for the apache http client:
-		does not support authentication, though.
+		/**
+		 * @return True if call() failed because of the REST server rather than because the record does not
+		 * exist, or ran out of time before it could ask.  Only meaningful once call() has returned.
+		 */
+		public boolean hadUpstreamError()
+		{
+			return upstreamError;
+		}
 
-		Response response = Request.Get(httpHost.toURI() + path).socketTimeout(1000).execute();
-		int code = response.returnResponse().getStatusLine().getStatusCode();
-		String content = response.returnContent().asString();
-		*/
+		/**
+		 * @return True once call() has sent a request to a REST server.  A fetch that ran out of time before
+		 * then spent it waiting on this process, e.g. for an api thread, and says nothing about the REST servers.
+		 */
+		public boolean wasSent()
+		{
+			return sent;
+		}
 
-		try
+		/**
+		 * Called by the ExecutorService when this object is submitted for execution.  Attempts to fetch records
+		 * for the hostname, for both IPv4 and IPv6, and returns those records in an DNSRecord object.
+		 * Requests the FQDN data object via URI with a version number /fqdn/1/$hostname
+		 * <p/>
+		 * If hedging is enabled and the REST server has not answered within the Hedger's delay, a second request
+		 * is sent to another REST server (or another connection to the same one).  Whichever gives a usable answer
+		 * first is returned and the other is aborted.
+		 *
+		 * @return DNSRecord populated with data, or null if no record was found.
+		 * @throws Exception If there are errors processing the http get, interruptions in execution, etc.
+		 */
+		@Override
+		public CompactRecordSet call() throws Exception
 		{
-			so.increment("RestClient.fetches_attempted");
+			so.increment("RestClient.calls");
 
-			String path = "/fqdn/" + API_VERSION + "/" + hostname;
+			if (hostname == null)
+			{
+				so.increment("RestClient.hostname_not_set_exception");
+				throw new NullPointerException("hostname has not been set, is null");
+			}
 
-			HttpGet httpGet = new HttpGet(path);
+			long start = System.nanoTime();
+			final long deadline = this.deadline != 0 ? this.deadline :
+				start + TimeUnit.MILLISECONDS.toNanos(config.rest_fetch_timeout);
 
-			if (log.isDebugEnabled())
+			if (deadline - start <= 0)
 			{
-				log.debug(instanceName + " requesting URI: " + httpGet.getURI());
+				//
+				// waited in the api pool for longer than the request had
+				//
+				so.increment("RestClient.deadline_exceeded.before_start");
+				upstreamError = true;
+				return null;
 			}
 
-			CloseableHttpResponse response = null;
-			int retryCount = 3;
+			TimerWheel.Timeout deadlineTimer = null;
 
-			do
+			/*
+			Using the Fluent HC wrapper for the apache http client:
+			does not support authentication, though.
+
+			Response response = Request.Get(httpHost.toURI() + path).socketTimeout(1000).execute();
+			int code = response.returnResponse().getStatusLine().getStatusCode();
+			String content = response.returnContent().asString();
+			*/
+
+			try
 			{
-				try
+				final String path = "/fqdn/" + API_VERSION + "/" + hostname;
+				final UpstreamEndpoint primary = endpoints.select();
+				final HttpGet primaryGet = new HttpGet(path);
+				final HedgedCall hedgedCall = hedger == null ? null : new HedgedCall();
+
+				final Aborter aborter = new Aborter(primaryGet, hedgedCall);
+				inFlight = aborter;
+
+				//
+				// the deadline is kept by aborting the requests when it passes, which makes whatever they are blocked
+				// on (a pooled connection, connecting, reading) give up right away
+				//
+				deadlineTimer = Now.getTimeService().schedule(new Runnable()
 				{
-					if (retryCount < 3)
+					public void run()
 					{
-						log.info("Making attempt " + (3 - retryCount + 1) + " to fetch records");
+						so.increment("RestClient.deadline_exceeded.in_flight");
+						aborter.abort(true);
 					}
+				}, TimeUnit.NANOSECONDS.toMillis(deadline - start));
+
+				if (hedgedCall == null)
+				{
+					Attempt attempt = fetch(primary, primaryGet, deadline, aborter);
 
-					response = httpClient.execute(httpHost, httpGet);
+					//
+					// an aborted request says nothing about whether the record exists
+					//
+					upstreamError = attempt.error || attempt.aborted;
+					return attempt.records;
 				}
-				catch (IllegalStateException ise)
+
+				Future<?> hedgeTimer = hedger.schedule(new Runnable()
 				{
-					if (ise.getMessage().equals("Connection is still allocated"))
+					public void run()
 					{
-						so.increment("RestClient.httpClientBugsCaught");
-						log.info(
-							"Caught 'Connection is still allocated' exception due to buggy Http client code, regenerating httpClient");
-						httpClient.close();
-						httpClient = generateHttpClient();
+						if (hedgedCall.isDone() || deadline - System.nanoTime() <= 0 || !hedger.tryAcquire() ||
+						    !hedgedCall.startHedge())
+						{
+							return;
+						}
+
+						HttpGet hedgeGet = new HttpGet(path);
+						hedgedCall.setHedgeGet(hedgeGet);
+
+						Attempt attempt = fetch(endpoints.select(primary), hedgeGet, deadline, aborter);
+
+						if (hedgedCall.offer(attempt))
+						{
+							so.increment("RestClient.hedges_won");
+							primaryGet.abort();
+						}
 					}
+				});
+
+				Attempt attempt = fetch(primary, primaryGet, deadline, aborter);
+
+				if (hedgeTimer != null)
+				{
+					hedgeTimer.cancel(false);
+				}
+
+				if (hedgedCall.offer(attempt))
+				{
+					hedgedCall.abortHedge();
+				}
+				else
+				{
+					//
+					// either the hedge already won, or this request failed while the hedge is still running
+					// and may yet give a usable answer
+					//
+					attempt = hedgedCall.awaitWinner(deadline);
 				}
-			}
-			while (response == null && retryCount-- > 0);
 
-			if (response == null)
+				if (attempt == null)
+				{
+					upstreamError = true;
+					return null;
+				}
+
+				upstreamError = attempt.error;
+				return attempt.records;
+			}
+			finally
 			{
-				log.error("Could not fetch records from Darkside, response is still null after 3 retries");
-				return null;
+				inFlight = null;
+
+				if (deadlineTimer != null)
+				{
+					deadlineTimer.cancel();
+				}
+
+				so.timing("RestClient.processing_time", (System.nanoTime() - start) / 1000);
 			}
+		}
 
-			int status = response.getStatusLine().getStatusCode();
+		/**
+		 * Fetches the records for the current hostname from one REST server.
+		 *
+		 * @param endpoint The REST server to ask
+		 * @param httpGet  The request for /fqdn/1/$hostname, which may be aborted from another thread
+		 * @param deadline The System.nanoTime() by which the answer is needed
+		 * @param aborter  What aborts the requests of this call(), which knows whether the deadline passed
+		 * @return The outcome of the request, never null.
+		 */
+		private Attempt fetch(final UpstreamEndpoint endpoint,
+				      final HttpGet httpGet,
+				      final long deadline,
+				      final Aborter aborter)
+		{
+			long start = System.nanoTime();
 
-			so.increment("RestClient.return_codes." + status);
+			Attempt attempt = new Attempt();
+			HttpEntity entity = null;
+			CloseableHttpResponse response = null;
+			boolean discardBody = false;
+			boolean requested = false;
+			endpoint.begin();
 
-			if (log.isDebugEnabled())
+			try
 			{
-				log.debug(instanceName + " query for fqdn " + hostname + " got return code: " + status);
-			}
+				so.increment("RestClient.fetches_attempted");
 
-			if (status != 200)
-			{
 				if (log.isDebugEnabled())
 				{
-					log.debug(instanceName + " returning null because we didn't get a 200 OK");
+					log.debug(instanceName + " requesting URI: " + httpGet.getURI() + " from " + endpoint);
 				}
 
-				so.increment("RestClient.returned_null.bad_status_code");
-				return null;
-			}
+				HttpClientContext context = null;
+				int retryCount = 3;
 
-			entity = response.getEntity();
+				do
+				{
+					try
+					{
+						long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+						if (remaining <= 0)
+						{
+							so.increment("RestClient.deadline_exceeded.before_request");
+							attempt.error = true;
+							return attempt;
+						}
+
+						if (retryCount < 3)
+						{
+							log.info("Making attempt " + (3 - retryCount + 1) + " to fetch records");
+						}
+
+						//
+						// waiting for a pooled connection, connecting and each read may only take what is left
+						//
+						httpGet.setConfig(endpoint.getRequestConfig((int) Math.min(remaining, Integer.MAX_VALUE)));
+						context = HttpClientContext.create();
+						requested = true;
+						sent = true;
+						response = endpoint.getHttpClient().execute(endpoint.getHttpHost(), httpGet, context);
+					}
+					catch (IllegalStateException ise)
+					{
+						so.increment("RestClient.httpClientBugsCaught");
+						log.info("Caught IllegalStateException from the http client, retrying: " + ise.getMessage());
+					}
+				}
+				while (response == null && retryCount-- > 0);
+
+				if (response == null)
+				{
+					log.error("Could not fetch records from Darkside, response is still null after 3 retries");
+					attempt.error = true;
+					return attempt;
+				}
+
+				int status = response.getStatusLine().getStatusCode();
+
+				endpoint.getAuthenticator().update(context, status == 401);
+				so.increment("RestClient.return_codes." + status);
 
-			if (entity == null)
-			{
 				if (log.isDebugEnabled())
 				{
-					log.debug(
-						instanceName + " query for " + hostname + " returned an empty content body, returning null");
+					log.debug(instanceName + " query for fqdn " + hostname + " got return code: " + status);
 				}
 
-				so.increment("RestClient.returned_null.empty_query_body");
-				return null;
-			}
+				if (status != 200)
+				{
+					if (log.isDebugEnabled())
+					{
+						log.debug(instanceName + " returning null because we didn't get a 200 OK");
+					}
 
-			//
-			// I thought it wise to put a safety valve in here.
-			// 8k is big enough, right?
-			//
-			long len = entity.getContentLength();
+					so.increment("RestClient.returned_null.bad_status_code");
+					attempt.error = status >= 500;
+					return attempt;
+				}
 
-			if (log.isDebugEnabled())
-			{
-				log.debug(instanceName + " got a response " + len + " bytes long");
-			}
+				entity = response.getEntity();
+
+				if (entity == null)
+				{
+					if (log.isDebugEnabled())
+					{
+						log.debug(
+							instanceName + " query for " + hostname +
+							" returned an empty content body, returning null");
+					}
+
+					so.increment("RestClient.returned_null.empty_query_body");
+					return attempt;
+				}
 
-			if (len == -1)
-			{
 				//
-				// no content-length header, do not check to see if the length is too long
+				// I thought it wise to put a safety valve in here.
+				// 8k is big enough, right?
 				//
+				long len = entity.getContentLength();
+
+				if (log.isDebugEnabled())
+				{
+					log.debug(instanceName + " got a response " + len + " bytes long");
+				}
+
+				if (len == -1)
+				{
+					//
+					// no content-length header, do not check to see if the length is too long
+					//
+				}
+				else if (len < 0 || len > MAX_REST_RESPONSE_LENGTH_ALLOWED)
+				{
+					if (log.isDebugEnabled())
+					{
+						log.debug(
+							instanceName + " query for " + hostname + " returned an empty or too large content body");
+					}
+
+					so.increment("RestClient.returned_null.content_too_long");
+					discardBody = true;
+					return attempt;
+				}
+
+				try
+				{
+					attempt.records = decoder.decode(entity.getContent(), Now.getNow());
+
+					so.increment("RestClient.valid_responses");
+
+					return attempt;
+				}
+				catch (RecordSetDecoder.TooLongException e)
+				{
+					if (log.isDebugEnabled())
+					{
+						log.debug(instanceName + " query for " + hostname + " returned a too large content body");
+					}
+
+					so.increment("RestClient.returned_null.content_too_long");
+					discardBody = true;
+					return attempt;
+				}
+				catch (JsonParseException jpe)
+				{
+					if (httpGet.isAborted())
+					{
+						attempt.aborted = true;
+						return attempt;
+					}
+
+					log.info(instanceName + " got a JsonParseException reading the reply", jpe);
+					so.increment("RestClient.output_parsing_exceptions.JsonParseExceptions");
+					so.increment("RestClient.returned_null.JsonParseExceptions");
+					return attempt;
+				}
+				catch (Exception e)
+				{
+					//
+					// aborted while the body was being read: there is no answer, not a bad one
+					//
+					if (httpGet.isAborted())
+					{
+						attempt.aborted = true;
+						return attempt;
+					}
+
+					log.info(instanceName + " got exception reading reply content body", e);
+					so.increment("RestClient.output_parsing_exceptions.generic");
+					so.increment("RestClient.returned_null.generic_exception_reading_output");
+					return attempt;
+				}
 			}
-			else if (len < 0 || len > MAX_REST_RESPONSE_LENGTH_ALLOWED)
+			catch (NoHttpResponseException e)
 			{
 				if (log.isDebugEnabled())
 				{
-					log.debug(
-						instanceName + " query for " + hostname + " returned an empty or too large content body");
+					log.debug(instanceName + " timed out fetching record for " + hostname);
 				}
 
-				so.increment("RestClient.returned_null.content_too_long");
-				return null;
+				so.increment("RestClient.exceptions.request_timeout");
+				so.increment("RestClient.returned_null.request_timeouts");
+				attempt.error = true;
+				return attempt;
 			}
+			catch (Exception e)
+			{
+				if (httpGet.isAborted())
+				{
+					//
+					// the other request of a hedged pair answered first, or the deadline passed; which is sorted out
+					// below
+					//
+					attempt.aborted = true;
+					return attempt;
+				}
 
-			try
+				log.info(
+					instanceName + " got exception fetching record for " + hostname + " from REST server: ", e);
+				so.increment("RestClient.exceptions.generic");
+				so.increment("RestClient.returned_null.generic_request_exception");
+				attempt.error = true;
+				return attempt;
+			}
+			finally
 			{
-				DNSRecordSet r = mapper.readValue(entity.getContent(), DNSRecordSet.class);
-				r.setTimestamp(Now.getNow());
+				//
+				// the connection goes back to the shared pool, so the body has to be read off even for
+				// non-200 answers.  a body that is too long is not worth reading, closing the response without
+				// reading it closes the connection instead.
+				//
+				if (response != null)
+				{
+					if (!discardBody)
+					{
+						EntityUtils.consumeQuietly(response.getEntity());
+					}
 
-				so.increment("RestClient.valid_responses");
+					try
+					{
+						response.close();
+					}
+					catch (IOException e)
+					{
+					}
+				}
+
+				long elapsed = System.nanoTime() - start;
+
+				if (!requested)
+				{
+					//
+					// the budget was spent before the request could be sent, e.g. waiting for an api thread,
+					// which says nothing about the REST server
+					//
+					endpoint.cancel();
+				}
+				else if (attempt.aborted && !aborter.isExpired())
+				{
+					//
+					// the other request of a hedged pair won, or the caller gave up for its own reasons
+					//
+					endpoint.cancel();
+				}
+				else if (attempt.aborted)
+				{
+					//
+					// still not done at the deadline: as bad as a failure, and as slow as the whole budget
+					//
+					so.increment("RestClient.aborted_at_deadline");
+					endpoint.end(elapsed, true);
+
+					if (hedger != null)
+					{
+						hedger.recordLatency(elapsed);
+					}
+				}
+				else
+				{
+					endpoint.end(elapsed, attempt.error);
 
-				return r;
+					if (hedger != null && !attempt.error)
+					{
+						hedger.recordLatency(elapsed);
+					}
+				}
 			}
-			catch (JsonParseException jpe)
+		}
+	}
+
+	/**
+	 * The outcome of one request to one REST server.
+	 */
+	private static class Attempt
+	{
+		/**
+		 * the records found, or null if there were none or the request failed
+		 */
+		CompactRecordSet records = null;
+
+		/**
+		 * true if the REST server did not give a usable answer
+		 */
+		boolean error = false;
+
+		/**
+		 * true if the request was aborted, because the other request of a hedged pair won or the deadline
+		 * passed
+		 */
+		boolean aborted = false;
+	}
+
+	/**
+	 * Aborts the requests of one call(), and remembers whether it was because the deadline passed, so that
+	 * fetch() can tell a REST server that was too slow from one whose request lost a hedged pair.
+	 */
+	private static class Aborter
+	{
+		private final HttpGet primaryGet;
+		private final HedgedCall hedgedCall;
+		private volatile boolean expired = false;
+
+		Aborter(final HttpGet primaryGet, final HedgedCall hedgedCall)
+		{
+			this.primaryGet = primaryGet;
+			this.hedgedCall = hedgedCall;
+		}
+
+		/**
+		 * @param deadlinePassed True if the requests are aborted because the call's deadline passed
+		 */
+		void abort(final boolean deadlinePassed)
+		{
+			if (deadlinePassed)
 			{
-				log.info(instanceName + " got a JsonParseException reading the reply", jpe);
-				so.increment("RestClient.output_parsing_exceptions.JsonParseExceptions");
-				so.increment("RestClient.returned_null.JsonParseExceptions");
-				return null;
+				expired = true;
 			}
-			catch (Exception e)
+
+			primaryGet.abort();
+
+			if (hedgedCall != null)
 			{
-				log.info(instanceName + " got exception reading reply content body", e);
-				so.increment("RestClient.output_parsing_exceptions.generic");
-				so.increment("RestClient.returned_null.generic_exception_reading_output");
-				return null;
+				hedgedCall.abortHedge();
 			}
 		}
-		catch (NoHttpResponseException e)
+
+		/**
+		 * @return True if the call's deadline passed while its requests were running.
+		 */
+		boolean isExpired()
 		{
-			if (log.isDebugEnabled())
+			return expired;
+		}
+	}
+
+	/**
+	 * Coordinates the primary and hedge requests of one call(): the first usable answer wins.  A failed
+	 * request only wins if the other one is not running anymore.
+	 */
+	private static class HedgedCall
+	{
+		private int running = 1;
+		private Attempt winner = null;
+		private HttpGet hedgeGet = null;
+
+		/**
+		 * @return True if a winner has been decided.
+		 */
+		synchronized boolean isDone()
+		{
+			return winner != null;
+		}
+
+		/**
+		 * @return True if the hedge should be sent, false if the primary request is already done.
+		 */
+		synchronized boolean startHedge()
+		{
+			if (winner != null)
 			{
-				log.debug(instanceName + " timed out fetching record for " + hostname);
+				return false;
 			}
 
-			so.increment("RestClient.exceptions.request_timeout");
-			so.increment("RestClient.returned_null.request_timeouts");
-			return null;
+			running++;
+			return true;
 		}
-		catch (Exception e)
+
+		synchronized void setHedgeGet(final HttpGet get)
+		{
+			hedgeGet = get;
+		}
+
+		synchronized void abortHedge()
+		{
+			if (hedgeGet != null)
+			{
+				hedgeGet.abort();
+			}
+		}
+
+		/**
+		 * @param attempt The outcome of one of the requests
+		 * @return True if this outcome is the winner.
+		 */
+		synchronized boolean offer(final Attempt attempt)
 		{
-			log.info(
-				instanceName + " got exception fetching record for " + hostname + " from REST server: ", e);
-			so.increment("RestClient.exceptions.generic");
-			so.increment("RestClient.returned_null.generic_request_exception");
-			return null;
+			running--;
+
+			if (winner != null || attempt.aborted)
+			{
+				return false;
+			}
+
+			if (attempt.error && running > 0)
+			{
+				return false;
+			}
+
+			winner = attempt;
+			notifyAll();
+			return true;
 		}
-		finally
+
+		/**
+		 * @param deadline The System.nanoTime() to stop waiting at
+		 */
+		synchronized Attempt awaitWinner(final long deadline) throws InterruptedException
 		{
-			EntityUtils.consume(entity);
-			so.timing("RestClient.processing_time", (System.nanoTime() - start) / 1000);
+			while (winner == null)
+			{
+				long remaining = deadline - System.nanoTime();
+
+				if (remaining <= 0)
+				{
+					return null;
+				}
+
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+
+			return winner;
 		}
 	}
 }
@@ -0,0 +1,467 @@
+package org.devnull.jedi;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.log4j.Logger;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * SharedRecordCache keeps fetched records in a memory-mapped file, normally under /dev/shm, so that every Jedi
+ * process on a host (pipe mode co-processes, or one per listener) answers from one copy of them, and a name is
+ * fetched from the REST server by whichever process asks for it first rather than by each of them.
+ * <p/>
+ * The file is a fixed-size open-addressing table of shared_cache_slots slots of shared_cache_slot_size bytes.  A
+ * name hashes to a slot and may be in it or the PROBES slots after it; a new name takes an empty one of those, or
+ * else the one fetched longest ago.  Each slot holds:
+ * <p/>
+ * seq (8) | hash (8) | timestamp (8) | checksum (8) | key length (4) | value length (4) | key | value
+ * <p/>
+ * where the value is the records in the REST server's JSON format, read back with a RecordSetDecoder.
+ * <p/>
+ * Readers don't lock.  seq is a sequence lock: a writer makes it odd before writing the slot and even again
+ * after, and a reader takes a copy of the slot and uses it only if seq was the same even number before and after,
+ * and the checksum, which covers everything but seq and hash, matches.  The buffer's plain accessors don't order
+ * memory the way a volatile would, so it is the checksum that rules out a torn copy; seq only saves decoding one.
+ * <p/>
+ * Writers hold an exclusive lock on the slot's bytes of the file while they write, which works across processes
+ * and between the threads of one.  A writer that finds the slot locked skips the put, since the entry is only a
+ * cache.  The lock is dropped by the OS when its process dies, so a slot left half written is simply written over
+ * by the next put.
+ * <p/>
+ * Nothing is ever removed: entries older than cache_timeout are ignored by Resolver and replaced by the next
+ * fetch.
+ */
+public class SharedRecordCache extends JsonBase
+{
+	private static final Logger log = Logger.getLogger(SharedRecordCache.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	/**
+	 * "JEDISHM2"
+	 */
+	private static final long MAGIC = 0x4a45444953484d32L;
+
+	static final int HEADER_SIZE = 64;
+	static final int SLOT_HEADER_SIZE = 40;
+	static final int PROBES = 8;
+
+	private static final int SEQ = 0;
+	private static final int HASH = 8;
+	private static final int TIMESTAMP = 16;
+	private static final int CHECKSUM = 24;
+	private static final int KEY_LENGTH = 32;
+	private static final int VALUE_LENGTH = 36;
+
+	private static final int READ_ATTEMPTS = 4;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int slots;
+	private final int slotSize;
+	private final int probes;
+	private final RecordSetDecoder decoder;
+
+	/**
+	 * Opens the file at shared_cache_path, creating it if it doesn't exist yet.
+	 *
+	 * @param config The JediConfig
+	 * @throws IOException              If the file can't be created or mapped.
+	 * @throws IllegalArgumentException If the file was created with a different number or size of slots, or the
+	 *                                  slot settings are out of range.
+	 */
+	public SharedRecordCache(final JediConfig config) throws IOException
+	{
+		if (config == null || config.shared_cache_path == null)
+		{
+			throw new IllegalArgumentException("config or shared_cache_path is null");
+		}
+
+		if (config.shared_cache_slots < 1 || config.shared_cache_slot_size < SLOT_HEADER_SIZE + 256 ||
+		    config.shared_cache_slot_size % 8 != 0 ||
+		    (long) config.shared_cache_slots * config.shared_cache_slot_size > Integer.MAX_VALUE - HEADER_SIZE)
+		{
+			throw new IllegalArgumentException("shared_cache_slots or shared_cache_slot_size is out of range");
+		}
+
+		this.slots = config.shared_cache_slots;
+		this.slotSize = config.shared_cache_slot_size;
+		this.probes = Math.min(PROBES, slots);
+		this.decoder = new RecordSetDecoder(slotSize);
+
+		long size = HEADER_SIZE + (long) slots * slotSize;
+
+		file = new RandomAccessFile(config.shared_cache_path, "rw");
+		channel = file.getChannel();
+
+		try
+		{
+			//
+			// only one process sets up a new file
+			//
+			FileLock lock = channel.lock();
+
+			try
+			{
+				if (file.length() == 0)
+				{
+					file.setLength(size);
+					file.seek(8);
+					file.writeInt(slots);
+					file.writeInt(slotSize);
+					file.seek(0);
+					file.writeLong(MAGIC);
+					log.info("created shared record cache " + config.shared_cache_path + " of " + size + " bytes");
+				}
+				else
+				{
+					file.seek(0);
+
+					if (file.length() != size || file.readLong() != MAGIC || file.readInt() != slots ||
+					    file.readInt() != slotSize)
+					{
+						throw new IllegalArgumentException(
+							config.shared_cache_path + " is not a shared record cache of " + slots + " slots of " +
+								slotSize + " bytes; remove it to start a new one");
+					}
+				}
+			}
+			finally
+			{
+				lock.release();
+			}
+
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Finds the records for a name.
+	 *
+	 * @param key The normalized name
+	 * @return The records, with the timestamp of when they were fetched, or null if they are not in the cache.
+	 */
+	public CompactRecordSet get(final HostnameKey key)
+	{
+		long hash = hash(key);
+		int first = index(hash);
+
+		for (int p = 0; p < probes; p++)
+		{
+			int slot = slotOffset((first + p) % slots);
+
+			for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++)
+			{
+				long seq = buffer.getLong(slot + SEQ);
+
+				if ((seq & 1) != 0)
+				{
+					so.increment("SHM.read_retries");
+					continue;
+				}
+
+				long slotHash = buffer.getLong(slot + HASH);
+
+				if (slotHash == 0)
+				{
+					//
+					// nothing is ever removed, so the name can't be further along
+					//
+					so.increment("SHM.misses");
+					return null;
+				}
+
+				if (slotHash != hash || !keyMatches(slot, key))
+				{
+					break;
+				}
+
+				long timestamp = buffer.getLong(slot + TIMESTAMP);
+				long checksum = buffer.getLong(slot + CHECKSUM);
+				int valueLength = buffer.getInt(slot + VALUE_LENGTH);
+
+				if (valueLength < 0 || SLOT_HEADER_SIZE + key.length() + valueLength > slotSize)
+				{
+					so.increment("SHM.read_retries");
+					continue;
+				}
+
+				byte[] value = new byte[valueLength];
+				ByteBuffer view = buffer.duplicate();
+				view.position(slot + SLOT_HEADER_SIZE + key.length());
+				view.get(value);
+
+				if (buffer.getLong(slot + SEQ) != seq || checksum(key, timestamp, value) != checksum)
+				{
+					so.increment("SHM.read_retries");
+					continue;
+				}
+
+				try
+				{
+					CompactRecordSet records = decoder.decode(new ByteArrayInputStream(value), timestamp);
+					so.increment("SHM.hits");
+					return records;
+				}
+				catch (IOException e)
+				{
+					so.increment("SHM.invalid_entries");
+					return null;
+				}
+			}
+		}
+
+		so.increment("SHM.misses");
+		return null;
+	}
+
+	/**
+	 * Keeps the records for a name, unless they don't fit in a slot or the slot is being written by someone else.
+	 *
+	 * @param key     The normalized name
+	 * @param records The records, with the timestamp of when they were fetched
+	 */
+	public void put(final HostnameKey key, final CompactRecordSet records)
+	{
+		byte[] value;
+
+		try
+		{
+			value = encode(records);
+		}
+		catch (IOException e)
+		{
+			so.increment("SHM.unencodable_entries");
+			return;
+		}
+
+		if (SLOT_HEADER_SIZE + key.length() + value.length > slotSize)
+		{
+			so.increment("SHM.too_large");
+			return;
+		}
+
+		long hash = hash(key);
+		int first = index(hash);
+		int slot = -1;
+		long oldest = Long.MAX_VALUE;
+
+		for (int p = 0; p < probes; p++)
+		{
+			int candidate = slotOffset((first + p) % slots);
+			long candidateHash = buffer.getLong(candidate + HASH);
+
+			if (candidateHash == 0 || (candidateHash == hash && keyMatches(candidate, key)))
+			{
+				slot = candidate;
+				break;
+			}
+
+			long timestamp = buffer.getLong(candidate + TIMESTAMP);
+
+			if (timestamp < oldest)
+			{
+				oldest = timestamp;
+				slot = candidate;
+			}
+		}
+
+		FileLock lock;
+
+		try
+		{
+			lock = channel.tryLock(slot, slotSize, false);
+		}
+		catch (OverlappingFileLockException e)
+		{
+			//
+			// another thread of this process is writing the slot
+			//
+			lock = null;
+		}
+		catch (IOException e)
+		{
+			so.increment("SHM.lock_errors");
+			return;
+		}
+
+		if (lock == null)
+		{
+			so.increment("SHM.put_collisions");
+			return;
+		}
+
+		try
+		{
+			//
+			// seq may already be odd if a process died writing this slot
+			//
+			long seq = buffer.getLong(slot + SEQ) | 1;
+			buffer.putLong(slot + SEQ, seq);
+
+			buffer.putLong(slot + HASH, hash);
+			buffer.putLong(slot + TIMESTAMP, records.getTimestamp());
+			buffer.putLong(slot + CHECKSUM, checksum(key, records.getTimestamp(), value));
+			buffer.putInt(slot + KEY_LENGTH, key.length());
+			buffer.putInt(slot + VALUE_LENGTH, value.length);
+
+			for (int i = 0; i < key.length(); i++)
+			{
+				buffer.put(slot + SLOT_HEADER_SIZE + i, key.byteAt(i));
+			}
+
+			ByteBuffer view = buffer.duplicate();
+			view.position(slot + SLOT_HEADER_SIZE + key.length());
+			view.put(value);
+
+			buffer.putLong(slot + SEQ, seq + 1);
+			so.increment("SHM.inserts");
+		}
+		finally
+		{
+			try
+			{
+				lock.release();
+			}
+			catch (IOException e)
+			{
+				so.increment("SHM.lock_errors");
+			}
+		}
+	}
+
+	/**
+	 * Closes the file.  The mapping stays valid until it is garbage collected, so gets still work, but puts can't
+	 * lock their slots and are skipped.
+	 */
+	public void close()
+	{
+		try
+		{
+			file.close();
+		}
+		catch (IOException e)
+		{
+			log.warn("Error closing shared record cache: " + e);
+		}
+	}
+
+	private int slotOffset(final int index)
+	{
+		return HEADER_SIZE + index * slotSize;
+	}
+
+	private int index(final long hash)
+	{
+		return (int) ((hash >>> 1) % slots);
+	}
+
+	private boolean keyMatches(final int slot, final HostnameKey key)
+	{
+		if (buffer.getInt(slot + KEY_LENGTH) != key.length())
+		{
+			return false;
+		}
+
+		for (int i = 0; i < key.length(); i++)
+		{
+			if (buffer.get(slot + SLOT_HEADER_SIZE + i) != key.byteAt(i))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * FNV-1a of the name, never 0, which marks an empty slot.
+	 */
+	private static long hash(final HostnameKey key)
+	{
+		long h = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < key.length(); i++)
+		{
+			h ^= key.byteAt(i) & 0xff;
+			h *= 0x100000001b3L;
+		}
+
+		return h == 0 ? 1 : h;
+	}
+
+	private static long checksum(final HostnameKey key, final long timestamp, final byte[] value)
+	{
+		long h = hash(key) ^ timestamp;
+		h *= 0x100000001b3L;
+
+		for (byte b : value)
+		{
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+
+		return h;
+	}
+
+	/**
+	 * Writes the records the way the REST server sends them:
+	 * <p/>
+	 * {"ttl":100,"records":[{"type":"A","address":"1.1.1.1"},{"type":"MX","priority":10,"address":"mail.bar.com"}]}
+	 */
+	private static byte[] encode(final CompactRecordSet records) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		JsonGenerator generator = mapper.getFactory().createGenerator(out);
+
+		generator.writeStartObject();
+		generator.writeNumberField("ttl", records.getTTL());
+
+		if (records.getWildcard() != null)
+		{
+			generator.writeStringField("fqdn", records.getWildcard());
+		}
+
+		generator.writeArrayFieldStart("records");
+
+		for (int i = 0; i < records.size(); i++)
+		{
+			generator.writeStartObject();
+			generator.writeStringField("type", records.getType(i));
+
+			if ("MX".equals(records.getType(i)))
+			{
+				generator.writeNumberField("priority", records.getPriority(i));
+			}
+
+			generator.writeStringField("address", records.getContent(i));
+			generator.writeEndObject();
+		}
+
+		generator.writeEndArray();
+		generator.writeEndObject();
+		generator.close();
+
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,137 @@
+package org.devnull.jedi;
+
+import org.apache.log4j.Logger;
+
+/**
+ * TimeService keeps the time that is read too often to ask the system for each time, like when deciding if a
+ * record is stale, and runs timeouts on a TimerWheel, both from one daemon thread that wakes up every tick.
+ * <p/>
+ * Its Clock can be replaced, and its thread left unstarted, so that tests move the time along with tick()
+ * themselves.
+ */
+public class TimeService
+{
+	private static final Logger log = Logger.getLogger(TimeService.class);
+
+	/**
+	 * how many ticks a turn of the wheel is; timeouts further away than that wait out a turn for each
+	 */
+	private static final int WHEEL_TICKS = 512;
+
+	private final Clock clock;
+	private final long tickMillis;
+	private final TimerWheel wheel;
+	private volatile long now;
+	private volatile Thread thread = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param clock      Where to read the time from
+	 * @param tickMillis How often to read it, and to run timeouts that are due, in milliseconds
+	 */
+	public TimeService(final Clock clock, final long tickMillis)
+	{
+		if (clock == null || tickMillis <= 0)
+		{
+			throw new IllegalArgumentException("clock is null or tickMillis is not positive");
+		}
+
+		this.clock = clock;
+		this.tickMillis = tickMillis;
+		this.now = clock.currentTimeMillis();
+		this.wheel = new TimerWheel(tickMillis, WHEEL_TICKS, clock.monotonicMillis());
+	}
+
+	/**
+	 * Starts the thread that ticks.
+	 */
+	public synchronized void start()
+	{
+		if (thread != null)
+		{
+			return;
+		}
+
+		thread = new Thread("TimeService")
+		{
+			public void run()
+			{
+				while (!isInterrupted())
+				{
+					try
+					{
+						Thread.sleep(tickMillis);
+					}
+					catch (InterruptedException e)
+					{
+						break;
+					}
+
+					tick();
+				}
+			}
+		};
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the thread that ticks.  Timeouts that are not due yet are never run.
+	 */
+	public synchronized void shutdown()
+	{
+		if (thread != null)
+		{
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Reads the clock and runs the timeouts that are due.  Called every tick by the thread, or by tests.
+	 */
+	public void tick()
+	{
+		now = clock.currentTimeMillis();
+		//
+		// the wheel turns by the monotonic time, so that a step of the wall clock neither runs timeouts early nor
+		// holds them up
+		//
+		wheel.expire(clock.monotonicMillis());
+	}
+
+	/**
+	 * @return The wall clock time in milliseconds as of the last tick.
+	 */
+	public long now()
+	{
+		return now;
+	}
+
+	/**
+	 * @return How often the time is read, in milliseconds.
+	 */
+	public long getTickMillis()
+	{
+		return tickMillis;
+	}
+
+	/**
+	 * Runs a task on the TimeService's thread after a delay.  The task must be quick, it holds up the clock.
+	 *
+	 * @param task        What to run
+	 * @param delayMillis How long from now to run it, at most a tick late
+	 * @return A Timeout to cancel the task with.
+	 */
+	public TimerWheel.Timeout schedule(final Runnable task, final long delayMillis)
+	{
+		if (thread == null && log.isDebugEnabled())
+		{
+			log.debug("timeout scheduled on a TimeService that is not ticking");
+		}
+
+		return wheel.schedule(task, clock.monotonicMillis() + delayMillis);
+	}
+}
@@ -0,0 +1,210 @@
+package org.devnull.jedi;
+
+import org.apache.log4j.Logger;
+import org.devnull.statsd_client.StatsObject;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TimerWheel runs tasks after a delay, for the many short timeouts that are nearly always cancelled before they
+ * are due, like a fetch's deadline.  Scheduling and cancelling are constant time and don't take a lock, where a
+ * ScheduledThreadPoolExecutor keeps a heap under one.
+ * <p/>
+ * Timeouts are hashed into a ring of buckets by the tick they are due in; each tick, expire() runs the due ones in
+ * the next bucket and leaves those due in a later turn of the wheel.  A task is never run early, and at most a tick
+ * late, on the thread that calls expire(), so tasks must be quick: abort a request, hand work to another thread.
+ * <p/>
+ * schedule() and cancel() may be called from any thread; expire() from one thread only.  The times given to the
+ * constructor, schedule() and expire() should come from a monotonic clock, so that a step of the wall clock does not
+ * run every timeout at once.
+ */
+public class TimerWheel
+{
+	private static final Logger log = Logger.getLogger(TimerWheel.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	private final long tickMillis;
+	private final long start;
+	private final int mask;
+	private final ArrayDeque<Timeout>[] buckets;
+
+	/**
+	 * timeouts scheduled since the last expire(), to be put in their buckets by the next
+	 */
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * the number of ticks processed, only used by the thread calling expire()
+	 */
+	private long tick = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param tickMillis How many milliseconds a tick is
+	 * @param ticks      How many ticks a turn of the wheel is, rounded up to a power of two
+	 * @param start      The time in milliseconds the wheel starts turning at
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimerWheel(final long tickMillis, final int ticks, final long start)
+	{
+		if (tickMillis <= 0 || ticks <= 0)
+		{
+			throw new IllegalArgumentException("tickMillis and ticks must be positive");
+		}
+
+		int size = Integer.highestOneBit(ticks);
+
+		if (size < ticks)
+		{
+			size <<= 1;
+		}
+
+		this.tickMillis = tickMillis;
+		this.start = start;
+		this.mask = size - 1;
+		this.buckets = new ArrayDeque[size];
+
+		for (int i = 0; i < size; i++)
+		{
+			buckets[i] = new ArrayDeque<Timeout>();
+		}
+	}
+
+	/**
+	 * Schedules a task.
+	 *
+	 * @param task     What to run
+	 * @param deadline The time in milliseconds to run it at
+	 * @return A Timeout to cancel the task with.
+	 */
+	public Timeout schedule(final Runnable task, final long deadline)
+	{
+		Timeout timeout = new Timeout(task, deadline);
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Runs the tasks that are due.
+	 *
+	 * @param now The time in milliseconds
+	 */
+	public void expire(final long now)
+	{
+		Timeout timeout;
+
+		while ((timeout = scheduled.poll()) != null)
+		{
+			if (timeout.state.get() != Timeout.PENDING)
+			{
+				continue;
+			}
+
+			if (timeout.deadline <= now)
+			{
+				timeout.expire();
+				continue;
+			}
+
+			//
+			// the first tick at or after the deadline, or this one if it was due between ticks
+			//
+			long due = Math.max(tick, (timeout.deadline - start + tickMillis - 1) / tickMillis);
+
+			timeout.rounds = (due - tick) / buckets.length;
+			buckets[(int) (due & mask)].add(timeout);
+		}
+
+		while (start + tick * tickMillis <= now)
+		{
+			Iterator<Timeout> i = buckets[(int) (tick & mask)].iterator();
+
+			while (i.hasNext())
+			{
+				timeout = i.next();
+
+				if (timeout.state.get() == Timeout.CANCELLED)
+				{
+					i.remove();
+				}
+				else if (timeout.rounds > 0)
+				{
+					timeout.rounds--;
+				}
+				else
+				{
+					i.remove();
+					timeout.expire();
+				}
+			}
+
+			tick++;
+		}
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	public static final class Timeout
+	{
+		private static final int PENDING = 0;
+		private static final int EXPIRED = 1;
+		private static final int CANCELLED = 2;
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		/**
+		 * turns of the wheel left before it is due, only used by the thread calling expire()
+		 */
+		private long rounds;
+
+		private Timeout(final Runnable task, final long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task if it has not been run yet.
+		 *
+		 * @return True if the task will not be run, false if it has been already.
+		 */
+		public boolean cancel()
+		{
+			return state.compareAndSet(PENDING, CANCELLED) || state.get() == CANCELLED;
+		}
+
+		/**
+		 * @return True if the task has been run, or is running.
+		 */
+		public boolean isExpired()
+		{
+			return state.get() == EXPIRED;
+		}
+
+		private void expire()
+		{
+			if (!state.compareAndSet(PENDING, EXPIRED))
+			{
+				return;
+			}
+
+			try
+			{
+				task.run();
+			}
+			catch (Throwable t)
+			{
+				so.increment("TimerWheel.task_exceptions");
+				log.warn("exception in timer task: " + t, t);
+			}
+		}
+	}
+}
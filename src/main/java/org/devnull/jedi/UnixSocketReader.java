@@ -0,0 +1,99 @@
+package org.devnull.jedi;
+
+import org.newsclub.net.unix.AFUNIXSocket;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * UnixSocketReader decodes what PowerDNS sends on a UNIX socket, in place of an InputStreamReader on the socket's
+ * InputStream.  The bytes are read straight into a direct ByteBuffer, where the InputStream copies each read
+ * through a Java array on its way to the decoder.
+ */
+class UnixSocketReader extends Reader
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 8192;
+
+	private final AFUNIXSocket socket;
+	private final CharsetDecoder decoder = UTF8.newDecoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/**
+	 * bytes read and not yet decoded, between position and limit
+	 */
+	private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private boolean eof = false;
+	private boolean flushed = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param socket PowerDNS's connection
+	 */
+	UnixSocketReader(final AFUNIXSocket socket)
+	{
+		this.socket = socket;
+		in.flip();
+	}
+
+	@Override
+	public int read(final char[] cbuf, final int off, final int len) throws IOException
+	{
+		if (len == 0)
+		{
+			return 0;
+		}
+
+		CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+
+		while (true)
+		{
+			if (!eof)
+			{
+				decoder.decode(in, out, false);
+			}
+			else if (!flushed)
+			{
+				//
+				// a sequence cut off by the end of the stream is decoded as a replacement character
+				//
+				flushed = decoder.decode(in, out, true).isUnderflow() && decoder.flush(out).isUnderflow();
+			}
+
+			if (out.position() > off)
+			{
+				return out.position() - off;
+			}
+
+			if (eof)
+			{
+				return -1;
+			}
+
+			//
+			// blocks until PowerDNS sends something, or the socket's timeout passes
+			//
+			in.compact();
+			int n = socket.read(in);
+			in.flip();
+
+			if (n < 0)
+			{
+				eof = true;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		socket.close();
+	}
+}
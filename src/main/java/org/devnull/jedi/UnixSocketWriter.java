@@ -0,0 +1,87 @@
+package org.devnull.jedi;
+
+import org.newsclub.net.unix.AFUNIXSocket;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * UnixSocketWriter encodes answers for PowerDNS on a UNIX socket, in place of an OutputStreamWriter on the socket's
+ * OutputStream.  The answer is encoded into a direct ByteBuffer and written from there, where the OutputStream
+ * copies it through a Java array.
+ */
+class UnixSocketWriter extends Writer
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 8192;
+
+	private final AFUNIXSocket socket;
+	private final CharsetEncoder encoder = UTF8.newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	/**
+	 * the first half of a surrogate pair that ended the last write, encoded with the rest of the pair in the next
+	 */
+	private final CharBuffer pending = CharBuffer.allocate(2);
+
+	/**
+	 * Constructor
+	 *
+	 * @param socket PowerDNS's connection
+	 */
+	UnixSocketWriter(final AFUNIXSocket socket)
+	{
+		this.socket = socket;
+	}
+
+	@Override
+	public void write(final char[] cbuf, final int off, final int len) throws IOException
+	{
+		CharBuffer in = CharBuffer.wrap(cbuf, off, len);
+
+		if (pending.position() > 0 && in.hasRemaining())
+		{
+			pending.put(in.get());
+			pending.flip();
+			encode(pending);
+			pending.clear();
+		}
+
+		encode(in);
+
+		if (in.hasRemaining())
+		{
+			pending.put(in.get());
+		}
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		out.flip();
+		socket.write(out);
+		out.clear();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		socket.close();
+	}
+
+	private void encode(final CharBuffer in) throws IOException
+	{
+		while (encoder.encode(in, out, false) == CoderResult.OVERFLOW)
+		{
+			flush();
+		}
+	}
+}
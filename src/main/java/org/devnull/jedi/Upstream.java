@@ -0,0 +1,225 @@
+package org.devnull.jedi;
+
+import org.apache.log4j.Logger;
+import org.devnull.jedi.configs.JediConfig;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Upstream holds the state that all connection handlers share for fetching records from the REST servers: the
+ * servers themselves with their connection pools, and the ExecutorService that RestClients are submitted to, or
+ * when inline_fetch_enabled is set the permits that handlers take to fetch on their own threads.
+ * <p/>
+ * The rest is optional: the adaptive limit on how many fetches may be outstanding at once, the circuit breaker
+ * that stops them while the REST server is unhealthy, the Hedger that sends hedged requests for slow fetches,
+ * the NameFilterLoader that knows which names the REST server has no records for, the ClientRateLimiter that
+ * keeps any one client from making too many lookups, and the SharedRecordCache that the other Jedi processes on
+ * the host fetch into as well.
+ */
+public class Upstream
+{
+	private static final Logger log = Logger.getLogger(Upstream.class);
+
+	private final ExecutorService apiPool;
+	private final Semaphore fetchPermits;
+	private final UpstreamEndpoints endpoints;
+	private final ConcurrencyLimiter limiter;
+	private final CircuitBreaker breaker;
+	private final Hedger hedger;
+	private final NameFilterLoader nameFilterLoader;
+	private final ClientRateLimiter rateLimiter;
+	private final SharedRecordCache sharedCache;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config  The JediConfig
+	 * @param apiPool The ExecutorService used to execute RestClient requests, or null if inline_fetch_enabled
+	 */
+	public Upstream(final JediConfig config, final ExecutorService apiPool)
+	{
+		if (config == null)
+		{
+			throw new IllegalArgumentException("config argument is null");
+		}
+
+		this.apiPool = apiPool;
+		this.endpoints = new UpstreamEndpoints(config);
+
+		if (config.inline_fetch_enabled)
+		{
+			fetchPermits = new Semaphore(config.max_rest_client_threads);
+		}
+		else
+		{
+			fetchPermits = null;
+		}
+
+		if (config.adaptive_concurrency_enabled)
+		{
+			limiter = new ConcurrencyLimiter(config);
+		}
+		else
+		{
+			limiter = null;
+		}
+
+		if (config.circuit_breaker_enabled)
+		{
+			breaker = new CircuitBreaker(config);
+		}
+		else
+		{
+			breaker = null;
+		}
+
+		if (config.hedging_enabled)
+		{
+			hedger = new Hedger(config);
+		}
+		else
+		{
+			hedger = null;
+		}
+
+		if (config.existence_filter_enabled)
+		{
+			nameFilterLoader = new NameFilterLoader(config, endpoints);
+			nameFilterLoader.start();
+		}
+		else
+		{
+			nameFilterLoader = null;
+		}
+
+		if (config.rate_limit_enabled)
+		{
+			rateLimiter = new ClientRateLimiter(config);
+		}
+		else
+		{
+			rateLimiter = null;
+		}
+
+		SharedRecordCache shared = null;
+
+		if (config.shared_cache_path != null)
+		{
+			//
+			// without it every process simply fetches for itself, so this is not worth refusing to start over
+			//
+			try
+			{
+				shared = new SharedRecordCache(config);
+			}
+			catch (Exception e)
+			{
+				log.error("Unable to open shared record cache " + config.shared_cache_path + ", not using one: " + e);
+			}
+		}
+
+		sharedCache = shared;
+	}
+
+	/**
+	 * @return The ExecutorService used to execute RestClient requests
+	 */
+	public ExecutorService getApiPool()
+	{
+		return apiPool;
+	}
+
+	/**
+	 * @return The permits to take before fetching on the calling thread, or null if inline fetches are not enabled.
+	 */
+	public Semaphore getFetchPermits()
+	{
+		return fetchPermits;
+	}
+
+	/**
+	 * @return The REST servers to fetch from
+	 */
+	public UpstreamEndpoints getEndpoints()
+	{
+		return endpoints;
+	}
+
+	/**
+	 * @return The adaptive ConcurrencyLimiter, or null if adaptive concurrency is not enabled.
+	 */
+	public ConcurrencyLimiter getLimiter()
+	{
+		return limiter;
+	}
+
+	/**
+	 * @return The CircuitBreaker, or null if the circuit breaker is not enabled.
+	 */
+	public CircuitBreaker getBreaker()
+	{
+		return breaker;
+	}
+
+	/**
+	 * @return The Hedger, or null if hedged requests are not enabled.
+	 */
+	public Hedger getHedger()
+	{
+		return hedger;
+	}
+
+	/**
+	 * @return The NameFilterLoader, or null if the existence filter is not enabled.
+	 */
+	public NameFilterLoader getNameFilterLoader()
+	{
+		return nameFilterLoader;
+	}
+
+	/**
+	 * @return The ClientRateLimiter, or null if rate limiting is not enabled.
+	 */
+	public ClientRateLimiter getRateLimiter()
+	{
+		return rateLimiter;
+	}
+
+	/**
+	 * @return The SharedRecordCache, or null if there is none.
+	 */
+	public SharedRecordCache getSharedCache()
+	{
+		return sharedCache;
+	}
+
+	/**
+	 * Stops the hedge, name loading and rate limit report threads, closes the connection pools to the REST servers
+	 * and the shared record cache.
+	 */
+	public void close()
+	{
+		if (hedger != null)
+		{
+			hedger.shutdown();
+		}
+
+		if (nameFilterLoader != null)
+		{
+			nameFilterLoader.shutdown();
+		}
+
+		if (rateLimiter != null)
+		{
+			rateLimiter.shutdown();
+		}
+
+		if (sharedCache != null)
+		{
+			sharedCache.close();
+		}
+
+		endpoints.close();
+	}
+}
@@ -0,0 +1,279 @@
+package org.devnull.jedi;
+
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.AuthSchemes;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.log4j.Logger;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UpstreamEndpoint is one REST server that records can be fetched from.  It owns the pooled http client used to
+ * talk to that server, and keeps the passive health information used by UpstreamEndpoints to pick a server for
+ * each fetch: the number of outstanding fetches, an exponentially weighted moving average of fetch latency, and
+ * the number of failures in a row.
+ */
+public class UpstreamEndpoint
+{
+	private static final Logger log = Logger.getLogger(UpstreamEndpoint.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	/**
+	 * How much weight the latest sample gets in the latency moving average.
+	 */
+	private static final double EWMA_ALPHA = 0.2;
+
+	private final String hostname;
+	private final int port;
+	private final String statsName;
+	private final HttpHost httpHost;
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	private final DigestAuthenticator authenticator;
+	private final RequestConfig requestConfig;
+	private final int ejectionFailures;
+	private final long ejectionTime;
+	private final long failurePenaltyNanos;
+	private final Clock clock;
+
+	private final AtomicInteger outstanding = new AtomicInteger(0);
+	private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+	private volatile double ewmaNanos = 0;
+	/**
+	 * the clock's monotonic time, in milliseconds, until which this REST server is not picked
+	 */
+	private volatile long ejectedUntil = Long.MIN_VALUE;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config   The JediConfig holding the REST server credentials, timeouts and ejection settings
+	 * @param hostname The hostname of this REST server
+	 * @param port     The port of this REST server
+	 * @param clock    Where to read the time from, to time ejections by
+	 */
+	public UpstreamEndpoint(final JediConfig config, final String hostname, final int port, final Clock clock)
+	{
+		if (hostname == null || clock == null || config.rest_username == null || config.rest_password == null)
+		{
+			throw new IllegalArgumentException("hostname, clock, rest_username, or rest_password is null");
+		}
+
+		this.hostname = hostname;
+		this.port = port;
+		this.statsName = (hostname + "_" + port).replace('.', '_');
+		this.httpHost = new HttpHost(hostname, port);
+		this.ejectionFailures = Math.max(1, config.rest_server_ejection_failures);
+		this.ejectionTime = config.rest_server_ejection_time;
+		this.failurePenaltyNanos = config.rest_fetch_timeout * 1000000L;
+		this.clock = clock;
+
+		CredentialsProvider credsProvider = new BasicCredentialsProvider();
+
+		credsProvider.setCredentials(
+			new AuthScope(hostname, port),
+			new UsernamePasswordCredentials(config.rest_username, config.rest_password)
+		);
+
+		authenticator = new DigestAuthenticator(config.rest_username, config.rest_password);
+
+		int timeout = (int) config.rest_fetch_timeout;
+
+		requestConfig = RequestConfig.custom()
+							   .setTargetPreferredAuthSchemes(Arrays.asList(AuthSchemes.DIGEST))
+							   .setSocketTimeout(timeout)
+							   .setConnectTimeout(timeout)
+							   .setConnectionRequestTimeout(timeout)
+							   .build();
+
+		//
+		// one pool per REST server, each big enough for every api pool thread to be talking to it at once
+		//
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(Math.max(1, config.max_rest_client_threads));
+		connectionManager.setDefaultMaxPerRoute(Math.max(1, config.max_rest_client_threads));
+
+		httpClient = HttpClients.custom()
+					.setConnectionManager(connectionManager)
+					.setDefaultCredentialsProvider(credsProvider)
+					.disableAutomaticRetries()
+					.setDefaultRequestConfig(requestConfig)
+					.addInterceptorLast(authenticator)
+					.build();
+	}
+
+	public String getHostname()
+	{
+		return hostname;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	public HttpHost getHttpHost()
+	{
+		return httpHost;
+	}
+
+	/**
+	 * @return The pooled http client for talking to this REST server.  It is shared, do not close it.
+	 */
+	public CloseableHttpClient getHttpClient()
+	{
+		return httpClient;
+	}
+
+	/**
+	 * @param timeoutMillis What is left of the request's budget
+	 * @return The request config for a request to this REST server, with its connection request, connect and
+	 * socket timeouts cut down to the time left.
+	 */
+	public RequestConfig getRequestConfig(final int timeoutMillis)
+	{
+		return RequestConfig.copy(requestConfig)
+				    .setSocketTimeout(timeoutMillis)
+				    .setConnectTimeout(timeoutMillis)
+				    .setConnectionRequestTimeout(timeoutMillis)
+				    .build();
+	}
+
+	/**
+	 * @return The cached digest challenge state used to authenticate requests to this REST server up front.
+	 */
+	public DigestAuthenticator getAuthenticator()
+	{
+		return authenticator;
+	}
+
+	/**
+	 * @return The number of fetches currently outstanding against this REST server.
+	 */
+	public int getOutstanding()
+	{
+		return outstanding.get();
+	}
+
+	/**
+	 * @return The moving average of fetch latency against this REST server, in nanoseconds.
+	 */
+	public double getEwmaNanos()
+	{
+		return ewmaNanos;
+	}
+
+	/**
+	 * @return True if this REST server has failed too often lately and should not be picked.
+	 */
+	public boolean isEjected()
+	{
+		return isEjected(clock.monotonicMillis());
+	}
+
+	/**
+	 * @param now The clock's monotonic time in milliseconds.
+	 * @return True if this REST server has failed too often lately and should not be picked.
+	 */
+	boolean isEjected(final long now)
+	{
+		return ejectedUntil > now;
+	}
+
+	long getEjectedUntil()
+	{
+		return ejectedUntil;
+	}
+
+	/**
+	 * Called when a fetch is sent to this REST server.
+	 */
+	public void begin()
+	{
+		outstanding.incrementAndGet();
+	}
+
+	/**
+	 * Called when a fetch sent to this REST server was aborted by us, so it says nothing about the server.
+	 */
+	public void cancel()
+	{
+		outstanding.decrementAndGet();
+	}
+
+	/**
+	 * Called when a fetch sent to this REST server is done.
+	 *
+	 * @param rttNanos How long the fetch took, in nanoseconds.
+	 * @param failed   True if the REST server did not give a usable answer (no response, 5xx, exception).
+	 */
+	public void end(final long rttNanos, final boolean failed)
+	{
+		outstanding.decrementAndGet();
+
+		//
+		// a failure costs as much as a full timeout so that load moves away from this server even before it
+		// is ejected.
+		//
+		long sample = failed ? Math.max(rttNanos, failurePenaltyNanos) : rttNanos;
+
+		synchronized (this)
+		{
+			if (ewmaNanos == 0)
+			{
+				ewmaNanos = sample;
+			}
+			else
+			{
+				ewmaNanos += EWMA_ALPHA * (sample - ewmaNanos);
+			}
+		}
+
+		if (!failed)
+		{
+			consecutiveFailures.set(0);
+			return;
+		}
+
+		if (consecutiveFailures.incrementAndGet() >= ejectionFailures)
+		{
+			consecutiveFailures.set(0);
+			ejectedUntil = clock.monotonicMillis() + ejectionTime;
+			so.increment("UpstreamEndpoint." + statsName + ".ejections");
+			log.warn("ejecting REST server " + hostname + ":" + port + " for " + ejectionTime +
+				"ms after " + ejectionFailures + " failures in a row");
+		}
+	}
+
+	/**
+	 * Closes the connection pool for this REST server.
+	 */
+	public void close()
+	{
+		try
+		{
+			httpClient.close();
+		}
+		catch (IOException e)
+		{
+			log.warn("error closing http client for " + hostname + ":" + port, e);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return hostname + ":" + port;
+	}
+}
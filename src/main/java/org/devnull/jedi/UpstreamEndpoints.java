@@ -0,0 +1,208 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UpstreamEndpoints is the set of REST servers that records can be fetched from, and picks one of them for each
+ * fetch so that Jedi routes around a slow or failing server instead of timing out on it.
+ * <p/>
+ * The servers come from rest_servers, or from rest_server_hostname and rest_server_port when that is not set.
+ * Selection is done according to rest_server_selection:
+ * <p/>
+ * least_outstanding	the server with the fewest fetches currently in flight
+ * ewma			the server with the lowest moving average latency, weighted by the fetches in flight
+ * <p/>
+ * Servers that failed rest_server_ejection_failures times in a row are skipped for rest_server_ejection_time
+ * milliseconds.  If every server is ejected, the one that is due back soonest is used anyway.
+ */
+public class UpstreamEndpoints
+{
+	private static final StatsObject so = StatsObject.getInstance();
+
+	public static final String SELECTION_LEAST_OUTSTANDING = "least_outstanding";
+	public static final String SELECTION_EWMA = "ewma";
+
+	private final List<UpstreamEndpoint> endpoints;
+	private final boolean useEwma;
+	private final Clock clock;
+
+	/**
+	 * rotates the starting point of each scan so that ties are spread over the servers
+	 */
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	/**
+	 * Constructor
+	 *
+	 * @param config The JediConfig listing the REST servers.
+	 */
+	public UpstreamEndpoints(final JediConfig config)
+	{
+		this(config, Clock.SYSTEM);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param config The JediConfig listing the REST servers.
+	 * @param clock  Where to read the time from, to time ejections by
+	 */
+	public UpstreamEndpoints(final JediConfig config, final Clock clock)
+	{
+		if (config == null || clock == null)
+		{
+			throw new IllegalArgumentException("config or clock argument is null");
+		}
+
+		List<UpstreamEndpoint> list = new ArrayList<UpstreamEndpoint>();
+
+		if (config.rest_servers == null || config.rest_servers.isEmpty())
+		{
+			if (config.rest_server_hostname == null)
+			{
+				throw new IllegalArgumentException("rest_server_hostname is null and no rest_servers are configured");
+			}
+
+			list.add(new UpstreamEndpoint(config, config.rest_server_hostname, config.rest_server_port, clock));
+		}
+		else
+		{
+			for (String server : config.rest_servers)
+			{
+				int colon = server.lastIndexOf(':');
+
+				if (colon <= 0 || colon == server.length() - 1)
+				{
+					throw new IllegalArgumentException("rest_servers entry is not in host:port form: " + server);
+				}
+
+				list.add(new UpstreamEndpoint(config, server.substring(0, colon),
+							      Integer.parseInt(server.substring(colon + 1)), clock));
+			}
+		}
+
+		this.endpoints = Collections.unmodifiableList(list);
+		this.clock = clock;
+
+		if (SELECTION_EWMA.equals(config.rest_server_selection))
+		{
+			useEwma = true;
+		}
+		else if (SELECTION_LEAST_OUTSTANDING.equals(config.rest_server_selection))
+		{
+			useEwma = false;
+		}
+		else
+		{
+			throw new IllegalArgumentException("unknown rest_server_selection: " + config.rest_server_selection);
+		}
+	}
+
+	/**
+	 * @return All of the configured REST servers.
+	 */
+	public List<UpstreamEndpoint> getEndpoints()
+	{
+		return endpoints;
+	}
+
+	/**
+	 * Picks the REST server the next fetch should go to.
+	 *
+	 * @return An UpstreamEndpoint, never null.
+	 */
+	public UpstreamEndpoint select()
+	{
+		return select(null);
+	}
+
+	/**
+	 * Picks the REST server the next fetch should go to, avoiding the given one if there is any alternative.
+	 *
+	 * @param avoid A server not to pick, e.g. because a fetch for the same name is outstanding against it.
+	 * @return An UpstreamEndpoint, never null.
+	 */
+	public UpstreamEndpoint select(final UpstreamEndpoint avoid)
+	{
+		int size = endpoints.size();
+
+		if (size == 1)
+		{
+			return endpoints.get(0);
+		}
+
+		long now = clock.monotonicMillis();
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+		UpstreamEndpoint best = null;
+		double bestScore = Double.MAX_VALUE;
+		UpstreamEndpoint soonestBack = null;
+
+		for (int i = 0; i < size; i++)
+		{
+			UpstreamEndpoint e = endpoints.get((start + i) % size);
+
+			if (e == avoid)
+			{
+				continue;
+			}
+
+			if (e.isEjected(now))
+			{
+				if (soonestBack == null || e.getEjectedUntil() < soonestBack.getEjectedUntil())
+				{
+					soonestBack = e;
+				}
+
+				continue;
+			}
+
+			double score;
+
+			if (useEwma)
+			{
+				score = e.getEwmaNanos() * (e.getOutstanding() + 1);
+			}
+			else
+			{
+				score = e.getOutstanding();
+			}
+
+			if (score < bestScore)
+			{
+				best = e;
+				bestScore = score;
+			}
+		}
+
+		if (best != null)
+		{
+			return best;
+		}
+
+		if (soonestBack == null)
+		{
+			return avoid;
+		}
+
+		so.increment("UpstreamEndpoints.all_ejected");
+		return soonestBack;
+	}
+
+	/**
+	 * Closes the connection pools of all REST servers.
+	 */
+	public void close()
+	{
+		for (UpstreamEndpoint e : endpoints)
+		{
+			e.close();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.jedi.configs.ZoneConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ZoneRegistry holds the zones Jedi is authoritative for, from JediConfig.zones, in a LabelTrie keyed on each zone's
+ * name and on "*." + its name, so that one walk of a name's labels finds the deepest zone it is in.
+ * <p/>
+ * Each zone's SOA and NS answers are encoded once, when the registry is built.  PowerDNS asks for the SOA of every
+ * label of a name, from the name itself up, until it finds one; those are answered positively only at the zone's
+ * name, and negatively (without going to the cache or the REST server) everywhere else.
+ * <p/>
+ * Without any zones configured, every name is its own zone with the default SOA, which is how Jedi has always
+ * answered.
+ */
+public class ZoneRegistry extends JsonBase
+{
+	private final LabelTrie<Zone> zones;
+	private final Zone everyName;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config The JediConfig holding the zones
+	 * @throws IllegalArgumentException If a zone has no name, or two zones have the same name.
+	 */
+	public ZoneRegistry(final JediConfig config)
+	{
+		if (config == null)
+		{
+			throw new IllegalArgumentException("config argument is null");
+		}
+
+		if (config.zones == null || config.zones.isEmpty())
+		{
+			zones = null;
+			everyName = new Zone(null, new ZoneConfig());
+			return;
+		}
+
+		zones = new LabelTrie<Zone>();
+		everyName = null;
+
+		for (ZoneConfig zc : config.zones)
+		{
+			if (zc.name == null || zc.name.isEmpty() || ".".equals(zc.name))
+			{
+				throw new IllegalArgumentException("a zone in the config has no name");
+			}
+
+			HostnameKey name = HostnameKey.of(zc.name);
+			Zone zone = new Zone(name, zc);
+
+			if (zones.put(name, zone) != null)
+			{
+				throw new IllegalArgumentException("zone " + name + " is in the config more than once");
+			}
+
+			zones.put(HostnameKey.of("*." + name), zone);
+		}
+	}
+
+	/**
+	 * Finds the zone a name is in.
+	 *
+	 * @param name The name that was looked up
+	 * @return The deepest zone name is in, or null if it is not in any of them.
+	 */
+	public Zone find(final HostnameKey name)
+	{
+		if (zones == null)
+		{
+			return everyName;
+		}
+
+		return zones.get(name);
+	}
+
+	/**
+	 * A zone, with its answers ready to write.
+	 */
+	public static final class Zone
+	{
+		private final HostnameKey name;
+		private final String nameText;
+		private final String soaPrefix;
+		private final String soaSuffix;
+		private final String soaAnswer;
+		private final String nsAnswer;
+		private final String[] soaFields;
+		private final List<String> ns;
+		private final int ttl;
+
+		private Zone(final HostnameKey name, final ZoneConfig config)
+		{
+			this.name = name;
+			this.nameText = name == null ? null : name.toString();
+			this.ns = config.ns == null ? Collections.<String>emptyList() : new ArrayList<String>(config.ns);
+			this.ttl = config.ttl;
+
+			//
+			// "primary hostmaster serial refresh retry expire minimum", for answering in the wire format
+			//
+			String[] fields = config.soa == null ? new String[0] : config.soa.trim().split("\\s+");
+			this.soaFields = fields.length == 7 ? fields : null;
+
+			//
+			// {"result":[{"qtype":"SOA","qname":"<name>","content":"<soa>","ttl":3600,"priority":0,"domain_id":-1}]}
+			//
+			this.soaPrefix = "{\"result\":[{\"qtype\":\"SOA\",\"qname\":\"";
+			this.soaSuffix = "\",\"content\":" + quote(config.soa) + ",\"ttl\":" + config.ttl +
+					 ",\"priority\":0,\"domain_id\":-1}]}\n";
+			this.soaAnswer = name == null ? null : soaPrefix + name + soaSuffix;
+
+			if (name == null || ns.isEmpty())
+			{
+				this.nsAnswer = null;
+			}
+			else
+			{
+				StringBuilder sb = new StringBuilder(128);
+				sb.append("{\"result\":[");
+
+				for (int i = 0; i < ns.size(); i++)
+				{
+					if (i > 0)
+					{
+						sb.append(',');
+					}
+
+					sb.append("{\"qtype\":\"NS\",\"qname\":\"").append(name).append("\",\"content\":")
+					  .append(quote(ns.get(i))).append(",\"ttl\":").append(config.ttl)
+					  .append(",\"priority\":0,\"domain_id\":-1}");
+				}
+
+				sb.append("]}\n");
+				this.nsAnswer = sb.toString();
+			}
+		}
+
+		/**
+		 * @param qname The name that was looked up, which is in this zone
+		 * @return True if qname is the zone's own name, where its SOA and NS records are.
+		 */
+		public boolean isApex(final HostnameKey qname)
+		{
+			return name == null || name.equals(qname);
+		}
+
+		/**
+		 * @param qname The zone's name as it was looked up
+		 * @return The SOA answer line for the zone, including the newline.
+		 */
+		public String getSOAAnswer(final CharSequence qname)
+		{
+			return soaAnswer != null ? soaAnswer : soaPrefix + qname + soaSuffix;
+		}
+
+		/**
+		 * @return The NS answer line for the zone, including the newline, or null if it has no name servers.
+		 */
+		public String getNSAnswer()
+		{
+			return nsAnswer;
+		}
+
+		/**
+		 * @return The fields of the zone's SOA record, "primary hostmaster serial refresh retry expire minimum", or
+		 *         null if it does not have seven of them.
+		 */
+		public String[] getSOAFields()
+		{
+			return soaFields == null ? null : soaFields.clone();
+		}
+
+		/**
+		 * @return The zone's name servers, or an empty list if it has none or is the zone every name is in.
+		 */
+		public List<String> getNS()
+		{
+			return name == null ? Collections.<String>emptyList() : Collections.unmodifiableList(ns);
+		}
+
+		/**
+		 * @return The TTL, in seconds, of the zone's SOA and NS records.
+		 */
+		public int getTtl()
+		{
+			return ttl;
+		}
+
+		/**
+		 * @return The zone's name, or null for the zone every name is in when no zones are configured.
+		 */
+		public String getName()
+		{
+			return nameText;
+		}
+	}
+
+	private static String quote(final String s)
+	{
+		try
+		{
+			return mapper.writeValueAsString(s);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalArgumentException("unable to encode " + s + ": " + e.getMessage());
+		}
+	}
+}
@@ -2,6 +2,7 @@ package org.devnull.jedi.configs;
 
 import org.devnull.jedi.JsonBase;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -31,6 +32,29 @@ public class JediConfig extends JsonBase
 	 */
 	public int rest_server_port = 8080;
 
+	/**
+	 * A list of REST servers in "host:port" form to spread fetches over, instead of a single VIP.  If this is
+	 * null or empty, rest_server_hostname and rest_server_port are used.
+	 */
+	public List<String> rest_servers = null;
+
+	/**
+	 * How to pick a REST server from rest_servers for each fetch: "least_outstanding" picks the server with the
+	 * fewest fetches in flight, "ewma" picks the server with the lowest moving average latency weighted by the
+	 * fetches in flight.
+	 */
+	public String rest_server_selection = "least_outstanding";
+
+	/**
+	 * The number of failed fetches in a row after which a REST server is taken out of rotation.
+	 */
+	public int rest_server_ejection_failures = 5;
+
+	/**
+	 * How long (in milliseconds) a REST server stays out of rotation after being ejected.
+	 */
+	public long rest_server_ejection_time = 10000;
+
 	/**
 	 * Authentication information: username and password for authenticating against the REST server for fetches.
 	 * Authentication is done using DIGEST.
@@ -39,7 +63,10 @@ public class JediConfig extends JsonBase
 	public String rest_password = "bar";
 
 	/**
-	 * The maximum number of milliseconds to wait for the REST server to give us an answer.
+	 * The maximum number of milliseconds to wait for the REST server to give us an answer.  This is one budget per
+	 * request, from when PowerDNS's request is read: waiting for an api pool thread and a pooled connection,
+	 * connecting, retries, hedged requests and reading the answer all come out of it, and the fetch is aborted
+	 * when it runs out.
 	 */
 	public long rest_fetch_timeout = 1000;
 
@@ -49,6 +76,195 @@ public class JediConfig extends JsonBase
 	 */
 	public int max_rest_client_threads = 40;
 
+	/**
+	 * maximum number of fetches that may wait for one of the max_rest_client_threads.  Fetches beyond that are
+	 * answered negatively (or with a stale record) right away, and fetches that have waited longer than
+	 * rest_fetch_timeout are dropped without being sent, since nobody is waiting for their answer any more.
+	 */
+	public int rest_client_queue_size = 100;
+
+	/**
+	 * If true, the thread that is answering a lookup fetches from the REST server itself, instead of handing the
+	 * fetch to the api pool and waiting for it.  That saves a thread and a handoff per fetch.  No more than
+	 * max_rest_client_threads fetches run at once either way; a fetch that can't start before rest_fetch_timeout
+	 * runs out is answered negatively (or with a stale record), and rest_client_queue_size is not used.
+	 */
+	public boolean inline_fetch_enabled = false;
+
+	/**
+	 * If true, the number of fetches allowed to run against the REST server at the same time adapts between
+	 * adaptive_concurrency_min_limit and max_rest_client_threads based on observed latency and errors.  Fetches
+	 * over the current limit are answered negatively right away instead of queueing for the api pool.
+	 */
+	public boolean adaptive_concurrency_enabled = false;
+
+	/**
+	 * The lowest the adaptive concurrency limit is allowed to shrink to.
+	 */
+	public int adaptive_concurrency_min_limit = 4;
+
+	/**
+	 * The adaptive concurrency limit to start with.  Default value of null means max_rest_client_threads.
+	 */
+	public Integer adaptive_concurrency_initial_limit = null;
+
+	/**
+	 * Fetches (in milliseconds) that take longer than this count as a sign of overload and shrink the adaptive
+	 * concurrency limit.  Default value of null means half of rest_fetch_timeout.
+	 */
+	public Long adaptive_concurrency_latency_threshold = null;
+
+	/**
+	 * The factor the adaptive concurrency limit is multiplied by on a timeout, error or slow fetch.
+	 */
+	public double adaptive_concurrency_backoff_ratio = 0.9;
+
+	/**
+	 * If true, a circuit breaker stops fetches to the REST server while too many of them fail or are slow.
+	 * While it is open, misses are answered from expired cache entries if there are any, and negatively otherwise.
+	 */
+	public boolean circuit_breaker_enabled = false;
+
+	/**
+	 * The length (in milliseconds) of the window over which the circuit breaker counts fetch outcomes.
+	 */
+	public long circuit_breaker_window = 10000;
+
+	/**
+	 * The minimum number of fetches in a window before the circuit breaker will consider opening.
+	 */
+	public int circuit_breaker_min_requests = 20;
+
+	/**
+	 * The fraction (0 to 1) of failed or slow fetches in a window that opens the circuit breaker.
+	 */
+	public double circuit_breaker_failure_rate = 0.5;
+
+	/**
+	 * Fetches (in milliseconds) slower than this count as failures for the circuit breaker.
+	 * Default value of null means rest_fetch_timeout.
+	 */
+	public Long circuit_breaker_slow_call_threshold = null;
+
+	/**
+	 * How long (in milliseconds) the circuit breaker stays open before letting probe fetches through.
+	 */
+	public long circuit_breaker_open_time = 5000;
+
+	/**
+	 * The number of successful probe fetches in a row needed to close the circuit breaker again.
+	 */
+	public int circuit_breaker_half_open_probes = 3;
+
+	/**
+	 * If true, a fetch that the REST server has not answered within hedge_percentile of recent latency gets a
+	 * second, hedged request sent to another REST server (or another connection to the same one).  The first
+	 * usable answer is used and the other request is aborted.
+	 */
+	public boolean hedging_enabled = false;
+
+	/**
+	 * The percentile (0 to 1) of recent REST server latency after which a hedged request is sent.
+	 */
+	public double hedge_percentile = 0.95;
+
+	/**
+	 * The shortest delay (in milliseconds) before a hedged request is sent, whatever recent latency has been.
+	 */
+	public long hedge_min_delay = 5;
+
+	/**
+	 * The most hedged requests allowed, as a percentage of all fetches.
+	 */
+	public double hedge_budget_percent = 5.0;
+
+	/**
+	 * The number of threads for sending hedged requests.  Default value of null means a quarter of
+	 * max_rest_client_threads, and at least 2.
+	 */
+	public Integer hedge_threads = null;
+
+	/**
+	 * enable the existence filter: a Bloom filter of every name the REST server has records for, loaded from its
+	 * /fqdns/1 export, used to answer lookups for names that certainly don't exist without asking the REST server.
+	 * This protects it from floods of made up names.
+	 */
+	public boolean existence_filter_enabled = false;
+
+	/**
+	 * the number of names the first filter is sized for.  Later filters are sized for twice the names last loaded.
+	 */
+	public int existence_filter_expected_names = 1000000;
+
+	/**
+	 * the rate of names that don't exist that the filter lets through to the REST server anyway.  Lower rates take
+	 * more memory: 0.01 takes about 1.2 MB per million names.
+	 */
+	public double existence_filter_false_positive_rate = 0.01;
+
+	/**
+	 * how often, in milliseconds, to add the names created since the last load to the filter.  Names created in
+	 * between are answered as not existing until then.
+	 */
+	public long existence_filter_refresh_interval = 10000;
+
+	/**
+	 * how often, in milliseconds, to build a new filter from a full export, so that deleted names drop out of it.
+	 */
+	public long existence_filter_rebuild_interval = 3600000;
+
+	/**
+	 * the filter is not used once it could not be refreshed for this many milliseconds, so that new names are not
+	 * answered as not existing for long while the REST server can't be reached.
+	 */
+	public long existence_filter_max_age = 60000;
+
+	/**
+	 * timeout in milliseconds for loading names from the REST server, which takes longer than a single lookup.
+	 */
+	public long existence_filter_load_timeout = 30000;
+
+	/**
+	 * whether to limit how many lookups each client subnet may make.  The client is the real-remote (EDNS client
+	 * subnet) or remote address that PowerDNS passes on.
+	 */
+	public boolean rate_limit_enabled = false;
+
+	/**
+	 * clients are limited per IPv4 subnet of this many bits.
+	 */
+	public int rate_limit_ipv4_prefix = 24;
+
+	/**
+	 * clients are limited per IPv6 subnet of this many bits, at most 64.
+	 */
+	public int rate_limit_ipv6_prefix = 56;
+
+	/**
+	 * how many lookups per second a client subnet may make that have to be fetched from the REST server.
+	 */
+	public int rate_limit_misses_per_second = 20;
+
+	/**
+	 * how many lookups that have to be fetched from the REST server a client subnet may make at once, at most 16000.
+	 */
+	public int rate_limit_miss_burst = 100;
+
+	/**
+	 * how many lookups per second a client subnet may make that are answered from memory.
+	 */
+	public int rate_limit_hits_per_second = 500;
+
+	/**
+	 * how many lookups answered from memory a client subnet may make at once, at most 16000.
+	 */
+	public int rate_limit_hit_burst = 2000;
+
+	/**
+	 * how often, in milliseconds, to log the client subnets that had the most lookups refused.  0 disables it.
+	 */
+	public long rate_limit_report_interval = 60000;
+
 	/**
 	 * Maximum number of incoming sockets/threads to allow at the same time for answering powerdns requests
 	 * default value of null means it will be 50 * number of cpu cores.
@@ -56,6 +272,12 @@ public class JediConfig extends JsonBase
 	 */
 	public Integer max_powerdns_connection_count = null;
 
+	/**
+	 * maximum number of accepted PowerDNS connections that may wait for a handler thread once all
+	 * max_powerdns_connection_count are busy.  Connections beyond that are closed, and PowerDNS reconnects.
+	 */
+	public int powerdns_connection_queue_size = 50;
+
 	/**
 	 * What port to listen on for connections from PowerDNS
 	 */
@@ -76,13 +298,135 @@ public class JediConfig extends JsonBase
 	 */
 	public Integer unix_socket_timeout = 5000;
 
+	/**
+	 * What port to answer PowerDNS's remotebackend on in http mode, e.g. with
+	 * remote-connection-string=http:url=http://127.0.0.1:5380/dnsapi in PowerDNS.  Null disables it.
+	 */
+	public Integer http_listen_port = null;
+
+	/**
+	 * What address to answer remotebackend http requests on
+	 */
+	public String http_listen_address = "127.0.0.1";
+
+	/**
+	 * Number of threads answering remotebackend http requests, which is how many lookups can wait on the REST
+	 * server at once.  Default value of null means it will be 50 * number of cpu cores.
+	 */
+	public Integer http_worker_count = null;
+
+	/**
+	 * maximum number of remotebackend http requests that may wait for one of the http_worker_count threads.
+	 * Requests beyond that are answered 503 Service Unavailable right away; 0 answers only when a worker is free.
+	 */
+	public int http_queue_size = 100;
+
+	/**
+	 * Time (in milliseconds) to keep an http connection open without a request
+	 */
+	public long http_idle_timeout = 60000;
+
+	/**
+	 * What zeromq endpoint to answer PowerDNS's remotebackend on, e.g. "ipc:///var/run/jedi.0" with
+	 * remote-connection-string=zeromq:endpoint=ipc:///var/run/jedi.0 in PowerDNS.  Null disables it.
+	 */
+	public String zmq_endpoint = null;
+
+	/**
+	 * Number of threads answering remotebackend zeromq requests, which is how many lookups can wait on the REST
+	 * server at once.  Default value of null means it will be 50 * number of cpu cores.
+	 */
+	public Integer zmq_worker_count = null;
+
+	/**
+	 * Whether to answer DNS queries directly, over UDP and TCP, in addition to answering PowerDNS.
+	 */
+	public boolean dns_server_enabled = false;
+
+	/**
+	 * What address to answer DNS queries on when dns_server_enabled is true
+	 */
+	public String dns_listen_address = "0.0.0.0";
+
+	/**
+	 * What port to answer DNS queries on, over both UDP and TCP, when dns_server_enabled is true
+	 */
+	public int dns_listen_port = 53;
+
+	/**
+	 * Number of threads answering DNS queries over UDP.  Each one waits on the REST server for the query it is
+	 * answering, so this is how many of those there can be at once.  Default value of null means it will be
+	 * 50 * number of cpu cores.
+	 */
+	public Integer dns_udp_threads = null;
+
+	/**
+	 * Maximum number of DNS clients connected over TCP at the same time
+	 */
+	public int dns_tcp_threads = 100;
+
+	/**
+	 * maximum number of accepted DNS TCP connections that may wait for a thread once all dns_tcp_threads are busy.
+	 * Connections beyond that are closed right away.
+	 */
+	public int dns_tcp_queue_size = 20;
+
+	/**
+	 * Time (in milliseconds) to keep a DNS client's TCP connection open without a query
+	 */
+	public int dns_tcp_idle_timeout = 10000;
+
+	/**
+	 * maximum number of names to keep answers encoded in the DNS wire format for, so that the answer to a name
+	 * asked about often is encoded once rather than on every query.  0 or null disables this.
+	 */
+	public Integer max_encoded_answers_in_cache = 100000;
+
 	/**
 	 * maximum number of DNSRecord objects to cache in memory in the LRU.  Tune this to protect memory usage.
 	 */
 	public Long max_items_in_cache = 10000L;
 
+	/**
+	 * maximum number of wildcard answers to keep in memory.  When the REST server answers with an fqdn like
+	 * "*.svc.foo.com", the answer is kept once for the wildcard and used for every name under it, instead of being
+	 * fetched and cached for each name.  0 or null disables this.
+	 */
+	public Integer max_wildcards_in_cache = 1000;
+
+	/**
+	 * File to share cached records with the other Jedi processes on this host through, e.g. "/dev/shm/jedi", so
+	 * that each name is fetched from the REST server once per host rather than once per process.  Every process
+	 * sharing it must use the same shared_cache_slots and shared_cache_slot_size.  null disables this.
+	 */
+	public String shared_cache_path = null;
+
+	/**
+	 * number of names the shared cache file has room for
+	 */
+	public int shared_cache_slots = 65536;
+
+	/**
+	 * bytes of the shared cache file for each name, including its records as JSON; a multiple of 8.  Names with
+	 * more records than fit are only kept in each process's own cache.
+	 */
+	public int shared_cache_slot_size = 1024;
+
+	/**
+	 * The zones Jedi is authoritative for.  SOA and NS queries are answered from these at each zone's name, and
+	 * queries for names outside all of them are answered negatively without a cache lookup or fetch.  If this is
+	 * null or empty, every name is treated as its own zone, with the default SOA of ZoneConfig.
+	 */
+	public List<ZoneConfig> zones = null;
+
 	/**
 	 * maximum number of seconds to hold a cached record in the LRU before it expires and must be refetched from Dynamo
 	 */
 	public Integer cache_timeout = 300;
+
+	/**
+	 * How often (in milliseconds) the cached time that records are aged by is updated, and how close to their
+	 * deadlines fetches are aborted.
+	 */
+	public long clock_tick = 10;
 }
@@ -0,0 +1,63 @@
+package org.devnull.jedi.configs;
+
+import org.devnull.jedi.JsonBase;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RelayConfig is the configuration file for the Relay, which passes PowerDNS's remotebackend requests from a UNIX
+ * socket to Jedi servers over TCP.
+ */
+public class RelayConfig extends JsonBase
+{
+	/**
+	 * The default statsd shipper instantiated will be the NullStatsdShipper, which simply clears the
+	 * StatsObject every second.
+	 */
+	public String statsd_client_type = null;
+
+	/**
+	 * A pointer to a map that holds the contents of a UDPStatsdShipperConfig or a ZMQStatsdShipperConfig.
+	 * Leave null if the statsd_client_type is not "udp" or "zmq".
+	 */
+	public Map<String, Object> statsd_config = null;
+
+	/**
+	 * The path to the unix socket, the same path configured in PowerDNS's remote-connection-string
+	 */
+	public String unix_socket_path = "/tmp/pdns_unix_socket";
+
+	/**
+	 * Timeout value (in milliseconds) for a PowerDNS connection without a request.  PowerDNS doesn't close the
+	 * connections it is done with, so without this they are never cleaned up.
+	 */
+	public int unix_socket_timeout = 5000;
+
+	/**
+	 * The Jedi servers to pass requests to, in "host:port" form.  Requests are spread over them in turn, and one
+	 * that can't be connected to is skipped.
+	 */
+	public List<String> jedi_servers = null;
+
+	/**
+	 * Time (in milliseconds) to wait for a connection to a Jedi server
+	 */
+	public int jedi_connect_timeout = 1000;
+
+	/**
+	 * Time (in milliseconds) to wait for a Jedi server to answer a request.  This should be longer than the Jedi
+	 * servers' rest_fetch_timeout.
+	 */
+	public int jedi_read_timeout = 2000;
+
+	/**
+	 * maximum number of idle connections to keep open to each Jedi server for the next requests
+	 */
+	public int max_idle_connections_per_server = 50;
+
+	/**
+	 * maximum length in bytes of a request or an answer
+	 */
+	public int max_message_length = 65536;
+}
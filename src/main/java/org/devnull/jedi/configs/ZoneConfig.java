@@ -0,0 +1,32 @@
+package org.devnull.jedi.configs;
+
+import org.devnull.jedi.JsonBase;
+
+import java.util.List;
+
+/**
+ * ZoneConfig describes one zone that Jedi is authoritative for, as an entry of JediConfig.zones.
+ */
+public class ZoneConfig extends JsonBase
+{
+	/**
+	 * The name of the zone, e.g. "foo.com".  Names below it belong to it unless they belong to a zone below it.
+	 */
+	public String name = null;
+
+	/**
+	 * The content of the zone's SOA record: "primary hostmaster serial refresh retry expire minimum".
+	 */
+	public String soa = "ns1.prod.pertino.com. eng-devops.pertino.com. 1 7200 900 1209600 86400";
+
+	/**
+	 * The zone's name servers, e.g. ["ns1.foo.com.","ns2.foo.com."].  If this is null or empty, NS queries for the
+	 * zone are answered negatively.
+	 */
+	public List<String> ns = null;
+
+	/**
+	 * The TTL, in seconds, of the SOA and NS answers.
+	 */
+	public int ttl = 3600;
+}
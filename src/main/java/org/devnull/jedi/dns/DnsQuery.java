@@ -0,0 +1,284 @@
+package org.devnull.jedi.dns;
+
+import org.devnull.jedi.HostnameKey;
+
+/**
+ * DnsQuery parses a DNS query in the RFC 1035 wire format: the header, the one question, and the EDNS OPT record
+ * from RFC 6891 if there is one.  It is meant to be reused for query after query by one thread, and only keeps
+ * offsets into the message it was given; the question is echoed into the response byte for byte, so that a client
+ * that randomizes the case of the name gets it back unchanged.
+ */
+public class DnsQuery
+{
+	public static final int TYPE_A = 1;
+	public static final int TYPE_NS = 2;
+	public static final int TYPE_CNAME = 5;
+	public static final int TYPE_SOA = 6;
+	public static final int TYPE_MX = 15;
+	public static final int TYPE_TXT = 16;
+	public static final int TYPE_AAAA = 28;
+	public static final int TYPE_OPT = 41;
+	public static final int TYPE_IXFR = 251;
+	public static final int TYPE_AXFR = 252;
+	public static final int TYPE_ANY = 255;
+
+	public static final int CLASS_IN = 1;
+	public static final int CLASS_ANY = 255;
+
+	static final int HEADER_LENGTH = 12;
+
+	private final HostnameKey name = new HostnameKey();
+	private final byte[] text = new byte[255];
+
+	private byte[] message;
+	private int length;
+	private int id;
+	private int flags;
+	private int questionCount;
+	private int questionEnd;
+	private int qtype;
+	private int qclass;
+	private boolean edns;
+	private int ednsVersion;
+	private int udpPayloadSize;
+
+	/**
+	 * Parses a query.
+	 *
+	 * @param message The buffer the query is in, from offset 0; it must not change while this query is in use
+	 * @param length  The length of the query
+	 * @return False if the header can not be read, in which case the query can't be answered at all.  Otherwise
+	 *         isValid() says whether the rest of it could be read.
+	 */
+	public boolean parse(final byte[] message, final int length)
+	{
+		this.message = message;
+		this.length = length;
+		this.questionEnd = -1;
+		this.edns = false;
+		this.ednsVersion = 0;
+		this.udpPayloadSize = 512;
+
+		if (length < HEADER_LENGTH)
+		{
+			return false;
+		}
+
+		id = readShort(0);
+		flags = readShort(2);
+		questionCount = readShort(4);
+
+		//
+		// a response, not a query: don't answer, or two servers could keep answering each other
+		//
+		if ((flags & 0x8000) != 0)
+		{
+			return false;
+		}
+
+		if (questionCount != 1 || getOpcode() != 0)
+		{
+			return true;
+		}
+
+		int end = readQuestionName();
+
+		if (end < 0 || end + 4 > length)
+		{
+			return true;
+		}
+
+		qtype = readShort(end);
+		qclass = readShort(end + 2);
+		int pos = end + 4;
+
+		//
+		// look for an OPT record among the other records, which a query should not have anyway
+		//
+		int records = readShort(6) + readShort(8) + readShort(10);
+
+		for (int i = 0; i < records; i++)
+		{
+			pos = skipName(pos);
+
+			if (pos < 0 || pos + 10 > length)
+			{
+				return true;
+			}
+
+			int type = readShort(pos);
+			int rdlength = readShort(pos + 8);
+
+			if (type == TYPE_OPT)
+			{
+				edns = true;
+				udpPayloadSize = Math.max(512, readShort(pos + 2));
+				ednsVersion = message[pos + 5] & 0xff;
+			}
+
+			pos += 10 + rdlength;
+
+			if (pos > length)
+			{
+				return true;
+			}
+		}
+
+		questionEnd = end + 4;
+		return true;
+	}
+
+	/**
+	 * @return True if the query has exactly one question, which could be read.
+	 */
+	public boolean isValid()
+	{
+		return questionEnd > 0;
+	}
+
+	public int getId()
+	{
+		return id;
+	}
+
+	public int getOpcode()
+	{
+		return (flags >>> 11) & 0xf;
+	}
+
+	/**
+	 * @return True if the client asked for recursion, which is copied into the response.
+	 */
+	public boolean isRecursionDesired()
+	{
+		return (flags & 0x0100) != 0;
+	}
+
+	public int getQType()
+	{
+		return qtype;
+	}
+
+	public int getQClass()
+	{
+		return qclass;
+	}
+
+	/**
+	 * @return The name that was asked for, normalized.  Only valid while isValid() is.
+	 */
+	public HostnameKey getName()
+	{
+		return name;
+	}
+
+	public boolean hasEdns()
+	{
+		return edns;
+	}
+
+	public int getEdnsVersion()
+	{
+		return ednsVersion;
+	}
+
+	/**
+	 * @return The largest UDP response the client can take: 512, or more if it said so with EDNS.
+	 */
+	public int getUdpPayloadSize()
+	{
+		return udpPayloadSize;
+	}
+
+	byte[] getMessage()
+	{
+		return message;
+	}
+
+	/**
+	 * @return The offset just past the question, which starts right after the header.
+	 */
+	int getQuestionEnd()
+	{
+		return questionEnd;
+	}
+
+	/**
+	 * Reads the question's name, which can't be compressed since nothing comes before it, into name.
+	 *
+	 * @return The offset just past the name, or -1 if it is not a valid name.
+	 */
+	private int readQuestionName()
+	{
+		int pos = HEADER_LENGTH;
+		int textLength = 0;
+
+		while (pos < length)
+		{
+			int labelLength = message[pos++] & 0xff;
+
+			if (labelLength == 0)
+			{
+				name.set(text, 0, textLength);
+				return pos;
+			}
+
+			if (labelLength > 63 || pos + labelLength > length || textLength + labelLength + 1 > text.length)
+			{
+				return -1;
+			}
+
+			if (textLength > 0)
+			{
+				text[textLength++] = '.';
+			}
+
+			for (int i = 0; i < labelLength; i++)
+			{
+				byte b = message[pos++];
+
+				//
+				// a dot inside a label could not be told apart from the dot between two labels
+				//
+				if (b == '.')
+				{
+					return -1;
+				}
+
+				text[textLength++] = b;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return The offset just past the name at pos, which may end in a compression pointer, or -1.
+	 */
+	private int skipName(int pos)
+	{
+		while (pos < length)
+		{
+			int labelLength = message[pos] & 0xff;
+
+			if (labelLength == 0)
+			{
+				return pos + 1;
+			}
+
+			if ((labelLength & 0xc0) == 0xc0)
+			{
+				return pos + 2;
+			}
+
+			pos += labelLength + 1;
+		}
+
+		return -1;
+	}
+
+	private int readShort(final int pos)
+	{
+		return ((message[pos] & 0xff) << 8) | (message[pos + 1] & 0xff);
+	}
+}
@@ -0,0 +1,865 @@
+package org.devnull.jedi.dns;
+
+import com.google.common.cache.Cache;
+import org.devnull.jedi.ClientRateLimiter;
+import org.devnull.jedi.CompactRecordSet;
+import org.devnull.jedi.HostnameKey;
+import org.devnull.jedi.Resolver;
+import org.devnull.jedi.ZoneRegistry;
+import org.devnull.jedi.records.AddressParser;
+import org.devnull.statsd_client.StatsObject;
+
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * DnsResponder answers DNS queries in the RFC 1035 wire format, from the configured zones and a Resolver, so that
+ * clients can ask Jedi directly instead of going through PowerDNS.  Names in responses are compressed, against the
+ * question and against each other.
+ * <p/>
+ * The answer section for a name and query type is encoded once and kept in a cache shared by all responders,
+ * alongside the record set it was encoded from, until the record set is replaced.  Since the question always
+ * comes right after the header, the encoded answers (and the compression pointers in them) are the same for every
+ * query for the name, whatever case it is asked in.
+ * <p/>
+ * A DnsResponder keeps the response it is building and must only be used by one thread at a time.
+ */
+public class DnsResponder
+{
+	private static final StatsObject so = StatsObject.getInstance();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final int RCODE_NOERROR = 0;
+	public static final int RCODE_FORMERR = 1;
+	public static final int RCODE_SERVFAIL = 2;
+	public static final int RCODE_NXDOMAIN = 3;
+	public static final int RCODE_NOTIMP = 4;
+	public static final int RCODE_REFUSED = 5;
+	public static final int RCODE_BADVERS = 16;
+
+	private static final String[] RCODE_STATS = {
+		"DNS.responses.noerror", "DNS.responses.formerr", "DNS.responses.servfail", "DNS.responses.nxdomain",
+		"DNS.responses.notimp", "DNS.responses.refused"
+	};
+
+	/**
+	 * the largest UDP response we offer to send with EDNS, which avoids fragmentation on nearly every path
+	 */
+	public static final int EDNS_PAYLOAD_SIZE = 1232;
+
+	public static final int MAX_MESSAGE_LENGTH = 65535;
+
+	/**
+	 * the query types whose answers are kept encoded, by slot
+	 */
+	private static final int[] ENCODED_TYPES = {
+		DnsQuery.TYPE_A, DnsQuery.TYPE_AAAA, DnsQuery.TYPE_MX, DnsQuery.TYPE_TXT, DnsQuery.TYPE_CNAME,
+		DnsQuery.TYPE_NS, DnsQuery.TYPE_ANY
+	};
+
+	private final ZoneRegistry zones;
+	private final Resolver resolver;
+	private final Cache<HostnameKey, Encoded> encodedAnswers;
+	private final DnsQuery query = new DnsQuery();
+
+	private final byte[] out = new byte[MAX_MESSAGE_LENGTH];
+	private int pos;
+
+	/**
+	 * whether the response has the question in it
+	 */
+	private boolean question;
+
+	/**
+	 * where the labels of names already written start, for compression
+	 */
+	private final int[] nameOffsets = new int[256];
+	private int nameCount;
+
+	/**
+	 * the labels of the name being written
+	 */
+	private final int[] labelStarts = new int[128];
+	private final int[] labelEnds = new int[128];
+
+	private final long[] inet6 = new long[2];
+
+	/**
+	 * Constructor
+	 *
+	 * @param zones          The zones to answer for
+	 * @param resolver       The Resolver to find records with, used only by this responder
+	 * @param encodedAnswers The answers already encoded, shared by all responders, or null to encode every time
+	 */
+	public DnsResponder(final ZoneRegistry zones, final Resolver resolver,
+			    final Cache<HostnameKey, Encoded> encodedAnswers)
+	{
+		if (zones == null)
+		{
+			throw new IllegalArgumentException("zones argument is null");
+		}
+
+		this.zones = zones;
+		this.resolver = resolver;
+		this.encodedAnswers = encodedAnswers;
+	}
+
+	/**
+	 * Answers a query.
+	 *
+	 * @param message The query
+	 * @param length  The length of the query
+	 * @param source  The address the query came from, for rate limiting
+	 * @param udp     True if the query came over UDP, where responses are limited to 512 bytes, or to what the
+	 *                client said it can take with EDNS; false for TCP
+	 * @return The length of the response, which is in getResponse(), or -1 if the query should not be answered.
+	 */
+	public int respond(final byte[] message, final int length, final InetAddress source, final boolean udp)
+	{
+		if (!query.parse(message, length))
+		{
+			so.increment("DNS.queries.unanswerable");
+			return -1;
+		}
+
+		int max = MAX_MESSAGE_LENGTH;
+
+		if (udp)
+		{
+			max = query.hasEdns() ? Math.min(query.getUdpPayloadSize(), EDNS_PAYLOAD_SIZE) : 512;
+		}
+
+		if (query.getOpcode() != 0)
+		{
+			return error(RCODE_NOTIMP, max);
+		}
+
+		if (!query.isValid())
+		{
+			return error(RCODE_FORMERR, max);
+		}
+
+		if (query.hasEdns() && query.getEdnsVersion() != 0)
+		{
+			return error(RCODE_BADVERS, max);
+		}
+
+		int qtype = query.getQType();
+
+		if ((query.getQClass() != DnsQuery.CLASS_IN && query.getQClass() != DnsQuery.CLASS_ANY) ||
+		    qtype == DnsQuery.TYPE_AXFR || qtype == DnsQuery.TYPE_IXFR)
+		{
+			return error(RCODE_REFUSED, max);
+		}
+
+		HostnameKey name = query.getName();
+		ZoneRegistry.Zone zone = zones.find(name);
+
+		//
+		// we are not a resolver, names outside of our zones are none of our business
+		//
+		if (zone == null)
+		{
+			so.increment("DNS.out_of_zone");
+			return error(RCODE_REFUSED, max);
+		}
+
+		boolean apex = zone.getName() != null && zone.isApex(name);
+
+		if (qtype == DnsQuery.TYPE_SOA && zone.isApex(name))
+		{
+			startAnswers();
+
+			if (!writeSOA(zone, zone.getTtl()))
+			{
+				return error(RCODE_SERVFAIL, max);
+			}
+
+			return finish(RCODE_NOERROR, true, 1, 0, max);
+		}
+
+		if (qtype == DnsQuery.TYPE_NS && apex)
+		{
+			startAnswers();
+			int count = 0;
+
+			for (String ns : zone.getNS())
+			{
+				int start = pos;
+				int names = nameCount;
+
+				if (writeRecord(DnsQuery.TYPE_NS, zone.getTtl()) && writeName(ns))
+				{
+					endRecord(start + 12);
+					count++;
+				}
+				else
+				{
+					pos = start;
+					nameCount = names;
+				}
+			}
+
+			return count > 0 ? finish(RCODE_NOERROR, true, count, 0, max) : noData(zone, max);
+		}
+
+		long client = ClientRateLimiter.NO_CLIENT;
+		ClientRateLimiter rateLimiter = resolver.getRateLimiter();
+
+		if (rateLimiter != null)
+		{
+			client = rateLimiter.clientKey(source);
+		}
+
+		CompactRecordSet records = resolver.resolve(name, client);
+
+		if (records == null)
+		{
+			switch (resolver.getOutcome())
+			{
+				case RATE_LIMITED:
+					return error(RCODE_REFUSED, max);
+				case FAILED:
+					return error(RCODE_SERVFAIL, max);
+				default:
+					//
+					// the zone's own name exists even if the REST server has nothing else for it
+					//
+					return apex ? noData(zone, max) : noName(zone, max);
+			}
+		}
+
+		return answer(zone, records, max);
+	}
+
+	/**
+	 * @return The buffer the last response was written to, from offset 0.
+	 */
+	public byte[] getResponse()
+	{
+		return out;
+	}
+
+	/**
+	 * Answers the query from records, with the encoded answers if they are still current.
+	 */
+	int answer(final ZoneRegistry.Zone zone, final CompactRecordSet records, final int max)
+	{
+		int slot = slot(query.getQType());
+		HostnameKey name = query.getName();
+		Encoded encoded = null;
+		byte[] answers = null;
+
+		if (slot >= 0 && encodedAnswers != null)
+		{
+			encoded = encodedAnswers.getIfPresent(name);
+
+			if (encoded != null && encoded.source == records)
+			{
+				answers = encoded.answers.get(slot);
+			}
+			else
+			{
+				encoded = null;
+			}
+		}
+
+		startAnswers();
+
+		int count;
+
+		if (answers != null)
+		{
+			so.increment("DNS.encoded_answers.hits");
+			count = ((answers[0] & 0xff) << 8) | (answers[1] & 0xff);
+			System.arraycopy(answers, 2, out, pos, answers.length - 2);
+			pos += answers.length - 2;
+		}
+		else
+		{
+			int start = pos;
+			count = writeAnswers(records, records.getTTL());
+
+			if (slot >= 0 && encodedAnswers != null)
+			{
+				so.increment("DNS.encoded_answers.misses");
+
+				answers = new byte[pos - start + 2];
+				answers[0] = (byte) (count >>> 8);
+				answers[1] = (byte) count;
+				System.arraycopy(out, start, answers, 2, pos - start);
+
+				if (encoded == null)
+				{
+					encoded = new Encoded(records);
+					encodedAnswers.put(name.copy(), encoded);
+				}
+
+				encoded.answers.set(slot, answers);
+			}
+		}
+
+		if (count == 0)
+		{
+			return noData(zone, max);
+		}
+
+		return finish(RCODE_NOERROR, true, count, 0, max);
+	}
+
+	/**
+	 * Writes the records that answer the query type: those of that type, or a CNAME in their place, or all of them
+	 * for ANY.  SOA records from the REST server are left out, the zone's own is used instead.
+	 *
+	 * @return The number of records written.
+	 */
+	private int writeAnswers(final CompactRecordSet records, final long ttl)
+	{
+		int qtype = query.getQType();
+		int count = 0;
+
+		for (int i = 0; i < records.size(); i++)
+		{
+			int type = typeCode(records.getType(i));
+
+			if (type < 0 || type == DnsQuery.TYPE_SOA ||
+			    (qtype != DnsQuery.TYPE_ANY && type != qtype && type != DnsQuery.TYPE_CNAME))
+			{
+				continue;
+			}
+
+			int start = pos;
+			int names = nameCount;
+
+			if (writeRecord(type, ttl) && writeRdata(type, records, i))
+			{
+				count++;
+			}
+			else
+			{
+				so.increment("DNS.unencodable_records");
+				pos = start;
+				nameCount = names;
+			}
+		}
+
+		return count;
+	}
+
+	private boolean writeRdata(final int type, final CompactRecordSet records, final int i)
+	{
+		int rdata = pos;
+		String content = records.getContent(i);
+
+		switch (type)
+		{
+			case DnsQuery.TYPE_A:
+				long address = AddressParser.parseInet4(content);
+
+				if (address < 0)
+				{
+					return false;
+				}
+
+				writeInt(address);
+				break;
+			case DnsQuery.TYPE_AAAA:
+				if (!AddressParser.parseInet6(content, inet6, 0))
+				{
+					return false;
+				}
+
+				writeInt(inet6[0] >>> 32);
+				writeInt(inet6[0]);
+				writeInt(inet6[1] >>> 32);
+				writeInt(inet6[1]);
+				break;
+			case DnsQuery.TYPE_MX:
+				writeShort(records.getPriority(i));
+
+				if (!writeName(content))
+				{
+					return false;
+				}
+				break;
+			case DnsQuery.TYPE_NS:
+			case DnsQuery.TYPE_CNAME:
+				if (!writeName(content))
+				{
+					return false;
+				}
+				break;
+			case DnsQuery.TYPE_TXT:
+				writeText(content);
+				break;
+			default:
+				return false;
+		}
+
+		endRecord(rdata);
+		return true;
+	}
+
+	/**
+	 * Writes the zone's SOA record, owned by the zone's name (or the name asked for, with no zones configured).
+	 */
+	private boolean writeSOA(final ZoneRegistry.Zone zone, final long ttl)
+	{
+		String[] fields = zone.getSOAFields();
+
+		if (fields == null)
+		{
+			return false;
+		}
+
+		int start = pos;
+
+		if (zone.getName() == null)
+		{
+			writeQuestionPointer();
+		}
+		else if (!writeName(zone.getName()))
+		{
+			pos = start;
+			return false;
+		}
+
+		writeShort(DnsQuery.TYPE_SOA);
+		writeShort(DnsQuery.CLASS_IN);
+		writeInt(ttl);
+		pos += 2;
+
+		int rdata = pos;
+
+		try
+		{
+			if (!writeName(fields[0]) || !writeName(fields[1]))
+			{
+				pos = start;
+				return false;
+			}
+
+			for (int i = 2; i < 7; i++)
+			{
+				writeInt(Long.parseLong(fields[i]));
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			pos = start;
+			return false;
+		}
+
+		endRecord(rdata);
+		return true;
+	}
+
+	/**
+	 * A NOERROR response with no answers and the zone's SOA in the authority section, per RFC 2308.
+	 */
+	private int noData(final ZoneRegistry.Zone zone, final int max)
+	{
+		return negative(RCODE_NOERROR, zone, max);
+	}
+
+	/**
+	 * An NXDOMAIN response with the zone's SOA in the authority section.
+	 */
+	private int noName(final ZoneRegistry.Zone zone, final int max)
+	{
+		return negative(RCODE_NXDOMAIN, zone, max);
+	}
+
+	private int negative(final int rcode, final ZoneRegistry.Zone zone, final int max)
+	{
+		startAnswers();
+		String[] fields = zone.getSOAFields();
+		long ttl = zone.getTtl();
+
+		if (fields != null)
+		{
+			try
+			{
+				ttl = Math.min(ttl, Long.parseLong(fields[6]));
+			}
+			catch (NumberFormatException e)
+			{
+				// writeSOA() will fail too
+			}
+		}
+
+		boolean soa = writeSOA(zone, ttl);
+		return finish(rcode, true, 0, soa ? 1 : 0, max);
+	}
+
+	/**
+	 * Sets pos to just after the question, and makes the question's name available for compression.
+	 */
+	private void startAnswers()
+	{
+		int end = query.getQuestionEnd();
+		System.arraycopy(query.getMessage(), 0, out, 0, end);
+		pos = end;
+		question = true;
+		nameCount = 0;
+
+		for (int i = DnsQuery.HEADER_LENGTH; (out[i] & 0xff) != 0; i += (out[i] & 0xff) + 1)
+		{
+			nameOffsets[nameCount++] = i;
+		}
+	}
+
+	/**
+	 * A response with no records, and the question only if it could be read.
+	 */
+	private int error(final int rcode, final int max)
+	{
+		question = query.isValid() && rcode != RCODE_FORMERR && rcode != RCODE_NOTIMP;
+		pos = question ? query.getQuestionEnd() : DnsQuery.HEADER_LENGTH;
+		System.arraycopy(query.getMessage(), 0, out, 0, pos);
+		return finish(rcode, false, 0, 0, max);
+	}
+
+	/**
+	 * Fills in the header, adds an OPT record if the client sent one, and truncates the response if it is longer
+	 * than max.
+	 *
+	 * @return The length of the response.
+	 */
+	private int finish(final int rcode, final boolean authoritative, final int answers, final int authority,
+			   final int max)
+	{
+		int ancount = answers;
+		int nscount = authority;
+		boolean truncated = false;
+		int opt = query.hasEdns() ? 11 : 0;
+
+		if (pos + opt > max)
+		{
+			//
+			// the client is to ask again over TCP
+			//
+			so.increment("DNS.responses.truncated");
+			pos = question ? query.getQuestionEnd() : DnsQuery.HEADER_LENGTH;
+			ancount = 0;
+			nscount = 0;
+			truncated = true;
+		}
+
+		if (opt > 0)
+		{
+			out[pos++] = 0;
+			writeShort(DnsQuery.TYPE_OPT);
+			writeShort(EDNS_PAYLOAD_SIZE);
+			writeInt((long) (rcode >>> 4) << 24);
+			writeShort(0);
+		}
+
+		int flags = 0x8000 | (query.getOpcode() << 11) | (rcode & 0xf);
+
+		if (authoritative)
+		{
+			flags |= 0x0400;
+		}
+
+		if (truncated)
+		{
+			flags |= 0x0200;
+		}
+
+		if (query.isRecursionDesired())
+		{
+			flags |= 0x0100;
+		}
+
+		int length = pos;
+		pos = 0;
+		writeShort(query.getId());
+		writeShort(flags);
+		writeShort(question ? 1 : 0);
+		writeShort(ancount);
+		writeShort(nscount);
+		writeShort(opt > 0 ? 1 : 0);
+		pos = length;
+
+		so.increment(rcode < RCODE_STATS.length ? RCODE_STATS[rcode] : "DNS.responses.badvers");
+		return length;
+	}
+
+	/**
+	 * Writes a record's owner (the name asked for), type, class and TTL, and leaves room for its length.
+	 */
+	private boolean writeRecord(final int type, final long ttl)
+	{
+		if (pos + 12 > out.length - 512)
+		{
+			return false;
+		}
+
+		writeQuestionPointer();
+		writeShort(type);
+		writeShort(DnsQuery.CLASS_IN);
+		writeInt(Math.max(0, Math.min(ttl, Integer.MAX_VALUE)));
+		pos += 2;
+		return true;
+	}
+
+	/**
+	 * Fills in the length of the record whose data started at rdata.
+	 */
+	private void endRecord(final int rdata)
+	{
+		int length = pos - rdata;
+		out[rdata - 2] = (byte) (length >>> 8);
+		out[rdata - 1] = (byte) length;
+	}
+
+	private void writeQuestionPointer()
+	{
+		out[pos++] = (byte) 0xc0;
+		out[pos++] = (byte) DnsQuery.HEADER_LENGTH;
+	}
+
+	/**
+	 * Writes a name, compressed against the names already in the response: as many of its first labels as needed,
+	 * then a pointer to where the rest of it already is.
+	 *
+	 * @param name A name like "mail.foo.com" or "mail.foo.com."
+	 * @return False if it is not a valid name.
+	 */
+	private boolean writeName(final String name)
+	{
+		int end = name.length();
+
+		if (end > 0 && name.charAt(end - 1) == '.')
+		{
+			end--;
+		}
+
+		int labels = 0;
+
+		for (int start = 0; start < end; )
+		{
+			int dot = name.indexOf('.', start);
+
+			if (dot < 0 || dot > end)
+			{
+				dot = end;
+			}
+
+			if (dot == start || dot - start > 63 || labels == labelStarts.length)
+			{
+				return false;
+			}
+
+			labelStarts[labels] = start;
+			labelEnds[labels++] = dot;
+			start = dot + 1;
+		}
+
+		if (end > 253 || pos + end + 2 > out.length)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < labels; i++)
+		{
+			for (int j = labelStarts[i]; j < labelEnds[i]; j++)
+			{
+				if (name.charAt(j) > 0x7e || name.charAt(j) <= ' ')
+				{
+					return false;
+				}
+			}
+		}
+
+		for (int i = 0; i < labels; i++)
+		{
+			int offset = find(name, i, labels);
+
+			if (offset >= 0)
+			{
+				out[pos++] = (byte) (0xc0 | offset >>> 8);
+				out[pos++] = (byte) offset;
+				return true;
+			}
+
+			if (pos < 0x4000 && nameCount < nameOffsets.length)
+			{
+				nameOffsets[nameCount++] = pos;
+			}
+
+			out[pos++] = (byte) (labelEnds[i] - labelStarts[i]);
+
+			for (int j = labelStarts[i]; j < labelEnds[i]; j++)
+			{
+				out[pos++] = (byte) name.charAt(j);
+			}
+		}
+
+		out[pos++] = 0;
+		return true;
+	}
+
+	/**
+	 * @return Where labels from..labels of name already are in the response, or -1.
+	 */
+	private int find(final String name, final int from, final int labels)
+	{
+		for (int n = 0; n < nameCount; n++)
+		{
+			if (matches(nameOffsets[n], name, from, labels))
+			{
+				return nameOffsets[n];
+			}
+		}
+
+		return -1;
+	}
+
+	private boolean matches(final int offset, final String name, final int from, final int labels)
+	{
+		int p = offset;
+
+		for (int l = from; l <= labels; l++)
+		{
+			int length = out[p] & 0xff;
+
+			while ((length & 0xc0) == 0xc0)
+			{
+				p = ((length & 0x3f) << 8) | (out[p + 1] & 0xff);
+				length = out[p] & 0xff;
+			}
+
+			if (l == labels)
+			{
+				return length == 0;
+			}
+
+			if (length != labelEnds[l] - labelStarts[l])
+			{
+				return false;
+			}
+
+			for (int j = 0; j < length; j++)
+			{
+				if (lower(out[p + 1 + j]) != lower((byte) name.charAt(labelStarts[l] + j)))
+				{
+					return false;
+				}
+			}
+
+			p += length + 1;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Writes text as character strings of up to 255 bytes each, without the quotes it may be in.
+	 */
+	private void writeText(final String content)
+	{
+		String text = content;
+
+		if (text.length() >= 2 && text.charAt(0) == '"' && text.charAt(text.length() - 1) == '"')
+		{
+			text = text.substring(1, text.length() - 1);
+		}
+
+		byte[] bytes = text.getBytes(UTF8);
+		int i = 0;
+
+		do
+		{
+			int chunk = Math.min(255, bytes.length - i);
+			out[pos++] = (byte) chunk;
+			System.arraycopy(bytes, i, out, pos, chunk);
+			pos += chunk;
+			i += chunk;
+		}
+		while (i < bytes.length);
+	}
+
+	private void writeShort(final int v)
+	{
+		out[pos++] = (byte) (v >>> 8);
+		out[pos++] = (byte) v;
+	}
+
+	private void writeInt(final long v)
+	{
+		out[pos++] = (byte) (v >>> 24);
+		out[pos++] = (byte) (v >>> 16);
+		out[pos++] = (byte) (v >>> 8);
+		out[pos++] = (byte) v;
+	}
+
+	private static int lower(final byte b)
+	{
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+	private static int slot(final int qtype)
+	{
+		for (int i = 0; i < ENCODED_TYPES.length; i++)
+		{
+			if (ENCODED_TYPES[i] == qtype)
+			{
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private static int typeCode(final String type)
+	{
+		if ("A".equals(type))
+		{
+			return DnsQuery.TYPE_A;
+		}
+		else if ("AAAA".equals(type))
+		{
+			return DnsQuery.TYPE_AAAA;
+		}
+		else if ("MX".equals(type))
+		{
+			return DnsQuery.TYPE_MX;
+		}
+		else if ("TXT".equals(type))
+		{
+			return DnsQuery.TYPE_TXT;
+		}
+		else if ("CNAME".equals(type))
+		{
+			return DnsQuery.TYPE_CNAME;
+		}
+		else if ("NS".equals(type))
+		{
+			return DnsQuery.TYPE_NS;
+		}
+		else if ("SOA".equals(type))
+		{
+			return DnsQuery.TYPE_SOA;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * The answer sections encoded for one name, one per query type, valid for as long as the name's record set is
+	 * source.
+	 */
+	public static final class Encoded
+	{
+		private final CompactRecordSet source;
+		private final AtomicReferenceArray<byte[]> answers = new AtomicReferenceArray<byte[]>(ENCODED_TYPES.length);
+
+		private Encoded(final CompactRecordSet source)
+		{
+			this.source = source;
+		}
+	}
+}
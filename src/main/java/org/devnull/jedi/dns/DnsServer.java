@@ -0,0 +1,336 @@
+package org.devnull.jedi.dns;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.log4j.Logger;
+import org.devnull.jedi.BoundedExecutor;
+import org.devnull.jedi.CompactRecordSet;
+import org.devnull.jedi.HostnameKey;
+import org.devnull.jedi.LabelTrie;
+import org.devnull.jedi.Resolver;
+import org.devnull.jedi.Upstream;
+import org.devnull.jedi.ZoneRegistry;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * DnsServer answers DNS queries directly, over UDP and TCP, so that clients (or a load balancer in front of Jedi)
+ * don't need PowerDNS in between.  It answers from the same cache, wildcards and zones as the PowerDNS handlers,
+ * and fetches from the REST server the same way.
+ * <p/>
+ * UDP queries are read from one DatagramChannel by dns_udp_threads threads, each with its own DnsResponder, so that
+ * a query waiting on the REST server holds up only its own thread.  Each TCP connection gets a thread from a pool
+ * of dns_tcp_threads, and is closed after dns_tcp_idle_timeout without a query.
+ */
+public class DnsServer
+{
+	private static final Logger log = Logger.getLogger(DnsServer.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	private final JediConfig config;
+	private final Upstream upstream;
+	private final Cache<HostnameKey, CompactRecordSet> cache;
+	private final LabelTrie<CompactRecordSet> wildcards;
+	private final ZoneRegistry zones;
+	private final Cache<HostnameKey, DnsResponder.Encoded> encodedAnswers;
+
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private DatagramChannel udp = null;
+	private ServerSocket tcp = null;
+	private ExecutorService tcpExecutor = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config    The JediConfig holding the dns_* settings
+	 * @param upstream  The Upstream shared with the PowerDNS handlers
+	 * @param cache     The results Cache shared with the PowerDNS handlers, or null
+	 * @param wildcards The wildcard answers shared with the PowerDNS handlers, or null
+	 * @param zones     The zones to answer for
+	 */
+	public DnsServer(final JediConfig config,
+			 final Upstream upstream,
+			 final Cache<HostnameKey, CompactRecordSet> cache,
+			 final LabelTrie<CompactRecordSet> wildcards,
+			 final ZoneRegistry zones)
+	{
+		if (config == null || upstream == null || zones == null)
+		{
+			throw new IllegalArgumentException("config, upstream or zones argument is null");
+		}
+
+		this.config = config;
+		this.upstream = upstream;
+		this.cache = cache;
+		this.wildcards = wildcards;
+		this.zones = zones;
+
+		if (config.max_encoded_answers_in_cache != null && config.max_encoded_answers_in_cache > 0)
+		{
+			encodedAnswers = CacheBuilder.newBuilder()
+						     .maximumSize(config.max_encoded_answers_in_cache)
+						     .build();
+		}
+		else
+		{
+			encodedAnswers = null;
+		}
+	}
+
+	/**
+	 * Binds the UDP and TCP sockets and starts answering.
+	 *
+	 * @throws Exception If the sockets can't be bound or the resolvers can't be set up.
+	 */
+	public void start() throws Exception
+	{
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(config.dns_listen_address),
+								  config.dns_listen_port);
+
+		int udpThreads = 50 * Runtime.getRuntime().availableProcessors();
+
+		if (config.dns_udp_threads != null)
+		{
+			udpThreads = config.dns_udp_threads;
+		}
+
+		udp = DatagramChannel.open();
+		udp.socket().bind(address);
+
+		for (int i = 0; i < udpThreads; i++)
+		{
+			Thread t = new Thread(new UdpWorker(newResponder()), "DnsServerUdp-" + i);
+			t.setDaemon(true);
+			threads.add(t);
+		}
+
+		tcp = new ServerSocket();
+		tcp.setReuseAddress(true);
+		tcp.bind(address);
+		tcpExecutor = new BoundedExecutor("DNS.tcp_pool", config.dns_tcp_threads, config.dns_tcp_queue_size, 0);
+
+		Thread acceptor = new Thread(new TcpAcceptor(), "DnsServerTcp");
+		acceptor.setDaemon(true);
+		threads.add(acceptor);
+
+		for (Thread t : threads)
+		{
+			t.start();
+		}
+
+		log.info("answering DNS queries on " + address + " with " + udpThreads + " UDP threads");
+	}
+
+	/**
+	 * Stops answering and closes the sockets.
+	 */
+	public void shutdown()
+	{
+		try
+		{
+			if (udp != null)
+			{
+				udp.close();
+			}
+
+			if (tcp != null)
+			{
+				tcp.close();
+			}
+		}
+		catch (IOException e)
+		{
+			log.warn("Error closing DNS server sockets: " + e);
+		}
+
+		if (tcpExecutor != null)
+		{
+			tcpExecutor.shutdownNow();
+		}
+
+		for (Thread t : threads)
+		{
+			t.interrupt();
+		}
+	}
+
+	private DnsResponder newResponder() throws Exception
+	{
+		return new DnsResponder(zones, new Resolver(config, upstream, cache, wildcards), encodedAnswers);
+	}
+
+	private class UdpWorker implements Runnable
+	{
+		private final DnsResponder responder;
+		private final ByteBuffer in = ByteBuffer.allocate(DnsResponder.MAX_MESSAGE_LENGTH);
+
+		private UdpWorker(final DnsResponder responder)
+		{
+			this.responder = responder;
+		}
+
+		public void run()
+		{
+			while (!Thread.currentThread().isInterrupted())
+			{
+				try
+				{
+					in.clear();
+					InetSocketAddress source = (InetSocketAddress) udp.receive(in);
+					long start = System.nanoTime();
+
+					so.increment("DNS.queries.udp");
+
+					int length = responder.respond(in.array(), in.position(), source.getAddress(), true);
+
+					if (length > 0)
+					{
+						udp.send(ByteBuffer.wrap(responder.getResponse(), 0, length), source);
+					}
+
+					so.timing("DNS.request_processing", (System.nanoTime() - start) / 1000);
+				}
+				catch (ClosedChannelException e)
+				{
+					break;
+				}
+				catch (Exception e)
+				{
+					so.increment("DNS.exceptions");
+					log.warn("exception answering a UDP query: " + e, e);
+				}
+			}
+		}
+	}
+
+	private class TcpAcceptor implements Runnable
+	{
+		public void run()
+		{
+			while (!Thread.currentThread().isInterrupted() && !tcp.isClosed())
+			{
+				try
+				{
+					Socket client = tcp.accept();
+					client.setSoTimeout(config.dns_tcp_idle_timeout);
+					so.increment("DNS.tcp_connections_accepted");
+
+					try
+					{
+						tcpExecutor.execute(new TcpConnection(client, newResponder()));
+					}
+					catch (RejectedExecutionException e)
+					{
+						client.close();
+					}
+				}
+				catch (IOException e)
+				{
+					if (!tcp.isClosed())
+					{
+						so.increment("DNS.exceptions");
+						log.warn("exception accepting a TCP connection: " + e);
+					}
+				}
+				catch (Exception e)
+				{
+					so.increment("DNS.exceptions");
+					log.warn("exception setting up a TCP connection: " + e, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answers the queries on one TCP connection, each preceded by its length in two bytes, as in RFC 1035 4.2.2.
+	 */
+	private class TcpConnection implements Runnable
+	{
+		private final Socket socket;
+		private final DnsResponder responder;
+
+		private TcpConnection(final Socket socket, final DnsResponder responder)
+		{
+			this.socket = socket;
+			this.responder = responder;
+		}
+
+		public void run()
+		{
+			byte[] in = new byte[DnsResponder.MAX_MESSAGE_LENGTH];
+
+			try
+			{
+				DataInputStream input = new DataInputStream(socket.getInputStream());
+				OutputStream output = socket.getOutputStream();
+				byte[] prefix = new byte[2];
+
+				while (!Thread.currentThread().isInterrupted())
+				{
+					int length = input.readUnsignedShort();
+					input.readFully(in, 0, length);
+					long start = System.nanoTime();
+
+					so.increment("DNS.queries.tcp");
+
+					int responseLength = responder.respond(in, length, socket.getInetAddress(), false);
+
+					if (responseLength < 0)
+					{
+						break;
+					}
+
+					prefix[0] = (byte) (responseLength >>> 8);
+					prefix[1] = (byte) responseLength;
+					output.write(prefix);
+					output.write(responder.getResponse(), 0, responseLength);
+					output.flush();
+
+					so.timing("DNS.request_processing", (System.nanoTime() - start) / 1000);
+				}
+			}
+			catch (SocketTimeoutException e)
+			{
+				so.increment("DNS.tcp_connections_timed_out");
+			}
+			catch (EOFException e)
+			{
+				// the client is done
+			}
+			catch (IOException e)
+			{
+				if (log.isDebugEnabled())
+				{
+					log.debug("exception on a TCP connection: " + e);
+				}
+			}
+			finally
+			{
+				try
+				{
+					socket.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,548 @@
+package org.devnull.jedi.http;
+
+import com.google.common.cache.Cache;
+import org.apache.log4j.Logger;
+import org.devnull.jedi.CompactRecordSet;
+import org.devnull.jedi.HostnameKey;
+import org.devnull.jedi.LabelTrie;
+import org.devnull.jedi.Now;
+import org.devnull.jedi.Resolver;
+import org.devnull.jedi.Upstream;
+import org.devnull.jedi.ZoneRegistry;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * HttpConnector serves PowerDNS's remotebackend in http mode, so that PowerDNS can talk to Jedi directly instead
+ * of through a UNIX-to-TCP port forwarder.  Set remote-connection-string=http:url=http://host:port/dnsapi in
+ * PowerDNS, and http_listen_port here.
+ * <p/>
+ * One thread owns every connection: it accepts them, reads requests from them without blocking, and writes the
+ * responses back, keeping connections open between requests.  Parsed requests are handed to http_worker_count
+ * worker threads, each with a Resolver of its own, since a lookup may wait on the REST server; the worker hands
+ * the response back to the connection thread to write.  A connection has at most one request being answered at a
+ * time, so responses go out in the order the requests came in.
+ * <p/>
+ * At most http_queue_size requests wait for a worker; past that a request is answered 503 Service Unavailable
+ * right away, rather than waiting behind an unknown amount of work (HTTP.requests_received.rejected).
+ */
+public class HttpConnector implements Runnable
+{
+	private static final Logger log = Logger.getLogger(HttpConnector.class);
+	private static final StatsObject so = StatsObject.getInstance();
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final JediConfig config;
+	private final Upstream upstream;
+	private final Cache<HostnameKey, CompactRecordSet> cache;
+	private final LabelTrie<CompactRecordSet> wildcards;
+	private final ZoneRegistry zones;
+
+	private final BlockingQueue<Connection> requests;
+	private final Queue<Connection> responses = new ConcurrentLinkedQueue<Connection>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	private Selector selector = null;
+	private ServerSocketChannel server = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config    The JediConfig holding the http_* settings
+	 * @param upstream  The Upstream shared with the PowerDNS handlers
+	 * @param cache     The results Cache shared with the PowerDNS handlers, or null
+	 * @param wildcards The wildcard answers shared with the PowerDNS handlers, or null
+	 * @param zones     The zones to answer for
+	 */
+	public HttpConnector(final JediConfig config,
+			     final Upstream upstream,
+			     final Cache<HostnameKey, CompactRecordSet> cache,
+			     final LabelTrie<CompactRecordSet> wildcards,
+			     final ZoneRegistry zones)
+	{
+		if (config == null || upstream == null || zones == null)
+		{
+			throw new IllegalArgumentException("config, upstream or zones argument is null");
+		}
+
+		if (config.http_queue_size < 0)
+		{
+			throw new IllegalArgumentException("http_queue_size must not be negative");
+		}
+
+		this.config = config;
+		this.upstream = upstream;
+		this.cache = cache;
+		this.wildcards = wildcards;
+		this.zones = zones;
+
+		if (config.http_queue_size == 0)
+		{
+			this.requests = new SynchronousQueue<Connection>();
+		}
+		else
+		{
+			this.requests = new ArrayBlockingQueue<Connection>(config.http_queue_size);
+		}
+	}
+
+	/**
+	 * Binds the listening socket and starts the connection and worker threads.
+	 *
+	 * @throws Exception If the socket can't be bound or the resolvers can't be set up.
+	 */
+	public void start() throws Exception
+	{
+		int workers = 50 * Runtime.getRuntime().availableProcessors();
+
+		if (config.http_worker_count != null)
+		{
+			workers = config.http_worker_count;
+		}
+
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(InetAddress.getByName(config.http_listen_address),
+							   config.http_listen_port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		for (int i = 0; i < workers; i++)
+		{
+			RemoteBackendHandler handler = new RemoteBackendHandler(
+				new Resolver(config, upstream, cache, wildcards), zones);
+			Thread t = new Thread(new Worker(handler), "HttpConnectorWorker-" + i);
+			t.setDaemon(true);
+			threads.add(t);
+		}
+
+		Thread t = new Thread(this, "HttpConnector");
+		t.setDaemon(true);
+		threads.add(t);
+
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+
+		log.info("answering remotebackend http requests on " + server.socket().getLocalSocketAddress() + " with " +
+				 workers + " workers");
+	}
+
+	/**
+	 * @return The port requests are answered on, which is only interesting if http_listen_port was 0.
+	 */
+	public int getLocalPort()
+	{
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Closes the listening socket and every connection, and stops the threads.
+	 */
+	public void shutdown()
+	{
+		for (Thread t : threads)
+		{
+			t.interrupt();
+		}
+
+		try
+		{
+			if (selector != null)
+			{
+				for (SelectionKey key : selector.keys())
+				{
+					key.channel().close();
+				}
+
+				selector.close();
+			}
+		}
+		catch (Exception e)
+		{
+			log.warn("Error closing http connections: " + e);
+		}
+	}
+
+	/**
+	 * The connection thread's loop.
+	 */
+	public void run()
+	{
+		try
+		{
+			long lastIdleCheck = Now.getNow();
+
+			while (!Thread.currentThread().isInterrupted())
+			{
+				selector.select(1000);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid())
+					{
+						continue;
+					}
+
+					try
+					{
+						if (key.isAcceptable())
+						{
+							accept();
+						}
+						else if (key.isReadable())
+						{
+							read((Connection) key.attachment());
+						}
+						else if (key.isWritable())
+						{
+							write((Connection) key.attachment());
+						}
+					}
+					catch (IOException e)
+					{
+						if (log.isDebugEnabled())
+						{
+							log.debug("exception on an http connection: " + e);
+						}
+
+						close(key.attachment());
+					}
+				}
+
+				Connection answered;
+
+				while ((answered = responses.poll()) != null)
+				{
+					try
+					{
+						write(answered);
+					}
+					catch (IOException e)
+					{
+						close(answered);
+					}
+					catch (CancelledKeyException e)
+					{
+						// closed while it was being answered
+					}
+				}
+
+				if (Now.getNow() - lastIdleCheck >= 1000)
+				{
+					lastIdleCheck = Now.getNow();
+					closeIdle(lastIdleCheck);
+				}
+			}
+		}
+		catch (ClosedSelectorException e)
+		{
+			// shut down
+		}
+		catch (IOException e)
+		{
+			log.error("http connector failed: " + e, e);
+		}
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel;
+
+		while ((channel = server.accept()) != null)
+		{
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+
+			Connection c = new Connection(channel);
+			c.key = channel.register(selector, SelectionKey.OP_READ, c);
+
+			so.increment("HTTP.connections_accepted");
+		}
+	}
+
+	private void read(final Connection c) throws IOException
+	{
+		ByteBuffer in = c.in;
+
+		if (!in.hasRemaining())
+		{
+			//
+			// a body longer than the buffer; the header was already read, so it can't be more than the limits
+			//
+			ByteBuffer bigger = ByteBuffer.allocate(HttpRequest.MAX_HEADER_LENGTH + HttpRequest.MAX_BODY_LENGTH);
+			in.flip();
+			bigger.put(in);
+			c.in = in = bigger;
+		}
+
+		int n = c.channel.read(in);
+
+		if (n < 0)
+		{
+			close(c);
+			return;
+		}
+
+		c.lastActive = Now.getNow();
+		parse(c);
+	}
+
+	/**
+	 * Hands the next request read on a connection to a worker, if all of it has been read.
+	 */
+	private void parse(final Connection c) throws IOException
+	{
+		int length = c.request.parse(c.in.array(), c.in.position());
+
+		if (length == HttpRequest.INCOMPLETE)
+		{
+			return;
+		}
+
+		if (length == HttpRequest.INVALID)
+		{
+			so.increment("HTTP.requests_received.invalid");
+			c.response = response("400 Bad Request", "", false);
+			c.close = true;
+			c.consumed = c.in.position();
+			c.key.interestOps(0);
+			write(c);
+			return;
+		}
+
+		so.increment("HTTP.requests_received.total");
+		c.consumed = length;
+		c.started = System.nanoTime();
+		c.key.interestOps(0);
+
+		if (!requests.offer(c))
+		{
+			so.increment("HTTP.requests_received.rejected");
+			c.response = response("503 Service Unavailable", "", c.request.isKeepAlive());
+			c.close = !c.request.isKeepAlive();
+			write(c);
+		}
+	}
+
+	private void write(final Connection c) throws IOException
+	{
+		c.channel.write(c.response);
+
+		if (c.response.hasRemaining())
+		{
+			c.key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+
+		c.response = null;
+		c.lastActive = Now.getNow();
+
+		if (c.close)
+		{
+			close(c);
+			return;
+		}
+
+		//
+		// keep what was read past the end of the request, and see if it is another one
+		//
+		ByteBuffer in = c.in;
+		in.flip();
+		in.position(c.consumed);
+		in.compact();
+		c.consumed = 0;
+
+		if (in.capacity() > Connection.BUFFER_SIZE && in.position() < Connection.BUFFER_SIZE)
+		{
+			ByteBuffer smaller = ByteBuffer.allocate(Connection.BUFFER_SIZE);
+			in.flip();
+			smaller.put(in);
+			c.in = smaller;
+		}
+
+		c.key.interestOps(SelectionKey.OP_READ);
+
+		if (c.in.position() > 0)
+		{
+			parse(c);
+		}
+	}
+
+	private void closeIdle(final long now)
+	{
+		for (SelectionKey key : selector.keys())
+		{
+			Object attachment = key.attachment();
+
+			if (attachment instanceof Connection)
+			{
+				Connection c = (Connection) attachment;
+
+				//
+				// a connection with a request being answered is not idle, however long the answer takes
+				//
+				if (key.isValid() && key.interestOps() == SelectionKey.OP_READ &&
+				    now - c.lastActive > config.http_idle_timeout)
+				{
+					so.increment("HTTP.connections_timed_out");
+					close(c);
+				}
+			}
+		}
+	}
+
+	private void close(final Object attachment)
+	{
+		if (!(attachment instanceof Connection))
+		{
+			return;
+		}
+
+		Connection c = (Connection) attachment;
+
+		try
+		{
+			c.key.cancel();
+			c.channel.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	/**
+	 * @return The whole response, ready to write.
+	 */
+	static ByteBuffer response(final String status, final String body, final boolean keepAlive)
+	{
+		byte[] content = body.getBytes(UTF8);
+		StringBuilder sb = new StringBuilder(128);
+
+		sb.append("HTTP/1.1 ").append(status).append("\r\n");
+		sb.append("Content-Type: application/json\r\n");
+		sb.append("Content-Length: ").append(content.length).append("\r\n");
+
+		if (!keepAlive)
+		{
+			sb.append("Connection: close\r\n");
+		}
+
+		sb.append("\r\n");
+
+		byte[] header = sb.toString().getBytes(ASCII);
+		ByteBuffer response = ByteBuffer.allocate(header.length + content.length);
+		response.put(header).put(content);
+		response.flip();
+		return response;
+	}
+
+	/**
+	 * A client connection, and the request on it being answered.
+	 */
+	private static final class Connection
+	{
+		private static final int BUFFER_SIZE = 4096;
+
+		private final SocketChannel channel;
+		private final HttpRequest request = new HttpRequest();
+		private SelectionKey key;
+		private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		private ByteBuffer response;
+		private int consumed;
+		private boolean close;
+		private long started;
+		private long lastActive = Now.getNow();
+
+		private Connection(final SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+	}
+
+	private class Worker implements Runnable
+	{
+		private final RemoteBackendHandler handler;
+
+		private Worker(final RemoteBackendHandler handler)
+		{
+			this.handler = handler;
+		}
+
+		public void run()
+		{
+			while (!Thread.currentThread().isInterrupted())
+			{
+				Connection c;
+
+				try
+				{
+					c = requests.take();
+				}
+				catch (InterruptedException e)
+				{
+					break;
+				}
+
+				HttpRequest request = c.request;
+				boolean keepAlive = request.isKeepAlive();
+
+				try
+				{
+					String body = handler.handle(request, c.started);
+
+					if (body == null)
+					{
+						so.increment("HTTP.requests_received.not_found");
+						c.response = response("404 Not Found", "", keepAlive);
+					}
+					else
+					{
+						c.response = response("200 OK", body, keepAlive);
+					}
+				}
+				catch (Exception e)
+				{
+					so.increment("HTTP.exceptions");
+					log.warn("exception answering " + request.getPath() + ": " + e, e);
+					c.response = response("500 Internal Server Error", "", false);
+					keepAlive = false;
+				}
+
+				c.close = !keepAlive;
+				so.timing("HTTP.request_processing", (System.nanoTime() - c.started) / 1000);
+
+				responses.add(c);
+				selector.wakeup();
+			}
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package org.devnull.jedi.http;
+
+import java.nio.charset.Charset;
+
+/**
+ * HttpRequest parses the HTTP/1.x requests PowerDNS's remotebackend sends in http mode, straight from the bytes
+ * read off a connection: the request line, the few headers we care about, and the body if there is one.  It is
+ * reused for every request on a connection.
+ */
+class HttpRequest
+{
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * the largest request line and headers we will take, which is far more than PowerDNS sends
+	 */
+	static final int MAX_HEADER_LENGTH = 8192;
+
+	/**
+	 * the largest body we will take, for lookups sent with post_json=yes
+	 */
+	static final int MAX_BODY_LENGTH = 65536;
+
+	static final int INCOMPLETE = 0;
+	static final int INVALID = -1;
+
+	private String method;
+	private String path;
+	private String body;
+	private String remote;
+	private String realRemote;
+	private boolean keepAlive;
+
+	/**
+	 * Parses a request from the start of data.
+	 *
+	 * @param data   The bytes read so far
+	 * @param length How many of them there are
+	 * @return The length of the request, which is now parsed, or INCOMPLETE if more has to be read first, or INVALID
+	 *         if this is not a request we can make sense of.
+	 */
+	int parse(final byte[] data, final int length)
+	{
+		int headerEnd = findHeaderEnd(data, length);
+
+		if (headerEnd < 0)
+		{
+			return length >= MAX_HEADER_LENGTH ? INVALID : INCOMPLETE;
+		}
+
+		method = null;
+		path = null;
+		body = null;
+		remote = null;
+		realRemote = null;
+
+		int contentLength = 0;
+		String connection = null;
+		int lineStart = 0;
+		boolean requestLine = true;
+		boolean http11 = false;
+
+		while (lineStart < headerEnd)
+		{
+			int lineEnd = lineStart;
+
+			while (data[lineEnd] != '\n')
+			{
+				lineEnd++;
+			}
+
+			int end = lineEnd > lineStart && data[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+			String line = new String(data, lineStart, end - lineStart, ASCII);
+			lineStart = lineEnd + 1;
+
+			if (requestLine)
+			{
+				//
+				// GET /dnsapi/lookup/www.foo.com./ANY HTTP/1.1
+				//
+				String[] parts = line.split(" ");
+
+				if (parts.length != 3 || !parts[2].startsWith("HTTP/1."))
+				{
+					return INVALID;
+				}
+
+				method = parts[0];
+				path = parts[1];
+				http11 = !"HTTP/1.0".equals(parts[2]);
+				requestLine = false;
+				continue;
+			}
+
+			int colon = line.indexOf(':');
+
+			if (colon <= 0)
+			{
+				continue;
+			}
+
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+
+			if ("Content-Length".equalsIgnoreCase(name))
+			{
+				try
+				{
+					contentLength = Integer.parseInt(value);
+				}
+				catch (NumberFormatException e)
+				{
+					return INVALID;
+				}
+
+				if (contentLength < 0 || contentLength > MAX_BODY_LENGTH)
+				{
+					return INVALID;
+				}
+			}
+			else if ("Connection".equalsIgnoreCase(name))
+			{
+				connection = value;
+			}
+			else if ("Transfer-Encoding".equalsIgnoreCase(name))
+			{
+				//
+				// PowerDNS never sends a chunked request
+				//
+				return INVALID;
+			}
+			else if ("X-RemoteBackend-remote".equalsIgnoreCase(name))
+			{
+				remote = value;
+			}
+			else if ("X-RemoteBackend-real-remote".equalsIgnoreCase(name))
+			{
+				realRemote = value;
+			}
+		}
+
+		if (method == null)
+		{
+			return INVALID;
+		}
+
+		if (headerEnd + contentLength > length)
+		{
+			return INCOMPLETE;
+		}
+
+		if (contentLength > 0)
+		{
+			body = new String(data, headerEnd, contentLength, ASCII);
+		}
+
+		if (http11)
+		{
+			keepAlive = !"close".equalsIgnoreCase(connection);
+		}
+		else
+		{
+			keepAlive = "keep-alive".equalsIgnoreCase(connection);
+		}
+
+		return headerEnd + contentLength;
+	}
+
+	String getMethod()
+	{
+		return method;
+	}
+
+	/**
+	 * @return The path the request was for, e.g. /dnsapi/lookup/www.foo.com./ANY
+	 */
+	String getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * @return The body of the request, or null if it had none.
+	 */
+	String getBody()
+	{
+		return body;
+	}
+
+	/**
+	 * @return The address of the client that asked PowerDNS: real-remote if PowerDNS sent it (which carries the
+	 *         EDNS client subnet), otherwise remote, or null.
+	 */
+	String getRemote()
+	{
+		return realRemote != null ? realRemote : remote;
+	}
+
+	/**
+	 * @return True if the connection is to be kept open after the response.
+	 */
+	boolean isKeepAlive()
+	{
+		return keepAlive;
+	}
+
+	/**
+	 * @return The offset just past the blank line at the end of the headers, or -1 if it hasn't been read yet.
+	 */
+	private static int findHeaderEnd(final byte[] data, final int length)
+	{
+		int max = Math.min(length, MAX_HEADER_LENGTH);
+
+		for (int i = 1; i < max; i++)
+		{
+			if (data[i] != '\n')
+			{
+				continue;
+			}
+
+			if (data[i - 1] == '\n')
+			{
+				return i + 1;
+			}
+
+			if (i >= 3 && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r')
+			{
+				return i + 1;
+			}
+		}
+
+		return -1;
+	}
+}
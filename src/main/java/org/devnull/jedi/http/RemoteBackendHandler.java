@@ -0,0 +1,159 @@
+package org.devnull.jedi.http;
+
+import org.apache.log4j.Logger;
+import org.devnull.jedi.JsonBase;
+import org.devnull.jedi.PDNSRequest;
+import org.devnull.jedi.RemoteBackend;
+import org.devnull.jedi.Resolver;
+import org.devnull.jedi.ZoneRegistry;
+import org.devnull.statsd_client.StatsObject;
+
+import java.net.URLDecoder;
+
+/**
+ * RemoteBackendHandler answers the remotebackend's http mode requests, e.g.
+ * <p/>
+ * GET /dnsapi/lookup/www.foo.com/ANY
+ * <p/>
+ * with the same JSON answers the PowerDNSConnectionHandler writes on its sockets, from a RemoteBackend of its own.
+ * Lookups can also be POSTed as JSON, as PowerDNS does with post=yes and post_json=yes.  Every other method is
+ * answered with {"result":false}, as the socket protocol does.
+ * <p/>
+ * A RemoteBackendHandler keeps state for the request in progress and must only be used by one thread at a time.
+ */
+class RemoteBackendHandler extends JsonBase
+{
+	private static final Logger log = Logger.getLogger(RemoteBackendHandler.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	static final String PATH_PREFIX = "/dnsapi/";
+
+	private final Resolver resolver;
+	private final RemoteBackend backend;
+
+	/**
+	 * Constructor
+	 *
+	 * @param resolver The Resolver to find records with, used only by this handler
+	 * @param zones    The zones to answer for
+	 */
+	RemoteBackendHandler(final Resolver resolver, final ZoneRegistry zones)
+	{
+		this.resolver = resolver;
+		this.backend = new RemoteBackend(resolver, zones, "HTTP");
+	}
+
+	/**
+	 * Answers a request.
+	 *
+	 * @param request  The request, which has been parsed
+	 * @param received The System.nanoTime() it was read at; the time it waited for a worker counts against it
+	 * @return The JSON to answer with, or null if the request is not for the remotebackend API at all.
+	 */
+	String handle(final HttpRequest request, final long received)
+	{
+		String path = request.getPath();
+
+		if (path == null || !path.startsWith(PATH_PREFIX))
+		{
+			return null;
+		}
+
+		resolver.startRequest(received);
+
+		if (resolver.isExpired())
+		{
+			//
+			// waited for a worker for longer than PowerDNS waits for an answer, don't spend any more on it
+			//
+			so.increment("HTTP.requests_received.expired");
+			return RemoteBackend.NEGATIVE;
+		}
+
+		int methodEnd = path.indexOf('/', PATH_PREFIX.length());
+		String method = path.substring(PATH_PREFIX.length(), methodEnd < 0 ? path.length() : methodEnd);
+
+		if (!"lookup".equals(method))
+		{
+			so.increment("HTTP.requests_received.unsupported_method");
+			return RemoteBackend.NEGATIVE;
+		}
+
+		PDNSRequest lookup;
+
+		if (methodEnd < 0)
+		{
+			//
+			// post_json=yes: {"method":"lookup","parameters":{"qname":"www.foo.com","qtype":"ANY",...}}
+			//
+			if (request.getBody() == null)
+			{
+				so.increment("HTTP.requests_received.invalid");
+				return RemoteBackend.NEGATIVE;
+			}
+
+			try
+			{
+				lookup = mapper.readValue(request.getBody(), PDNSRequest.class);
+			}
+			catch (Exception e)
+			{
+				so.increment("HTTP.requests_received.invalid");
+
+				if (log.isDebugEnabled())
+				{
+					log.debug("unable to parse lookup " + request.getBody() + ": " + e);
+				}
+
+				return RemoteBackend.NEGATIVE;
+			}
+		}
+		else
+		{
+			//
+			// /dnsapi/lookup/<qname>/<qtype>
+			//
+			int qnameEnd = path.indexOf('/', methodEnd + 1);
+
+			if (qnameEnd < 0)
+			{
+				so.increment("HTTP.requests_received.invalid");
+				return RemoteBackend.NEGATIVE;
+			}
+
+			lookup = new PDNSRequest();
+			lookup.getParameters().put("qname", decode(path.substring(methodEnd + 1, qnameEnd)));
+			lookup.getParameters().put("qtype", decode(path.substring(qnameEnd + 1)));
+		}
+
+		//
+		// the method is in the path, and the client is the one connected unless PowerDNS says who asked it
+		//
+		lookup.setMethod(method);
+
+		if (lookup.getRemote() == null && lookup.getParameters() != null)
+		{
+			lookup.getParameters().put("remote", request.getRemote());
+		}
+
+		String answer = backend.answer(lookup);
+		return answer != null ? answer : RemoteBackend.NEGATIVE;
+	}
+
+	private static String decode(final String s)
+	{
+		if (s.indexOf('%') < 0)
+		{
+			return s;
+		}
+
+		try
+		{
+			return URLDecoder.decode(s, "UTF-8");
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+}
@@ -1,6 +1,6 @@
 package org.devnull.jedi.records;
 
-import org.apache.commons.validator.routines.InetAddressValidator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * IPRecord encapsulates the string of the IP address and the type: A or AAAA used
@@ -9,6 +9,7 @@ import org.apache.commons.validator.routines.InetAddressValidator;
 public class ARecord extends Record
 {
 	private String address = null;
+	private int inet4 = 0;
 
 	public ARecord()
 	{
@@ -23,6 +24,15 @@ public class ARecord extends Record
 		return address;
 	}
 
+	/**
+	 * @return the IP address as an int, which is only meaningful once the address is set
+	 */
+	@JsonIgnore
+	public int getInet4()
+	{
+		return inet4;
+	}
+
 	/**
 	 * Sets the address string
 	 *
@@ -31,11 +41,14 @@ public class ARecord extends Record
 	public void setAddress(final String address)
 		throws Exception
 	{
-		if (!InetAddressValidator.getInstance().isValidInet4Address(address))
+		long parsed = AddressParser.parseInet4(address);
+
+		if (parsed < 0)
 		{
 			throw new Exception("address is not valid: " + address);
 		}
 
 		this.address = address;
+		this.inet4 = (int) parsed;
 	}
 }
@@ -0,0 +1,332 @@
+package org.devnull.jedi.records;
+
+/**
+ * AddressParser parses record content in a single pass over the characters, without regular expressions or
+ * intermediate arrays, and produces the binary form at the same time as it validates.
+ * <p/>
+ * parseInet4 accepts exactly what commons-validator's InetAddressValidator.isValidInet4Address accepts: four
+ * groups of one to three ASCII digits (leading zeros allowed), each no more than 255, separated by dots.
+ */
+public final class AddressParser
+{
+	private AddressParser()
+	{
+	}
+
+	/**
+	 * Parses a dotted quad IPv4 address.
+	 *
+	 * @param s The address
+	 * @return The address as an unsigned 32 bit value, or -1 if it is not a valid IPv4 address.
+	 */
+	public static long parseInet4(final CharSequence s)
+	{
+		if (s == null)
+		{
+			return -1;
+		}
+
+		return parseInet4(s, 0, s.length());
+	}
+
+	/**
+	 * Parses the IPv4 address in s between start and end.
+	 *
+	 * @return The address as an unsigned 32 bit value, or -1 if it is not a valid IPv4 address.
+	 */
+	public static long parseInet4(final CharSequence s, final int start, final int end)
+	{
+		long address = 0;
+		int groups = 0;
+		int digits = 0;
+		int group = 0;
+
+		for (int i = start; i < end; i++)
+		{
+			char c = s.charAt(i);
+
+			if (c >= '0' && c <= '9')
+			{
+				if (++digits > 3)
+				{
+					return -1;
+				}
+
+				group = group * 10 + (c - '0');
+			}
+			else if (c == '.' && digits > 0 && groups < 3)
+			{
+				if (group > 255)
+				{
+					return -1;
+				}
+
+				address = address << 8 | group;
+				groups++;
+				digits = 0;
+				group = 0;
+			}
+			else
+			{
+				return -1;
+			}
+		}
+
+		if (groups != 3 || digits == 0 || group > 255)
+		{
+			return -1;
+		}
+
+		return address << 8 | group;
+	}
+
+	/**
+	 * Parses an IPv6 address, in any of the text forms of RFC 4291 section 2.2 (including "::" and a trailing
+	 * dotted quad), into two longs.  Zone ids are not accepted.
+	 *
+	 * @param s      The address
+	 * @param dest   Where to put the address: the high 64 bits at dest[offset], the low 64 bits at dest[offset + 1]
+	 * @param offset Where in dest to put the address
+	 * @return True if s is a valid IPv6 address, false (leaving dest alone) if not.
+	 */
+	public static boolean parseInet6(final CharSequence s, final long[] dest, final int offset)
+	{
+		if (s == null)
+		{
+			return false;
+		}
+
+		int length = s.length();
+
+		if (length < 2)
+		{
+			return false;
+		}
+
+		//
+		// the groups before "::" go into head, the ones after it into tail, both as 128 bit values in two longs
+		//
+		long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+		int headGroups = 0, tailGroups = 0;
+		boolean compressed = false;
+		int i = 0;
+
+		if (s.charAt(0) == ':')
+		{
+			if (s.charAt(1) != ':')
+			{
+				return false;
+			}
+
+			compressed = true;
+			i = 2;
+
+			if (length == 2)
+			{
+				dest[offset] = 0;
+				dest[offset + 1] = 0;
+				return true;
+			}
+		}
+
+		while (i < length)
+		{
+			int groupStart = i;
+			int group = 0;
+
+			while (i < length && i - groupStart < 5)
+			{
+				int digit = hexDigit(s.charAt(i));
+
+				if (digit < 0)
+				{
+					break;
+				}
+
+				group = group << 4 | digit;
+				i++;
+			}
+
+			int groupsSoFar = headGroups + tailGroups;
+
+			if (i < length && s.charAt(i) == '.')
+			{
+				//
+				// a dotted quad makes up the last two groups
+				//
+				long inet4 = parseInet4(s, groupStart, length);
+
+				if (inet4 < 0 || groupsSoFar > 6)
+				{
+					return false;
+				}
+
+				if (compressed)
+				{
+					tailHi = tailHi << 32 | tailLo >>> 32;
+					tailLo = tailLo << 32 | inet4;
+					tailGroups += 2;
+				}
+				else
+				{
+					headHi = headHi << 32 | headLo >>> 32;
+					headLo = headLo << 32 | inet4;
+					headGroups += 2;
+				}
+
+				i = length;
+				break;
+			}
+
+			int digits = i - groupStart;
+
+			if (digits == 0 || digits > 4 || groupsSoFar >= 8)
+			{
+				return false;
+			}
+
+			if (compressed)
+			{
+				tailHi = tailHi << 16 | tailLo >>> 48;
+				tailLo = tailLo << 16 | group;
+				tailGroups++;
+			}
+			else
+			{
+				headHi = headHi << 16 | headLo >>> 48;
+				headLo = headLo << 16 | group;
+				headGroups++;
+			}
+
+			if (i == length)
+			{
+				break;
+			}
+
+			if (s.charAt(i) != ':')
+			{
+				return false;
+			}
+
+			i++;
+
+			if (i < length && s.charAt(i) == ':')
+			{
+				if (compressed)
+				{
+					return false;
+				}
+
+				compressed = true;
+				i++;
+			}
+			else if (i == length)
+			{
+				//
+				// a single trailing colon
+				//
+				return false;
+			}
+		}
+
+		int groups = headGroups + tailGroups;
+
+		if (compressed ? groups > 7 : groups != 8)
+		{
+			return false;
+		}
+
+		//
+		// move the head up past the groups that "::" stands for and the tail
+		//
+		int shift = (8 - headGroups) * 16;
+
+		if (shift == 128)
+		{
+			headHi = 0;
+			headLo = 0;
+		}
+		else if (shift >= 64)
+		{
+			headHi = headLo << (shift - 64);
+			headLo = 0;
+		}
+		else if (shift > 0)
+		{
+			headHi = headHi << shift | headLo >>> (64 - shift);
+			headLo = headLo << shift;
+		}
+
+		dest[offset] = headHi | tailHi;
+		dest[offset + 1] = headLo | tailLo;
+		return true;
+	}
+
+	/**
+	 * Parses a decimal int the way Integer.parseInt does.
+	 *
+	 * @throws NumberFormatException if s between start and end is not an int.
+	 */
+	public static int parseInt(final String s, final int start, final int end)
+	{
+		int value = 0;
+		int i = start;
+		boolean negative = false;
+
+		if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+		{
+			negative = s.charAt(i) == '-';
+			i++;
+		}
+
+		//
+		// anything but up to 9 plain ascii digits goes the slow way, which also gives the usual exception
+		//
+		if (i == end || end - i > 9)
+		{
+			return Integer.parseInt(s.substring(start, end));
+		}
+
+		for (; i < end; i++)
+		{
+			char c = s.charAt(i);
+
+			if (c < '0' || c > '9')
+			{
+				return Integer.parseInt(s.substring(start, end));
+			}
+
+			value = value * 10 + (c - '0');
+		}
+
+		return negative ? -value : value;
+	}
+
+	private static int hexDigit(final char c)
+	{
+		if (c >= '0' && c <= '9')
+		{
+			return c - '0';
+		}
+
+		if (c >= 'a' && c <= 'f')
+		{
+			return c - 'a' + 10;
+		}
+
+		if (c >= 'A' && c <= 'F')
+		{
+			return c - 'A' + 10;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return True for the characters the regular expression \s matches.
+	 */
+	public static boolean isWhitespace(final char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+	}
+}
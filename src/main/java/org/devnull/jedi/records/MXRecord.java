@@ -34,16 +34,63 @@ public class MXRecord extends Record
 			throw new NullPointerException("address cannot be null");
 		}
 
-		String[] fields = address.split("\\s+");
+		//
+		// this is address.split("\\s+") done in one pass: "host" or "priority host" separated by any amount of
+		// whitespace, where leading whitespace counts as an empty first field.
+		//
+		int length = address.length();
+		int words = 0;
+		int firstStart = 0, firstEnd = 0, lastStart = 0, lastEnd = 0;
+		int i = 0;
 
-		if (fields.length == 1)
+		while (i < length)
+		{
+			while (i < length && AddressParser.isWhitespace(address.charAt(i)))
+			{
+				i++;
+			}
+
+			if (i == length)
+			{
+				break;
+			}
+
+			int start = i;
+
+			while (i < length && !AddressParser.isWhitespace(address.charAt(i)))
+			{
+				i++;
+			}
+
+			if (++words == 1)
+			{
+				firstStart = start;
+				firstEnd = i;
+			}
+
+			lastStart = start;
+			lastEnd = i;
+		}
+
+		boolean leadingWhitespace = length > 0 && AddressParser.isWhitespace(address.charAt(0));
+		int fields = words == 0 ? (length == 0 ? 1 : 0) : words + (leadingWhitespace ? 1 : 0);
+
+		if (fields == 1)
 		{
 			this.address = address;
 		}
-		else if (fields.length == 2)
+		else if (fields == 2)
 		{
-			this.priority = Integer.parseInt(fields[0]);
-			this.address = fields[1];
+			if (leadingWhitespace)
+			{
+				//
+				// the priority field is empty
+				//
+				firstEnd = firstStart = 0;
+			}
+
+			this.priority = AddressParser.parseInt(address, firstStart, firstEnd);
+			this.address = address.substring(lastStart, lastEnd);
 		}
 		else
 		{
@@ -0,0 +1,205 @@
+package org.devnull.jedi.relay;
+
+import org.devnull.jedi.configs.RelayConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JediServerPool keeps idle connections to the Jedi servers open between requests, so that a request is passed on
+ * without a TCP handshake, and spreads requests over the servers in turn.
+ */
+class JediServerPool
+{
+	private static final StatsObject so = StatsObject.getInstance();
+
+	private final Server[] servers;
+	private final int connectTimeout;
+	private final int maxIdle;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Constructor
+	 *
+	 * @param config The RelayConfig holding the jedi_servers to connect to
+	 */
+	JediServerPool(final RelayConfig config)
+	{
+		if (config.jedi_servers == null || config.jedi_servers.isEmpty())
+		{
+			throw new IllegalArgumentException("jedi_servers is not set");
+		}
+
+		servers = new Server[config.jedi_servers.size()];
+
+		for (int i = 0; i < servers.length; i++)
+		{
+			String s = config.jedi_servers.get(i).trim();
+			int colon = s.lastIndexOf(':');
+
+			if (colon <= 0)
+			{
+				throw new IllegalArgumentException("jedi server " + s + " is not in host:port form");
+			}
+
+			servers[i] = new Server(
+				InetSocketAddress.createUnresolved(s.substring(0, colon), Integer.parseInt(s.substring(colon + 1))));
+		}
+
+		this.connectTimeout = config.jedi_connect_timeout;
+		this.maxIdle = config.max_idle_connections_per_server;
+	}
+
+	/**
+	 * Takes an idle connection to the next server, or opens one.  A server that can't be connected to is skipped.
+	 *
+	 * @return A connection in non-blocking mode, to give back with release() or close().
+	 * @throws IOException If no server can be connected to.
+	 */
+	Connection acquire() throws IOException
+	{
+		int start = next.getAndIncrement() & Integer.MAX_VALUE;
+		IOException last = null;
+
+		for (int i = 0; i < servers.length; i++)
+		{
+			Server server = servers[(start + i) % servers.length];
+			SocketChannel channel = server.idle.poll();
+
+			if (channel != null)
+			{
+				server.idleCount.decrementAndGet();
+				so.increment("RELAY.jedi_connections_reused");
+				return new Connection(server, channel, true);
+			}
+
+			try
+			{
+				return new Connection(server, connect(server), false);
+			}
+			catch (IOException e)
+			{
+				so.increment("RELAY.jedi_connect_failures");
+				last = e;
+			}
+		}
+
+		throw last;
+	}
+
+	/**
+	 * Gives a connection back for the next request, or closes it if there are enough idle ones already.
+	 */
+	void release(final Connection connection)
+	{
+		Server server = connection.server;
+
+		if (server.idleCount.incrementAndGet() <= maxIdle)
+		{
+			server.idle.add(connection.channel);
+		}
+		else
+		{
+			server.idleCount.decrementAndGet();
+			close(connection);
+		}
+	}
+
+	/**
+	 * Closes a connection that is broken, or in an unknown state.
+	 */
+	void close(final Connection connection)
+	{
+		try
+		{
+			connection.channel.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	/**
+	 * Closes every idle connection.
+	 */
+	void close()
+	{
+		for (Server server : servers)
+		{
+			SocketChannel channel;
+
+			while ((channel = server.idle.poll()) != null)
+			{
+				try
+				{
+					channel.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	private SocketChannel connect(final Server server) throws IOException
+	{
+		SocketChannel channel = SocketChannel.open();
+
+		try
+		{
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().connect(new InetSocketAddress(server.address.getHostString(), server.address.getPort()),
+						 connectTimeout);
+			channel.configureBlocking(false);
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+
+		so.increment("RELAY.jedi_connections_opened");
+		return channel;
+	}
+
+	/**
+	 * A Jedi server, and the idle connections to it.
+	 */
+	private static final class Server
+	{
+		private final InetSocketAddress address;
+		private final Queue<SocketChannel> idle = new ConcurrentLinkedQueue<SocketChannel>();
+		private final AtomicInteger idleCount = new AtomicInteger();
+
+		private Server(final InetSocketAddress address)
+		{
+			this.address = address;
+		}
+	}
+
+	/**
+	 * A connection taken from the pool.
+	 */
+	static final class Connection
+	{
+		private final Server server;
+		final SocketChannel channel;
+
+		/**
+		 * true if the connection was used before, and may have been closed by the server since
+		 */
+		final boolean reused;
+
+		private Connection(final Server server, final SocketChannel channel, final boolean reused)
+		{
+			this.server = server;
+			this.channel = channel;
+			this.reused = reused;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package org.devnull.jedi.relay;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.devnull.jedi.JsonBase;
+import org.devnull.jedi.configs.RelayConfig;
+import org.devnull.statsd_client.Shipper;
+import org.devnull.statsd_client.ShipperFactory;
+import org.devnull.statsd_client.StatsObject;
+import org.newsclub.net.unix.AFUNIXServerSocket;
+import org.newsclub.net.unix.AFUNIXSocketAddress;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Relay passes PowerDNS's remotebackend requests from a UNIX socket to Jedi servers over TCP, in place of
+ * python/unix_port_forward.py, for PowerDNS nodes that don't run Jedi themselves:
+ * <p/>
+ * java -cp jedi.jar org.devnull.jedi.relay.Relay -l log4j.conf -c relay.conf
+ * <p/>
+ * Each PowerDNS connection has a thread that waits on it, since the UNIX socket can't be selected on; PowerDNS
+ * keeps one connection per backend thread, so there are few of them.  Requests go to the Jedi servers on pooled
+ * connections, see RelayConnection.
+ */
+public final class Relay extends JsonBase implements Runnable
+{
+	private static Logger log = null;
+	private final StatsObject so = StatsObject.getInstance();
+	private RelayConfig config = null;
+
+	/**
+	 * Reads command line arguments.
+	 * <p/>
+	 * Command line args:
+	 * <p/>
+	 * -l <log4j.conf>		Path to a log4j properties file, optional
+	 * -c <relay.conf>		Path to the json-based configuration file, required
+	 *
+	 * @param args The String[] array of the command-line arguments
+	 * @throws Exception If there is an error reading the config files
+	 */
+	Relay(final String[] args) throws Exception
+	{
+		BasicConfigurator.configure();
+		log = Logger.getLogger(Relay.class);
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].trim().equals("-c"))
+			{
+				i++;
+				config = mapper.readValue(new File(args[i]), RelayConfig.class);
+			}
+			else if (args[i].trim().equals("-l"))
+			{
+				i++;
+				LogManager.resetConfiguration();
+				PropertyConfigurator.configure(args[i]);
+				log = Logger.getLogger(Relay.class);
+			}
+			else
+			{
+				log.info("Unknown command line argument: " + args[i]);
+			}
+		}
+
+		if (null == config)
+		{
+			throw new IllegalArgumentException("No configuration file specified on command line");
+		}
+	}
+
+	public static void main(String args[])
+	{
+		try
+		{
+			new Relay(args).run();
+		}
+		catch (Exception e)
+		{
+			log.error(e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Accepts PowerDNS connections until interrupted.
+	 */
+	public void run()
+	{
+		Shipper shipper = null;
+		JediServerPool pool = null;
+		AFUNIXServerSocket server = null;
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		try
+		{
+			shipper = ShipperFactory.getInstance(config.statsd_client_type);
+			shipper.configure(mapper.writeValueAsString(config.statsd_config));
+			Thread statsdShipperThread = new Thread(shipper, "StatsdShipper");
+			statsdShipperThread.setDaemon(true);
+			statsdShipperThread.start();
+
+			pool = new JediServerPool(config);
+
+			File path = new File(config.unix_socket_path);
+
+			if (path.exists() && !path.delete())
+			{
+				throw new IOException("unable to remove old unix socket " + path);
+			}
+
+			server = AFUNIXServerSocket.newInstance();
+			server.bind(new AFUNIXSocketAddress(path));
+
+			log.info("relaying " + path + " to " + config.jedi_servers);
+
+			while (!Thread.currentThread().isInterrupted())
+			{
+				Socket client = server.accept();
+				so.increment("RELAY.pdns_connections_accepted");
+				executor.execute(new RelayConnection(config, pool, client));
+			}
+		}
+		catch (Exception e)
+		{
+			log.error("Exception in run(): " + e.getMessage());
+			e.printStackTrace();
+		}
+		finally
+		{
+			executor.shutdownNow();
+
+			if (server != null)
+			{
+				try
+				{
+					server.close();
+				}
+				catch (IOException e)
+				{
+					log.warn("Error closing unix socket: " + e);
+				}
+			}
+
+			if (pool != null)
+			{
+				pool.close();
+			}
+
+			if (shipper != null)
+			{
+				shipper.shutdown();
+			}
+
+			log.info("exit");
+		}
+	}
+}
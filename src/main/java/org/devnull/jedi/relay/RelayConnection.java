@@ -0,0 +1,322 @@
+package org.devnull.jedi.relay;
+
+import org.apache.log4j.Logger;
+import org.devnull.jedi.configs.RelayConfig;
+import org.devnull.statsd_client.StatsObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * RelayConnection passes the requests PowerDNS sends on one UNIX socket connection to the Jedi servers, and their
+ * answers back.  Requests and answers are single lines of JSON and PowerDNS waits for each answer before asking
+ * again, so each request can go out on whichever pooled connection is free, rather than the connection being tied
+ * to one Jedi server for its life.  A request that fails on a connection is tried once more on another, and if
+ * that fails too PowerDNS is answered with {"result":false}, as Jedi does when it can't find an answer.
+ */
+class RelayConnection implements Runnable
+{
+	private static final Logger log = Logger.getLogger(RelayConnection.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	static final byte[] NEGATIVE = "{\"result\":false}\n".getBytes();
+
+	private static final int BUFFER_SIZE = 16384;
+
+	private final RelayConfig config;
+	private final JediServerPool pool;
+	private final Socket socket;
+
+	/**
+	 * requests from PowerDNS are read into this; it grows up to max_message_length for long ones
+	 */
+	private byte[] request = new byte[BUFFER_SIZE];
+
+	/**
+	 * answers from Jedi are gathered in this, so that a failed one can be retried before PowerDNS sees any of it
+	 */
+	private byte[] answer = new byte[BUFFER_SIZE];
+	private int answerLength;
+
+	private final ByteBuffer out;
+	private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	private Selector selector = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config The RelayConfig
+	 * @param pool   The connections to the Jedi servers
+	 * @param socket PowerDNS's connection, or null if relay() is called with streams instead
+	 */
+	RelayConnection(final RelayConfig config, final JediServerPool pool, final Socket socket)
+	{
+		this.config = config;
+		this.pool = pool;
+		this.socket = socket;
+		this.out = ByteBuffer.allocateDirect(config.max_message_length);
+	}
+
+	public void run()
+	{
+		try
+		{
+			socket.setSoTimeout(config.unix_socket_timeout);
+			relay(socket.getInputStream(), socket.getOutputStream());
+		}
+		catch (IOException e)
+		{
+			if (log.isDebugEnabled())
+			{
+				log.debug("PowerDNS connection closed: " + e);
+			}
+		}
+		finally
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Relays requests until PowerDNS closes the connection or stops asking.
+	 *
+	 * @param pdnsIn  Where PowerDNS's requests come from
+	 * @param pdnsOut Where the answers go
+	 * @throws IOException If PowerDNS's connection fails.
+	 */
+	void relay(final InputStream pdnsIn, final OutputStream pdnsOut) throws IOException
+	{
+		selector = Selector.open();
+
+		try
+		{
+			int length = 0;
+
+			while (true)
+			{
+				if (length == request.length)
+				{
+					if (request.length >= config.max_message_length)
+					{
+						so.increment("RELAY.requests_too_long");
+						return;
+					}
+
+					request = Arrays.copyOf(request, Math.min(request.length * 2, config.max_message_length));
+				}
+
+				int scanned = length;
+				int n;
+
+				try
+				{
+					n = pdnsIn.read(request, length, request.length - length);
+				}
+				catch (SocketTimeoutException e)
+				{
+					so.increment("RELAY.pdns_connections_timed_out");
+					return;
+				}
+
+				if (n < 0)
+				{
+					return;
+				}
+
+				length += n;
+
+				//
+				// pass on every complete line; PowerDNS only sends one at a time, but nothing depends on that
+				//
+				int start = 0;
+
+				for (int i = scanned; i < length; i++)
+				{
+					if (request[i] == '\n')
+					{
+						long begin = System.nanoTime();
+						so.increment("RELAY.requests");
+
+						if (forward(start, i + 1 - start))
+						{
+							pdnsOut.write(answer, 0, answerLength);
+						}
+						else
+						{
+							pdnsOut.write(NEGATIVE);
+						}
+
+						pdnsOut.flush();
+
+						so.timing("RELAY.request_processing", (System.nanoTime() - begin) / 1000);
+						start = i + 1;
+					}
+				}
+
+				if (start > 0)
+				{
+					System.arraycopy(request, start, request, 0, length - start);
+					length -= start;
+				}
+			}
+		}
+		finally
+		{
+			selector.close();
+		}
+	}
+
+	/**
+	 * Passes one request to a Jedi server and reads its answer into answer, trying again on another connection
+	 * if the first fails.
+	 *
+	 * @return True if answer holds the answer, false if PowerDNS should be answered negatively.
+	 */
+	private boolean forward(final int offset, final int length)
+	{
+		for (int attempt = 0; attempt < 2; attempt++)
+		{
+			JediServerPool.Connection connection;
+
+			try
+			{
+				connection = pool.acquire();
+			}
+			catch (IOException e)
+			{
+				log.warn("unable to connect to any Jedi server: " + e);
+				break;
+			}
+
+			try
+			{
+				out.clear();
+				out.put(request, offset, length);
+				out.flip();
+
+				write(connection.channel);
+				read(connection.channel);
+
+				so.timing("RELAY.request_size", length);
+				so.timing("RELAY.answer_size", answerLength);
+				pool.release(connection);
+				return true;
+			}
+			catch (IOException e)
+			{
+				pool.close(connection);
+				so.increment(connection.reused ? "RELAY.jedi_errors.reused_connection" :
+						     "RELAY.jedi_errors.new_connection");
+
+				if (log.isDebugEnabled())
+				{
+					log.debug("error relaying request to Jedi: " + e);
+				}
+			}
+		}
+
+		so.increment("RELAY.negative_replies_sent");
+		return false;
+	}
+
+	private void write(final SocketChannel channel) throws IOException
+	{
+		while (out.hasRemaining())
+		{
+			if (channel.write(out) == 0)
+			{
+				await(channel, SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	/**
+	 * Reads one line into answer.
+	 */
+	private void read(final SocketChannel channel) throws IOException
+	{
+		answerLength = 0;
+
+		while (true)
+		{
+			in.clear();
+			int n = channel.read(in);
+
+			if (n < 0)
+			{
+				throw new EOFException("Jedi closed the connection");
+			}
+
+			if (n == 0)
+			{
+				await(channel, SelectionKey.OP_READ);
+				continue;
+			}
+
+			in.flip();
+
+			if (answerLength + n > answer.length)
+			{
+				if (answerLength + n > config.max_message_length)
+				{
+					so.increment("RELAY.answers_too_long");
+					throw new IOException("answer is longer than " + config.max_message_length + " bytes");
+				}
+
+				answer = Arrays.copyOf(answer, Math.min(Math.max(answer.length * 2, answerLength + n),
+									 config.max_message_length));
+			}
+
+			in.get(answer, answerLength, n);
+			answerLength += n;
+
+			if (answer[answerLength - 1] == '\n')
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Waits for a connection to be ready, at most jedi_read_timeout.
+	 */
+	private void await(final SocketChannel channel, final int ops) throws IOException
+	{
+		SelectionKey key = channel.register(selector, ops);
+
+		try
+		{
+			if (selector.select(config.jedi_read_timeout) == 0)
+			{
+				so.increment("RELAY.jedi_timeouts");
+				throw new SocketTimeoutException("Jedi did not answer in " + config.jedi_read_timeout + "ms");
+			}
+
+			selector.selectedKeys().clear();
+		}
+		finally
+		{
+			//
+			// the connection goes back to the pool, and may be used with another connection's selector next
+			//
+			key.cancel();
+			selector.selectNow();
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package org.devnull.jedi.zmq;
+
+import com.google.common.cache.Cache;
+import org.apache.log4j.Logger;
+import org.devnull.jedi.CompactRecordSet;
+import org.devnull.jedi.HostnameKey;
+import org.devnull.jedi.LabelTrie;
+import org.devnull.jedi.Resolver;
+import org.devnull.jedi.Upstream;
+import org.devnull.jedi.ZoneRegistry;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.statsd_client.StatsObject;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * ZmqConnector serves PowerDNS's remotebackend in zeromq mode, e.g. with
+ * remote-connection-string=zeromq:endpoint=ipc:///var/run/jedi.0 in PowerDNS and the same zmq_endpoint here, so
+ * that PowerDNS can talk to Jedi without a UNIX-to-TCP port forwarder or a thread per connection.
+ * <p/>
+ * Each PowerDNS backend thread has a REQ socket that sends one JSON request at a time, the same requests as on the
+ * socket protocol, to our ROUTER socket.  One thread hands each request to an idle one of zmq_worker_count workers
+ * and the answer back to whoever asked, which is zeromq's load balancing broker: the workers connect over inproc
+ * with REQ sockets and say READY, and a worker is only given a request once it has answered the last one, so a
+ * lookup waiting on the REST server holds up no one else's.  While every worker is busy, requests wait in zeromq's
+ * queues.
+ */
+public class ZmqConnector implements Runnable
+{
+	private static final Logger log = Logger.getLogger(ZmqConnector.class);
+	private static final StatsObject so = StatsObject.getInstance();
+
+	static final String WORKERS_ENDPOINT = "inproc://jedi-zmq-workers";
+	static final byte[] READY = "READY".getBytes();
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final JediConfig config;
+	private final Upstream upstream;
+	private final Cache<HostnameKey, CompactRecordSet> cache;
+	private final LabelTrie<CompactRecordSet> wildcards;
+	private final ZoneRegistry zones;
+
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	private ZMQ.Context context = null;
+	private ZMQ.Socket frontend = null;
+	private ZMQ.Socket backend = null;
+	private Thread broker = null;
+	private volatile boolean running = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config    The JediConfig holding the zmq_* settings
+	 * @param upstream  The Upstream shared with the PowerDNS handlers
+	 * @param cache     The results Cache shared with the PowerDNS handlers, or null
+	 * @param wildcards The wildcard answers shared with the PowerDNS handlers, or null
+	 * @param zones     The zones to answer for
+	 */
+	public ZmqConnector(final JediConfig config,
+			    final Upstream upstream,
+			    final Cache<HostnameKey, CompactRecordSet> cache,
+			    final LabelTrie<CompactRecordSet> wildcards,
+			    final ZoneRegistry zones)
+	{
+		if (config == null || upstream == null || zones == null)
+		{
+			throw new IllegalArgumentException("config, upstream or zones argument is null");
+		}
+
+		this.config = config;
+		this.upstream = upstream;
+		this.cache = cache;
+		this.wildcards = wildcards;
+		this.zones = zones;
+	}
+
+	/**
+	 * Binds zmq_endpoint and starts the broker and worker threads.
+	 *
+	 * @throws Exception If the endpoint can't be bound or the resolvers can't be set up.
+	 */
+	public void start() throws Exception
+	{
+		int workers = 50 * Runtime.getRuntime().availableProcessors();
+
+		if (config.zmq_worker_count != null)
+		{
+			workers = config.zmq_worker_count;
+		}
+
+		context = ZMQ.context(1);
+
+		frontend = context.socket(ZMQ.ROUTER);
+		frontend.setLinger(0);
+		frontend.bind(config.zmq_endpoint);
+
+		backend = context.socket(ZMQ.ROUTER);
+		backend.setLinger(0);
+		backend.bind(WORKERS_ENDPOINT);
+
+		for (int i = 0; i < workers; i++)
+		{
+			ZmqWorker worker = new ZmqWorker(context, new Resolver(config, upstream, cache, wildcards), zones);
+			Thread t = new Thread(worker, "ZmqWorker-" + i);
+			t.setDaemon(true);
+			threads.add(t);
+		}
+
+		running = true;
+		broker = new Thread(this, "ZmqConnector");
+		broker.setDaemon(true);
+		threads.add(broker);
+
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+
+		log.info("answering remotebackend zeromq requests on " + config.zmq_endpoint + " with " + workers +
+				 " workers");
+	}
+
+	/**
+	 * Stops the broker, then closes the context, which stops the workers once they have finished what they are
+	 * answering.
+	 */
+	public void shutdown()
+	{
+		running = false;
+
+		try
+		{
+			if (broker != null)
+			{
+				broker.join(2000);
+			}
+
+			if (context != null)
+			{
+				context.term();
+			}
+		}
+		catch (Exception e)
+		{
+			log.warn("Error closing zeromq context: " + e);
+		}
+	}
+
+	/**
+	 * The broker's loop.
+	 */
+	public void run()
+	{
+		Queue<byte[]> idle = new ArrayDeque<byte[]>();
+
+		//
+		// requests are only taken from PowerDNS while there is a worker to give them to
+		//
+		ZMQ.Poller workersOnly = new ZMQ.Poller(1);
+		workersOnly.register(backend, ZMQ.Poller.POLLIN);
+
+		ZMQ.Poller both = new ZMQ.Poller(2);
+		both.register(backend, ZMQ.Poller.POLLIN);
+		both.register(frontend, ZMQ.Poller.POLLIN);
+
+		try
+		{
+			while (running)
+			{
+				ZMQ.Poller poller = idle.isEmpty() ? workersOnly : both;
+
+				if (poller.poll(1000) <= 0)
+				{
+					continue;
+				}
+
+				if (poller.pollin(0))
+				{
+					fromWorker(idle);
+				}
+
+				if (poller == both && poller.pollin(1))
+				{
+					fromPowerDNS(idle);
+				}
+			}
+		}
+		catch (ZMQException e)
+		{
+			if (running)
+			{
+				so.increment("ZMQ.exceptions");
+				log.error("zeromq broker stopped: " + e);
+			}
+		}
+		finally
+		{
+			frontend.close();
+			backend.close();
+		}
+	}
+
+	/**
+	 * A worker's READY, or its answer: worker id, empty, then either READY or the envelope and answer to send on.
+	 */
+	private void fromWorker(final Queue<byte[]> idle)
+	{
+		List<byte[]> frames = receive(backend);
+
+		if (frames == null)
+		{
+			return;
+		}
+
+		if (frames.size() < 3)
+		{
+			so.increment("ZMQ.invalid_worker_messages");
+			return;
+		}
+
+		idle.add(frames.get(0));
+
+		if (frames.size() == 3 && Arrays.equals(READY, frames.get(2)))
+		{
+			return;
+		}
+
+		send(frontend, frames.subList(2, frames.size()));
+		so.increment("ZMQ.replies_sent");
+	}
+
+	/**
+	 * A request from PowerDNS: its id, empty, the JSON.  All of it goes to the worker, so that the worker's answer
+	 * carries the envelope back.
+	 */
+	private void fromPowerDNS(final Queue<byte[]> idle)
+	{
+		List<byte[]> frames = receive(frontend);
+
+		if (frames == null)
+		{
+			return;
+		}
+
+		so.increment("ZMQ.requests_received");
+
+		List<byte[]> message = new ArrayList<byte[]>(frames.size() + 2);
+		message.add(idle.remove());
+		message.add(EMPTY);
+		message.addAll(frames);
+
+		send(backend, message);
+	}
+
+	/**
+	 * Receives every frame of a message.
+	 *
+	 * @return The frames, or null if the context is being closed.
+	 */
+	static List<byte[]> receive(final ZMQ.Socket socket)
+	{
+		List<byte[]> frames = new ArrayList<byte[]>(4);
+
+		do
+		{
+			byte[] frame = socket.recv(0);
+
+			if (frame == null)
+			{
+				return null;
+			}
+
+			frames.add(frame);
+		}
+		while (socket.hasReceiveMore());
+
+		return frames;
+	}
+
+	/**
+	 * Sends frames as one message.
+	 */
+	static void send(final ZMQ.Socket socket, final List<byte[]> frames)
+	{
+		for (int i = 0; i < frames.size(); i++)
+		{
+			socket.send(frames.get(i), i < frames.size() - 1 ? ZMQ.SNDMORE : 0);
+		}
+	}
+}
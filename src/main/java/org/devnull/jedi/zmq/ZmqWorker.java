@@ -0,0 +1,114 @@
+package org.devnull.jedi.zmq;
+
+import org.apache.log4j.Logger;
+import org.devnull.jedi.RemoteBackend;
+import org.devnull.jedi.Resolver;
+import org.devnull.jedi.ZoneRegistry;
+import org.devnull.statsd_client.StatsObject;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * ZmqWorker answers the remotebackend requests the ZmqConnector hands it, one at a time, with the same answers the
+ * PowerDNSConnectionHandler writes on its sockets, from a RemoteBackend of its own.
+ */
+class ZmqWorker implements Runnable
+{
+	private static final Logger log = Logger.getLogger(ZmqWorker.class);
+	private static final StatsObject so = StatsObject.getInstance();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ZMQ.Context context;
+	private final Resolver resolver;
+	private final RemoteBackend backend;
+
+	/**
+	 * Constructor
+	 *
+	 * @param context  The context to connect to the ZmqConnector in
+	 * @param resolver The Resolver to find records with, used only by this worker
+	 * @param zones    The zones to answer for
+	 */
+	ZmqWorker(final ZMQ.Context context, final Resolver resolver, final ZoneRegistry zones)
+	{
+		this.context = context;
+		this.resolver = resolver;
+		this.backend = new RemoteBackend(resolver, zones, "ZMQ");
+	}
+
+	/**
+	 * Answers requests until the context is closed.
+	 */
+	public void run()
+	{
+		ZMQ.Socket socket = context.socket(ZMQ.REQ);
+
+		try
+		{
+			socket.setLinger(0);
+			socket.connect(ZmqConnector.WORKERS_ENDPOINT);
+			socket.send(ZmqConnector.READY, 0);
+
+			while (true)
+			{
+				//
+				// PowerDNS's envelope, then the request
+				//
+				List<byte[]> frames = ZmqConnector.receive(socket);
+
+				if (frames == null)
+				{
+					break;
+				}
+
+				long start = System.nanoTime();
+				int last = frames.size() - 1;
+				String answer;
+
+				try
+				{
+					answer = answer(new String(frames.get(last), UTF8));
+				}
+				catch (Exception e)
+				{
+					so.increment("ZMQ.exceptions");
+					log.warn("exception answering zeromq request: " + e, e);
+					answer = RemoteBackend.NEGATIVE;
+				}
+
+				frames.set(last, answer.getBytes(UTF8));
+				ZmqConnector.send(socket, frames);
+
+				so.timing("ZMQ.request_processing", (System.nanoTime() - start) / 1000);
+			}
+		}
+		catch (ZMQException e)
+		{
+			//
+			// the context was closed while we were waiting or answering
+			//
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	/**
+	 * Answers one request.
+	 *
+	 * @param requestLine The request, e.g. {"method":"lookup","parameters":{"qname":"www.foo.com","qtype":"ANY"}}
+	 * @return The JSON to answer with.
+	 */
+	String answer(final String requestLine)
+	{
+		resolver.startRequest();
+		so.increment("ZMQ.requests_received.total");
+
+		String answer = backend.answer(requestLine);
+		return answer != null ? answer : RemoteBackend.NEGATIVE;
+	}
+}
@@ -0,0 +1,171 @@
+package org.devnull.jedi;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.AssertJUnit.*;
+
+public class BoundedExecutorTest
+{
+	/**
+	 * A task that holds its thread until the latch is released.
+	 */
+	private Runnable blocker(final CountDownLatch latch)
+	{
+		return new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					latch.await();
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
+		};
+	}
+
+	private Callable<Integer> counter(final AtomicInteger runs)
+	{
+		return new Callable<Integer>()
+		{
+			public Integer call()
+			{
+				return runs.incrementAndGet();
+			}
+		};
+	}
+
+	@Test
+	public void testRejectsWhenFull() throws Exception
+	{
+		BoundedExecutor executor = new BoundedExecutor("test", 1, 2, 0);
+		CountDownLatch latch = new CountDownLatch(1);
+		AtomicInteger runs = new AtomicInteger();
+
+		try
+		{
+			executor.execute(blocker(latch));
+			Future<Integer> first = executor.submit(counter(runs));
+			Future<Integer> second = executor.submit(counter(runs));
+
+			try
+			{
+				executor.submit(counter(runs));
+				fail("a task beyond the queue size was accepted");
+			}
+			catch (RejectedExecutionException e)
+			{
+			}
+
+			latch.countDown();
+
+			assertEquals(1, (int) first.get(1, TimeUnit.SECONDS));
+			assertEquals(2, (int) second.get(1, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testNoQueue() throws Exception
+	{
+		BoundedExecutor executor = new BoundedExecutor("test", 1, 0, 0);
+		CountDownLatch latch = new CountDownLatch(1);
+
+		try
+		{
+			executor.execute(blocker(latch));
+
+			try
+			{
+				executor.execute(blocker(latch));
+				fail("a task was accepted with no idle thread and no queue");
+			}
+			catch (RejectedExecutionException e)
+			{
+			}
+		}
+		finally
+		{
+			latch.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testDropsExpiredTasks() throws Exception
+	{
+		BoundedExecutor executor = new BoundedExecutor("test", 1, 10, 50);
+		CountDownLatch latch = new CountDownLatch(1);
+		AtomicInteger runs = new AtomicInteger();
+
+		try
+		{
+			executor.execute(blocker(latch));
+			Future<Integer> expired = executor.submit(counter(runs));
+
+			Thread.sleep(100);
+			latch.countDown();
+
+			try
+			{
+				expired.get(1, TimeUnit.SECONDS);
+				fail("a task that waited past its deadline was run");
+			}
+			catch (CancellationException e)
+			{
+			}
+
+			//
+			// one that is run in time is run as usual
+			//
+			assertEquals(1, (int) executor.submit(counter(runs)).get(1, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testCancelledTasksLeaveTheQueue() throws Exception
+	{
+		BoundedExecutor executor = new BoundedExecutor("test", 1, 1, 0);
+		CountDownLatch latch = new CountDownLatch(1);
+		AtomicInteger runs = new AtomicInteger();
+
+		try
+		{
+			executor.execute(blocker(latch));
+			Future<Integer> cancelled = executor.submit(counter(runs));
+
+			assertEquals(1, executor.getQueue().size());
+			cancelled.cancel(true);
+			assertEquals(0, executor.getQueue().size());
+
+			//
+			// its place is free for another
+			//
+			Future<Integer> next = executor.submit(counter(runs));
+			latch.countDown();
+
+			assertEquals(1, (int) next.get(1, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+}
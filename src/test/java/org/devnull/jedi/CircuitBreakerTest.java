@@ -0,0 +1,177 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+public class CircuitBreakerTest
+{
+	private JediConfig newConfig()
+	{
+		JediConfig config = new JediConfig();
+		config.circuit_breaker_window = 1000;
+		config.circuit_breaker_min_requests = 4;
+		config.circuit_breaker_failure_rate = 0.5;
+		config.circuit_breaker_open_time = 500;
+		config.circuit_breaker_half_open_probes = 2;
+		return config;
+	}
+
+	private void open(final CircuitBreaker breaker)
+	{
+		for (int i = 0; i < 4; i++)
+		{
+			CircuitBreaker.Permit permit = breaker.allowRequest();
+			assertEquals(CircuitBreaker.Permit.ALLOWED, permit);
+			breaker.onFailure(permit);
+		}
+
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testOpensOnFailureRate() throws Exception
+	{
+		FakeClock clock = new FakeClock(10000);
+		CircuitBreaker breaker = new CircuitBreaker(newConfig(), clock);
+		CircuitBreaker.Permit permit;
+
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		//
+		// 3 failures out of 3 is not enough requests to decide on
+		//
+		for (int i = 0; i < 3; i++)
+		{
+			permit = breaker.allowRequest();
+			assertEquals(CircuitBreaker.Permit.ALLOWED, permit);
+			breaker.onFailure(permit);
+		}
+
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		//
+		// a new window starts the count over
+		//
+		clock.advance(1000);
+		permit = breaker.allowRequest();
+		breaker.onSuccess(permit, 0);
+		permit = breaker.allowRequest();
+		breaker.onSuccess(permit, 0);
+		permit = breaker.allowRequest();
+		breaker.onFailure(permit);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		permit = breaker.allowRequest();
+		breaker.onFailure(permit);
+
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		clock.advance(100);
+		assertEquals(CircuitBreaker.Permit.REJECTED, breaker.allowRequest());
+	}
+
+	@Test
+	public void testHalfOpenProbes() throws Exception
+	{
+		FakeClock clock = new FakeClock(10000);
+		CircuitBreaker breaker = new CircuitBreaker(newConfig(), clock);
+		CircuitBreaker.Permit permit;
+
+		open(breaker);
+
+		//
+		// a step of the wall clock does not end the open time early
+		//
+		clock.step(60000);
+		assertEquals(CircuitBreaker.Permit.REJECTED, breaker.allowRequest());
+
+		//
+		// after the open time one probe at a time goes through, and a failed probe opens it again
+		//
+		clock.advance(500);
+		permit = breaker.allowRequest();
+		assertEquals(CircuitBreaker.Permit.PROBE, permit);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertEquals(CircuitBreaker.Permit.REJECTED, breaker.allowRequest());
+		breaker.onFailure(permit);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		clock.advance(499);
+		assertEquals(CircuitBreaker.Permit.REJECTED, breaker.allowRequest());
+
+		//
+		// two good probes in a row close it
+		//
+		clock.advance(1);
+		permit = breaker.allowRequest();
+		assertEquals(CircuitBreaker.Permit.PROBE, permit);
+		breaker.onSuccess(permit, 0);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		permit = breaker.allowRequest();
+		assertEquals(CircuitBreaker.Permit.PROBE, permit);
+		breaker.onIgnore(permit);
+		permit = breaker.allowRequest();
+		assertEquals(CircuitBreaker.Permit.PROBE, permit);
+		breaker.onSuccess(permit, 0);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(CircuitBreaker.Permit.ALLOWED, breaker.allowRequest());
+	}
+
+	@Test
+	public void testLateFetchesAreNotProbes() throws Exception
+	{
+		FakeClock clock = new FakeClock(10000);
+		CircuitBreaker breaker = new CircuitBreaker(newConfig(), clock);
+
+		//
+		// fetches let through while closed, that finish only once the breaker is half open
+		//
+		CircuitBreaker.Permit late1 = breaker.allowRequest();
+		CircuitBreaker.Permit late2 = breaker.allowRequest();
+		CircuitBreaker.Permit late3 = breaker.allowRequest();
+		assertEquals(CircuitBreaker.Permit.ALLOWED, late1);
+
+		open(breaker);
+
+		clock.advance(500);
+		CircuitBreaker.Permit probe = breaker.allowRequest();
+		assertEquals(CircuitBreaker.Permit.PROBE, probe);
+
+		//
+		// they neither free the probe's place, nor count as probes, nor open the breaker again
+		//
+		breaker.onIgnore(late1);
+		assertEquals(CircuitBreaker.Permit.REJECTED, breaker.allowRequest());
+
+		breaker.onSuccess(late2, 0);
+		breaker.onFailure(late3);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertEquals(CircuitBreaker.Permit.REJECTED, breaker.allowRequest());
+
+		//
+		// it took the probe's own answers to close it
+		//
+		breaker.onSuccess(probe, 0);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		probe = breaker.allowRequest();
+		assertEquals(CircuitBreaker.Permit.PROBE, probe);
+		breaker.onSuccess(probe, 0);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testSlowCallsCountAsFailures() throws Exception
+	{
+		JediConfig config = newConfig();
+		config.circuit_breaker_slow_call_threshold = 10L;
+		CircuitBreaker breaker = new CircuitBreaker(config, new FakeClock(10000));
+
+		for (int i = 0; i < 4; i++)
+		{
+			CircuitBreaker.Permit permit = breaker.allowRequest();
+			assertEquals(CircuitBreaker.Permit.ALLOWED, permit);
+			breaker.onSuccess(permit, 20 * 1000000L);
+		}
+
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+}
@@ -0,0 +1,132 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+public class ClientRateLimiterTest
+{
+	private static JediConfig config()
+	{
+		JediConfig config = new JediConfig();
+		config.rate_limit_enabled = true;
+		config.rate_limit_misses_per_second = 1;
+		config.rate_limit_miss_burst = 3;
+		config.rate_limit_hits_per_second = 1;
+		config.rate_limit_hit_burst = 5;
+		config.rate_limit_report_interval = 0;
+		return config;
+	}
+
+	@Test
+	public void testBurstAndRefill() throws Exception
+	{
+		ClientRateLimiter limiter = new ClientRateLimiter(config());
+		long client = limiter.clientKey("10.1.2.3");
+
+		for (int i = 0; i < 3; i++)
+		{
+			assertTrue(limiter.tryAcquireMiss(client));
+		}
+
+		assertFalse(limiter.tryAcquireMiss(client));
+
+		//
+		// hits have their own budget
+		//
+		for (int i = 0; i < 5; i++)
+		{
+			assertTrue(limiter.tryAcquireHit(client));
+		}
+
+		assertFalse(limiter.tryAcquireHit(client));
+
+		Thread.sleep(1100);
+
+		assertTrue(limiter.tryAcquireMiss(client));
+		assertFalse(limiter.tryAcquireMiss(client));
+	}
+
+	@Test
+	public void testSubnets() throws Exception
+	{
+		ClientRateLimiter limiter = new ClientRateLimiter(config());
+
+		assertEquals(limiter.clientKey("10.1.2.3"), limiter.clientKey("10.1.2.200"));
+		assertEquals(limiter.clientKey("10.1.2.3"), limiter.clientKey("10.1.2.0/24"));
+		assertFalse(limiter.clientKey("10.1.2.3") == limiter.clientKey("10.1.3.3"));
+
+		//
+		// a shorter prefix from EDNS client subnet is used as is
+		//
+		assertEquals(limiter.clientKey("10.1.0.0/16"), limiter.clientKey("10.1.200.0/16"));
+		assertFalse(limiter.clientKey("10.1.0.0/16") == limiter.clientKey("10.1.5.1"));
+
+		assertEquals(limiter.clientKey("2001:db8:0:100::1"), limiter.clientKey("2001:db8:0:1ff::1"));
+		assertFalse(limiter.clientKey("2001:db8:0:100::1") == limiter.clientKey("2001:db8:0:200::1"));
+		assertFalse(limiter.clientKey("::ffff:0a01:0203") == limiter.clientKey("10.1.2.3"));
+
+		//
+		// addresses of DNS clients, which are already parsed
+		//
+		assertEquals(limiter.clientKey("10.1.2.3"), limiter.clientKey(InetAddress.getByName("10.1.2.200")));
+		assertEquals(limiter.clientKey("2001:db8:0:100::1"),
+			     limiter.clientKey(InetAddress.getByName("2001:db8:0:1ff::1")));
+
+		assertEquals(ClientRateLimiter.NO_CLIENT, limiter.clientKey((String) null));
+		assertEquals(ClientRateLimiter.NO_CLIENT, limiter.clientKey("not an address"));
+		assertEquals(ClientRateLimiter.NO_CLIENT, limiter.clientKey("10.1.2.3/x"));
+
+		//
+		// clients that can't be told apart are not limited
+		//
+		for (int i = 0; i < 100; i++)
+		{
+			assertTrue(limiter.tryAcquireMiss(ClientRateLimiter.NO_CLIENT));
+		}
+
+		//
+		// one subnet running out does not limit another
+		//
+		long abuser = limiter.clientKey("192.168.1.1");
+
+		while (limiter.tryAcquireMiss(abuser))
+		{
+			// use up the burst
+		}
+
+		assertFalse(limiter.tryAcquireMiss(limiter.clientKey("192.168.1.77")));
+		assertTrue(limiter.tryAcquireMiss(limiter.clientKey("192.168.2.1")));
+	}
+
+	@Test
+	public void testTopOffenders() throws Exception
+	{
+		ClientRateLimiter limiter = new ClientRateLimiter(config());
+		long v4 = limiter.clientKey("10.9.8.7");
+		long v6 = limiter.clientKey("2001:db8:1:2::1");
+
+		for (int i = 0; i < 10; i++)
+		{
+			limiter.tryAcquireMiss(v4);
+			limiter.tryAcquireMiss(v6);
+		}
+
+		for (int i = 0; i < 10; i++)
+		{
+			limiter.tryAcquireHit(v6);
+		}
+
+		List<String> top = limiter.drainTopOffenders(10);
+
+		assertEquals(2, top.size());
+		assertEquals("2001:db8:1::/56 misses=7 hits=5", top.get(0));
+		assertEquals("10.9.8.0/24 misses=7 hits=0", top.get(1));
+
+		assertTrue(limiter.drainTopOffenders(10).isEmpty());
+	}
+}
@@ -0,0 +1,139 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.records.AAAARecord;
+import org.devnull.jedi.records.ARecord;
+import org.devnull.jedi.records.MXRecord;
+import org.devnull.jedi.records.Record;
+import org.devnull.jedi.records.SOARecord;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+public class CompactRecordSetTest extends JsonBase
+{
+	private CompactRecordSet compact(final String records) throws Exception
+	{
+		DNSRecordSet r = mapper.readValue("{\"fqdn\":\"foo.bar.com\",\"ttl\":100,\"records\":[" + records + "]}",
+						  DNSRecordSet.class);
+		r.setTimestamp(12345L);
+		return CompactRecordSet.of(r);
+	}
+
+	private String aaaa(final String address) throws Exception
+	{
+		CompactRecordSet c = compact("{\"type\":\"AAAA\",\"address\":\"" + address + "\"}");
+		StringBuilder sb = new StringBuilder();
+		c.appendContent(0, sb);
+		return sb.toString();
+	}
+
+	@Test
+	public void testConversion() throws Exception
+	{
+		CompactRecordSet c = compact(
+			"{\"type\":\"SOA\",\"address\":\"foo.bar.baz me.foo.bar.baz 2012080849 7200 3600 1209600 3600\"}," +
+			"{\"type\":\"A\",\"address\":\"1.1.1.1\"},{\"type\":\"AAAA\",\"address\":\"2001::fefe\"}," +
+			"{\"type\":\"MX\",\"priority\":10,\"address\":\"mail1.bar.com\"},{\"type\":\"A\",\"address\":\"10.0.0.255\"}," +
+			"{\"type\":\"MX\",\"address\":\"20 mail2.bar.com\"},{\"type\":\"CNAME\",\"address\":\"www.bar.com\"}");
+
+		assertEquals(100, c.getTTL());
+		assertEquals(12345L, c.getTimestamp());
+		assertEquals(7, c.size());
+
+		String[] types = {"SOA", "A", "AAAA", "MX", "A", "MX", "CNAME"};
+		String[] contents = {"foo.bar.baz me.foo.bar.baz 2012080849 7200 3600 1209600 3600", "1.1.1.1", "2001::fefe",
+			"mail1.bar.com", "10.0.0.255", "mail2.bar.com", "www.bar.com"};
+		int[] priorities = {0, 0, 0, 10, 0, 20, 0};
+
+		for (int i = 0; i < types.length; i++)
+		{
+			assertEquals(types[i], c.getType(i));
+			assertEquals(contents[i], c.getContent(i));
+			assertEquals(priorities[i], c.getPriority(i));
+		}
+
+		List<Record> records = c.getRecords();
+		assertEquals(7, records.size());
+		assertTrue(records.get(0) instanceof SOARecord);
+		assertTrue(records.get(1) instanceof ARecord);
+		assertEquals("1.1.1.1", records.get(1).getAddress());
+		assertTrue(records.get(2) instanceof AAAARecord);
+		assertEquals("2001::fefe", records.get(2).getAddress());
+		assertTrue(records.get(3) instanceof MXRecord);
+		assertEquals(10, ((MXRecord) records.get(3)).getPriority());
+		assertEquals("foo.bar.baz me.foo.bar.baz 2012080849 7200 3600 1209600 3600", c.getSOA().getAddress());
+
+		//
+		// text content is shared between record sets
+		//
+		CompactRecordSet other = compact("{\"type\":\"CNAME\",\"address\":\"" + new String("www.bar.com") + "\"}");
+		assertSame(c.getContent(6), other.getContent(0));
+	}
+
+	@Test
+	public void testSharing() throws Exception
+	{
+		String records = "{\"type\":\"A\",\"address\":\"10.0.0.1\"},{\"type\":\"A\",\"address\":\"10.0.0.2\"}," +
+			"{\"type\":\"SOA\",\"address\":\"foo.bar.baz me.foo.bar.baz 2012080849 7200 3600 1209600 3600\"}," +
+			"{\"type\":\"MX\",\"priority\":10,\"address\":\"mail1.bar.com\"}";
+
+		CompactRecordSet a = compact(records);
+		CompactRecordSet b = CompactRecordSet.of(
+			mapper.readValue("{\"fqdn\":\"other.bar.com\",\"ttl\":100,\"records\":[" + records + "]}",
+					 DNSRecordSet.class));
+
+		assertTrue(a.sharesContent(b));
+		assertEquals(12345L, a.getTimestamp());
+		assertEquals(0L, b.getTimestamp());
+
+		//
+		// a different TTL, order or record is a different answer
+		//
+		assertFalse(a.sharesContent(CompactRecordSet.of(
+			mapper.readValue("{\"ttl\":200,\"records\":[" + records + "]}", DNSRecordSet.class))));
+		assertFalse(a.sharesContent(compact("{\"type\":\"A\",\"address\":\"10.0.0.2\"}," +
+						    "{\"type\":\"A\",\"address\":\"10.0.0.1\"}")));
+		assertFalse(a.sharesContent(compact("{\"type\":\"A\",\"address\":\"10.0.0.1\"}")));
+
+		StringBuilder sb = new StringBuilder();
+		assertEquals(3, a.appendAnswers(sb, "foo.bar.com"));
+		assertEquals("{\"qname\":\"foo.bar.com\",\"qtype\":\"A\",\"content\":\"10.0.0.1\",\"ttl\":100,\"priority\":0,\"auth\":1}," +
+			     "{\"qname\":\"foo.bar.com\",\"qtype\":\"A\",\"content\":\"10.0.0.2\",\"ttl\":100,\"priority\":0,\"auth\":1}," +
+			     "{\"qname\":\"foo.bar.com\",\"qtype\":\"MX\",\"content\":\"mail1.bar.com\",\"ttl\":100,\"priority\":10,\"auth\":1}",
+			     sb.toString());
+
+		sb.setLength(0);
+		b.appendAnswers(sb, "other.bar.com");
+		assertTrue(sb.toString().startsWith("{\"qname\":\"other.bar.com\",\"qtype\":\"A\",\"content\":\"10.0.0.1\""));
+
+		sb.setLength(0);
+		assertEquals(0, compact("{\"type\":\"SOA\",\"address\":\"a b 1 2 3 4 5\"}").appendAnswers(sb, "foo.bar.com"));
+		assertEquals(0, sb.length());
+	}
+
+	@Test
+	public void testInet6Format() throws Exception
+	{
+		String[] canonical = {"::", "::1", "1::", "fe80::", "2001:db8::1", "2001:db8::1:0:0:1",
+			"2001:db8:0:1:1:1:1:1", "1:0:0:2::3", "2001:db8:85a3::8a2e:370:7334",
+			"ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"};
+
+		for (String address : canonical)
+		{
+			assertEquals(address, aaaa(address));
+		}
+
+		//
+		// anything that would not come back out the same is kept as sent
+		//
+		String[] kept = {"2001:DB8::1", "2001:db8:0:0:0:0:0:1", "::ffff:1.2.3.4", "::1.2.3.4", "not:an:address"};
+
+		for (String address : kept)
+		{
+			assertEquals(address, aaaa(address));
+			assertEquals("AAAA", compact("{\"type\":\"AAAA\",\"address\":\"" + address + "\"}").getType(0));
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+public class ConcurrencyLimiterTest
+{
+	private JediConfig newConfig()
+	{
+		JediConfig config = new JediConfig();
+		config.max_rest_client_threads = 10;
+		config.adaptive_concurrency_min_limit = 2;
+		config.adaptive_concurrency_initial_limit = 4;
+		config.adaptive_concurrency_latency_threshold = 100L;
+		config.adaptive_concurrency_backoff_ratio = 0.5;
+		return config;
+	}
+
+	@Test
+	public void testRejectsOverLimit() throws Exception
+	{
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(newConfig());
+
+		assertEquals(4, limiter.getLimit());
+
+		for (int i = 0; i < 4; i++)
+		{
+			assertTrue(limiter.tryAcquire());
+		}
+
+		assertFalse(limiter.tryAcquire());
+		assertEquals(4, limiter.getInFlight());
+
+		limiter.onIgnore();
+
+		assertEquals(4, limiter.getLimit());
+		assertTrue(limiter.tryAcquire());
+	}
+
+	@Test
+	public void testAdditiveIncrease() throws Exception
+	{
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(newConfig());
+
+		for (int i = 0; i < 4; i++)
+		{
+			assertTrue(limiter.tryAcquire());
+		}
+
+		//
+		// fast answers while the limit is in use grow it by one each, up to max_rest_client_threads
+		//
+		limiter.onSuccess(1000000L);
+		assertEquals(5, limiter.getLimit());
+
+		for (int i = 0; i < 20; i++)
+		{
+			while (limiter.tryAcquire())
+			{
+			}
+
+			limiter.onSuccess(1000000L);
+		}
+
+		assertEquals(10, limiter.getLimit());
+
+		//
+		// while mostly idle, fast answers do not grow it any further
+		//
+		while (limiter.getInFlight() > 0)
+		{
+			limiter.onIgnore();
+		}
+
+		assertTrue(limiter.tryAcquire());
+		limiter.onDropped();
+		assertEquals(5, limiter.getLimit());
+
+		assertTrue(limiter.tryAcquire());
+		limiter.onSuccess(1000000L);
+		assertEquals(5, limiter.getLimit());
+	}
+
+	@Test
+	public void testMultiplicativeDecrease() throws Exception
+	{
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(newConfig());
+
+		assertTrue(limiter.tryAcquire());
+		limiter.onDropped();
+		assertEquals(2, limiter.getLimit());
+
+		//
+		// slow answers shrink it as well, but never below the minimum
+		//
+		assertTrue(limiter.tryAcquire());
+		limiter.onSuccess(200 * 1000000L);
+		assertEquals(2, limiter.getLimit());
+		assertEquals(0, limiter.getInFlight());
+	}
+}
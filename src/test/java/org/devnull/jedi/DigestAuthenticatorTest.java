@@ -0,0 +1,134 @@
+package org.devnull.jedi;
+
+import org.apache.http.Header;
+import org.apache.http.auth.AuthProtocolState;
+import org.apache.http.auth.AuthState;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.auth.DigestScheme;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpRequest;
+import org.testng.annotations.Test;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.testng.AssertJUnit.*;
+
+public class DigestAuthenticatorTest
+{
+	/**
+	 * the example exchange from RFC 2617 section 3.5
+	 */
+	private static final String RFC_CHALLENGE = "Digest realm=\"testrealm@host.com\", qop=\"auth,auth-int\", " +
+		"nonce=\"dcd98b7102dd2f0e8b11d0f600bfb0c093\", opaque=\"5ccc069c403ebaf9f0171e9517f40e41\"";
+
+	private static String param(final String header, final String name)
+	{
+		Matcher m = Pattern.compile("[ ,]" + name + "=\"?([^\",]*)\"?").matcher(header);
+		assertTrue(header, m.find());
+		return m.group(1);
+	}
+
+	/**
+	 * @return a context as the http client leaves it after answering the given challenge
+	 */
+	private HttpClientContext challengedContext(final String challenge) throws Exception
+	{
+		DigestScheme scheme = new DigestScheme();
+		scheme.processChallenge(new BasicHeader("WWW-Authenticate", challenge));
+
+		AuthState authState = new AuthState();
+		authState.update(scheme, new UsernamePasswordCredentials("Mufasa", "Circle Of Life"));
+		authState.setState(AuthProtocolState.SUCCESS);
+
+		HttpClientContext context = HttpClientContext.create();
+		context.setAttribute(HttpClientContext.TARGET_AUTH_STATE, authState);
+		return context;
+	}
+
+	@Test
+	public void testPreemptiveHeader() throws Exception
+	{
+		DigestAuthenticator authenticator = new DigestAuthenticator("Mufasa", "Circle Of Life");
+
+		//
+		// nothing is added before the server has sent a challenge
+		//
+		BasicHttpRequest request = new BasicHttpRequest("GET", "/dir/index.html");
+		authenticator.process(request, HttpClientContext.create());
+		assertFalse(request.containsHeader("Authorization"));
+
+		authenticator.update(challengedContext(RFC_CHALLENGE), false);
+		assertTrue(authenticator.hasChallenge());
+
+		request = new BasicHttpRequest("GET", "/dir/index.html");
+		authenticator.process(request, HttpClientContext.create());
+		Header header = request.getFirstHeader("Authorization");
+		assertNotNull(header);
+
+		String value = header.getValue();
+		assertTrue(value, value.startsWith("Digest username=\"Mufasa\""));
+		assertEquals("testrealm@host.com", param(value, "realm"));
+		assertEquals("dcd98b7102dd2f0e8b11d0f600bfb0c093", param(value, "nonce"));
+		assertEquals("5ccc069c403ebaf9f0171e9517f40e41", param(value, "opaque"));
+		assertEquals("/dir/index.html", param(value, "uri"));
+		assertEquals("auth", param(value, "qop"));
+
+		//
+		// the http client used nonce count 1 answering the challenge
+		//
+		assertEquals("00000002", param(value, "nc"));
+
+		String ha1 = DigestAuthenticator.md5Hex("Mufasa:testrealm@host.com:Circle Of Life");
+		String ha2 = DigestAuthenticator.md5Hex("GET:/dir/index.html");
+		String expected = DigestAuthenticator.md5Hex(
+			ha1 + ":dcd98b7102dd2f0e8b11d0f600bfb0c093:00000002:" + param(value, "cnonce") + ":auth:" + ha2);
+		assertEquals(expected, param(value, "response"));
+
+		//
+		// with the RFC's own client nonce this is the RFC's answer
+		//
+		assertEquals("6629fae49393a05397450978507c4ef1", DigestAuthenticator.md5Hex(
+			ha1 + ":dcd98b7102dd2f0e8b11d0f600bfb0c093:00000001:0a4f113b:auth:" + ha2));
+
+		request = new BasicHttpRequest("GET", "/dir/index.html");
+		authenticator.process(request, HttpClientContext.create());
+		assertEquals("00000003", param(request.getFirstHeader("Authorization").getValue(), "nc"));
+	}
+
+	@Test
+	public void testChallengeReplacedAndRejected() throws Exception
+	{
+		DigestAuthenticator authenticator = new DigestAuthenticator("Mufasa", "Circle Of Life");
+		authenticator.update(challengedContext(RFC_CHALLENGE), false);
+
+		//
+		// a stale nonce answered by the http client replaces the cached challenge, and the count starts over
+		//
+		authenticator.update(challengedContext(RFC_CHALLENGE.replace("dcd98b71", "00000000") + ", stale=true"),
+				     false);
+
+		BasicHttpRequest request = new BasicHttpRequest("GET", "/dir/index.html");
+		authenticator.process(request, HttpClientContext.create());
+		String value = request.getFirstHeader("Authorization").getValue();
+		assertEquals("0000000002dd2f0e8b11d0f600bfb0c093", param(value, "nonce"));
+		assertEquals("00000002", param(value, "nc"));
+
+		//
+		// a challenge that can't be answered up front keeps the old one
+		//
+		authenticator.update(challengedContext(RFC_CHALLENGE.replace("auth,auth-int", "auth-int")), false);
+		assertTrue(authenticator.hasChallenge());
+
+		//
+		// requests that end in a 401 anyway stop the preemptive headers
+		//
+		authenticator.update(HttpClientContext.create(), true);
+		assertFalse(authenticator.hasChallenge());
+
+		request = new BasicHttpRequest("GET", "/dir/index.html");
+		authenticator.process(request, HttpClientContext.create());
+		assertFalse(request.containsHeader("Authorization"));
+	}
+}
@@ -0,0 +1,43 @@
+package org.devnull.jedi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Clock whose time only moves when a test says so.
+ */
+public class FakeClock extends Clock
+{
+	private volatile long now;
+	private volatile long nanos = 0;
+
+	public FakeClock(final long now)
+	{
+		this.now = now;
+	}
+
+	@Override
+	public long currentTimeMillis()
+	{
+		return now;
+	}
+
+	@Override
+	public long nanoTime()
+	{
+		return nanos;
+	}
+
+	public void advance(final long millis)
+	{
+		now += millis;
+		nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * Steps the wall clock only, as when it is set, leaving the monotonic time where it is.
+	 */
+	public void step(final long millis)
+	{
+		now += millis;
+	}
+}
@@ -0,0 +1,98 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Future;
+
+import static org.testng.AssertJUnit.*;
+
+public class HedgerTest
+{
+	private static final Runnable NOTHING = new Runnable()
+	{
+		public void run()
+		{
+		}
+	};
+
+	@Test
+	public void testDelay() throws Exception
+	{
+		JediConfig config = new JediConfig();
+		config.hedge_percentile = 0.9;
+		config.hedge_min_delay = 1;
+		Hedger hedger = new Hedger(config);
+
+		//
+		// nothing is hedged until the latency percentile is known
+		//
+		assertEquals(-1, hedger.getDelayNanos());
+		assertNull(hedger.schedule(NOTHING));
+
+		for (int i = 0; i < 64; i++)
+		{
+			hedger.recordLatency((i + 1) * 1000000L);
+		}
+
+		assertEquals(58 * 1000000L, hedger.getDelayNanos());
+
+		Future<?> f = hedger.schedule(NOTHING);
+		assertNotNull(f);
+		f.cancel(false);
+
+		//
+		// the minimum delay wins over a faster percentile
+		//
+		config.hedge_min_delay = 50;
+		hedger.shutdown();
+		hedger = new Hedger(config);
+
+		for (int i = 0; i < 64; i++)
+		{
+			hedger.recordLatency(1000000L);
+		}
+
+		assertEquals(50 * 1000000L, hedger.getDelayNanos());
+		hedger.shutdown();
+	}
+
+	@Test
+	public void testBudget() throws Exception
+	{
+		JediConfig config = new JediConfig();
+		config.hedge_budget_percent = 10;
+		Hedger hedger = new Hedger(config);
+
+		assertFalse(hedger.tryAcquire());
+
+		//
+		// 10% means one hedge for every 10 fetches
+		//
+		for (int i = 0; i < 10; i++)
+		{
+			hedger.schedule(NOTHING);
+		}
+
+		assertTrue(hedger.tryAcquire());
+		assertFalse(hedger.tryAcquire());
+
+		//
+		// quiet periods only save up a limited burst
+		//
+		for (int i = 0; i < 1000; i++)
+		{
+			hedger.schedule(NOTHING);
+		}
+
+		int sent = 0;
+
+		while (hedger.tryAcquire())
+		{
+			sent++;
+		}
+
+		assertEquals(10, sent);
+		hedger.shutdown();
+	}
+}
@@ -0,0 +1,93 @@
+package org.devnull.jedi;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+public class HostnameKeyTest
+{
+	@Test
+	public void testNormalize() throws Exception
+	{
+		HostnameKey key = HostnameKey.of("foo.bar.com");
+
+		assertEquals("foo.bar.com", key.toString());
+		assertEquals(11, key.length());
+
+		String[] same = {"foo.bar.com", "FOO.Bar.cOm", "foo.bar.com.", "Foo.Bar.Com."};
+		HostnameKey probe = new HostnameKey();
+
+		for (String name : same)
+		{
+			assertEquals(name, key, probe.set(name));
+			assertEquals(name, key.hashCode(), probe.hashCode());
+			assertEquals(name, key, HostnameKey.of(name));
+
+			byte[] bytes = ("x" + name + "y").getBytes("US-ASCII");
+			assertEquals(name, key, probe.set(bytes, 1, name.length()));
+		}
+
+		String[] different = {"foo.bar.co", "foo.bar.com..", "foo-bar.com", "", "."};
+
+		for (String name : different)
+		{
+			assertFalse(name, key.equals(probe.set(name)));
+		}
+
+		assertEquals(".", HostnameKey.of(".").toString());
+		assertEquals("", HostnameKey.of("").toString());
+
+		//
+		// only ASCII is lower cased
+		//
+		assertEquals("\u00c9t\u00c9.com", HostnameKey.of("\u00c9T\u00c9.com.").toString());
+		assertFalse(HostnameKey.of("\u00e9t\u00e9.com").equals(HostnameKey.of("\u00c9t\u00c9.com")));
+
+		//
+		// longer than the initial buffer
+		//
+		StringBuilder sb = new StringBuilder();
+
+		while (sb.length() < 1000)
+		{
+			sb.append("ABCDEFGHI.");
+		}
+
+		assertEquals(sb.toString().toLowerCase().substring(0, 999), probe.set(sb).toString());
+	}
+
+	@Test
+	public void testCache() throws Exception
+	{
+		Cache<HostnameKey, String> cache = CacheBuilder.newBuilder().maximumSize(10).build();
+		HostnameKey probe = new HostnameKey();
+
+		cache.put(probe.set("Foo.Bar.com.").copy(), "foo");
+
+		//
+		// reusing the probe does not change the key in the cache
+		//
+		assertNull(cache.getIfPresent(probe.set("baz.com")));
+		assertEquals("foo", cache.getIfPresent(probe.set("FOO.BAR.COM")));
+		assertEquals("foo", cache.getIfPresent(HostnameKey.of("foo.bar.com")));
+		assertEquals("foo.bar.com", cache.asMap().keySet().iterator().next().toString());
+
+		cache.invalidate(probe.set("foo.bar.com."));
+		assertEquals(0, cache.size());
+
+		HostnameKey key = HostnameKey.of("foo.bar.com");
+		assertSame(key, key.copy());
+
+		try
+		{
+			key.set("baz.com");
+			fail("expected an UnsupportedOperationException");
+		}
+		catch (UnsupportedOperationException e)
+		{
+			// expected
+		}
+	}
+}
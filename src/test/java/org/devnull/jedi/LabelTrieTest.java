@@ -0,0 +1,188 @@
+package org.devnull.jedi;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+public class LabelTrieTest
+{
+	private static HostnameKey key(final String name)
+	{
+		return HostnameKey.of(name);
+	}
+
+	@Test
+	public void testMostSpecific() throws Exception
+	{
+		LabelTrie<String> trie = new LabelTrie<String>();
+
+		assertNull(trie.get(key("foo.bar.com")));
+
+		assertNull(trie.put(key("*.com"), "com"));
+		assertNull(trie.put(key("*.bar.com"), "bar"));
+		assertNull(trie.put(key("foo.bar.com"), "foo"));
+		assertNull(trie.put(key("*.svc.bar.com"), "svc"));
+		assertEquals(4, trie.size());
+
+		assertEquals("foo", trie.get(key("foo.bar.com")));
+		assertEquals("foo", trie.get(key("FOO.bar.com.")));
+		assertEquals("bar", trie.get(key("a.bar.com")));
+		assertEquals("bar", trie.get(key("a.b.c.bar.com")));
+		assertEquals("bar", trie.get(key("a.foo.bar.com")));
+		assertEquals("svc", trie.get(key("a.svc.bar.com")));
+		assertEquals("svc", trie.get(key("a.b.svc.bar.com")));
+		assertEquals("com", trie.get(key("bar.com")));
+		assertEquals("com", trie.get(key("svcbar.com")));
+		assertEquals("bar", trie.get(key("svc.bar.com")));
+		assertEquals("svc", trie.get(key("*.svc.bar.com")));
+		assertNull(trie.get(key("com")));
+		assertNull(trie.get(key("bar.org")));
+
+		//
+		// replacing an entry does not change the size
+		//
+		assertEquals("bar", trie.put(key("*.bar.com"), "bar2"));
+		assertEquals(4, trie.size());
+		assertEquals("bar2", trie.get(key("a.bar.com")));
+
+		assertNull(trie.put(key("*"), "root"));
+		assertEquals("root", trie.get(key("bar.org")));
+		assertEquals("root", trie.get(key("com")));
+	}
+
+	@Test
+	public void testRemove() throws Exception
+	{
+		LabelTrie<String> trie = new LabelTrie<String>();
+
+		trie.put(key("*.bar.com"), "bar");
+		trie.put(key("foo.bar.com"), "foo");
+
+		//
+		// only the entry that the lookup finds, and only if it has not changed
+		//
+		assertFalse(trie.remove(key("a.bar.com"), "foo"));
+		assertFalse(trie.remove(key("a.bar.org"), "bar"));
+		assertFalse(trie.remove(key("foo.bar.com"), "bar"));
+		assertTrue(trie.remove(key("foo.bar.com"), "foo"));
+		assertEquals(1, trie.size());
+
+		assertEquals("bar", trie.get(key("foo.bar.com")));
+		assertTrue(trie.remove(key("a.b.bar.com"), "bar"));
+		assertEquals(0, trie.size());
+		assertNull(trie.get(key("a.bar.com")));
+		assertFalse(trie.remove(key("a.bar.com"), "bar"));
+
+		//
+		// the nodes the entries needed go with them
+		//
+		assertEquals(0, trie.nodes());
+	}
+
+	@Test
+	public void testPruning() throws Exception
+	{
+		LabelTrie<String> trie = new LabelTrie<String>();
+
+		trie.put(key("*.bar.com"), "bar");
+		trie.put(key("a.b.svc.bar.com"), "a");
+		trie.put(key("c.svc.bar.com"), "c");
+		assertEquals(6, trie.nodes());
+
+		//
+		// a wildcard does not match the name it is on
+		//
+		assertFalse(trie.remove(key("bar.com"), "bar"));
+
+		//
+		// only the nodes that nothing else needs are removed
+		//
+		assertTrue(trie.remove(key("a.b.svc.bar.com"), "a"));
+		assertEquals(4, trie.nodes());
+		assertEquals("c", trie.get(key("c.svc.bar.com")));
+		assertEquals("bar", trie.get(key("a.b.svc.bar.com")));
+
+		assertTrue(trie.remove(key("c.svc.bar.com"), "c"));
+		assertEquals(2, trie.nodes());
+
+		assertTrue(trie.remove(key("x.bar.com"), "bar"));
+		assertEquals(0, trie.nodes());
+		assertEquals(0, trie.size());
+
+		trie.put(key("c.svc.bar.com"), "c");
+		assertEquals("c", trie.get(key("c.svc.bar.com")));
+		assertEquals(4, trie.nodes());
+	}
+
+	@Test
+	public void testPutIfRoom() throws Exception
+	{
+		LabelTrie<String> trie = new LabelTrie<String>();
+
+		assertTrue(trie.putIfRoom(key("*.foo.com"), "foo", 2));
+		assertTrue(trie.putIfRoom(key("*.bar.com"), "bar", 2));
+
+		//
+		// a new entry does not fit, and leaves nothing behind
+		//
+		assertFalse(trie.putIfRoom(key("*.baz.org"), "baz", 2));
+		assertFalse(trie.putIfRoom(key("bar.com"), "bar", 2));
+		assertEquals(2, trie.size());
+		assertEquals(3, trie.nodes());
+		assertNull(trie.get(key("a.baz.org")));
+
+		//
+		// but one already there can be replaced
+		//
+		assertTrue(trie.putIfRoom(key("*.bar.com"), "bar2", 2));
+		assertEquals("bar2", trie.get(key("a.bar.com")));
+		assertEquals(2, trie.size());
+	}
+
+	@Test
+	public void testMatches() throws Exception
+	{
+		assertTrue(LabelTrie.matches(key("*.bar.com"), key("foo.bar.com")));
+		assertTrue(LabelTrie.matches(key("*.bar.com"), key("a.foo.BAR.com.")));
+		assertTrue(LabelTrie.matches(key("*"), key("com")));
+		assertFalse(LabelTrie.matches(key("*.bar.com"), key("bar.com")));
+		assertFalse(LabelTrie.matches(key("*.bar.com"), key("foobar.com")));
+		assertFalse(LabelTrie.matches(key("*.bar.com"), key("foo.bar.org")));
+		assertFalse(LabelTrie.matches(key("foo.bar.com"), key("foo.bar.com")));
+		assertFalse(LabelTrie.matches(key("*foo.bar.com"), key("afoo.bar.com")));
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception
+	{
+		final LabelTrie<Integer> trie = new LabelTrie<Integer>();
+		final boolean[] failed = {false};
+
+		Thread reader = new Thread()
+		{
+			public void run()
+			{
+				for (int i = 0; i < 200000; i++)
+				{
+					Integer v = trie.get(key("x" + (i % 500) + ".svc.bar.com"));
+
+					if (v != null && v != i % 500)
+					{
+						failed[0] = true;
+					}
+				}
+			}
+		};
+
+		reader.start();
+
+		for (int i = 0; i < 500; i++)
+		{
+			trie.put(key("x" + i + ".svc.bar.com"), i);
+		}
+
+		reader.join();
+		assertFalse(failed[0]);
+		assertEquals(500, trie.size());
+	}
+}
@@ -0,0 +1,88 @@
+package org.devnull.jedi;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+public class NameFilterTest
+{
+	private static HostnameKey key(final String name)
+	{
+		return HostnameKey.of(name);
+	}
+
+	@Test
+	public void testNoFalseNegatives() throws Exception
+	{
+		NameFilter filter = new NameFilter(10000, 0.01);
+		HostnameKey probe = new HostnameKey();
+
+		for (int i = 0; i < 10000; i++)
+		{
+			filter.add(probe.set("host" + i + ".bar.com"));
+		}
+
+		assertEquals(10000, filter.size());
+
+		for (int i = 0; i < 10000; i++)
+		{
+			assertTrue(filter.mightContain(probe.set("host" + i + ".bar.com")));
+		}
+
+		assertTrue(filter.mightContain(probe.set("HOST5.Bar.com.")));
+
+		//
+		// names that were not added are let through at about the rate asked for
+		//
+		int falsePositives = 0;
+
+		for (int i = 0; i < 100000; i++)
+		{
+			if (filter.mightContain(probe.set("random" + i + ".bar.com")))
+			{
+				falsePositives++;
+			}
+		}
+
+		assertTrue("false positives: " + falsePositives, falsePositives < 2000);
+		assertTrue(filter.getExpectedFalsePositiveRate() < 0.02);
+	}
+
+	@Test
+	public void testWildcards() throws Exception
+	{
+		NameFilter filter = new NameFilter(1000, 0.001);
+
+		filter.add(key("*.svc.bar.com"));
+		filter.add(key("foo.bar.com"));
+
+		assertTrue(filter.mightContain(key("foo.bar.com")));
+		assertTrue(filter.mightContain(key("a.svc.bar.com")));
+		assertTrue(filter.mightContain(key("a.b.svc.bar.com")));
+		assertTrue(filter.mightContain(key("*.svc.bar.com")));
+		assertFalse(filter.mightContain(key("svc.bar.com")));
+		assertFalse(filter.mightContain(key("bar.com")));
+		assertFalse(filter.mightContain(key("a.foo.bar.com")));
+		assertFalse(filter.mightContain(key("a.svc.bar.org")));
+
+		filter.add(key("*"));
+		assertTrue(filter.mightContain(key("anything.org")));
+	}
+
+	@Test
+	public void testSizing() throws Exception
+	{
+		assertEquals(1000000, new NameFilter(1000000, 0.01).getCapacity());
+		assertTrue(new NameFilter(10, 0.5).getExpectedFalsePositiveRate() == 0.0);
+
+		try
+		{
+			new NameFilter(0, 0.01);
+			fail("expected an IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
+}
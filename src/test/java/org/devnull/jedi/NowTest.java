@@ -2,6 +2,7 @@ package org.devnull.jedi;
 
 import org.testng.annotations.Test;
 
+import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertTrue;
 
 public class NowTest
@@ -22,4 +23,30 @@ public class NowTest
 		assertTrue(now != newNow);
 		assertTrue(newNow > now);
 	}
+
+	@Test
+	public void testSetTimeService() throws Exception
+	{
+		TimeService original = Now.getTimeService();
+		FakeClock clock = new FakeClock(1234);
+
+		try
+		{
+			Now.setTimeService(new TimeService(clock, 10));
+			assertEquals(1234, Now.getNow());
+
+			clock.advance(100);
+			Now.getTimeService().tick();
+			assertEquals(1334, Now.getNow());
+		}
+		finally
+		{
+			//
+			// the one that was there has been stopped, the rest of the tests need one that ticks
+			//
+			TimeService ts = new TimeService(Clock.SYSTEM, original.getTickMillis());
+			ts.start();
+			Now.setTimeService(ts);
+		}
+	}
 }
@@ -0,0 +1,73 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.jedi.configs.ZoneConfig;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.testng.AssertJUnit.*;
+
+public class PipeBackendTest
+{
+	private static String converse(final String input) throws Exception
+	{
+		ZoneConfig zc = new ZoneConfig();
+		zc.name = "foo.com";
+		zc.soa = "ns1.foo.com. hostmaster.foo.com. 1 7200 900 1209600 300";
+		zc.ns = Arrays.asList("ns1.foo.com.", "ns2.foo.com.");
+		zc.ttl = 600;
+
+		JediConfig config = new JediConfig();
+		config.zones = new ArrayList<ZoneConfig>(Arrays.asList(zc));
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new PipeBackend(config, new Upstream(config, null), null, null, new ZoneRegistry(config),
+				new ByteArrayInputStream(input.getBytes()), output).run();
+		return output.toString();
+	}
+
+	@Test
+	public void testAbi1() throws Exception
+	{
+		assertEquals("OK\tJedi\n" +
+			     "DATA\tFoo.com\tIN\tSOA\t600\t-1\tns1.foo.com. hostmaster.foo.com. 1 7200 900 1209600 300\n" +
+			     "END\n" +
+			     "END\n" +
+			     "END\n" +
+			     "FAIL\n",
+			     converse("HELO\t1\n" +
+				      "Q\tFoo.com\tIN\tSOA\t-1\t10.1.2.3\n" +
+				      "Q\twww.foo.com\tIN\tSOA\t-1\t10.1.2.3\n" +
+				      "Q\twww.bar.com\tIN\tANY\t-1\t10.1.2.3\n" +
+				      "AXFR\t1\n"));
+	}
+
+	@Test
+	public void testAbi3() throws Exception
+	{
+		assertEquals("OK\tJedi\n" +
+			     "DATA\t0\t1\tfoo.com\tIN\tSOA\t600\t7\tns1.foo.com. hostmaster.foo.com. 1 7200 900 1209600 300\n" +
+			     "END\n" +
+			     "DATA\t0\t1\tfoo.com\tIN\tNS\t600\t8\tns1.foo.com.\n" +
+			     "DATA\t0\t1\tfoo.com\tIN\tNS\t600\t8\tns2.foo.com.\n" +
+			     "END\n" +
+			     "END\n" +
+			     "FAIL\n",
+			     converse("HELO\t3\n" +
+				      "Q\tfoo.com\tIN\tSOA\t7\t10.1.2.3\t10.0.0.1\t10.1.2.0/24\n" +
+				      "Q\tfoo.com\tIN\tNS\t8\t10.1.2.3\t10.0.0.1\t0.0.0.0/0\n" +
+				      "PING\n" +
+				      "Q\tfoo.com\tIN\tA\t9\t10.1.2.3\n"));
+	}
+
+	@Test
+	public void testHelo() throws Exception
+	{
+		assertEquals("FAIL\n", converse("HELO\t5\nQ\tfoo.com\tIN\tSOA\t-1\t10.1.2.3\n"));
+		assertEquals("FAIL\n", converse("Q\tfoo.com\tIN\tSOA\t-1\t10.1.2.3\n"));
+	}
+}
@@ -5,6 +5,7 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
+import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import org.devnull.jedi.mock.*;
@@ -44,8 +45,15 @@ public class PowerDNSConnectionHandlerTest extends JsonBase
 	private Socket socket = null;
 	private MockAPIServer mock = null;
 	protected ThreadPoolExecutor apiPool = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1));
-	protected Cache<String, DNSRecordSet> cache = CacheBuilder.newBuilder().maximumSize(1).build();
+	protected Cache<HostnameKey, CompactRecordSet> cache = CacheBuilder.newBuilder().maximumSize(1).build();
 	protected JediConfig config = new JediConfig();
+	protected Upstream upstream = new Upstream(config, apiPool);
+
+	@AfterClass
+	public void tearDown() throws Exception
+	{
+		upstream.close();
+	}
 
 	@Test
 	public void testRun() throws Exception
@@ -67,7 +75,7 @@ public class PowerDNSConnectionHandlerTest extends JsonBase
 		{
 			socket = new Socket();
 			socket.close();
-			t = new Thread(new PowerDNSConnectionHandler(socket, config, apiPool, cache));
+			t = new Thread(new PowerDNSConnectionHandler(socket, config, upstream, cache));
 			t.start();
 			t.join(100);
 			assertTrue(!t.isAlive());
@@ -104,7 +112,7 @@ public class PowerDNSConnectionHandlerTest extends JsonBase
 						log.debug("listening for a connection");
 						Socket accepted = server.accept();
 						log.debug("got a connection, starting handler");
-						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, apiPool, cache));
+						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, upstream, cache));
 						p.start();
 						log.debug("waiting to join handler");
 						p.join();
@@ -173,7 +181,7 @@ public class PowerDNSConnectionHandlerTest extends JsonBase
 						log.debug("listening for a connection");
 						Socket accepted = server.accept();
 						log.debug("got a connection, starting handler");
-						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, apiPool, cache));
+						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, upstream, cache));
 						p.start();
 						log.debug("waiting to join handler");
 						p.join();
@@ -242,7 +250,7 @@ public class PowerDNSConnectionHandlerTest extends JsonBase
 						log.debug("listening for a connection");
 						Socket accepted = server.accept();
 						log.debug("got a connection, starting handler");
-						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, apiPool, cache));
+						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, upstream, cache));
 						p.start();
 						log.debug("waiting to join handler");
 						p.join();
@@ -322,7 +330,7 @@ public class PowerDNSConnectionHandlerTest extends JsonBase
 						log.debug("listening for a connection");
 						Socket accepted = server.accept();
 						log.debug("got a connection, starting handler");
-						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, apiPool, cache));
+						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, upstream, cache));
 						p.start();
 						log.debug("waiting to join handler");
 						p.join();
@@ -416,7 +424,7 @@ public class PowerDNSConnectionHandlerTest extends JsonBase
 						log.debug("listening for a connection");
 						Socket accepted = server.accept();
 						log.debug("got a connection, starting handler");
-						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, apiPool, cache));
+						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, upstream, cache));
 						p.start();
 						log.debug("waiting to join handler");
 						p.join();
@@ -548,7 +556,7 @@ public class PowerDNSConnectionHandlerTest extends JsonBase
 						log.debug("listening for a connection");
 						Socket accepted = server.accept();
 						log.debug("got a connection, starting handler");
-						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, apiPool, cache));
+						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, upstream, cache));
 						p.start();
 						log.debug("waiting to join handler");
 						p.join();
@@ -645,7 +653,7 @@ public class PowerDNSConnectionHandlerTest extends JsonBase
 						log.debug("listening for a connection");
 						Socket accepted = server.accept();
 						log.debug("got a connection, starting handler");
-						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, apiPool, cache));
+						Thread p = new Thread(new PowerDNSConnectionHandler(accepted, config, upstream, cache));
 						p.start();
 						log.debug("waiting to join handler");
 						p.join();
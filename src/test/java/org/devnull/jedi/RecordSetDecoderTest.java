@@ -0,0 +1,180 @@
+package org.devnull.jedi;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static org.testng.AssertJUnit.*;
+
+public class RecordSetDecoderTest extends JsonBase
+{
+	private final RecordSetDecoder decoder = new RecordSetDecoder(8192);
+
+	private static InputStream stream(final String json) throws Exception
+	{
+		return new ByteArrayInputStream(json.getBytes("UTF-8"));
+	}
+
+	/**
+	 * decodes json both ways and checks that the result is the same
+	 */
+	private CompactRecordSet assertSameAsMapper(final String json) throws Exception
+	{
+		CompactRecordSet expected = CompactRecordSet.of(mapper.readValue(json, DNSRecordSet.class));
+		CompactRecordSet actual = decoder.decode(stream(json), 0L);
+
+		assertEquals(json, expected.getTTL(), actual.getTTL());
+		assertEquals(json, expected.size(), actual.size());
+
+		for (int i = 0; i < expected.size(); i++)
+		{
+			assertEquals(json, expected.getType(i), actual.getType(i));
+			assertEquals(json, expected.getContent(i), actual.getContent(i));
+			assertEquals(json, expected.getPriority(i), actual.getPriority(i));
+		}
+
+		return actual;
+	}
+
+	@Test
+	public void testSameAsMapper() throws Exception
+	{
+		CompactRecordSet r = assertSameAsMapper("{\"fqdn\":\"ttl100.google.com\",\"ttl\":100,\"records\":[" +
+			"{\"type\":\"SOA\",\"address\":\"foo.bar.baz me.foo.bar.baz 2012080849 7200 3600 1209600 3600\"}," +
+			"{\"type\":\"A\",\"address\":\"1.1.1.1\"},{\"type\":\"AAAA\",\"address\":\"2001::fefe\"}," +
+			"{\"type\":\"MX\",\"priority\":10,\"address\":\"mail1.bar.com\"}]}");
+
+		assertEquals(100, r.getTTL());
+		assertEquals(4, r.size());
+		assertEquals("1.1.1.1", r.getContent(1));
+		assertEquals(10, r.getPriority(3));
+		assertNull(r.getWildcard());
+
+		//
+		// an answer from a wildcard record says so
+		//
+		assertEquals("*.svc.bar.com", decoder.decode(stream("{\"records\":[{\"type\":\"A\",\"address\":\"1.1.1.1\"}]," +
+								    "\"fqdn\":\"*.svc.bar.com\"}"), 0L).getWildcard());
+
+		String[] valid = {
+			"{}",
+			"{\"records\":[]}",
+			"{\"ttl\":\"60\"}",
+			"{\"ttl\":60.7,\"records\":[{\"address\":\"1.2.3.4\",\"type\":\"A\"}]}",
+			"{\"extra\":{\"a\":[1,2,{\"b\":3}]},\"records\":[{\"type\":\"A\",\"address\":\"001.2.3.4\",\"x\":[]}]}",
+			"{\"records\":[{\"type\":\"MX\",\"address\":\"10 mail\",\"priority\":20}]}",
+			"{\"records\":[{\"type\":\"MX\",\"priority\":20,\"address\":\"10 mail\"}]}",
+			"{\"records\":[{\"type\":\"MX\",\"priority\":20,\"address\":\"mail\"}]}",
+			"{\"records\":[{\"type\":\"MX\",\"priority\":70000,\"address\":\"mail\"}]}",
+			"{\"records\":[{\"priority\":5,\"type\":\"MX\"}]}",
+			"{\"records\":[{\"type\":\"AAAA\",\"address\":\"::ffff:1.2.3.4\"},{\"type\":\"TXT\",\"address\":\"v=spf1\"}]}",
+			"{\"records\":[{\"type\":\"NS\",\"address\":\"ns1.foo.com\"},{\"type\":\"CNAME\",\"address\":\"www\"}]}",
+			"{/* comments are allowed */\"records\":[{\"type\":\"A\",\"address\":\"10.0.0.1\"}]}",
+			"{\"records\":[{\"type\":\"A\",\"address\":\"10.0.0.1\"}],\"records\":[{\"type\":\"A\",\"address\":\"10.0.0.2\"}]}",
+		};
+
+		for (String json : valid)
+		{
+			assertSameAsMapper(json);
+		}
+
+		//
+		// the mapper leaves a null records list, which is the same as no records
+		//
+		assertEquals(0, decoder.decode(stream("{\"records\":null,\"ttl\":60}"), 0L).size());
+	}
+
+	@Test
+	public void testInvalid() throws Exception
+	{
+		String[] invalid = {
+			"[]",
+			"{\"records\":{}}",
+			"{\"records\":[{\"address\":\"1.2.3.4\"}]}",
+			"{\"records\":[{\"type\":\"PTR\",\"address\":\"foo\"}]}",
+			"{\"records\":[{\"type\":\"A\",\"address\":\"1.2.3.400\"}]}",
+			"{\"records\":[{\"type\":\"AAAA\",\"address\":\"1.2.3.4\"}]}",
+			"{\"records\":[{\"type\":\"MX\",\"address\":\"1 2 3\"}]}",
+			"{\"records\":[{\"type\":\"A\",\"address\":{}}]}",
+			"{\"records\":[{\"type\":\"CNAME\",\"address\":null}]}",
+			"{\"ttl\":\"soon\"}",
+		};
+
+		for (String json : invalid)
+		{
+			try
+			{
+				mapper.readValue(json, DNSRecordSet.class);
+				fail("the mapper accepted " + json);
+			}
+			catch (JsonMappingException e)
+			{
+				// expected
+			}
+
+			try
+			{
+				decoder.decode(stream(json), 0L);
+				fail("the decoder accepted " + json);
+			}
+			catch (JsonMappingException e)
+			{
+				// expected
+			}
+		}
+
+		try
+		{
+			decoder.decode(stream("{\"records\":[{\"type\":\"A\""), 0L);
+			fail("expected a JsonParseException");
+		}
+		catch (JsonParseException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void testTooLong() throws Exception
+	{
+		StringBuilder sb = new StringBuilder("{\"records\":[");
+
+		while (sb.length() < 100000)
+		{
+			sb.append("{\"type\":\"A\",\"address\":\"10.0.0.1\"},");
+		}
+
+		sb.append("{\"type\":\"A\",\"address\":\"10.0.0.1\"}]}");
+
+		ByteArrayInputStream in = new ByteArrayInputStream(sb.toString().getBytes("UTF-8"));
+
+		try
+		{
+			decoder.decode(in, 0L);
+			fail("expected a TooLongException");
+		}
+		catch (RecordSetDecoder.TooLongException e)
+		{
+			// expected
+		}
+
+		//
+		// the rest of the body was left alone
+		//
+		assertTrue(in.available() > 90000);
+
+		sb.setLength(0);
+		sb.append("{\"ttl\":5");
+
+		while (sb.length() < 8191)
+		{
+			sb.append(' ');
+		}
+
+		sb.append('}');
+		assertEquals(5, decoder.decode(stream(sb.toString()), 0L).getTTL());
+	}
+}
@@ -0,0 +1,88 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.jedi.configs.ZoneConfig;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.testng.AssertJUnit.*;
+
+public class RemoteBackendTest
+{
+	private static final String SOA = "{\"result\":[{\"qtype\":\"SOA\",\"qname\":\"foo.com\"," +
+		"\"content\":\"ns1.foo.com. hostmaster.foo.com. 1 7200 900 1209600 300\",\"ttl\":600," +
+		"\"priority\":0,\"domain_id\":-1}]}\n";
+
+	private Upstream upstream;
+	private RemoteBackend backend;
+
+	@BeforeClass
+	public void setUp() throws Exception
+	{
+		ZoneConfig zc = new ZoneConfig();
+		zc.name = "foo.com";
+		zc.soa = "ns1.foo.com. hostmaster.foo.com. 1 7200 900 1209600 300";
+		zc.ttl = 600;
+
+		JediConfig config = new JediConfig();
+		config.zones = new ArrayList<ZoneConfig>(Arrays.asList(zc));
+		upstream = new Upstream(config, null);
+
+		backend = new RemoteBackend(new Resolver(config, upstream, null, null), new ZoneRegistry(config), "TEST");
+	}
+
+	@AfterClass
+	public void tearDown() throws Exception
+	{
+		upstream.close();
+	}
+
+	private static PDNSRequest lookup(final String qname, final String qtype)
+	{
+		PDNSRequest request = new PDNSRequest();
+		request.setMethod("lookup");
+		request.getParameters().put("qname", qname);
+		request.getParameters().put("qtype", qtype);
+		return request;
+	}
+
+	@Test
+	public void testRequests() throws Exception
+	{
+		assertEquals(RemoteBackend.OK, backend.answer("{\"method\":\"initialize\",\"parameters\":{}}"));
+
+		assertEquals(SOA, backend.answer(lookup("foo.com", "SOA")));
+		assertEquals(SOA, backend.answer("{\"method\":\"lookup\",\"parameters\":{\"qname\":\"foo.com\"," +
+			"\"qtype\":\"SOA\",\"remote\":\"127.0.0.1\",\"real-remote\":\"127.0.0.1/32\",\"zone-id\":-1}}"));
+
+		//
+		// only the zone's own name has a SOA, and names outside the zones are not looked up
+		//
+		assertEquals(RemoteBackend.NEGATIVE, backend.answer(lookup("www.foo.com", "SOA")));
+		assertEquals(RemoteBackend.NEGATIVE, backend.answer(lookup("foo.com", "NS")));
+		assertEquals(RemoteBackend.NEGATIVE, backend.answer(lookup("www.bar.com", "A")));
+
+		//
+		// methods PowerDNS asks about that we have nothing for
+		//
+		assertEquals(RemoteBackend.NEGATIVE, backend.answer(
+			"{\"method\":\"calculateSOASerial\",\"parameters\":{\"domain\":\"foo.com\",\"sd\":{}}}"));
+		assertEquals(RemoteBackend.NEGATIVE, backend.answer("{\"method\":\"getDomainMetadata\"}"));
+	}
+
+	@Test
+	public void testInvalid() throws Exception
+	{
+		//
+		// the connector decides what to do about these: the sockets close the connection, the others answer false
+		//
+		assertNull(backend.answer("not json"));
+		assertNull(backend.answer("{\"method\":\"list\",\"parameters\":{}}"));
+		assertNull(backend.answer("{\"method\":\"lookup\",\"parameters\":{}}"));
+		assertNull(backend.answer(lookup("", "A")));
+	}
+}
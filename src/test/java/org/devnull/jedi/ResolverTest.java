@@ -0,0 +1,316 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.testng.annotations.Test;
+
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import static org.testng.AssertJUnit.*;
+
+public class ResolverTest
+{
+	private JediConfig newConfig(final int port)
+	{
+		JediConfig config = new JediConfig();
+		config.rest_server_hostname = "127.0.0.1";
+		config.rest_server_port = port;
+		config.rest_fetch_timeout = 200;
+		config.max_rest_client_threads = 1;
+		return config;
+	}
+
+	/**
+	 * A REST server that starts answering and never finishes, a byte at a time so that no read times out.
+	 */
+	private static final class TricklingServer extends Thread
+	{
+		private final ServerSocket server = new ServerSocket(0);
+		private final List<Socket> accepted = new ArrayList<Socket>();
+
+		private TricklingServer() throws Exception
+		{
+			start();
+		}
+
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					final Socket socket = server.accept();
+					accepted.add(socket);
+
+					new Thread()
+					{
+						public void run()
+						{
+							try
+							{
+								OutputStream out = socket.getOutputStream();
+								out.write("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n{".getBytes());
+
+								while (true)
+								{
+									out.flush();
+									Thread.sleep(20);
+									out.write(' ');
+								}
+							}
+							catch (Exception e)
+							{
+							}
+						}
+					}.start();
+				}
+			}
+			catch (Exception e)
+			{
+			}
+		}
+
+		private int getPort()
+		{
+			return server.getLocalPort();
+		}
+
+		private void close() throws Exception
+		{
+			server.close();
+			join(1000);
+
+			for (Socket s : accepted)
+			{
+				s.close();
+			}
+		}
+	}
+
+	@Test
+	public void testExpiredRequestIsNotFetched() throws Exception
+	{
+		JediConfig config = newConfig(1);
+		BoundedExecutor apiPool = new BoundedExecutor("test", 1, 1, 0);
+		Upstream upstream = new Upstream(config, apiPool);
+
+		try
+		{
+			Resolver resolver = new Resolver(config, upstream, null, null);
+
+			resolver.startRequest();
+			Thread.sleep(config.rest_fetch_timeout + 50);
+
+			assertNull(resolver.resolve(HostnameKey.of("www.foo.com"), ClientRateLimiter.NO_CLIENT));
+			assertEquals(Resolver.Outcome.FAILED, resolver.getOutcome());
+			assertEquals(0, apiPool.getTaskCount());
+		}
+		finally
+		{
+			apiPool.shutdownNow();
+			upstream.close();
+		}
+	}
+
+	@Test
+	public void testFetchIsAbandonedAtDeadline() throws Exception
+	{
+		TricklingServer server = new TricklingServer();
+		JediConfig config = newConfig(server.getPort());
+		BoundedExecutor apiPool = new BoundedExecutor("test", 1, 1, 0);
+		Upstream upstream = new Upstream(config, apiPool);
+
+		try
+		{
+			Resolver resolver = new Resolver(config, upstream, null, null);
+
+			long start = System.currentTimeMillis();
+			resolver.startRequest();
+
+			assertNull(resolver.resolve(HostnameKey.of("www.foo.com"), ClientRateLimiter.NO_CLIENT));
+			assertEquals(Resolver.Outcome.FAILED, resolver.getOutcome());
+
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue("took " + elapsed + "ms", elapsed < config.rest_fetch_timeout + 100);
+
+			//
+			// the fetch was aborted rather than left reading
+			//
+			long waited = 0;
+
+			while (apiPool.getActiveCount() > 0 && waited < 100)
+			{
+				Thread.sleep(5);
+				waited += 5;
+			}
+
+			assertEquals(0, apiPool.getActiveCount());
+		}
+		finally
+		{
+			apiPool.shutdownNow();
+			upstream.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testInlineFetchIsAbandonedAtDeadline() throws Exception
+	{
+		TricklingServer server = new TricklingServer();
+		JediConfig config = newConfig(server.getPort());
+		config.inline_fetch_enabled = true;
+		Upstream upstream = new Upstream(config, null);
+
+		try
+		{
+			Resolver resolver = new Resolver(config, upstream, null, null);
+
+			long start = System.currentTimeMillis();
+			resolver.startRequest();
+
+			assertNull(resolver.resolve(HostnameKey.of("www.foo.com"), ClientRateLimiter.NO_CLIENT));
+			assertEquals(Resolver.Outcome.FAILED, resolver.getOutcome());
+
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue("took " + elapsed + "ms", elapsed < config.rest_fetch_timeout + 100);
+			assertEquals(1, upstream.getFetchPermits().availablePermits());
+		}
+		finally
+		{
+			upstream.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testDeadlineAbortChargesTheEndpoint() throws Exception
+	{
+		TricklingServer server = new TricklingServer();
+		JediConfig config = newConfig(server.getPort());
+		config.inline_fetch_enabled = true;
+		config.rest_server_ejection_failures = 1;
+		Upstream upstream = new Upstream(config, null);
+
+		try
+		{
+			Resolver resolver = new Resolver(config, upstream, null, null);
+
+			resolver.startRequest();
+			assertNull(resolver.resolve(HostnameKey.of("www.foo.com"), ClientRateLimiter.NO_CLIENT));
+
+			//
+			// a server that is still answering at the deadline failed, it didn't just lose a hedged pair
+			//
+			UpstreamEndpoint endpoint = upstream.getEndpoints().getEndpoints().get(0);
+			assertEquals(0, endpoint.getOutstanding());
+			assertTrue(endpoint.getEwmaNanos() >= config.rest_fetch_timeout * 1000000L);
+			assertTrue(endpoint.isEjected());
+		}
+		finally
+		{
+			upstream.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testQueuedFetchIsNotChargedToTheRestServer() throws Exception
+	{
+		JediConfig config = newConfig(1);
+		config.max_rest_client_threads = 4;
+		config.adaptive_concurrency_enabled = true;
+		config.circuit_breaker_enabled = true;
+		config.circuit_breaker_min_requests = 1;
+		config.rest_server_ejection_failures = 1;
+		BoundedExecutor apiPool = new BoundedExecutor("test", 1, 1, 0);
+		Upstream upstream = new Upstream(config, apiPool);
+		final CountDownLatch busy = new CountDownLatch(1);
+
+		try
+		{
+			Resolver resolver = new Resolver(config, upstream, null, null);
+
+			//
+			// the only api thread is busy for longer than the request has
+			//
+			apiPool.submit(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						busy.await();
+					}
+					catch (InterruptedException e)
+					{
+					}
+				}
+			});
+
+			resolver.startRequest();
+			assertNull(resolver.resolve(HostnameKey.of("www.foo.com"), ClientRateLimiter.NO_CLIENT));
+			assertEquals(Resolver.Outcome.FAILED, resolver.getOutcome());
+
+			//
+			// that is our own overload, which says nothing about the REST server
+			//
+			UpstreamEndpoint endpoint = upstream.getEndpoints().getEndpoints().get(0);
+			assertEquals(4, upstream.getLimiter().getLimit());
+			assertEquals(0, upstream.getLimiter().getInFlight());
+			assertEquals(CircuitBreaker.State.CLOSED, upstream.getBreaker().getState());
+			assertEquals(0, endpoint.getOutstanding());
+			assertFalse(endpoint.isEjected());
+		}
+		finally
+		{
+			busy.countDown();
+			apiPool.shutdownNow();
+			upstream.close();
+		}
+	}
+
+	@Test
+	public void testInlineFetchWaitsForAPermitUntilTheDeadline() throws Exception
+	{
+		TricklingServer server = new TricklingServer();
+		JediConfig config = newConfig(server.getPort());
+		config.inline_fetch_enabled = true;
+		Upstream upstream = new Upstream(config, null);
+		Semaphore permits = upstream.getFetchPermits();
+
+		try
+		{
+			Resolver resolver = new Resolver(config, upstream, null, null);
+
+			//
+			// the only permit is held by another fetch for longer than this request has
+			//
+			permits.acquire();
+
+			long start = System.currentTimeMillis();
+			resolver.startRequest();
+
+			assertNull(resolver.resolve(HostnameKey.of("www.foo.com"), ClientRateLimiter.NO_CLIENT));
+			assertEquals(Resolver.Outcome.FAILED, resolver.getOutcome());
+
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue("took " + elapsed + "ms", elapsed >= config.rest_fetch_timeout - 10);
+			assertTrue("took " + elapsed + "ms", elapsed < config.rest_fetch_timeout + 100);
+			assertEquals(0, server.accepted.size());
+
+			permits.release();
+			assertEquals(1, permits.availablePermits());
+		}
+		finally
+		{
+			upstream.close();
+			server.close();
+		}
+	}
+}
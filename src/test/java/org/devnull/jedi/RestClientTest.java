@@ -97,7 +97,7 @@ public class RestClientTest
 		{
 			log.info("testing failure when no hostname is set");
 			client = new RestClient(new JediConfig());
-			DNSRecordSet r = client.call();
+			CompactRecordSet r = client.call();
 			assertTrue(false);
 		}
 		catch (NullPointerException npe)
@@ -117,7 +117,7 @@ public class RestClientTest
 		{
 			log.info("testing against a server that is rejecting connections");
 			client.setHostname("foo.bar.baz");
-			DNSRecordSet r = client.call();
+			CompactRecordSet r = client.call();
 			assertNull(r);
 		}
 		catch (Exception e)
@@ -136,7 +136,7 @@ public class RestClientTest
 		{
 			log.info("testing against an API server that doesn't support authentication");
 			mock = new MockAPIServer(new HelloServlet(), false, null, null);
-			DNSRecordSet r = client.call();
+			CompactRecordSet r = client.call();
 			assertNull(r);
 		}
 		catch (Exception e)
@@ -157,7 +157,7 @@ public class RestClientTest
 		{
 			log.info("testing against an API server with mismatched authentication");
 			mock = new MockAPIServer(new HelloServlet(), true, "bar", "foo");
-			DNSRecordSet r = client.call();
+			CompactRecordSet r = client.call();
 			assertNull(r);
 		}
 		catch (Exception e)
@@ -178,7 +178,7 @@ public class RestClientTest
 		{
 			log.info("testing against an API server that returns 404");
 			mock = new MockAPIServer(new BadReplyServlet(), true, "foo", "bar");
-			DNSRecordSet r = client.call();
+			CompactRecordSet r = client.call();
 			assertNull(r);
 		}
 		catch (Exception e)
@@ -199,7 +199,7 @@ public class RestClientTest
 		{
 			log.info("testing against an API sever that gives an empty response");
 			mock = new MockAPIServer(new EmptyReplyServlet(), true, "foo", "bar");
-			DNSRecordSet r = client.call();
+			CompactRecordSet r = client.call();
 			assertNull(r);
 		}
 		catch (Exception e)
@@ -220,7 +220,7 @@ public class RestClientTest
 		{
 			log.info("testing against an API server that gives a too long reply");
 			mock = new MockAPIServer(new TooLongReplyServlet(), true, "foo", "bar");
-			DNSRecordSet r = client.call();
+			CompactRecordSet r = client.call();
 			assertNull(r);
 		}
 		catch (Exception e)
@@ -241,7 +241,7 @@ public class RestClientTest
 		{
 			log.info("testing against a non-json reply");
 			mock = new MockAPIServer(new HelloServlet(), true, "foo", "bar");
-			DNSRecordSet r = client.call();
+			CompactRecordSet r = client.call();
 			assertNull(r);
 		}
 		catch (Exception e)
@@ -262,7 +262,7 @@ public class RestClientTest
 		{
 			log.info("testing against a good reply");
 			mock = new MockAPIServer(new GoodReplyServlet(), true, "foo", "bar");
-			DNSRecordSet r = client.call();
+			CompactRecordSet r = client.call();
 			assertNotNull(r);
 			assertTrue(r.toString(), r.getTTL() == 100);
 			assertNotNull(r.getRecords());
@@ -299,4 +299,25 @@ public class RestClientTest
 			mock.shutdown();
 		}
 	}
+
+	@Test
+	public void testFetchesKeepTheirOwnState() throws Exception
+	{
+		RestClient client = new RestClient(new JediConfig());
+
+		//
+		// one that ran out of time before it could ask the REST server, and one that asked a server that is
+		// rejecting connections on the default host/port
+		//
+		RestClient.Fetch expired = client.newFetch("foo.bar.baz", System.nanoTime() - 1);
+		RestClient.Fetch refused = client.newFetch("foo.bar.baz", 0);
+
+		assertNull(expired.call());
+		assertNull(refused.call());
+
+		assertTrue(expired.hadUpstreamError());
+		assertFalse(expired.wasSent());
+		assertTrue(refused.hadUpstreamError());
+		assertTrue(refused.wasSent());
+	}
 }
@@ -0,0 +1,222 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+
+import static org.testng.AssertJUnit.*;
+
+public class SharedRecordCacheTest
+{
+	private File file;
+
+	@BeforeMethod
+	public void setUp() throws Exception
+	{
+		file = File.createTempFile("jedi-shm", null);
+		file.delete();
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	private JediConfig config(final int slots, final int slotSize)
+	{
+		JediConfig config = new JediConfig();
+		config.shared_cache_path = file.getPath();
+		config.shared_cache_slots = slots;
+		config.shared_cache_slot_size = slotSize;
+		return config;
+	}
+
+	private static CompactRecordSet records(final String json, final long timestamp) throws Exception
+	{
+		return new RecordSetDecoder(65536).decode(new ByteArrayInputStream(json.getBytes("UTF-8")), timestamp);
+	}
+
+	@Test
+	public void testSharing() throws Exception
+	{
+		//
+		// two instances on one file are as good as two processes
+		//
+		SharedRecordCache first = new SharedRecordCache(config(128, 512));
+		SharedRecordCache second = new SharedRecordCache(config(128, 512));
+
+		assertEquals(SharedRecordCache.HEADER_SIZE + 128 * 512, file.length());
+		assertNull(second.get(HostnameKey.of("www.foo.com")));
+
+		first.put(HostnameKey.of("www.foo.com"), records(
+			"{\"fqdn\":\"www.foo.com\",\"ttl\":100,\"records\":[{\"type\":\"A\",\"address\":\"1.1.1.1\"}," +
+				"{\"type\":\"MX\",\"priority\":10,\"address\":\"mail.foo.com\"}," +
+				"{\"type\":\"TXT\",\"address\":\"\\\"v=spf1 -all\\\"\"}]}", 12345L));
+
+		CompactRecordSet c = second.get(HostnameKey.of("www.foo.com"));
+		assertEquals(100, c.getTTL());
+		assertEquals(12345L, c.getTimestamp());
+		assertEquals(3, c.size());
+		assertEquals("A", c.getType(0));
+		assertEquals("1.1.1.1", c.getContent(0));
+		assertEquals("MX", c.getType(1));
+		assertEquals(10, c.getPriority(1));
+		assertEquals("mail.foo.com", c.getContent(1));
+		assertEquals("TXT", c.getType(2));
+		assertEquals("\"v=spf1 -all\"", c.getContent(2));
+
+		assertNull(second.get(HostnameKey.of("www.foo.co")));
+		assertNull(second.get(HostnameKey.of("ww.foo.com")));
+
+		//
+		// a refetch replaces the entry
+		//
+		second.put(HostnameKey.of("www.foo.com"), records(
+			"{\"ttl\":50,\"records\":[{\"type\":\"A\",\"address\":\"2.2.2.2\"}]}", 23456L));
+
+		c = first.get(HostnameKey.of("www.foo.com"));
+		assertEquals(23456L, c.getTimestamp());
+		assertEquals(1, c.size());
+		assertEquals("2.2.2.2", c.getContent(0));
+
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testTooLarge() throws Exception
+	{
+		SharedRecordCache cache = new SharedRecordCache(config(16, 512));
+		StringBuilder json = new StringBuilder("{\"ttl\":100,\"records\":[");
+
+		for (int i = 0; i < 40; i++)
+		{
+			json.append(i == 0 ? "" : ",").append("{\"type\":\"A\",\"address\":\"10.0.0.").append(i).append("\"}");
+		}
+
+		cache.put(HostnameKey.of("big.foo.com"), records(json.append("]}").toString(), 1L));
+		assertNull(cache.get(HostnameKey.of("big.foo.com")));
+		cache.close();
+	}
+
+	@Test
+	public void testCorruption() throws Exception
+	{
+		SharedRecordCache cache = new SharedRecordCache(config(1, 512));
+		HostnameKey key = HostnameKey.of("www.foo.com");
+
+		cache.put(key, records("{\"ttl\":100,\"records\":[{\"type\":\"A\",\"address\":\"1.1.1.1\"}]}", 1L));
+		assertNotNull(cache.get(key));
+
+		//
+		// a slot written halfway, as a process dying would leave it, is not used
+		//
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		long value = SharedRecordCache.HEADER_SIZE + SharedRecordCache.SLOT_HEADER_SIZE + key.length();
+		raf.seek(value + 3);
+		int b = raf.read();
+		raf.seek(value + 3);
+		raf.write(b ^ 0x01);
+		raf.close();
+
+		assertNull(cache.get(key));
+		cache.close();
+	}
+
+	@Test
+	public void testInterruptedWrite() throws Exception
+	{
+		SharedRecordCache cache = new SharedRecordCache(config(1, 512));
+		HostnameKey key = HostnameKey.of("www.foo.com");
+
+		cache.put(key, records("{\"ttl\":100,\"records\":[{\"type\":\"A\",\"address\":\"1.1.1.1\"}]}", 1L));
+
+		//
+		// a writer that died partway left seq odd; readers pass the slot by, the next writer takes it over
+		//
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(SharedRecordCache.HEADER_SIZE);
+		raf.writeLong(7);
+		raf.close();
+
+		assertNull(cache.get(key));
+
+		cache.put(key, records("{\"ttl\":100,\"records\":[{\"type\":\"A\",\"address\":\"2.2.2.2\"}]}", 2L));
+		assertEquals("2.2.2.2", cache.get(key).getContent(0));
+		cache.close();
+	}
+
+	@Test
+	public void testLockedSlot() throws Exception
+	{
+		SharedRecordCache cache = new SharedRecordCache(config(1, 512));
+		HostnameKey key = HostnameKey.of("www.foo.com");
+
+		//
+		// while someone else is writing the slot, a put leaves it alone
+		//
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileLock lock = raf.getChannel().lock(SharedRecordCache.HEADER_SIZE, 512, false);
+
+		cache.put(key, records("{\"ttl\":100,\"records\":[{\"type\":\"A\",\"address\":\"1.1.1.1\"}]}", 1L));
+		assertNull(cache.get(key));
+
+		lock.release();
+		raf.close();
+
+		cache.put(key, records("{\"ttl\":100,\"records\":[{\"type\":\"A\",\"address\":\"1.1.1.1\"}]}", 1L));
+		assertNotNull(cache.get(key));
+		cache.close();
+	}
+
+	@Test
+	public void testEviction() throws Exception
+	{
+		SharedRecordCache cache = new SharedRecordCache(config(2, 512));
+
+		cache.put(HostnameKey.of("a.foo.com"), records("{\"ttl\":1,\"records\":[{\"type\":\"A\",\"address\":\"1.1.1.1\"}]}", 100L));
+		cache.put(HostnameKey.of("b.foo.com"), records("{\"ttl\":1,\"records\":[{\"type\":\"A\",\"address\":\"1.1.1.2\"}]}", 200L));
+		assertNotNull(cache.get(HostnameKey.of("a.foo.com")));
+		assertNotNull(cache.get(HostnameKey.of("b.foo.com")));
+
+		//
+		// the table is full, the oldest entry makes room
+		//
+		cache.put(HostnameKey.of("c.foo.com"), records("{\"ttl\":1,\"records\":[{\"type\":\"A\",\"address\":\"1.1.1.3\"}]}", 300L));
+		assertNull(cache.get(HostnameKey.of("a.foo.com")));
+		assertNotNull(cache.get(HostnameKey.of("b.foo.com")));
+		assertEquals("1.1.1.3", cache.get(HostnameKey.of("c.foo.com")).getContent(0));
+		cache.close();
+	}
+
+	@Test
+	public void testGeometry() throws Exception
+	{
+		new SharedRecordCache(config(128, 512)).close();
+
+		try
+		{
+			new SharedRecordCache(config(256, 512));
+			fail("opened a file made with a different number of slots");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+
+		try
+		{
+			new SharedRecordCache(config(128, 100));
+			fail("accepted a slot size that is too small");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.devnull.jedi;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.AssertJUnit.*;
+
+public class TimeServiceTest
+{
+	@Test
+	public void testFakeClock() throws Exception
+	{
+		FakeClock clock = new FakeClock(5000);
+		TimeService ts = new TimeService(clock, 10);
+		final AtomicInteger runs = new AtomicInteger();
+
+		ts.schedule(new Runnable()
+		{
+			public void run()
+			{
+				runs.incrementAndGet();
+			}
+		}, 100);
+
+		assertEquals(5000, ts.now());
+
+		//
+		// the time only moves on a tick
+		//
+		clock.advance(50);
+		assertEquals(5000, ts.now());
+
+		ts.tick();
+		assertEquals(5050, ts.now());
+		assertEquals(0, runs.get());
+
+		clock.advance(50);
+		ts.tick();
+		assertEquals(5100, ts.now());
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void testWallClockSteps() throws Exception
+	{
+		FakeClock clock = new FakeClock(5000);
+		TimeService ts = new TimeService(clock, 10);
+		final AtomicInteger runs = new AtomicInteger();
+
+		ts.schedule(new Runnable()
+		{
+			public void run()
+			{
+				runs.incrementAndGet();
+			}
+		}, 100);
+
+		//
+		// setting the wall clock an hour ahead moves the time kept, but does not run the timeout early
+		//
+		clock.step(3600 * 1000);
+		ts.tick();
+		assertEquals(5000 + 3600 * 1000, ts.now());
+		assertEquals(0, runs.get());
+
+		//
+		// nor does setting it back hold the timeout up
+		//
+		clock.step(-2 * 3600 * 1000);
+		clock.advance(100);
+		ts.tick();
+		assertEquals(5100 - 3600 * 1000, ts.now());
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void testTicks() throws Exception
+	{
+		TimeService ts = new TimeService(Clock.SYSTEM, 5);
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		ts.start();
+
+		try
+		{
+			long before = ts.now();
+			long start = System.nanoTime();
+
+			ts.schedule(new Runnable()
+			{
+				public void run()
+				{
+					latch.countDown();
+				}
+			}, 20);
+
+			assertTrue(latch.await(1, TimeUnit.SECONDS));
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+			assertTrue(ts.now() > before);
+		}
+		finally
+		{
+			ts.shutdown();
+		}
+	}
+}
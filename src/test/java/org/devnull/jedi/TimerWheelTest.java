@@ -0,0 +1,120 @@
+package org.devnull.jedi;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+public class TimerWheelTest
+{
+	private Runnable record(final List<String> runs, final String name)
+	{
+		return new Runnable()
+		{
+			public void run()
+			{
+				runs.add(name);
+			}
+		};
+	}
+
+	@Test
+	public void testNeverEarly() throws Exception
+	{
+		TimerWheel wheel = new TimerWheel(10, 8, 1000);
+		List<String> runs = new ArrayList<String>();
+
+		wheel.schedule(record(runs, "a"), 1025);
+		wheel.schedule(record(runs, "b"), 1030);
+
+		wheel.expire(1020);
+		wheel.expire(1029);
+		assertTrue(runs.isEmpty());
+
+		wheel.expire(1030);
+		assertEquals(2, runs.size());
+	}
+
+	@Test
+	public void testLaterTurns() throws Exception
+	{
+		TimerWheel wheel = new TimerWheel(10, 8, 0);
+		List<String> runs = new ArrayList<String>();
+
+		//
+		// the wheel is 80ms around; these share buckets with sooner ones but are due turns later
+		//
+		wheel.schedule(record(runs, "soon"), 20);
+		wheel.schedule(record(runs, "later"), 100);
+		wheel.schedule(record(runs, "much later"), 1000);
+
+		wheel.expire(20);
+		assertEquals(1, runs.size());
+
+		wheel.expire(99);
+		assertEquals(1, runs.size());
+
+		wheel.expire(100);
+		assertEquals("later", runs.get(1));
+
+		wheel.expire(990);
+		assertEquals(2, runs.size());
+
+		wheel.expire(1000);
+		assertEquals("much later", runs.get(2));
+	}
+
+	@Test
+	public void testOverdue() throws Exception
+	{
+		TimerWheel wheel = new TimerWheel(10, 8, 0);
+		List<String> runs = new ArrayList<String>();
+
+		wheel.expire(500);
+		wheel.schedule(record(runs, "overdue"), 100);
+		wheel.expire(500);
+
+		assertEquals(1, runs.size());
+	}
+
+	@Test
+	public void testCancel() throws Exception
+	{
+		TimerWheel wheel = new TimerWheel(10, 8, 0);
+		List<String> runs = new ArrayList<String>();
+
+		TimerWheel.Timeout cancelled = wheel.schedule(record(runs, "cancelled"), 50);
+		TimerWheel.Timeout expired = wheel.schedule(record(runs, "expired"), 50);
+
+		assertTrue(cancelled.cancel());
+		wheel.expire(50);
+
+		assertEquals(1, runs.size());
+		assertEquals("expired", runs.get(0));
+		assertTrue(expired.isExpired());
+		assertFalse(expired.cancel());
+		assertFalse(cancelled.isExpired());
+	}
+
+	@Test
+	public void testExceptionsDontStopOthers() throws Exception
+	{
+		TimerWheel wheel = new TimerWheel(10, 8, 0);
+		List<String> runs = new ArrayList<String>();
+
+		wheel.schedule(new Runnable()
+		{
+			public void run()
+			{
+				throw new RuntimeException("test");
+			}
+		}, 10);
+		wheel.schedule(record(runs, "after"), 10);
+
+		wheel.expire(10);
+
+		assertEquals(1, runs.size());
+	}
+}
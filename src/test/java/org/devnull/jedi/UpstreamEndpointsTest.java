@@ -0,0 +1,156 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.testng.AssertJUnit.*;
+
+public class UpstreamEndpointsTest
+{
+	private JediConfig newConfig(final String selection)
+	{
+		JediConfig config = new JediConfig();
+		config.rest_servers = Arrays.asList("darkside1:8080", "darkside2:8080", "darkside3:8081");
+		config.rest_server_selection = selection;
+		config.rest_server_ejection_failures = 2;
+		config.rest_server_ejection_time = 60000;
+		return config;
+	}
+
+	@Test
+	public void testConfig() throws Exception
+	{
+		UpstreamEndpoints endpoints = new UpstreamEndpoints(new JediConfig());
+		assertEquals(1, endpoints.getEndpoints().size());
+		assertEquals("localhost", endpoints.select().getHostname());
+		assertEquals(8080, endpoints.select().getPort());
+		endpoints.close();
+
+		endpoints = new UpstreamEndpoints(newConfig(UpstreamEndpoints.SELECTION_EWMA));
+		assertEquals(3, endpoints.getEndpoints().size());
+		assertEquals("darkside3", endpoints.getEndpoints().get(2).getHostname());
+		assertEquals(8081, endpoints.getEndpoints().get(2).getPort());
+		endpoints.close();
+
+		try
+		{
+			JediConfig config = newConfig(UpstreamEndpoints.SELECTION_EWMA);
+			config.rest_servers = Arrays.asList("darkside1");
+			new UpstreamEndpoints(config);
+			fail("expected an IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertTrue(e.getMessage(), e.getMessage().contains("host:port"));
+		}
+
+		try
+		{
+			new UpstreamEndpoints(newConfig("random"));
+			fail("expected an IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertTrue(e.getMessage(), e.getMessage().contains("rest_server_selection"));
+		}
+	}
+
+	@Test
+	public void testLeastOutstanding() throws Exception
+	{
+		UpstreamEndpoints endpoints = new UpstreamEndpoints(newConfig(UpstreamEndpoints.SELECTION_LEAST_OUTSTANDING));
+		UpstreamEndpoint d1 = endpoints.getEndpoints().get(0);
+		UpstreamEndpoint d2 = endpoints.getEndpoints().get(1);
+		UpstreamEndpoint d3 = endpoints.getEndpoints().get(2);
+
+		d1.begin();
+		d1.begin();
+		d2.begin();
+
+		for (int i = 0; i < 10; i++)
+		{
+			assertSame(d3, endpoints.select());
+		}
+
+		d3.begin();
+		d3.begin();
+
+		for (int i = 0; i < 10; i++)
+		{
+			assertSame(d2, endpoints.select());
+		}
+
+		endpoints.close();
+	}
+
+	@Test
+	public void testEwmaAndEjection() throws Exception
+	{
+		FakeClock clock = new FakeClock(10000);
+		UpstreamEndpoints endpoints = new UpstreamEndpoints(newConfig(UpstreamEndpoints.SELECTION_EWMA), clock);
+		UpstreamEndpoint d1 = endpoints.getEndpoints().get(0);
+		UpstreamEndpoint d2 = endpoints.getEndpoints().get(1);
+		UpstreamEndpoint d3 = endpoints.getEndpoints().get(2);
+
+		d1.begin();
+		d1.end(5000000L, false);
+		d2.begin();
+		d2.end(1000000L, false);
+		d3.begin();
+		d3.end(50000000L, false);
+
+		for (int i = 0; i < 10; i++)
+		{
+			assertSame(d2, endpoints.select());
+		}
+
+		//
+		// two failures in a row take d2 out of rotation
+		//
+		d2.begin();
+		d2.end(1000000L, true);
+		assertFalse(d2.isEjected());
+		d2.begin();
+		d2.end(1000000L, true);
+		assertTrue(d2.isEjected());
+
+		for (int i = 0; i < 10; i++)
+		{
+			assertSame(d1, endpoints.select());
+		}
+
+		//
+		// with everything ejected, the one due back first is still used
+		//
+		clock.advance(5);
+
+		for (int i = 0; i < 2; i++)
+		{
+			d1.begin();
+			d1.end(1000000L, true);
+		}
+
+		clock.advance(5);
+
+		for (int i = 0; i < 2; i++)
+		{
+			d3.begin();
+			d3.end(1000000L, true);
+		}
+
+		assertSame(d2, endpoints.select());
+
+		//
+		// and once its ejection time is up it is back, whatever the wall clock does
+		//
+		clock.step(-120000);
+		clock.advance(60000 - 10);
+		assertTrue(d3.isEjected());
+		assertFalse(d2.isEjected());
+		assertSame(d2, endpoints.select());
+
+		endpoints.close();
+	}
+}
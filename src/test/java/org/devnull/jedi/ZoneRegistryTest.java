@@ -0,0 +1,118 @@
+package org.devnull.jedi;
+
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.jedi.configs.ZoneConfig;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.testng.AssertJUnit.*;
+
+public class ZoneRegistryTest
+{
+	private static HostnameKey key(final String name)
+	{
+		return HostnameKey.of(name);
+	}
+
+	private static ZoneConfig zone(final String name, final String... ns)
+	{
+		ZoneConfig zc = new ZoneConfig();
+		zc.name = name;
+		zc.soa = "ns1." + name + ". hostmaster." + name + ". 1 7200 900 1209600 86400";
+		zc.ns = ns.length == 0 ? null : Arrays.asList(ns);
+		zc.ttl = 600;
+		return zc;
+	}
+
+	private static JediConfig config(final ZoneConfig... zones)
+	{
+		JediConfig config = new JediConfig();
+		config.zones = new ArrayList<ZoneConfig>(Arrays.asList(zones));
+		return config;
+	}
+
+	@Test
+	public void testDeepestZone() throws Exception
+	{
+		ZoneRegistry registry = new ZoneRegistry(config(zone("foo.com", "ns1.foo.com.", "ns2.foo.com."),
+								zone("sub.foo.com")));
+
+		assertEquals("foo.com", registry.find(key("foo.com")).getName());
+		assertEquals("foo.com", registry.find(key("WWW.Foo.com.")).getName());
+		assertEquals("foo.com", registry.find(key("a.b.foo.com")).getName());
+		assertEquals("sub.foo.com", registry.find(key("sub.foo.com")).getName());
+		assertEquals("sub.foo.com", registry.find(key("a.sub.foo.com")).getName());
+
+		assertNull(registry.find(key("com")));
+		assertNull(registry.find(key("barfoo.com")));
+		assertNull(registry.find(key("foo.org")));
+
+		ZoneRegistry.Zone zone = registry.find(key("www.foo.com"));
+		assertTrue(zone.isApex(key("FOO.com.")));
+		assertFalse(zone.isApex(key("www.foo.com")));
+	}
+
+	@Test
+	public void testAnswers() throws Exception
+	{
+		ZoneRegistry registry = new ZoneRegistry(config(zone("foo.com", "ns1.foo.com.", "ns2.foo.com."),
+								zone("bar.com")));
+
+		ZoneRegistry.Zone foo = registry.find(key("foo.com"));
+
+		assertEquals("{\"result\":[{\"qtype\":\"SOA\",\"qname\":\"foo.com\"," +
+			     "\"content\":\"ns1.foo.com. hostmaster.foo.com. 1 7200 900 1209600 86400\"," +
+			     "\"ttl\":600,\"priority\":0,\"domain_id\":-1}]}\n", foo.getSOAAnswer("Foo.com"));
+		assertEquals("{\"result\":[{\"qtype\":\"NS\",\"qname\":\"foo.com\",\"content\":\"ns1.foo.com.\"," +
+			     "\"ttl\":600,\"priority\":0,\"domain_id\":-1},{\"qtype\":\"NS\",\"qname\":\"foo.com\"," +
+			     "\"content\":\"ns2.foo.com.\",\"ttl\":600,\"priority\":0,\"domain_id\":-1}]}\n",
+			     foo.getNSAnswer());
+
+		//
+		// encoded once
+		//
+		assertSame(foo.getSOAAnswer("foo.com"), foo.getSOAAnswer("foo.com"));
+		assertNull(registry.find(key("bar.com")).getNSAnswer());
+	}
+
+	@Test
+	public void testNoZones() throws Exception
+	{
+		ZoneRegistry registry = new ZoneRegistry(new JediConfig());
+		ZoneRegistry.Zone zone = registry.find(key("foo.bar.baz"));
+
+		assertNotNull(zone);
+		assertSame(zone, registry.find(key("anything.org")));
+		assertTrue(zone.isApex(key("foo.bar.baz")));
+		assertNull(zone.getNSAnswer());
+		assertEquals("{\"result\":[{\"qtype\":\"SOA\",\"qname\":\"foo.bar.baz\"," +
+			     "\"content\":\"ns1.prod.pertino.com. eng-devops.pertino.com. 1 7200 900 1209600 86400\"," +
+			     "\"ttl\":3600,\"priority\":0,\"domain_id\":-1}]}\n", zone.getSOAAnswer("foo.bar.baz"));
+	}
+
+	@Test
+	public void testInvalid() throws Exception
+	{
+		try
+		{
+			new ZoneRegistry(config(zone("foo.com"), zone("FOO.com.")));
+			fail("expected an IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+
+		try
+		{
+			new ZoneRegistry(config(new ZoneConfig()));
+			fail("expected an IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package org.devnull.jedi.dns;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.devnull.jedi.CompactRecordSet;
+import org.devnull.jedi.DNSRecordSet;
+import org.devnull.jedi.HostnameKey;
+import org.devnull.jedi.JsonBase;
+import org.devnull.jedi.ZoneRegistry;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.jedi.configs.ZoneConfig;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.testng.AssertJUnit.*;
+
+public class DnsResponderTest extends JsonBase
+{
+	private static ZoneRegistry zones()
+	{
+		ZoneConfig zc = new ZoneConfig();
+		zc.name = "foo.com";
+		zc.soa = "ns1.foo.com. hostmaster.foo.com. 7 7200 900 1209600 300";
+		zc.ns = Arrays.asList("ns1.foo.com.", "ns2.foo.com.");
+		zc.ttl = 600;
+
+		JediConfig config = new JediConfig();
+		config.zones = new ArrayList<ZoneConfig>(Arrays.asList(zc));
+		return new ZoneRegistry(config);
+	}
+
+	/**
+	 * Builds a query with the RD flag set, and an OPT record if ednsVersion is not negative.
+	 */
+	private static byte[] query(final int opcode, final String name, final int qtype, final int qclass,
+				    final int ednsVersion, final int payloadSize)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeShort(out, 0x1234);
+		writeShort(out, (opcode << 11) | 0x0100);
+		writeShort(out, 1);
+		writeShort(out, 0);
+		writeShort(out, 0);
+		writeShort(out, ednsVersion >= 0 ? 1 : 0);
+
+		for (String label : name.split("\\."))
+		{
+			out.write(label.length());
+			out.write(label.getBytes(), 0, label.length());
+		}
+
+		out.write(0);
+		writeShort(out, qtype);
+		writeShort(out, qclass);
+
+		if (ednsVersion >= 0)
+		{
+			out.write(0);
+			writeShort(out, DnsQuery.TYPE_OPT);
+			writeShort(out, payloadSize);
+			out.write(0);
+			out.write(ednsVersion);
+			writeShort(out, 0);
+			writeShort(out, 0);
+		}
+
+		return out.toByteArray();
+	}
+
+	private static byte[] query(final String name, final int qtype)
+	{
+		return query(0, name, qtype, DnsQuery.CLASS_IN, -1, 0);
+	}
+
+	/**
+	 * A query that is refused without a lookup, leaving it parsed for answer(), which is what respond() calls once
+	 * the Resolver has found records.
+	 */
+	private static byte[] parsed(final DnsResponder responder, final String name, final int qtype)
+	{
+		byte[] q = query(0, name, qtype, 3, -1, 0);
+		respond(responder, q, true);
+		return q;
+	}
+
+	private static void writeShort(final ByteArrayOutputStream out, final int v)
+	{
+		out.write(v >>> 8);
+		out.write(v);
+	}
+
+	private static int readShort(final byte[] b, final int pos)
+	{
+		return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+	}
+
+	private static int respond(final DnsResponder responder, final byte[] query, final boolean udp)
+	{
+		return responder.respond(query, query.length, null, udp);
+	}
+
+	private static int rcode(final DnsResponder responder)
+	{
+		return readShort(responder.getResponse(), 2) & 0xf;
+	}
+
+	private CompactRecordSet records(final String records) throws Exception
+	{
+		return CompactRecordSet.of(mapper.readValue("{\"fqdn\":\"www.foo.com\",\"ttl\":100,\"records\":[" +
+							    records + "]}", DNSRecordSet.class));
+	}
+
+	@Test
+	public void testSOAAndNS() throws Exception
+	{
+		DnsResponder responder = new DnsResponder(zones(), null, null);
+		byte[] q = query("Foo.com", DnsQuery.TYPE_SOA);
+		int length = respond(responder, q, true);
+		byte[] r = responder.getResponse();
+
+		assertTrue(length > q.length);
+		assertEquals(0x1234, readShort(r, 0));
+		// QR, AA, RD
+		assertEquals(0x8500, readShort(r, 2));
+		assertEquals(1, readShort(r, 4));
+		assertEquals(1, readShort(r, 6));
+		assertEquals(0, readShort(r, 8));
+		assertEquals(0, readShort(r, 10));
+
+		//
+		// the question is echoed as it was asked, and the SOA's owner points back at it
+		//
+		assertEquals('F', r[13]);
+		assertEquals(0xc00c, readShort(r, q.length));
+		assertEquals(DnsQuery.TYPE_SOA, readShort(r, q.length + 2));
+		assertEquals(600, readShort(r, q.length + 8));
+
+		length = respond(responder, query("foo.com", DnsQuery.TYPE_NS), false);
+		r = responder.getResponse();
+		assertEquals(DnsResponder.RCODE_NOERROR, rcode(responder));
+		assertEquals(2, readShort(r, 6));
+
+		//
+		// owner, type, class, ttl, length, then "ns1" and a pointer to foo.com in the question
+		//
+		int rr = q.length;
+		assertEquals(0xc00c, readShort(r, rr));
+		assertEquals(DnsQuery.TYPE_NS, readShort(r, rr + 2));
+		assertEquals(6, readShort(r, rr + 10));
+		assertEquals(3, r[rr + 12]);
+		assertEquals(0xc00c, readShort(r, rr + 16));
+
+		rr += 18;
+		assertEquals(6, readShort(r, rr + 10));
+		assertEquals(rr + 18, length);
+	}
+
+	@Test
+	public void testErrors() throws Exception
+	{
+		DnsResponder responder = new DnsResponder(zones(), null, null);
+
+		byte[] q = query("www.bar.com", DnsQuery.TYPE_A);
+		assertEquals(q.length, respond(responder, q, true));
+		assertEquals(DnsResponder.RCODE_REFUSED, rcode(responder));
+		assertEquals(1, readShort(responder.getResponse(), 4));
+
+		q = query(0, "foo.com", DnsQuery.TYPE_SOA, 3, -1, 0);
+		assertEquals(q.length, respond(responder, q, true));
+		assertEquals(DnsResponder.RCODE_REFUSED, rcode(responder));
+
+		q = query("foo.com", DnsQuery.TYPE_AXFR);
+		respond(responder, q, false);
+		assertEquals(DnsResponder.RCODE_REFUSED, rcode(responder));
+
+		q = query(2, "foo.com", DnsQuery.TYPE_SOA, DnsQuery.CLASS_IN, -1, 0);
+		assertEquals(12, respond(responder, q, true));
+		assertEquals(DnsResponder.RCODE_NOTIMP, rcode(responder));
+		assertEquals(0, readShort(responder.getResponse(), 4));
+
+		//
+		// a label running past the end of the message
+		//
+		q = query("foo.com", DnsQuery.TYPE_SOA);
+		q[12] = 40;
+		assertEquals(12, respond(responder, q, true));
+		assertEquals(DnsResponder.RCODE_FORMERR, rcode(responder));
+
+		//
+		// too short to answer, and responses are never answered
+		//
+		assertEquals(-1, responder.respond(q, 5, null, true));
+		q = query("foo.com", DnsQuery.TYPE_SOA);
+		q[2] |= 0x80;
+		assertEquals(-1, respond(responder, q, true));
+	}
+
+	@Test
+	public void testEdns() throws Exception
+	{
+		DnsResponder responder = new DnsResponder(zones(), null, null);
+
+		byte[] q = query(0, "foo.com", DnsQuery.TYPE_SOA, DnsQuery.CLASS_IN, 0, 4096);
+		int length = respond(responder, q, true);
+		byte[] r = responder.getResponse();
+
+		assertEquals(DnsResponder.RCODE_NOERROR, rcode(responder));
+		assertEquals(1, readShort(r, 10));
+		assertEquals(DnsQuery.TYPE_OPT, readShort(r, length - 10));
+		assertEquals(DnsResponder.EDNS_PAYLOAD_SIZE, readShort(r, length - 8));
+
+		//
+		// BADVERS is 16, which needs the extended rcode in the OPT record
+		//
+		q = query(0, "foo.com", DnsQuery.TYPE_SOA, DnsQuery.CLASS_IN, 1, 4096);
+		length = respond(responder, q, true);
+		r = responder.getResponse();
+
+		assertEquals(0, rcode(responder));
+		assertEquals(0, readShort(r, 6));
+		assertEquals(1, r[length - 6]);
+	}
+
+	@Test
+	public void testAnswers() throws Exception
+	{
+		Cache<HostnameKey, DnsResponder.Encoded> encoded = CacheBuilder.newBuilder().build();
+		ZoneRegistry zones = zones();
+		ZoneRegistry.Zone zone = zones.find(HostnameKey.of("www.foo.com"));
+		DnsResponder responder = new DnsResponder(zones, null, encoded);
+
+		CompactRecordSet records = records(
+			"{\"type\":\"A\",\"address\":\"10.1.2.3\"},{\"type\":\"A\",\"address\":\"10.1.2.4\"}," +
+			"{\"type\":\"MX\",\"priority\":10,\"address\":\"mail.foo.com\"}," +
+			"{\"type\":\"SOA\",\"address\":\"a.foo.com b.foo.com 1 2 3 4 5\"}");
+
+		byte[] q = parsed(responder, "WWW.foo.com", DnsQuery.TYPE_A);
+		int length = responder.answer(zone, records, 512);
+		byte[] r = responder.getResponse();
+
+		assertEquals(DnsResponder.RCODE_NOERROR, rcode(responder));
+		assertEquals(2, readShort(r, 6));
+		assertEquals(q.length + 32, length);
+		assertEquals(0xc00c, readShort(r, q.length));
+		assertEquals(100, readShort(r, q.length + 8));
+		assertEquals(4, readShort(r, q.length + 10));
+		assertEquals(10, r[q.length + 12]);
+		assertEquals(3, r[q.length + 15]);
+		assertEquals(4, r[q.length + 31]);
+		assertEquals(1, encoded.size());
+
+		//
+		// the second time the encoded answers are used, and come out the same
+		//
+		byte[] first = Arrays.copyOf(r, length);
+		parsed(responder, "WWW.foo.com", DnsQuery.TYPE_A);
+		assertEquals(length, responder.answer(zone, records, 512));
+		assertTrue(Arrays.equals(first, Arrays.copyOf(responder.getResponse(), length)));
+
+		//
+		// MX compresses "foo.com" against the question
+		//
+		q = parsed(responder, "www.foo.com", DnsQuery.TYPE_MX);
+		length = responder.answer(zone, records, 512);
+		r = responder.getResponse();
+
+		assertEquals(1, readShort(r, 6));
+		assertEquals(10, readShort(r, q.length + 12));
+		assertEquals(4, r[q.length + 14]);
+		assertEquals(0xc010, readShort(r, q.length + 19));
+		assertEquals(q.length + 21, length);
+
+		//
+		// no AAAA records: NOERROR with the SOA, whose TTL is the zone's minimum
+		//
+		q = parsed(responder, "www.foo.com", DnsQuery.TYPE_AAAA);
+		responder.answer(zone, records, 512);
+		r = responder.getResponse();
+
+		assertEquals(DnsResponder.RCODE_NOERROR, rcode(responder));
+		assertEquals(0, readShort(r, 6));
+		assertEquals(1, readShort(r, 8));
+		assertEquals(300, readShort(r, q.length + 8));
+
+		//
+		// a new record set for the name is encoded again
+		//
+		CompactRecordSet changed = records("{\"type\":\"A\",\"address\":\"10.9.9.9\"}");
+		q = parsed(responder, "www.foo.com", DnsQuery.TYPE_A);
+		assertEquals(q.length + 16, responder.answer(zone, changed, 512));
+		assertEquals(9, responder.getResponse()[q.length + 13]);
+	}
+
+	@Test
+	public void testTruncation() throws Exception
+	{
+		ZoneRegistry zones = zones();
+		ZoneRegistry.Zone zone = zones.find(HostnameKey.of("www.foo.com"));
+		DnsResponder responder = new DnsResponder(zones, null, null);
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < 40; i++)
+		{
+			sb.append(i > 0 ? "," : "").append("{\"type\":\"A\",\"address\":\"10.0.0.").append(i).append("\"}");
+		}
+
+		CompactRecordSet records = records(sb.toString());
+		byte[] q = parsed(responder, "www.foo.com", DnsQuery.TYPE_A);
+		assertEquals(q.length, responder.answer(zone, records, 512));
+		assertEquals(0x8700, readShort(responder.getResponse(), 2));
+		assertEquals(0, readShort(responder.getResponse(), 6));
+
+		parsed(responder, "www.foo.com", DnsQuery.TYPE_A);
+		assertEquals(q.length + 40 * 16, responder.answer(zone, records, DnsResponder.MAX_MESSAGE_LENGTH));
+		assertEquals(40, readShort(responder.getResponse(), 6));
+	}
+}
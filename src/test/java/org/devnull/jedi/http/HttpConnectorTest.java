@@ -0,0 +1,179 @@
+package org.devnull.jedi.http;
+
+import org.devnull.jedi.Upstream;
+import org.devnull.jedi.ZoneRegistry;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.jedi.configs.ZoneConfig;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.testng.AssertJUnit.*;
+
+public class HttpConnectorTest
+{
+	private static final String SOA = "{\"result\":[{\"qtype\":\"SOA\",\"qname\":\"foo.com\"," +
+		"\"content\":\"ns1.foo.com. hostmaster.foo.com. 1 7200 900 1209600 300\",\"ttl\":600," +
+		"\"priority\":0,\"domain_id\":-1}]}\n";
+
+	private HttpConnector connector;
+
+	@BeforeClass
+	public void setUp() throws Exception
+	{
+		ZoneConfig zc = new ZoneConfig();
+		zc.name = "foo.com";
+		zc.soa = "ns1.foo.com. hostmaster.foo.com. 1 7200 900 1209600 300";
+		zc.ttl = 600;
+
+		JediConfig config = new JediConfig();
+		config.zones = new ArrayList<ZoneConfig>(Arrays.asList(zc));
+		config.http_listen_port = 0;
+		config.http_worker_count = 2;
+
+		connector = new HttpConnector(config, new Upstream(config, null), null, null, new ZoneRegistry(config));
+		connector.start();
+	}
+
+	@AfterClass
+	public void tearDown() throws Exception
+	{
+		connector.shutdown();
+	}
+
+	/**
+	 * Reads one response, and returns its status line and body.
+	 */
+	private static String[] read(final InputStream in) throws Exception
+	{
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+		while (!header.toString().endsWith("\r\n\r\n"))
+		{
+			int b = in.read();
+			assertTrue(b >= 0);
+			header.write(b);
+		}
+
+		String h = header.toString();
+		int start = h.indexOf("Content-Length: ") + 16;
+		int length = Integer.parseInt(h.substring(start, h.indexOf('\r', start)));
+		byte[] body = new byte[length];
+
+		for (int i = 0; i < length; i++)
+		{
+			body[i] = (byte) in.read();
+		}
+
+		return new String[]{h.substring(0, h.indexOf('\r')), new String(body), h};
+	}
+
+	@Test
+	public void testKeepAlive() throws Exception
+	{
+		Socket socket = new Socket("127.0.0.1", connector.getLocalPort());
+		socket.setSoTimeout(5000);
+
+		try
+		{
+			OutputStream out = socket.getOutputStream();
+			InputStream in = socket.getInputStream();
+
+			out.write("GET /dnsapi/lookup/Foo.com/SOA HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+			String[] response = read(in);
+			assertEquals("HTTP/1.1 200 OK", response[0]);
+			assertEquals(SOA, response[1]);
+
+			//
+			// pipelined, on the same connection, answered in order
+			//
+			out.write(("GET /dnsapi/lookup/www.bar.com/A HTTP/1.1\r\n\r\n" +
+				   "GET /dnsapi/getDomainMetadata/foo.com/PRESIGNED HTTP/1.1\r\n\r\n" +
+				   "GET /favicon.ico HTTP/1.1\r\n\r\n").getBytes());
+
+			assertEquals("{\"result\":false}", read(in)[1]);
+			assertEquals("{\"result\":false}", read(in)[1]);
+			assertEquals("HTTP/1.1 404 Not Found", read(in)[0]);
+
+			String body = "{\"method\":\"lookup\",\"parameters\":{\"qname\":\"Foo.com\",\"qtype\":\"SOA\"}}";
+			out.write(("POST /dnsapi/lookup HTTP/1.1\r\nConnection: close\r\nContent-Length: " + body.length() +
+				   "\r\n\r\n" + body).getBytes());
+
+			response = read(in);
+			assertEquals(SOA, response[1]);
+			assertTrue(response[2].contains("Connection: close"));
+			assertEquals(-1, in.read());
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testBadRequest() throws Exception
+	{
+		Socket socket = new Socket("127.0.0.1", connector.getLocalPort());
+		socket.setSoTimeout(5000);
+
+		try
+		{
+			socket.getOutputStream().write("HELLO\r\n\r\n".getBytes());
+			assertEquals("HTTP/1.1 400 Bad Request", read(socket.getInputStream())[0]);
+			assertEquals(-1, socket.getInputStream().read());
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testQueueFull() throws Exception
+	{
+		//
+		// with no workers and no queue, there is never room for a request
+		//
+		JediConfig config = new JediConfig();
+		config.http_listen_port = 0;
+		config.http_worker_count = 0;
+		config.http_queue_size = 0;
+
+		HttpConnector full = new HttpConnector(config, new Upstream(config, null), null, null,
+						       new ZoneRegistry(config));
+		full.start();
+
+		Socket socket = new Socket("127.0.0.1", full.getLocalPort());
+		socket.setSoTimeout(5000);
+
+		try
+		{
+			OutputStream out = socket.getOutputStream();
+			InputStream in = socket.getInputStream();
+
+			//
+			// refused right away, and the connection is kept for the next request
+			//
+			out.write("GET /dnsapi/lookup/foo.com/SOA HTTP/1.1\r\n\r\n".getBytes());
+			assertEquals("HTTP/1.1 503 Service Unavailable", read(in)[0]);
+
+			out.write("GET /dnsapi/lookup/foo.com/SOA HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+			String[] response = read(in);
+			assertEquals("HTTP/1.1 503 Service Unavailable", response[0]);
+			assertTrue(response[2].contains("Connection: close"));
+			assertEquals(-1, in.read());
+		}
+		finally
+		{
+			socket.close();
+			full.shutdown();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package org.devnull.jedi.http;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+public class HttpRequestTest
+{
+	private static int parse(final HttpRequest request, final String s)
+	{
+		byte[] data = s.getBytes();
+		return request.parse(data, data.length);
+	}
+
+	@Test
+	public void testLookup() throws Exception
+	{
+		HttpRequest request = new HttpRequest();
+		String s = "GET /dnsapi/lookup/www.foo.com./ANY HTTP/1.1\r\nHost: localhost\r\n" +
+			"X-RemoteBackend-remote: 10.1.2.3\r\nx-remotebackend-real-remote: 10.1.0.0/16\r\n\r\n";
+
+		assertEquals(s.length(), parse(request, s));
+		assertEquals("GET", request.getMethod());
+		assertEquals("/dnsapi/lookup/www.foo.com./ANY", request.getPath());
+		assertEquals("10.1.0.0/16", request.getRemote());
+		assertNull(request.getBody());
+		assertTrue(request.isKeepAlive());
+
+		//
+		// anything after the request is left for the next one
+		//
+		assertEquals(s.length(), parse(request, s + "GET /dnsapi"));
+
+		s = "GET /dnsapi/lookup/www.foo.com./ANY HTTP/1.1\nConnection: close\nX-RemoteBackend-remote: 10.1.2.3\n\n";
+		assertEquals(s.length(), parse(request, s));
+		assertEquals("10.1.2.3", request.getRemote());
+		assertFalse(request.isKeepAlive());
+
+		assertEquals(31, parse(request, "GET /dnsapi/lookup HTTP/1.0\r\n\r\n"));
+		assertFalse(request.isKeepAlive());
+		parse(request, "GET /dnsapi/lookup HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n");
+		assertTrue(request.isKeepAlive());
+	}
+
+	@Test
+	public void testBody() throws Exception
+	{
+		HttpRequest request = new HttpRequest();
+		String body = "{\"method\":\"lookup\",\"parameters\":{\"qname\":\"foo.com\",\"qtype\":\"SOA\"}}";
+		String s = "POST /dnsapi/lookup HTTP/1.1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+
+		assertEquals(HttpRequest.INCOMPLETE, parse(request, s.substring(0, s.length() - 1)));
+		assertEquals(s.length(), parse(request, s));
+		assertEquals("POST", request.getMethod());
+		assertEquals(body, request.getBody());
+	}
+
+	@Test
+	public void testInvalid() throws Exception
+	{
+		HttpRequest request = new HttpRequest();
+
+		assertEquals(HttpRequest.INCOMPLETE, parse(request, "GET /dnsapi/lookup/foo.com/SOA HTTP/1.1\r\nHost: x\r\n"));
+		assertEquals(HttpRequest.INVALID, parse(request, "GET /dnsapi/lookup/foo.com/SOA\r\n\r\n"));
+		assertEquals(HttpRequest.INVALID, parse(request, "GET / SPDY/3\r\n\r\n"));
+		assertEquals(HttpRequest.INVALID, parse(request, "POST / HTTP/1.1\r\nContent-Length: x\r\n\r\n"));
+		assertEquals(HttpRequest.INVALID, parse(request, "POST / HTTP/1.1\r\nContent-Length: 100000\r\n\r\n"));
+		assertEquals(HttpRequest.INVALID, parse(request, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"));
+
+		StringBuilder sb = new StringBuilder("GET / HTTP/1.1\r\n");
+
+		while (sb.length() < HttpRequest.MAX_HEADER_LENGTH)
+		{
+			sb.append("X-Padding: 0123456789\r\n");
+		}
+
+		assertEquals(HttpRequest.INVALID, parse(request, sb.toString()));
+	}
+}
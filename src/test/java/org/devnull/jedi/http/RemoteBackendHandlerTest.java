@@ -0,0 +1,62 @@
+package org.devnull.jedi.http;
+
+import org.devnull.jedi.RemoteBackend;
+import org.devnull.jedi.Resolver;
+import org.devnull.jedi.Upstream;
+import org.devnull.jedi.ZoneRegistry;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.jedi.configs.ZoneConfig;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.AssertJUnit.*;
+
+public class RemoteBackendHandlerTest
+{
+	private static HttpRequest request(final String s)
+	{
+		HttpRequest request = new HttpRequest();
+		assertEquals(s.length(), request.parse(s.getBytes(), s.length()));
+		return request;
+	}
+
+	@Test
+	public void testExpiredRequestsAreDropped() throws Exception
+	{
+		ZoneConfig zc = new ZoneConfig();
+		zc.name = "foo.com";
+		zc.soa = "ns1.foo.com. hostmaster.foo.com. 1 7200 900 1209600 300";
+		zc.ttl = 600;
+
+		JediConfig config = new JediConfig();
+		config.zones = new ArrayList<ZoneConfig>(Arrays.asList(zc));
+		Upstream upstream = new Upstream(config, null);
+
+		try
+		{
+			RemoteBackendHandler handler = new RemoteBackendHandler(new Resolver(config, upstream, null, null),
+										new ZoneRegistry(config));
+			HttpRequest soa = request("GET /dnsapi/lookup/foo.com/SOA HTTP/1.1\r\n\r\n");
+
+			assertTrue(handler.handle(soa, System.nanoTime()).contains("hostmaster.foo.com"));
+
+			//
+			// one that sat in the queue for longer than rest_fetch_timeout is not answered
+			//
+			long queued = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(config.rest_fetch_timeout + 1);
+			assertEquals(RemoteBackend.NEGATIVE, handler.handle(soa, queued));
+
+			//
+			// and that is not mistaken for a request outside the API
+			//
+			assertNull(handler.handle(request("GET /favicon.ico HTTP/1.1\r\n\r\n"), queued));
+		}
+		finally
+		{
+			upstream.close();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.devnull.jedi.records;
+
+import org.apache.commons.validator.routines.InetAddressValidator;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.AssertJUnit.*;
+
+public class AddressParserTest
+{
+	@Test
+	public void testInet4() throws Exception
+	{
+		assertEquals(0x01020304L, AddressParser.parseInet4("1.2.3.4"));
+		assertEquals(0xffffffffL, AddressParser.parseInet4("255.255.255.255"));
+		assertEquals(0L, AddressParser.parseInet4("0.0.0.0"));
+		assertEquals(0x01020304L, AddressParser.parseInet4("001.002.003.004"));
+
+		String[] invalid = {null, "", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..3.4", "+1.2.3.4", "0000.1.1.1",
+			"1.2.3.4\n", " 1.2.3.4", "1.2.3.4 ", "1.2.3.", ".1.2.3", "\u0661.2.3.4", "a.b.c.d"};
+
+		for (String s : invalid)
+		{
+			assertEquals(s, -1L, AddressParser.parseInet4(s));
+		}
+
+		//
+		// accepts and rejects exactly what InetAddressValidator does
+		//
+		InetAddressValidator validator = InetAddressValidator.getInstance();
+		Random random = new Random(1);
+		String alphabet = "0123456789. ";
+
+		for (int i = 0; i < 100000; i++)
+		{
+			StringBuilder sb = new StringBuilder();
+			int length = random.nextInt(17);
+
+			for (int j = 0; j < length; j++)
+			{
+				sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+
+			String s = sb.toString();
+			assertEquals(s, validator.isValidInet4Address(s), AddressParser.parseInet4(s) >= 0);
+		}
+	}
+
+	@Test
+	public void testInet6() throws Exception
+	{
+		long[] dest = new long[4];
+
+		assertTrue(AddressParser.parseInet6("2001:db8::1", dest, 2));
+		assertEquals(0x20010db800000000L, dest[2]);
+		assertEquals(1L, dest[3]);
+
+		assertTrue(AddressParser.parseInet6("::", dest, 0));
+		assertEquals(0L, dest[0]);
+		assertEquals(0L, dest[1]);
+
+		assertTrue(AddressParser.parseInet6("1:2:3:4:5:6:7:8", dest, 0));
+		assertEquals(0x0001000200030004L, dest[0]);
+		assertEquals(0x0005000600070008L, dest[1]);
+
+		assertTrue(AddressParser.parseInet6("FE80::", dest, 0));
+		assertEquals(0xfe80000000000000L, dest[0]);
+		assertEquals(0L, dest[1]);
+
+		assertTrue(AddressParser.parseInet6("::ffff:1.2.3.4", dest, 0));
+		assertEquals(0L, dest[0]);
+		assertEquals(0x0000ffff01020304L, dest[1]);
+
+		assertTrue(AddressParser.parseInet6("1:2:3:4:5:6:1.2.3.4", dest, 0));
+		assertEquals(0x0001000200030004L, dest[0]);
+		assertEquals(0x0005000601020304L, dest[1]);
+
+		assertTrue(AddressParser.parseInet6("1::7:8", dest, 0));
+		assertEquals(0x0001000000000000L, dest[0]);
+		assertEquals(0x0000000000070008L, dest[1]);
+
+		String[] invalid = {null, "", ":", ":::", "1", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1::2::3", ":1::",
+			"1:", "1::2:", "12345::", "g::", "::1.2.3", "1:2:3:4:5:6:7:1.2.3.4", "fe80::1%eth0", "1.2.3.4",
+			"1:2:3:4:5:6:7:8::"};
+
+		for (String s : invalid)
+		{
+			dest[0] = 42;
+			assertFalse(s, AddressParser.parseInet6(s, dest, 0));
+			assertEquals(42L, dest[0]);
+		}
+	}
+
+	@Test
+	public void testMX() throws Exception
+	{
+		MXRecord mx = new MXRecord();
+
+		mx.setAddress("10 mail.foo.com");
+		assertEquals(10, mx.getPriority());
+		assertEquals("mail.foo.com", mx.getAddress());
+
+		mx.setAddress("20\t mail2.foo.com \n");
+		assertEquals(20, mx.getPriority());
+		assertEquals("mail2.foo.com", mx.getAddress());
+
+		//
+		// a lone host keeps the priority it had, and is taken as is
+		//
+		mx.setAddress("mail3.foo.com ");
+		assertEquals(20, mx.getPriority());
+		assertEquals("mail3.foo.com ", mx.getAddress());
+
+		String[] tooMany = {"1 2 3", "\t10 mail", "   "};
+
+		for (String s : tooMany)
+		{
+			try
+			{
+				mx.setAddress(s);
+				fail("expected an Exception for " + s);
+			}
+			catch (NumberFormatException e)
+			{
+				throw e;
+			}
+			catch (Exception e)
+			{
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Too many fields"));
+			}
+		}
+
+		String[] badPriority = {" mail", "x mail", "99999999999 mail"};
+
+		for (String s : badPriority)
+		{
+			try
+			{
+				mx.setAddress(s);
+				fail("expected a NumberFormatException for " + s);
+			}
+			catch (NumberFormatException e)
+			{
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package org.devnull.jedi.relay;
+
+import org.devnull.jedi.configs.RelayConfig;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.AssertJUnit.*;
+
+public class RelayConnectionTest
+{
+	private ServerSocket jedi;
+	private Thread acceptor;
+	private final AtomicInteger accepted = new AtomicInteger();
+
+	/**
+	 * close each connection after this many answers, or never if 0
+	 */
+	private volatile int answersPerConnection = 0;
+
+	@BeforeMethod
+	public void setUp() throws Exception
+	{
+		accepted.set(0);
+		answersPerConnection = 0;
+		jedi = new ServerSocket(0);
+
+		//
+		// a Jedi that answers each line with its length
+		//
+		acceptor = new Thread()
+		{
+			public void run()
+			{
+				while (true)
+				{
+					final Socket s;
+
+					try
+					{
+						s = jedi.accept();
+					}
+					catch (Exception e)
+					{
+						return;
+					}
+
+					accepted.incrementAndGet();
+
+					new Thread()
+					{
+						public void run()
+						{
+							try
+							{
+								BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+								OutputStream out = s.getOutputStream();
+								String line;
+								int answers = 0;
+
+								while ((line = in.readLine()) != null)
+								{
+									out.write(("{\"result\":" + line.length() + "}\n").getBytes());
+									out.flush();
+
+									if (++answers == answersPerConnection)
+									{
+										break;
+									}
+								}
+
+								s.close();
+							}
+							catch (Exception e)
+							{
+							}
+						}
+					}.start();
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception
+	{
+		jedi.close();
+	}
+
+	private RelayConfig config(final String... servers)
+	{
+		RelayConfig config = new RelayConfig();
+		config.jedi_servers = new ArrayList<String>(Arrays.asList(servers));
+		return config;
+	}
+
+	private static String relay(final RelayConnection connection, final String requests) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		connection.relay(new ByteArrayInputStream(requests.getBytes()), out);
+		return out.toString();
+	}
+
+	@Test
+	public void testPooling() throws Exception
+	{
+		RelayConfig config = config("127.0.0.1:" + jedi.getLocalPort());
+		JediServerPool pool = new JediServerPool(config);
+
+		assertEquals("{\"result\":1}\n{\"result\":2}\n{\"result\":3}\n",
+			     relay(new RelayConnection(config, pool, null), "a\nbb\nccc\n"));
+
+		//
+		// another PowerDNS connection uses the same connection to Jedi
+		//
+		assertEquals("{\"result\":4}\n", relay(new RelayConnection(config, pool, null), "dddd\nunfinished"));
+		assertEquals(1, accepted.get());
+
+		pool.close();
+	}
+
+	@Test
+	public void testRetry() throws Exception
+	{
+		answersPerConnection = 1;
+
+		RelayConfig config = config("127.0.0.1:" + jedi.getLocalPort());
+		JediServerPool pool = new JediServerPool(config);
+		RelayConnection connection = new RelayConnection(config, pool, null);
+
+		//
+		// the pooled connection is closed after each answer, and found to be when the next request is sent
+		//
+		assertEquals("{\"result\":1}\n{\"result\":2}\n", relay(connection, "a\nbb\n"));
+		assertEquals(2, accepted.get());
+
+		pool.close();
+	}
+
+	@Test
+	public void testNoServers() throws Exception
+	{
+		ServerSocket unused = new ServerSocket(0);
+		int port = unused.getLocalPort();
+		unused.close();
+
+		RelayConfig config = config("127.0.0.1:" + port, "127.0.0.1:" + jedi.getLocalPort());
+		JediServerPool pool = new JediServerPool(config);
+
+		//
+		// the server that is down is skipped
+		//
+		assertEquals("{\"result\":1}\n{\"result\":2}\n", relay(new RelayConnection(config, pool, null), "a\nbb\n"));
+		pool.close();
+
+		config = config("127.0.0.1:" + port);
+		pool = new JediServerPool(config);
+		assertEquals(new String(RelayConnection.NEGATIVE), relay(new RelayConnection(config, pool, null), "a\n"));
+	}
+}
@@ -0,0 +1,66 @@
+package org.devnull.jedi.zmq;
+
+import org.devnull.jedi.RemoteBackend;
+import org.devnull.jedi.Resolver;
+import org.devnull.jedi.Upstream;
+import org.devnull.jedi.ZoneRegistry;
+import org.devnull.jedi.configs.JediConfig;
+import org.devnull.jedi.configs.ZoneConfig;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.testng.AssertJUnit.*;
+
+public class ZmqWorkerTest
+{
+	private static final String SOA = "{\"result\":[{\"qtype\":\"SOA\",\"qname\":\"foo.com\"," +
+		"\"content\":\"ns1.foo.com. hostmaster.foo.com. 1 7200 900 1209600 300\",\"ttl\":600," +
+		"\"priority\":0,\"domain_id\":-1}]}\n";
+
+	private ZmqWorker worker;
+
+	@BeforeClass
+	public void setUp() throws Exception
+	{
+		ZoneConfig zc = new ZoneConfig();
+		zc.name = "foo.com";
+		zc.soa = "ns1.foo.com. hostmaster.foo.com. 1 7200 900 1209600 300";
+		zc.ttl = 600;
+
+		JediConfig config = new JediConfig();
+		config.zones = new ArrayList<ZoneConfig>(Arrays.asList(zc));
+
+		worker = new ZmqWorker(null, new Resolver(config, new Upstream(config, null), null, null),
+				       new ZoneRegistry(config));
+	}
+
+	private static String lookup(final String qname, final String qtype)
+	{
+		return "{\"method\":\"lookup\",\"parameters\":{\"qname\":\"" + qname + "\",\"qtype\":\"" + qtype +
+			"\",\"remote\":\"127.0.0.1\",\"local\":\"0.0.0.0\",\"real-remote\":\"127.0.0.1/32\",\"zone-id\":-1}}";
+	}
+
+	@Test
+	public void testRequests() throws Exception
+	{
+		assertEquals(RemoteBackend.OK, worker.answer("{\"method\":\"initialize\",\"parameters\":{}}"));
+
+		assertEquals(SOA, worker.answer(lookup("foo.com", "SOA")));
+		assertEquals(RemoteBackend.NEGATIVE, worker.answer(lookup("www.foo.com", "SOA")));
+		assertEquals(RemoteBackend.NEGATIVE, worker.answer(lookup("foo.com", "NS")));
+		assertEquals(RemoteBackend.NEGATIVE, worker.answer(lookup("www.bar.com", "A")));
+	}
+
+	@Test
+	public void testInvalid() throws Exception
+	{
+		assertEquals(RemoteBackend.NEGATIVE, worker.answer(
+			"{\"method\":\"calculateSOASerial\",\"parameters\":{\"domain\":\"foo.com\",\"sd\":{}}}"));
+		assertEquals(RemoteBackend.NEGATIVE, worker.answer("{\"method\":\"list\",\"parameters\":{}}"));
+		assertEquals(RemoteBackend.NEGATIVE, worker.answer("{\"method\":\"lookup\",\"parameters\":{}}"));
+		assertEquals(RemoteBackend.NEGATIVE, worker.answer("not json"));
+	}
+}